@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Structured per request access log. Records are written into a bounded,
+ * preallocated ring buffer by the request handling threads and drained by a
+ * background thread to the <code>omero.ms.thumbnail.access</code> logger.
+ * Request handling threads claim ring slots with a compare-and-set, without
+ * locking or allocating; records are only formatted by the background
+ * thread. When the buffer is full records are dropped rather than blocking
+ * the caller.
+ * @author agent <agent@local>
+ *
+ */
+public class AccessLog implements Closeable {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(AccessLog.class);
+
+    /** Logger access log records are written to. */
+    private static final org.slf4j.Logger accessLog =
+            LoggerFactory.getLogger("omero.ms.thumbnail.access");
+
+    private static final Counter DROPPED = Counter.build()
+            .name("omero_ms_thumbnail_access_log_dropped_total")
+            .help("Number of access log records dropped due to backpressure")
+            .register();
+
+    /** Placeholder for values which are not known. */
+    public static final String UNKNOWN = "-";
+
+    /** Mutable access log record; instances are reused. */
+    private static class Record {
+
+        /**
+         * Sequence number the slot may next be claimed with or, once the
+         * record has been written, one more than the sequence number it
+         * was claimed with.
+         */
+        volatile long sequence;
+
+        String route;
+
+        int statusCode;
+
+        int imageCount;
+
+        int longestSide;
+
+        String cache;
+
+        long queueMillis;
+
+        long workerMillis;
+
+        long totalMillis;
+
+        long bytes;
+    }
+
+    /** Ring buffer of records. */
+    private final Record[] ring;
+
+    /** Mask to convert a sequence number into a ring buffer index. */
+    private final int mask;
+
+    /** Sequence number of the next record to be claimed. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Number of records dropped because the buffer was full. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** Whether or not formatted records are wanted by {@link #sink}. */
+    private final BooleanSupplier enabled;
+
+    /** Destination of formatted records. */
+    private final Consumer<String> sink;
+
+    /** Background thread draining the ring buffer. */
+    private final Thread writer;
+
+    /** Whether or not the access log has been closed. */
+    private volatile boolean closed;
+
+    /**
+     * Default constructor.
+     * @param bufferSize Number of records which may be buffered; rounded up
+     * to the next power of two.
+     */
+    public AccessLog(int bufferSize) {
+        this(bufferSize, accessLog::isInfoEnabled, accessLog::info);
+    }
+
+    /**
+     * Constructor with the ability to specify where records are written.
+     * @param bufferSize Number of records which may be buffered; rounded up
+     * to the next power of two.
+     * @param enabled Whether or not records are to be formatted and written;
+     * consulted for each record.
+     * @param sink Destination of formatted records, called from the writer
+     * thread only.
+     */
+    AccessLog(
+            int bufferSize, BooleanSupplier enabled, Consumer<String> sink) {
+        this.enabled = enabled;
+        this.sink = sink;
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        ring = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Record();
+            ring[i].sequence = i;
+        }
+        mask = capacity - 1;
+        writer = new Thread(this::drain, "thumbnail-access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records a completed request. Never blocks; if the buffer is full the
+     * record is dropped.
+     * @param route Name of the route which handled the request.
+     * @param statusCode HTTP status code of the response.
+     * @param imageCount Number of images requested.
+     * @param longestSide Requested size of the longest side of the
+     * thumbnails.
+     * @param cache Cache outcome or {@link #UNKNOWN}.
+     * @param queueMillis Time spent waiting to be dispatched to a worker.
+     * @param workerMillis Time spent by the worker or <code>-1</code> if not
+     * known.
+     * @param totalMillis Total time taken to respond.
+     * @param bytes Number of bytes in the response body.
+     */
+    public void log(
+            String route, int statusCode, int imageCount, int longestSide,
+            String cache, long queueMillis, long workerMillis,
+            long totalMillis, long bytes) {
+        Record record;
+        long sequence;
+        while (true) {
+            sequence = head.get();
+            record = ring[(int) sequence & mask];
+            long available = record.sequence;
+            if (available < sequence) {
+                // Slot not yet drained since the previous lap
+                DROPPED.inc();
+                dropped.incrementAndGet();
+                return;
+            }
+            if (available == sequence
+                    && head.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        record.route = route;
+        record.statusCode = statusCode;
+        record.imageCount = imageCount;
+        record.longestSide = longestSide;
+        record.cache = cache;
+        record.queueMillis = queueMillis;
+        record.workerMillis = workerMillis;
+        record.totalMillis = totalMillis;
+        record.bytes = bytes;
+        // Publish the record to the writer thread
+        record.sequence = sequence + 1;
+    }
+
+    /**
+     * Writer thread loop; formats each buffered record into a reused builder
+     * and writes it to the access logger.
+     */
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        long sequence = 0;
+        while (true) {
+            Record record = ring[(int) sequence & mask];
+            if (record.sequence != sequence + 1) {
+                if (closed) {
+                    break;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+            if (!enabled.getAsBoolean()) {
+                release(record, sequence++);
+                continue;
+            }
+            line.setLength(0);
+            line.append("route=").append(record.route)
+                .append(" status=").append(record.statusCode)
+                .append(" images=").append(record.imageCount)
+                .append(" longest_side=").append(record.longestSide)
+                .append(" cache=").append(record.cache)
+                .append(" queue_ms=").append(record.queueMillis)
+                .append(" worker_ms=");
+            if (record.workerMillis < 0) {
+                line.append(UNKNOWN);
+            } else {
+                line.append(record.workerMillis);
+            }
+            line.append(" total_ms=").append(record.totalMillis)
+                .append(" bytes=").append(record.bytes);
+            release(record, sequence++);
+            try {
+                sink.accept(line.toString());
+            } catch (Exception e) {
+                log.error("Exception while writing access log", e);
+            }
+        }
+    }
+
+    /**
+     * @return Number of records dropped because the buffer was full.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Number of records the buffer holds.
+     */
+    public int capacity() {
+        return ring.length;
+    }
+
+    /**
+     * Makes the slot of a drained record available to be claimed on the
+     * next lap of the ring buffer.
+     * @param record Drained record.
+     * @param sequence Sequence number the record was claimed with.
+     */
+    private void release(Record record, long sequence) {
+        record.route = null;
+        record.cache = null;
+        record.sequence = sequence + ring.length;
+    }
+
+    /**
+     * Stops the writer thread once the buffered records have been written.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Consistent hash ring assigning each thumbnail, by image and longest side,
+ * an owning microservice instance within a Vert.x cluster. Requests received
+ * by any other instance are forwarded to the owner over the clustered event
+ * bus so that each thumbnail is cached, and retrieved from the server, by a
+ * single instance. Membership is maintained by heartbeats published by every
+ * instance; members which miss heartbeats for longer than the member timeout
+ * leave the ring.
+ * <p>
+ * This class is <b>not</b> thread safe. It is expected to be used solely from
+ * the event loop of the verticle that owns it.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class AffinityRouter {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(AffinityRouter.class);
+
+    private static final Gauge MEMBERS = Gauge.build()
+            .name("omero_ms_thumbnail_affinity_ring_members")
+            .help("Number of instances on the affinity ring")
+            .register();
+
+    private static final Counter MEMBERSHIP_CHANGES = Counter.build()
+            .name("omero_ms_thumbnail_affinity_ring_changes_total")
+            .help("Number of instances which joined or left the affinity ring")
+            .labelNames("change")
+            .register();
+
+    private static final Counter REQUESTS = Counter.build()
+            .name("omero_ms_thumbnail_affinity_requests_total")
+            .help("Number of requests routed by the affinity ring by outcome")
+            .labelNames("outcome")
+            .register();
+
+    private static final Counter RECEIVED = Counter.build()
+            .name("omero_ms_thumbnail_affinity_received_total")
+            .help("Number of requests forwarded to this instance as owner")
+            .register();
+
+    /** Event bus address heartbeats are published to. */
+    public static final String HEARTBEAT_ADDRESS =
+            "omero.thumbnail_affinity.heartbeat";
+
+    /** Event bus address thumbnail cache invalidations are published to. */
+    public static final String INVALIDATE_ADDRESS =
+            "omero.thumbnail_affinity.invalidate";
+
+    /** Delivery header carrying the worker address of a forwarded request. */
+    public static final String ADDRESS_HEADER = "omero.ms.address";
+
+    /** Delivery header carrying the instance a message was sent by. */
+    public static final String ORIGIN_HEADER = "omero.ms.origin";
+
+    /** Vert.x instance. */
+    private final Vertx vertx;
+
+    /** Identifier of this instance. */
+    private final String nodeId = UUID.randomUUID().toString();
+
+    /** Number of points each instance occupies on the ring. */
+    private final int virtualNodes;
+
+    /** Interval in milliseconds between heartbeats. */
+    private final long heartbeatMillis;
+
+    /** Time in milliseconds without a heartbeat after which a member leaves. */
+    private final long memberTimeoutMillis;
+
+    /** Handler of requests forwarded to this instance. */
+    private final Handler<Message<String>> forwardedHandler;
+
+    /** Handler of invalidations published by other instances. */
+    private final Handler<JsonObject> invalidationHandler;
+
+    /** Ring points to the instance which owns them. */
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    /** Time in milliseconds each member was last heard from. */
+    private final Map<String, Long> members = new HashMap<String, Long>();
+
+    /** Consumers registered by {@link #start()}. */
+    private final MessageConsumer<?>[] consumers = new MessageConsumer<?>[3];
+
+    /** Heartbeat timer identifier or -1 if not started. */
+    private long timerId = -1;
+
+    /**
+     * Default constructor.
+     * @param vertx Clustered Vert.x instance; may be <code>null</code> if
+     * the router is never started.
+     * @param virtualNodes Number of points each instance occupies on the
+     * ring; more points give a more even distribution of thumbnails.
+     * @param heartbeatMillis Interval in milliseconds between heartbeats.
+     * @param memberTimeoutMillis Time in milliseconds without a heartbeat
+     * after which a member leaves the ring.
+     * @param forwardedHandler Handler of requests forwarded to this instance
+     * as owner. The message body is as sent to the worker address carried by
+     * the {@link #ADDRESS_HEADER} header.
+     * @param invalidationHandler Handler of thumbnail cache invalidations
+     * published by other instances.
+     */
+    public AffinityRouter(
+            Vertx vertx, int virtualNodes, long heartbeatMillis,
+            long memberTimeoutMillis,
+            Handler<Message<String>> forwardedHandler,
+            Handler<JsonObject> invalidationHandler) {
+        this.vertx = vertx;
+        this.virtualNodes = virtualNodes;
+        this.heartbeatMillis = heartbeatMillis;
+        this.memberTimeoutMillis = memberTimeoutMillis;
+        this.forwardedHandler = forwardedHandler;
+        this.invalidationHandler = invalidationHandler;
+    }
+
+    /**
+     * @param nodeId Instance identifier.
+     * @return Event bus address requests owned by the instance are forwarded
+     * to.
+     */
+    public static String address(String nodeId) {
+        return "omero.thumbnail_affinity." + nodeId;
+    }
+
+    /**
+     * Joins the ring and starts sending heartbeats.
+     */
+    public void start() {
+        join(nodeId);
+        consumers[0] = vertx.eventBus().<String>consumer(
+                address(nodeId), message -> {
+                    RECEIVED.inc();
+                    forwardedHandler.handle(message);
+                });
+        consumers[1] = vertx.eventBus().<String>consumer(
+                HEARTBEAT_ADDRESS, this::heartbeat);
+        consumers[2] = vertx.eventBus().<JsonObject>consumer(
+                INVALIDATE_ADDRESS, message -> {
+                    if (!nodeId.equals(
+                            message.headers().get(ORIGIN_HEADER))) {
+                        invalidationHandler.handle(message.body());
+                    }
+                });
+        timerId = vertx.setPeriodic(heartbeatMillis, t -> {
+            vertx.eventBus().publish(HEARTBEAT_ADDRESS, nodeId);
+            expire();
+        });
+        vertx.eventBus().publish(HEARTBEAT_ADDRESS, nodeId);
+        log.info("Joined affinity ring as {}", nodeId);
+    }
+
+    /**
+     * Stops sending heartbeats and announces that this instance is leaving
+     * the ring.
+     */
+    public void stop() {
+        if (timerId != -1) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+        }
+        for (MessageConsumer<?> consumer : consumers) {
+            if (consumer != null) {
+                consumer.unregister();
+            }
+        }
+        vertx.eventBus().publish(
+                HEARTBEAT_ADDRESS, nodeId,
+                new DeliveryOptions().addHeader("leave", "true"));
+    }
+
+    /**
+     * Looks up the owner of a thumbnail.
+     * @param imageId {@link omero.model.Image} identifier.
+     * @param longestSide Size of the longest side of the thumbnail.
+     * @return Identifier of the owning instance or <code>null</code> if this
+     * instance is the owner.
+     */
+    public String owner(long imageId, int longestSide) {
+        SortedMap<Long, String> tail = ring.tailMap(
+                mix(mix(imageId) ^ longestSide));
+        String owner = tail.isEmpty()
+                ? ring.firstEntry().getValue()
+                : tail.get(tail.firstKey());
+        if (owner.equals(nodeId)) {
+            REQUESTS.labels("local").inc();
+            return null;
+        }
+        REQUESTS.labels("forwarded").inc();
+        return owner;
+    }
+
+    /**
+     * Records that a request could not be forwarded to its owner, which has
+     * no consumer registered and is assumed to have left, and removes the
+     * owner from the ring until it is next heard from.
+     * @param owner Identifier of the owning instance.
+     */
+    public void fallback(String owner) {
+        REQUESTS.labels("fallback").inc();
+        if (members.containsKey(owner)) {
+            log.warn("Affinity ring member {} unreachable", owner);
+            leave(owner);
+        }
+    }
+
+    /**
+     * Publishes a thumbnail cache invalidation to all other instances.
+     * @param data Invalidation event data.
+     */
+    public void publishInvalidation(JsonObject data) {
+        vertx.eventBus().publish(
+                INVALIDATE_ADDRESS, data,
+                new DeliveryOptions().addHeader(ORIGIN_HEADER, nodeId));
+    }
+
+    /**
+     * Heartbeat event handler.
+     * @param message Identifier of the instance sending the heartbeat.
+     */
+    private void heartbeat(Message<String> message) {
+        String member = message.body();
+        if (member.equals(nodeId)) {
+            return;
+        }
+        if ("true".equals(message.headers().get("leave"))) {
+            if (members.containsKey(member)) {
+                log.info("Affinity ring member {} left", member);
+                leave(member);
+            }
+            return;
+        }
+        if (!members.containsKey(member)) {
+            log.info("Affinity ring member {} joined", member);
+            join(member);
+        }
+        members.put(member, System.currentTimeMillis());
+    }
+
+    /**
+     * Removes members which have missed heartbeats for longer than the
+     * member timeout.
+     */
+    private void expire() {
+        long horizon = System.currentTimeMillis() - memberTimeoutMillis;
+        Iterator<Map.Entry<String, Long>> i = members.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, Long> member = i.next();
+            if (!member.getKey().equals(nodeId)
+                    && member.getValue() < horizon) {
+                log.info("Affinity ring member {} timed out", member.getKey());
+                i.remove();
+                removePoints(member.getKey());
+            }
+        }
+    }
+
+    /**
+     * Adds a member's points to the ring.
+     * @param member Instance identifier.
+     */
+    void join(String member) {
+        members.put(member, System.currentTimeMillis());
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(point(member, i), member);
+        }
+        MEMBERSHIP_CHANGES.labels("join").inc();
+        MEMBERS.set(members.size());
+    }
+
+    /**
+     * Removes a member and its points from the ring.
+     * @param member Instance identifier.
+     */
+    void leave(String member) {
+        members.remove(member);
+        removePoints(member);
+    }
+
+    private void removePoints(String member) {
+        ring.values().removeIf(member::equals);
+        MEMBERSHIP_CHANGES.labels("leave").inc();
+        MEMBERS.set(members.size());
+    }
+
+    /**
+     * @param member Instance identifier.
+     * @param i Index of the point.
+     * @return Position of a point of an instance on the ring.
+     */
+    private static long point(String member, int i) {
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : (member + "#" + i).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * SplitMix64 finalizer; spreads nearby values across the ring.
+     * @param v Value to mix.
+     * @return See above.
+     */
+    private static long mix(long v) {
+        v = (v ^ (v >>> 30)) * 0xbf58476d1ce4e5b9L;
+        v = (v ^ (v >>> 27)) * 0x94d049bb133111ebL;
+        return v ^ (v >>> 31);
+    }
+
+}
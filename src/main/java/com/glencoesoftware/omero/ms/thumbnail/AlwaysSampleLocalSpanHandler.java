@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+
+/**
+ * Finished span handler which passes every span, whether or not its trace
+ * was sampled for reporting, to a delegate. Used so that stage metrics
+ * derived from spans do not depend on the sampling rate.
+ * @author agent <agent@local>
+ *
+ */
+public class AlwaysSampleLocalSpanHandler extends FinishedSpanHandler {
+
+    /** Handler to pass every finished span to. */
+    private final FinishedSpanHandler delegate;
+
+    /**
+     * Default constructor.
+     * @param delegate Handler to pass every finished span to.
+     */
+    public AlwaysSampleLocalSpanHandler(FinishedSpanHandler delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean handle(TraceContext context, MutableSpan span) {
+        return delegate.handle(context, span);
+    }
+
+    @Override
+    public boolean alwaysSampleLocal() {
+        return true;
+    }
+
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import static omero.rtypes.rint;
+import static omero.rtypes.unwrap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.slf4j.LoggerFactory;
+
+import omero.api.ServiceFactoryPrx;
+import omero.api.ThumbnailStorePrx;
+import omero.model.Image;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+/**
+ * OMERO session aware handler whose event handler method conforms to the
+ * {@link OmeroRequestHandler} interface. Unlike
+ * {@link ThumbnailRequestHandler} the {@link ThumbnailStorePrx} calls are made
+ * using Ice asynchronous method invocation and composed into Vert.x futures
+ * so that no thread is held while they are outstanding. Each stage completes
+ * on the Vert.x context the handler was created for. If a pooled session
+ * lease is set its prepared thumbnail store is used, and left prepared for
+ * the next request, so that concurrent requests share the pool's sessions
+ * rather than each joining their own. This class is expected to be used as
+ * a lambda handler.
+ * @author agent <agent@local>
+ *
+ */
+public class AsyncThumbnailRequestHandler extends ThumbnailRequestHandler {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(AsyncThumbnailRequestHandler.class);
+
+    /** Begins an Ice asynchronous invocation. */
+    @FunctionalInterface
+    private interface Begin {
+        Ice.AsyncResult begin(Ice.Callback callback) throws Exception;
+    }
+
+    /** Ends an Ice asynchronous invocation, retrieving its result. */
+    @FunctionalInterface
+    private interface End<T> {
+        T end(Ice.AsyncResult result) throws Exception;
+    }
+
+    /** Vert.x context each stage completes on. */
+    private final Context context;
+
+    /**
+     * Completed once any thumbnail store in use has been released, after the
+     * companion sizes of a thumbnail retrieved from the server.
+     */
+    private Future<Void> released = Future.succeededFuture();
+
+    /**
+     * Default constructor.
+     * @param longestSide Size to confine or upscale the longest side of the
+     * thumbnail to. The other side will then proportionately, based on aspect
+     * ratio, be scaled accordingly.
+     * @param imageId {@link Image} identifier to request a thumbnail for.
+     * @param renderingDefId {@link RenderingDef} identifier of the rendering
+     * settings to use.
+     * @param cache Thumbnail cache to use; may be <code>null</code>.
+     * @param context Vert.x context each stage completes on.
+     */
+    public AsyncThumbnailRequestHandler(
+            int longestSide, long imageId, Optional<Long> renderingDefId,
+            ThumbnailCache cache, Context context) {
+        super(longestSide, imageId, renderingDefId, cache);
+        this.context = context;
+    }
+
+    /**
+     * @return Future completed once the thumbnail store used by
+     * {@link #renderThumbnailAsync(omero.client)}, if any, has been released.
+     * The OMERO session must remain joined until then.
+     */
+    public Future<Void> released() {
+        return released;
+    }
+
+    /**
+     * Retrieves a JPEG thumbnail from the server. The returned future
+     * completes as soon as the thumbnail is available; companion sizes are
+     * then retrieved before the thumbnail store is released.
+     * @return Future completed with the JPEG thumbnail byte array or
+     * <code>null</code> if the image cannot be found.
+     */
+    public Future<byte[]> renderThumbnailAsync(omero.client client) {
+        try {
+            List<Image> images = getImages(client, imageIds);
+            if (images.size() == 1) {
+                return getThumbnailAsync(client, images.get(0));
+            }
+            log.debug("Cannot find any Image:{}", imageIds.get(0));
+            return Future.succeededFuture(null);
+        } catch (Exception e) {
+            return Future.failedFuture(e);
+        }
+    }
+
+    /**
+     * Retrieves a JPEG thumbnail from the server; asynchronous counterpart of
+     * {@link ThumbnailRequestHandler#getThumbnail(omero.client, Image, int,
+     * Optional)}.
+     * @param client OMERO client to use for thumbnail retrieval.
+     * @param image {@link Image} to retrieve thumbnail for.
+     * @return Future completed with the JPEG thumbnail byte array, before
+     * any companion sizes are retrieved.
+     * @throws Exception If there was any sort of error before the first
+     * asynchronous invocation.
+     */
+    private Future<byte[]> getThumbnailAsync(omero.client client, Image image)
+            throws Exception {
+        long pixelsId = (Long) unwrap(image.getPrimaryPixels().getId());
+        if (profiler != null) {
+            profiler.recordRequest(pixelsId);
+        }
+        ThumbnailCache.Key key = null;
+        long ticket = 0;
+        if (cache != null) {
+            ticket = cache.ticket();
+            key = new ThumbnailCache.Key(
+                    pixelsId, longestSide,
+                    renderingDefId.orElse(
+                            ThumbnailCache.DEFAULT_RENDERING_DEF),
+                    getUserId(client));
+        }
+        if (cache != null && !refresh) {
+            byte[] thumbnail =
+                    lookup(key, (Long) unwrap(image.getId()), ticket);
+            cacheOutcome = thumbnail == null ? "miss" : "hit";
+            if (thumbnail != null) {
+                return Future.succeededFuture(thumbnail);
+            }
+        }
+        final ThumbnailCache.Key cacheKey = key;
+        final long cacheTicket = ticket;
+
+        Tracer tracer = Tracing.currentTracer();
+        Span span1 = tracer.nextSpan().name("get_thumbnail").start();
+        long groupId = (Long) unwrap(image.getDetails().getGroup().getId());
+        Map<String, String> ctx = new HashMap<String, String>();
+        // Assume all the groups are the same
+        ctx.put("omero.group", String.valueOf(groupId));
+        ServiceFactoryPrx sf = client.getSession();
+        ThumbnailStorePrx prepared =
+                lease == null ? null : lease.preparedThumbnailStore(groupId);
+        // Stores set to other than the default rendering settings are not
+        // left prepared for the next request
+        boolean[] reusable = new boolean[] { false };
+        Promise<byte[]> promise = Promise.promise();
+        released = (prepared != null
+                ? Future.succeededFuture(prepared)
+                : invoke(span1, "create_thumbnail_store",
+                        sf::begin_createThumbnailStore,
+                        sf::end_createThumbnailStore))
+        .compose(thumbnailStore ->
+            setPixelsId(span1, thumbnailStore, ctx, pixelsId)
+            .compose(hasRenderingSettings -> {
+                if (!renderingDefId.isPresent()) {
+                    return Future.succeededFuture(hasRenderingSettings);
+                }
+                return invoke(span1, "set_rendering_def_id",
+                        cb -> thumbnailStore.begin_setRenderingDefId(
+                                renderingDefId.get(), ctx, cb),
+                        r -> {
+                            thumbnailStore.end_setRenderingDefId(r);
+                            return hasRenderingSettings;
+                        });
+            })
+            .compose(hasRenderingSettings -> {
+                if (hasRenderingSettings) {
+                    return Future.succeededFuture(hasRenderingSettings);
+                }
+                return resetDefaults(span1, sf, thumbnailStore, image, ctx)
+                        .compose(v -> setPixelsId(
+                                span1, thumbnailStore, ctx, pixelsId));
+            })
+            .compose(v -> {
+                long started = System.nanoTime();
+                return this.<byte[]>invoke(
+                        span1, "get_thumbnail_by_longest_side",
+                        cb -> thumbnailStore.begin_getThumbnailByLongestSide(
+                                rint(longestSide), ctx, cb),
+                        thumbnailStore::end_getThumbnailByLongestSide)
+                    .onComplete(result -> {
+                        if (profiler != null) {
+                            profiler.recordRender(
+                                    pixelsId, System.nanoTime() - started);
+                        }
+                    });
+            })
+            .compose(thumbnail -> {
+                if (thumbnail == null) {
+                    promise.complete(null);
+                    return Future.<Void>succeededFuture();
+                }
+                if (cacheKey == null) {
+                    promise.complete(
+                            transcode(null, cacheTicket, thumbnail));
+                    return Future.<Void>succeededFuture();
+                }
+                cache.put(cacheKey, cacheTicket, thumbnail);
+                // Reply before the companion sizes are retrieved
+                promise.complete(transcode(cacheKey, cacheTicket, thumbnail));
+                return getCompanionThumbnails(
+                        span1, thumbnailStore, ctx, cacheKey, cacheTicket);
+            })
+            .onSuccess(v -> {
+                reusable[0] = !renderingDefId.isPresent();
+            })
+            .eventually(() -> release(span1, thumbnailStore, reusable[0])))
+        .onComplete(result -> {
+            if (result.failed()) {
+                span1.error(result.cause());
+                promise.tryFail(result.cause());
+            }
+            span1.finish();
+        })
+        .<Void>mapEmpty()
+        .otherwiseEmpty();
+        return promise.future();
+    }
+
+    /**
+     * Sets the {@link Pixels} identifier on a thumbnail store.
+     * @param parent Span to trace the invocation as a child of.
+     * @param thumbnailStore Thumbnail store to set <code>pixelsId</code> on.
+     * @param ctx Calling context.
+     * @param pixelsId {@link Pixels} identifier to set.
+     * @return Future completed with whether or not a set of rendering
+     * settings is available for the {@link Pixels}.
+     */
+    private Future<Boolean> setPixelsId(
+            Span parent, ThumbnailStorePrx thumbnailStore,
+            Map<String, String> ctx, long pixelsId) {
+        return invoke(parent, "set_pixels_id",
+                cb -> thumbnailStore.begin_setPixelsId(pixelsId, ctx, cb),
+                thumbnailStore::end_setPixelsId);
+    }
+
+    /**
+     * Resets the rendering settings of the {@link Pixels} a thumbnail store
+     * is set to, operating as the owner of the image if we are an
+     * administrator.
+     * @param parent Span to trace the invocations as a child of.
+     * @param sf OMERO session.
+     * @param thumbnailStore Thumbnail store to reset the settings of.
+     * @param image {@link Image} the thumbnail store is set to.
+     * @param ctx Calling context; updated with the owner if required.
+     * @return Future completed once the settings have been reset.
+     */
+    private Future<Void> resetDefaults(
+            Span parent, ServiceFactoryPrx sf,
+            ThumbnailStorePrx thumbnailStore, Image image,
+            Map<String, String> ctx) {
+        return invoke(parent, "get_admin_service",
+                sf::begin_getAdminService, sf::end_getAdminService)
+        .compose(adminService -> invoke(parent, "get_event_context",
+                adminService::begin_getEventContext,
+                adminService::end_getEventContext))
+        .compose(eventContext -> {
+            if (eventContext.memberOfGroups.contains(0L)) {
+                ctx.put(
+                    "omero.user",
+                    String.valueOf(unwrap(
+                            image.getDetails().getOwner().getId()))
+                );
+            }
+            if (profiler != null) {
+                profiler.recordResetDefaults(
+                        (Long) unwrap(image.getPrimaryPixels().getId()));
+            }
+            return invoke(parent, "reset_defaults",
+                    thumbnailStore::begin_resetDefaults,
+                    r -> {
+                        thumbnailStore.end_resetDefaults(r);
+                        return null;
+                    });
+        });
+    }
+
+    /**
+     * Retrieves, using an already prepared thumbnail store, and caches the
+     * configured companion sizes of a thumbnail which are not already
+     * freshly cached, one after another. Failures are logged and otherwise
+     * ignored.
+     * @param parent Span to trace the invocations as a child of.
+     * @param thumbnailStore Thumbnail store set to the {@link Pixels} and
+     * rendering settings of the thumbnail.
+     * @param ctx Calling context.
+     * @param key Key of the thumbnail retrieved.
+     * @param ticket Ticket taken before the thumbnail was retrieved.
+     * @return Future completed once all companion sizes have been handled.
+     */
+    private Future<Void> getCompanionThumbnails(
+            Span parent, ThumbnailStorePrx thumbnailStore,
+            Map<String, String> ctx, ThumbnailCache.Key key, long ticket) {
+        Future<Void> chain = Future.succeededFuture();
+        for (int size : cache.getCompanionSizes()) {
+            ThumbnailCache.Key companionKey = new ThumbnailCache.Key(
+                    key.pixelsId, size, key.renderingDefId, key.userId);
+            chain = chain.compose(v -> {
+                if (size == key.longestSide || cache.isFresh(companionKey)) {
+                    return Future.<Void>succeededFuture();
+                }
+                return this.<byte[]>invoke(parent,
+                        "get_companion_thumbnail",
+                        cb -> thumbnailStore.begin_getThumbnailByLongestSide(
+                                rint(size), ctx, cb),
+                        thumbnailStore::end_getThumbnailByLongestSide)
+                .<Void>map(thumbnail -> {
+                    if (thumbnail != null) {
+                        cache.putCompanion(companionKey, ticket, thumbnail);
+                    }
+                    return null;
+                })
+                .recover(t -> {
+                    log.warn("Exception while retrieving companion " +
+                            "thumbnail of size {} for {}", size, key, t);
+                    return Future.succeededFuture();
+                });
+            });
+        }
+        return chain;
+    }
+
+    /**
+     * Returns a thumbnail store to the pooled session lease, if there is one
+     * and the store may be reused, otherwise closes it. Failures are logged
+     * and otherwise ignored.
+     * @param parent Span to trace the invocation as a child of.
+     * @param thumbnailStore Thumbnail store to release.
+     * @param reusable Whether or not the thumbnail store may be reused.
+     * @return Future completed once the store is released.
+     */
+    private Future<Void> release(
+            Span parent, ThumbnailStorePrx thumbnailStore, boolean reusable) {
+        if (lease != null && lease.isPooled() && reusable) {
+            lease.release(thumbnailStore, true);
+            return Future.succeededFuture();
+        }
+        return this.<Void>invoke(parent, "close",
+                thumbnailStore::begin_close,
+                r -> {
+                    thumbnailStore.end_close(r);
+                    return null;
+                })
+        .recover(t -> {
+            log.warn("Exception while closing thumbnail store", t);
+            return Future.succeededFuture();
+        });
+    }
+
+    /**
+     * Makes a traced Ice asynchronous invocation.
+     * @param parent Span to trace the invocation as a child of.
+     * @param name Name of the invocation's span.
+     * @param begin Begins the invocation.
+     * @param end Ends the invocation, retrieving its result.
+     * @return Future completed, on the handler's context, with the result
+     * of the invocation.
+     */
+    private <T> Future<T> invoke(
+            Span parent, String name, Begin begin, End<T> end) {
+        Span span = Tracing.currentTracer().newChild(parent.context())
+                .name(name).start();
+        Promise<T> promise = Promise.promise();
+        try {
+            begin.begin(new Ice.Callback() {
+                @Override
+                public void completed(Ice.AsyncResult result) {
+                    try {
+                        T value = end.end(result);
+                        context.runOnContext(v -> promise.complete(value));
+                    } catch (Exception e) {
+                        span.error(e);
+                        context.runOnContext(v -> promise.fail(e));
+                    } finally {
+                        span.finish();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            span.error(e);
+            span.finish();
+            promise.fail(e);
+        }
+        return promise.future();
+    }
+
+}
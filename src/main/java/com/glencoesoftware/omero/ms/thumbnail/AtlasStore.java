@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * Size bounded, least recently used store of thumbnail atlas JPEGs keyed by
+ * content hash, shared by the worker verticles which compose atlases and the
+ * HTTP verticle which serves them. As keys are content hashes entries never
+ * change and need no invalidation.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class AtlasStore implements Shareable {
+
+    private static final Counter REQUESTS = Counter.build()
+            .name("omero_ms_thumbnail_atlas_store_requests_total")
+            .help("Number of thumbnail atlas store lookups by outcome")
+            .labelNames("outcome")
+            .register();
+
+    private static final Gauge SIZE_BYTES = Gauge.build()
+            .name("omero_ms_thumbnail_atlas_store_size_bytes")
+            .help("Number of atlas bytes in the thumbnail atlas store")
+            .register();
+
+    /** Name of the Vert.x local map the shared instance is kept in. */
+    public static final String SHARED_MAP_NAME = "omero.thumbnail_atlas_store";
+
+    /** Atlases in access order, least recently used first. */
+    private final LinkedHashMap<String, byte[]> atlases =
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /** Maximum number of atlas bytes held. */
+    private final long maxBytes;
+
+    /** Number of atlas bytes held. */
+    private long bytes;
+
+    /**
+     * Default constructor.
+     * @param maxBytes Maximum number of atlas bytes held; the least recently
+     * used atlases are evicted first.
+     */
+    public AtlasStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Retrieves the atlas store shared by all verticles of a Vert.x
+     * instance, creating it if required.
+     * @param vertx Vert.x instance.
+     * @param thumbnailAtlasConfig <code>thumbnail-atlas</code> configuration
+     * block used if the store is created.
+     * @return See above.
+     */
+    public static AtlasStore shared(
+            Vertx vertx, JsonObject thumbnailAtlasConfig) {
+        LocalMap<String, AtlasStore> stores =
+                vertx.sharedData().getLocalMap(SHARED_MAP_NAME);
+        AtlasStore created = new AtlasStore(
+                thumbnailAtlasConfig.getLong("store-max-bytes", 67108864L));
+        return Optional.ofNullable(stores.putIfAbsent("default", created))
+                .orElse(created);
+    }
+
+    /**
+     * Looks up an atlas.
+     * @param hash Content hash of the atlas.
+     * @return JPEG atlas or <code>null</code> if it is not held.
+     */
+    public synchronized byte[] get(String hash) {
+        byte[] atlas = atlases.get(hash);
+        REQUESTS.labels(atlas == null ? "miss" : "hit").inc();
+        return atlas;
+    }
+
+    /**
+     * @param hash Content hash of the atlas.
+     * @return Whether or not the atlas is held. Does not affect the
+     * eviction order.
+     */
+    public synchronized boolean contains(String hash) {
+        return atlases.containsKey(hash);
+    }
+
+    /**
+     * Stores an atlas.
+     * @param hash Content hash of the atlas.
+     * @param atlas JPEG atlas.
+     */
+    public synchronized void put(String hash, byte[] atlas) {
+        if (atlas.length > maxBytes) {
+            return;
+        }
+        byte[] previous = atlases.put(hash, atlas);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += atlas.length;
+        Iterator<Map.Entry<String, byte[]>> i = atlases.entrySet().iterator();
+        while (bytes > maxBytes && i.hasNext()) {
+            bytes -= i.next().getValue().length;
+            i.remove();
+        }
+        SIZE_BYTES.set(bytes);
+    }
+
+}
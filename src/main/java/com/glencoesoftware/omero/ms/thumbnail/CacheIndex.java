@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.Arrays;
+
+import com.glencoesoftware.omero.ms.thumbnail.ThumbnailCache.Key;
+
+/**
+ * Index of the entries of a {@link ThumbnailCache} held in parallel
+ * primitive arrays rather than as a map of objects. Each entry occupies a
+ * slot, identified by an <code>int</code>, holding the fields of its
+ * {@link Key} and its value. Slots are found through an open addressing hash
+ * table with linear probing and are linked in least recently used order.
+ * Other than the on-heap thumbnails themselves, if any, cached entries
+ * therefore add no objects to the garbage collected heap; the arrays only
+ * grow, to the largest number of entries held.
+ * <p>
+ * This class is <b>not</b> thread safe. It is expected to be guarded by the
+ * {@link ThumbnailCache} that owns it.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+class CacheIndex {
+
+    /** Marker for the absence of a slot. */
+    static final int NONE = -1;
+
+    /** Initial number of slots. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** {@link omero.model.Pixels} identifier of each slot. */
+    private long[] pixelsIds;
+
+    /** {@link omero.model.RenderingDef} identifier of each slot. */
+    private long[] renderingDefIds;
+
+    /** {@link omero.model.Experimenter} identifier of each slot. */
+    private long[] userIds;
+
+    /** Longest side of each slot. */
+    private int[] longestSides;
+
+    /** Encoding variant of each slot. */
+    private int[] variants;
+
+    /** On-heap JPEG thumbnail of each slot or <code>null</code>. */
+    private byte[][] thumbnails;
+
+    /** Off-heap handle of each slot or -1 if on-heap. */
+    private long[] handles;
+
+    /** Length in bytes of the JPEG thumbnail of each slot. */
+    private int[] lengths;
+
+    /** Time in milliseconds after which each slot is stale. */
+    private long[] softExpires;
+
+    /** Time in milliseconds after which each slot is no longer served. */
+    private long[] hardExpires;
+
+    /** Time in milliseconds a refresh of each slot was claimed or 0. */
+    private long[] refreshClaimed;
+
+    /** Next less recently used slot, or next free slot if unused. */
+    private int[] older;
+
+    /** Next more recently used slot. */
+    private int[] newer;
+
+    /** Hash table of slots; its length is a power of two. */
+    private int[] table;
+
+    /** Least recently used slot. */
+    private int eldest = NONE;
+
+    /** Most recently used slot. */
+    private int youngest = NONE;
+
+    /** First of the slots freed for reuse. */
+    private int free = NONE;
+
+    /** Number of slots ever used. */
+    private int used;
+
+    /** Number of entries. */
+    private int size;
+
+    CacheIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return Number of entries.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Finds the slot of an entry without affecting the eviction order.
+     * @param key Key of the entry.
+     * @return See above or {@link #NONE} if there is no such entry.
+     */
+    int find(Key key) {
+        int mask = table.length - 1;
+        for (int i = hash(key.pixelsId, key.longestSide, key.renderingDefId,
+                key.userId, key.variant) & mask; ; i = (i + 1) & mask) {
+            int slot = table[i];
+            if (slot == NONE) {
+                return NONE;
+            }
+            if (pixelsIds[slot] == key.pixelsId
+                    && longestSides[slot] == key.longestSide
+                    && renderingDefIds[slot] == key.renderingDefId
+                    && userIds[slot] == key.userId
+                    && variants[slot] == key.variant) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Adds an entry as the most recently used. There must be no entry with
+     * the same key.
+     * @param key Key of the entry.
+     * @param thumbnail On-heap JPEG thumbnail or <code>null</code>.
+     * @param handle Off-heap handle or -1 if on-heap.
+     * @param length Length in bytes of the JPEG thumbnail.
+     * @param soft Time in milliseconds after which the entry is stale.
+     * @param hard Time in milliseconds after which the entry is no longer
+     * served.
+     * @return Slot of the entry.
+     */
+    int add(
+            Key key, byte[] thumbnail, long handle, int length, long soft,
+            long hard) {
+        if ((size + 1) * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        int slot;
+        if (free != NONE) {
+            slot = free;
+            free = older[slot];
+        } else {
+            if (used == pixelsIds.length) {
+                grow(used * 2);
+            }
+            slot = used++;
+        }
+        pixelsIds[slot] = key.pixelsId;
+        longestSides[slot] = key.longestSide;
+        renderingDefIds[slot] = key.renderingDefId;
+        userIds[slot] = key.userId;
+        variants[slot] = key.variant;
+        thumbnails[slot] = thumbnail;
+        handles[slot] = handle;
+        lengths[slot] = length;
+        softExpires[slot] = soft;
+        hardExpires[slot] = hard;
+        refreshClaimed[slot] = 0;
+        link(slot);
+        int mask = table.length - 1;
+        int i = hash(slot) & mask;
+        while (table[i] != NONE) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Makes an entry the most recently used.
+     * @param slot Slot of the entry.
+     */
+    void touch(int slot) {
+        if (slot != youngest) {
+            unlink(slot);
+            link(slot);
+        }
+    }
+
+    /**
+     * Removes an entry, freeing its slot for reuse.
+     * @param slot Slot of the entry.
+     */
+    void remove(int slot) {
+        int mask = table.length - 1;
+        int i = hash(slot) & mask;
+        while (table[i] != slot) {
+            i = (i + 1) & mask;
+        }
+        // Shift back later entries of the probe sequence into the gap
+        int gap = i;
+        for (i = (i + 1) & mask; table[i] != NONE; i = (i + 1) & mask) {
+            int home = hash(table[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                table[gap] = table[i];
+                gap = i;
+            }
+        }
+        table[gap] = NONE;
+        unlink(slot);
+        thumbnails[slot] = null;
+        older[slot] = free;
+        free = slot;
+        size--;
+    }
+
+    /**
+     * Removes all entries. The arrays are retained.
+     */
+    void clear() {
+        Arrays.fill(table, NONE);
+        Arrays.fill(thumbnails, null);
+        eldest = youngest = free = NONE;
+        used = 0;
+        size = 0;
+    }
+
+    /**
+     * @return Least recently used slot or {@link #NONE} if empty.
+     */
+    int eldest() {
+        return eldest;
+    }
+
+    /**
+     * @param slot Slot of an entry.
+     * @return Next more recently used slot or {@link #NONE} if
+     * <code>slot</code> is the most recently used.
+     */
+    int newer(int slot) {
+        return newer[slot];
+    }
+
+    // Fields of the entry in a slot
+
+    long pixelsId(int slot) {
+        return pixelsIds[slot];
+    }
+
+    byte[] thumbnail(int slot) {
+        return thumbnails[slot];
+    }
+
+    long handle(int slot) {
+        return handles[slot];
+    }
+
+    int length(int slot) {
+        return lengths[slot];
+    }
+
+    long softExpires(int slot) {
+        return softExpires[slot];
+    }
+
+    long hardExpires(int slot) {
+        return hardExpires[slot];
+    }
+
+    long refreshClaimed(int slot) {
+        return refreshClaimed[slot];
+    }
+
+    void refreshClaimed(int slot, long time) {
+        refreshClaimed[slot] = time;
+    }
+
+    private void link(int slot) {
+        older[slot] = youngest;
+        newer[slot] = NONE;
+        if (youngest != NONE) {
+            newer[youngest] = slot;
+        } else {
+            eldest = slot;
+        }
+        youngest = slot;
+    }
+
+    private void unlink(int slot) {
+        if (older[slot] != NONE) {
+            newer[older[slot]] = newer[slot];
+        } else {
+            eldest = newer[slot];
+        }
+        if (newer[slot] != NONE) {
+            older[newer[slot]] = older[slot];
+        } else {
+            youngest = older[slot];
+        }
+    }
+
+    private int hash(int slot) {
+        return hash(pixelsIds[slot], longestSides[slot],
+                renderingDefIds[slot], userIds[slot], variants[slot]);
+    }
+
+    private static int hash(
+            long pixelsId, int longestSide, long renderingDefId, long userId,
+            int variant) {
+        long h = pixelsId * 0x9E3779B97F4A7C15L;
+        h = (h ^ renderingDefId) * 0x9E3779B97F4A7C15L;
+        h = (h ^ userId) * 0x9E3779B97F4A7C15L;
+        h = (h ^ (((long) longestSide << 32) | (variant & 0xFFFFFFFFL)))
+                * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void allocate(int capacity) {
+        pixelsIds = new long[capacity];
+        renderingDefIds = new long[capacity];
+        userIds = new long[capacity];
+        longestSides = new int[capacity];
+        variants = new int[capacity];
+        thumbnails = new byte[capacity][];
+        handles = new long[capacity];
+        lengths = new int[capacity];
+        softExpires = new long[capacity];
+        hardExpires = new long[capacity];
+        refreshClaimed = new long[capacity];
+        older = new int[capacity];
+        newer = new int[capacity];
+        table = new int[capacity * 2];
+        Arrays.fill(table, NONE);
+    }
+
+    private void grow(int capacity) {
+        pixelsIds = Arrays.copyOf(pixelsIds, capacity);
+        renderingDefIds = Arrays.copyOf(renderingDefIds, capacity);
+        userIds = Arrays.copyOf(userIds, capacity);
+        longestSides = Arrays.copyOf(longestSides, capacity);
+        variants = Arrays.copyOf(variants, capacity);
+        thumbnails = Arrays.copyOf(thumbnails, capacity);
+        handles = Arrays.copyOf(handles, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        softExpires = Arrays.copyOf(softExpires, capacity);
+        hardExpires = Arrays.copyOf(hardExpires, capacity);
+        refreshClaimed = Arrays.copyOf(refreshClaimed, capacity);
+        older = Arrays.copyOf(older, capacity);
+        newer = Arrays.copyOf(newer, capacity);
+    }
+
+    private void rehash(int length) {
+        table = new int[length];
+        Arrays.fill(table, NONE);
+        int mask = length - 1;
+        for (int slot = eldest; slot != NONE; slot = newer[slot]) {
+            int i = hash(slot) & mask;
+            while (table[i] != NONE) {
+                i = (i + 1) & mask;
+            }
+            table[i] = slot;
+        }
+    }
+
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.vertx.core.Handler;
+
+/**
+ * Deficit round-robin scheduler which sits between the HTTP event loop and
+ * the worker verticles. Requests are queued per user (OMERO session key) and
+ * dispatched in a round-robin fashion weighted by request cost so that a
+ * single session cannot monopolize the worker pool. Each user is also limited
+ * to a fixed number of requests in flight. Low priority background tasks,
+ * such as prefetches, are queued separately and only dispatched when no
+ * user has a task waiting.
+ * <p>
+ * This class is <b>not</b> thread safe. It is expected to be used solely from
+ * the event loop of the verticle that owns it.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class FairRequestScheduler {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(FairRequestScheduler.class);
+
+    private static final Gauge QUEUE_DEPTH = Gauge.build()
+            .name("omero_ms_thumbnail_fair_queue_depth")
+            .help("Number of requests queued per user")
+            .labelNames("class", "user")
+            .register();
+
+    private static final Gauge QUEUED = Gauge.build()
+            .name("omero_ms_thumbnail_fair_queue_queued")
+            .help("Total number of requests queued across all users")
+            .labelNames("class")
+            .register();
+
+    private static final Gauge IN_FLIGHT = Gauge.build()
+            .name("omero_ms_thumbnail_fair_queue_in_flight")
+            .help("Number of requests dispatched to workers")
+            .labelNames("class")
+            .register();
+
+    private static final Counter REJECTED = Counter.build()
+            .name("omero_ms_thumbnail_fair_queue_rejected_total")
+            .help("Number of requests rejected due to a full user queue")
+            .labelNames("class")
+            .register();
+
+    /** A unit of work waiting to be dispatched. */
+    private static class Task {
+
+        /** Relative cost of the task, used to debit the user's deficit. */
+        final int cost;
+
+        /** Dispatches the task; must run the provided callback when done. */
+        final Handler<Runnable> dispatch;
+
+        Task(int cost, Handler<Runnable> dispatch) {
+            this.cost = cost;
+            this.dispatch = dispatch;
+        }
+    }
+
+    /** Per user state. */
+    private static class UserQueue {
+
+        /** Key identifying the user. */
+        final String user;
+
+        /** Metrics label identifying the user without exposing the key. */
+        final String label;
+
+        /** Tasks waiting to be dispatched in arrival order. */
+        final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+
+        /** Deficit counter as per deficit round-robin. */
+        int deficit;
+
+        /** Number of tasks dispatched and not yet completed. */
+        int inFlight;
+
+        /** Whether or not this queue is in the active round-robin ring. */
+        boolean active;
+
+        UserQueue(String user) {
+            this.user = user;
+            this.label = Integer.toHexString(user.hashCode());
+        }
+    }
+
+    /** Name of the concurrency class scheduled; used as a metrics label. */
+    private final String name;
+
+    /** Maximum number of tasks in flight across all users. */
+    private final int maxInFlight;
+
+    /** Maximum number of tasks in flight for a single user. */
+    private final int maxInFlightPerUser;
+
+    /** Maximum number of tasks that may be queued for a single user. */
+    private final int maxQueuedPerUser;
+
+    /** Deficit credited to a user each round. */
+    private final int quantum;
+
+    /** User queues keyed by user key. */
+    private final Map<String, UserQueue> queues =
+            new HashMap<String, UserQueue>();
+
+    /** Round-robin ring of user queues which have tasks waiting. */
+    private final ArrayDeque<UserQueue> active = new ArrayDeque<UserQueue>();
+
+    /** Background tasks waiting to be dispatched in arrival order. */
+    private final ArrayDeque<Task> background = new ArrayDeque<Task>();
+
+    /** Number of tasks in flight across all users. */
+    private int inFlight;
+
+    /** Number of tasks queued across all users. */
+    private int queued;
+
+    /** Whether or not {@link #schedule()} is currently running. */
+    private boolean scheduling;
+
+    /**
+     * Default constructor.
+     * @param maxInFlight Maximum number of tasks in flight across all users.
+     * @param maxInFlightPerUser Maximum number of tasks in flight for a
+     * single user.
+     * @param maxQueuedPerUser Maximum number of tasks that may be queued for
+     * a single user before further submissions are rejected.
+     * @param quantum Deficit credited to a user each round.
+     */
+    public FairRequestScheduler(
+            int maxInFlight, int maxInFlightPerUser, int maxQueuedPerUser,
+            int quantum) {
+        this("default", maxInFlight, maxInFlightPerUser, maxQueuedPerUser,
+                quantum);
+    }
+
+    /**
+     * Constructor for a named concurrency class.
+     * @param name Name of the concurrency class scheduled.
+     * @param maxInFlight Maximum number of tasks in flight across all users.
+     * @param maxInFlightPerUser Maximum number of tasks in flight for a
+     * single user.
+     * @param maxQueuedPerUser Maximum number of tasks that may be queued for
+     * a single user before further submissions are rejected.
+     * @param quantum Deficit credited to a user each round.
+     */
+    public FairRequestScheduler(
+            String name, int maxInFlight, int maxInFlightPerUser,
+            int maxQueuedPerUser, int quantum) {
+        this.name = name;
+        if (maxInFlight < 1 || maxInFlightPerUser < 1 || maxQueuedPerUser < 1
+                || quantum < 1) {
+            throw new IllegalArgumentException(
+                    "Fair queue limits and quantum must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerUser = maxInFlightPerUser;
+        this.maxQueuedPerUser = maxQueuedPerUser;
+        this.quantum = quantum;
+    }
+
+    /**
+     * Submits a task for dispatch.
+     * @param user Key identifying the user the task belongs to.
+     * @param cost Relative cost of the task; values below one are treated as
+     * one.
+     * @param dispatch Handler which dispatches the task. It is passed a
+     * callback which <b>must</b> be run exactly once when the task completes,
+     * successfully or otherwise.
+     * @return <code>true</code> if the task was accepted or
+     * <code>false</code> if the user's queue is full.
+     */
+    public boolean submit(String user, int cost, Handler<Runnable> dispatch) {
+        UserQueue queue = queues.get(user);
+        if (queue == null) {
+            queue = new UserQueue(user);
+            queues.put(user, queue);
+        }
+        if (queue.tasks.size() >= maxQueuedPerUser) {
+            log.debug("Queue full for user {}", queue.label);
+            REJECTED.labels(name).inc();
+            return false;
+        }
+        queue.tasks.addLast(new Task(Math.max(1, cost), dispatch));
+        queued++;
+        QUEUED.labels(name).set(queued);
+        QUEUE_DEPTH.labels(name, queue.label).set(queue.tasks.size());
+        if (!queue.active) {
+            queue.active = true;
+            active.addLast(queue);
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * Submits a low priority background task for dispatch. Background tasks
+     * belong to no user and are dispatched, in arrival order, only while no
+     * user has a task waiting. They count towards the overall in flight
+     * limit once dispatched.
+     * @param dispatch Handler which dispatches the task. It is passed a
+     * callback which <b>must</b> be run exactly once when the task completes,
+     * successfully or otherwise.
+     * @return <code>true</code> if the task was accepted or
+     * <code>false</code> if the background queue is full.
+     */
+    public boolean submitBackground(Handler<Runnable> dispatch) {
+        if (background.size() >= maxQueuedPerUser) {
+            log.debug("Background queue full");
+            REJECTED.labels(name).inc();
+            return false;
+        }
+        background.addLast(new Task(1, dispatch));
+        schedule();
+        return true;
+    }
+
+    /**
+     * @return Number of tasks in flight across all users.
+     */
+    public int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return Number of tasks queued across all users.
+     */
+    public int queued() {
+        return queued;
+    }
+
+    /**
+     * @return Number of background tasks queued.
+     */
+    public int queuedBackground() {
+        return background.size();
+    }
+
+    /**
+     * Dispatches as many queued tasks as the in flight limits allow, visiting
+     * user queues in deficit round-robin order.
+     */
+    private void schedule() {
+        if (scheduling) {
+            // Completion callbacks run synchronously from a dispatch; the
+            // outer scheduling loop will pick up the freed slot.
+            return;
+        }
+        scheduling = true;
+        try {
+            drain();
+        } finally {
+            scheduling = false;
+        }
+        QUEUED.labels(name).set(queued);
+        IN_FLIGHT.labels(name).set(inFlight);
+    }
+
+    /**
+     * Deficit round-robin loop proper, followed by background tasks if no
+     * user has a task waiting; see {@link #schedule()}.
+     */
+    private void drain() {
+        boolean progress = true;
+        while (progress && inFlight < maxInFlight && !active.isEmpty()) {
+            progress = false;
+            int size = active.size();
+            for (int i = 0; i < size && inFlight < maxInFlight; i++) {
+                UserQueue queue = active.pollFirst();
+                if (queue.inFlight >= maxInFlightPerUser) {
+                    active.addLast(queue);
+                    continue;
+                }
+                progress = true;
+                if (queue.tasks.peekFirst().cost > queue.deficit) {
+                    queue.deficit += quantum;
+                }
+                while (!queue.tasks.isEmpty()
+                        && queue.inFlight < maxInFlightPerUser
+                        && inFlight < maxInFlight
+                        && queue.tasks.peekFirst().cost <= queue.deficit) {
+                    Task task = queue.tasks.pollFirst();
+                    queue.deficit -= task.cost;
+                    queued--;
+                    dispatch(queue, task);
+                }
+                if (queue.tasks.isEmpty()) {
+                    queue.deficit = 0;
+                    queue.active = false;
+                    retire(queue);
+                } else {
+                    active.addLast(queue);
+                    QUEUE_DEPTH.labels(name, queue.label)
+                        .set(queue.tasks.size());
+                }
+            }
+        }
+        while (active.isEmpty() && inFlight < maxInFlight
+                && !background.isEmpty()) {
+            dispatch(null, background.pollFirst());
+        }
+    }
+
+    /**
+     * Dispatches a single task, accounting for it until its completion
+     * callback is run.
+     * @param queue Queue of the user the task belongs to or
+     * <code>null</code> for a background task.
+     * @param task Task to dispatch.
+     */
+    private void dispatch(UserQueue queue, Task task) {
+        if (queue != null) {
+            queue.inFlight++;
+        }
+        inFlight++;
+        boolean[] done = new boolean[] { false };
+        try {
+            task.dispatch.handle(() -> {
+                if (done[0]) {
+                    return;
+                }
+                done[0] = true;
+                complete(queue);
+            });
+        } catch (Exception e) {
+            log.error("Exception while dispatching task", e);
+            if (!done[0]) {
+                done[0] = true;
+                complete(queue);
+            }
+        }
+    }
+
+    /**
+     * Releases the in flight slot held by a completed task and dispatches
+     * further tasks if possible.
+     * @param queue Queue of the user the task belonged to or
+     * <code>null</code> for a background task.
+     */
+    private void complete(UserQueue queue) {
+        inFlight--;
+        if (queue != null) {
+            queue.inFlight--;
+            if (!queue.active) {
+                retire(queue);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Forgets about a user once it has nothing queued or in flight so that
+     * idle users do not accumulate.
+     * @param queue Queue of the user to retire.
+     */
+    private void retire(UserQueue queue) {
+        if (queue.inFlight == 0 && queue.tasks.isEmpty()) {
+            queues.remove(queue.user);
+            QUEUE_DEPTH.remove(name, queue.label);
+        } else {
+            QUEUE_DEPTH.labels(name, queue.label).set(queue.tasks.size());
+        }
+    }
+
+}
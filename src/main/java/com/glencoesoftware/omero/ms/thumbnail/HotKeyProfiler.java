@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * Streaming profile of the thumbnails most likely to be behind a latency
+ * regression: the most requested {@link omero.model.Pixels}, the
+ * {@link omero.model.Pixels} on which the most time is spent in
+ * <code>getThumbnailByLongestSide</code> and the {@link omero.model.Pixels}
+ * which most often have their rendering settings reset because they have
+ * none. Each is tracked in bounded memory by a Space-Saving sketch whose
+ * weights are halved periodically so that the profile follows recent
+ * traffic. The top entries of each are exported as Prometheus gauges.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class HotKeyProfiler extends Collector implements Shareable {
+
+    /** Name of the Vert.x local map the shared instance is kept in. */
+    public static final String SHARED_MAP_NAME = "omero.thumbnail_hot_keys";
+
+    /** Counter of a {@link TopK} sketch. */
+    private static class Slot {
+
+        /** Identifier the counter is for. */
+        final long id;
+
+        /** Decayed weight; an overestimate by at most {@link #error}. */
+        double weight;
+
+        /** Maximum overestimate of the weight. */
+        double error;
+
+        /** Largest single weight added. */
+        double max;
+
+        Slot(long id, double weight, double error) {
+            this.id = id;
+            this.weight = weight;
+            this.error = error;
+            this.max = weight;
+        }
+    }
+
+    /**
+     * Space-Saving sketch of the identifiers with the largest total weight.
+     * Any identifier whose weight exceeds the total weight divided by the
+     * capacity is guaranteed to be tracked.
+     */
+    private static class TopK {
+
+        /** Maximum number of counters. */
+        private final int capacity;
+
+        /** Counters by identifier. */
+        private final Map<Long, Slot> slots = new HashMap<Long, Slot>();
+
+        TopK(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(long id, double weight) {
+            Slot slot = slots.get(id);
+            if (slot != null) {
+                slot.weight += weight;
+                slot.max = Math.max(slot.max, weight);
+                return;
+            }
+            if (slots.size() < capacity) {
+                slots.put(id, new Slot(id, weight, 0));
+                return;
+            }
+            // Replace the smallest counter, inheriting its weight as error
+            Slot smallest = null;
+            for (Slot candidate : slots.values()) {
+                if (smallest == null || candidate.weight < smallest.weight) {
+                    smallest = candidate;
+                }
+            }
+            slots.remove(smallest.id);
+            Slot replacement =
+                    new Slot(id, smallest.weight + weight, smallest.weight);
+            replacement.max = weight;
+            slots.put(id, replacement);
+        }
+
+        void decay() {
+            for (Slot slot : slots.values()) {
+                slot.weight /= 2;
+                slot.error /= 2;
+                slot.max /= 2;
+            }
+        }
+
+        List<Slot> top(int n) {
+            List<Slot> top = new ArrayList<Slot>(slots.values());
+            Collections.sort(
+                    top, (a, b) -> Double.compare(b.weight, a.weight));
+            return top.subList(0, Math.max(0, Math.min(n, top.size())));
+        }
+    }
+
+    /** Most requested {@link omero.model.Pixels}. */
+    private final TopK requests;
+
+    /** {@link omero.model.Pixels} with the most thumbnail retrieval time. */
+    private final TopK renderTime;
+
+    /** {@link omero.model.Pixels} most often reset to default settings. */
+    private final TopK resetDefaults;
+
+    /** Number of entries of each sketch exported to Prometheus. */
+    private final int metricsTop;
+
+    /**
+     * Default constructor.
+     * @param capacity Number of counters of each sketch.
+     * @param metricsTop Number of entries of each sketch exported to
+     * Prometheus.
+     */
+    public HotKeyProfiler(int capacity, int metricsTop) {
+        requests = new TopK(capacity);
+        renderTime = new TopK(capacity);
+        resetDefaults = new TopK(capacity);
+        this.metricsTop = metricsTop;
+    }
+
+    /**
+     * Retrieves the profiler shared by all verticles of a Vert.x instance,
+     * creating it and registering it with Prometheus if required.
+     * @param vertx Vert.x instance.
+     * @param hotKeysConfig <code>hot-keys</code> configuration block used
+     * if the profiler is created.
+     * @return See above.
+     */
+    public static HotKeyProfiler shared(Vertx vertx, JsonObject hotKeysConfig) {
+        LocalMap<String, HotKeyProfiler> profilers =
+                vertx.sharedData().getLocalMap(SHARED_MAP_NAME);
+        synchronized (HotKeyProfiler.class) {
+            HotKeyProfiler profiler = profilers.get("default");
+            if (profiler == null) {
+                profiler = new HotKeyProfiler(
+                        hotKeysConfig.getInteger("capacity", 128),
+                        hotKeysConfig.getInteger("metrics-top", 10));
+                profiler.register();
+                profilers.put("default", profiler);
+            }
+            return profiler;
+        }
+    }
+
+    /**
+     * Records a request for the thumbnail of a {@link omero.model.Pixels}.
+     * @param pixelsId {@link omero.model.Pixels} identifier.
+     */
+    public synchronized void recordRequest(long pixelsId) {
+        requests.add(pixelsId, 1);
+    }
+
+    /**
+     * Records the time a <code>getThumbnailByLongestSide</code> call took.
+     * @param pixelsId {@link omero.model.Pixels} identifier.
+     * @param nanos Elapsed time in nanoseconds.
+     */
+    public synchronized void recordRender(long pixelsId, long nanos) {
+        renderTime.add(pixelsId, nanos / 1e9);
+    }
+
+    /**
+     * Records that the rendering settings of a {@link omero.model.Pixels}
+     * were reset as it had none.
+     * @param pixelsId {@link omero.model.Pixels} identifier.
+     */
+    public synchronized void recordResetDefaults(long pixelsId) {
+        resetDefaults.add(pixelsId, 1);
+    }
+
+    /**
+     * Halves all weights so that older traffic counts for less.
+     */
+    public synchronized void decay() {
+        requests.decay();
+        renderTime.decay();
+        resetDefaults.decay();
+    }
+
+    /**
+     * @param n Maximum number of entries of each sketch.
+     * @return JSON profile with the top <code>requests</code> and
+     * <code>resetDefaults</code> by decayed count and the top
+     * <code>renderTime</code> by decayed seconds, each entry with its
+     * <code>id</code>, <code>weight</code>, maximum overestimate
+     * <code>error</code> and largest single observation <code>max</code>.
+     */
+    public synchronized JsonObject toJson(int n) {
+        return new JsonObject()
+                .put("requests", toJson(requests.top(n)))
+                .put("renderTime", toJson(renderTime.top(n)))
+                .put("resetDefaults", toJson(resetDefaults.top(n)));
+    }
+
+    private JsonArray toJson(List<Slot> slots) {
+        JsonArray entries = new JsonArray();
+        for (Slot slot : slots) {
+            entries.add(new JsonObject()
+                    .put("id", slot.id)
+                    .put("weight", slot.weight)
+                    .put("error", slot.error)
+                    .put("max", slot.max));
+        }
+        return entries;
+    }
+
+    /* (non-Javadoc)
+     * @see io.prometheus.client.Collector#collect()
+     */
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        return Arrays.asList(
+                family(requests,
+                        "omero_ms_thumbnail_hot_pixels_requests",
+                        "Decayed request count of the most requested Pixels",
+                        "pixels_id"),
+                family(renderTime,
+                        "omero_ms_thumbnail_hot_pixels_render_seconds",
+                        "Decayed getThumbnailByLongestSide seconds of the "
+                        + "Pixels with the most retrieval time",
+                        "pixels_id"),
+                family(resetDefaults,
+                        "omero_ms_thumbnail_hot_pixels_reset_defaults",
+                        "Decayed count of rendering settings resets of the "
+                        + "Pixels most often reset",
+                        "pixels_id"));
+    }
+
+    private GaugeMetricFamily family(
+            TopK sketch, String name, String help, String label) {
+        GaugeMetricFamily family =
+                new GaugeMetricFamily(name, help, Arrays.asList(label));
+        for (Slot slot : sketch.top(metricsTop)) {
+            family.addMetric(
+                    Arrays.asList(String.valueOf(slot.id)), slot.weight);
+        }
+        return family;
+    }
+
+}
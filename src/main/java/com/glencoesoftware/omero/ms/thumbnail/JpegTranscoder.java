@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.LoggerFactory;
+
+import brave.ScopedSpan;
+import brave.Tracing;
+import io.prometheus.client.Counter;
+
+/**
+ * Re-encodes JPEG thumbnails as retrieved from the server at a given
+ * quality, optionally as progressive JPEGs and without metadata. If the
+ * re-encoded thumbnail is not smaller, or the thumbnail cannot be decoded,
+ * the original is used.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class JpegTranscoder {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(JpegTranscoder.class);
+
+    private static final Counter TRANSCODES = Counter.build()
+            .name("omero_ms_thumbnail_transcodes_total")
+            .help("Number of thumbnails re-encoded by outcome")
+            .labelNames("outcome")
+            .register();
+
+    private static final Counter ENCODER_SECONDS = Counter.build()
+            .name("omero_ms_thumbnail_transcode_seconds_total")
+            .help("Time spent re-encoding thumbnails")
+            .register();
+
+    private static final Counter BYTES_SAVED = Counter.build()
+            .name("omero_ms_thumbnail_transcode_bytes_saved_total")
+            .help("Number of bytes saved by re-encoding thumbnails")
+            .register();
+
+    /** JPEG quality between 1 and 100. */
+    private final int quality;
+
+    /** Whether or not to write progressive JPEGs. */
+    private final boolean progressive;
+
+    /** Whether or not to omit the metadata of the original. */
+    private final boolean stripMetadata;
+
+    /**
+     * Default constructor.
+     * @param quality JPEG quality between 1 and 100.
+     * @param progressive Whether or not to write progressive JPEGs.
+     * @param stripMetadata Whether or not to omit the metadata of the
+     * original.
+     */
+    public JpegTranscoder(
+            int quality, boolean progressive, boolean stripMetadata) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException(
+                    "JPEG quality must be between 1 and 100");
+        }
+        this.quality = quality;
+        this.progressive = progressive;
+        this.stripMetadata = stripMetadata;
+    }
+
+    /**
+     * @return Identifier of the encoding this transcoder produces, unique
+     * across all settings and never <code>0</code>, for use as a
+     * {@link ThumbnailCache.Key} variant.
+     */
+    public int variant() {
+        return quality
+                | (progressive ? 1 << 8 : 0)
+                | (stripMetadata ? 1 << 9 : 0);
+    }
+
+    /**
+     * Re-encodes a JPEG thumbnail.
+     * @param jpeg JPEG thumbnail as retrieved from the server.
+     * @return Re-encoded thumbnail or <code>jpeg</code> if it is not a JPEG
+     * or re-encoding did not reduce its size or failed.
+     */
+    public byte[] transcode(byte[] jpeg) {
+        // Other formats would otherwise be decoded and silently converted
+        if (!isJpeg(jpeg)) {
+            TRANSCODES.labels("unsupported").inc();
+            return jpeg;
+        }
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("transcode_jpeg");
+        long started = System.nanoTime();
+        try {
+            byte[] transcoded = encode(jpeg);
+            if (transcoded.length >= jpeg.length) {
+                TRANSCODES.labels("larger").inc();
+                return jpeg;
+            }
+            TRANSCODES.labels("smaller").inc();
+            BYTES_SAVED.inc(jpeg.length - transcoded.length);
+            return transcoded;
+        } catch (Exception e) {
+            span.error(e);
+            log.warn("Exception while re-encoding thumbnail", e);
+            TRANSCODES.labels("failed").inc();
+            return jpeg;
+        } finally {
+            ENCODER_SECONDS.inc((System.nanoTime() - started) / 1e9);
+            span.finish();
+        }
+    }
+
+    /**
+     * @param thumbnail Thumbnail as retrieved from the server.
+     * @return Whether or not <code>thumbnail</code> starts with a JPEG start
+     * of image marker.
+     */
+    private static boolean isJpeg(byte[] thumbnail) {
+        return thumbnail.length >= 2
+                && (thumbnail[0] & 0xFF) == 0xFF
+                && (thumbnail[1] & 0xFF) == 0xD8;
+    }
+
+    private byte[] encode(byte[] jpeg) throws IOException {
+        IIOImage image;
+        try (ImageInputStream in = ImageIO.createImageInputStream(
+                new ByteArrayInputStream(jpeg))) {
+            Iterator<ImageReader> readers =
+                    ImageIO.getImageReadersByFormatName("jpeg");
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported thumbnail");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, stripMetadata);
+                IIOMetadata metadata =
+                        stripMetadata ? null : reader.getImageMetadata(0);
+                image = new IIOImage(reader.read(0), null, metadata);
+            } finally {
+                reader.dispose();
+            }
+        }
+        ImageWriter writer =
+                ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length);
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality / 100f);
+            if (progressive) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            writer.write(null, image, param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Short lived, size bounded cache of HTTP 404 and 403 outcomes keyed by
+ * OMERO session and {@link omero.model.Image} identifier so that repeated
+ * requests for missing or forbidden images do not reach the server.
+ * <p>
+ * This class is <b>not</b> thread safe. It is expected to be used solely from
+ * the event loop of the verticle that owns it.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class NegativeResultCache {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(NegativeResultCache.class);
+
+    private static final Counter HITS = Counter.build()
+            .name("omero_ms_thumbnail_negative_cache_hits_total")
+            .help("Number of requests answered from the negative cache")
+            .register();
+
+    private static final Gauge SIZE = Gauge.build()
+            .name("omero_ms_thumbnail_negative_cache_size")
+            .help("Number of entries in the negative cache")
+            .register();
+
+    /** Cached outcome. */
+    private static class Entry {
+
+        /** Image the outcome is for. */
+        final long imageId;
+
+        /** HTTP status code of the outcome. */
+        final int statusCode;
+
+        /** Time in milliseconds after which the entry is stale. */
+        final long expires;
+
+        Entry(long imageId, int statusCode, long expires) {
+            this.imageId = imageId;
+            this.statusCode = statusCode;
+            this.expires = expires;
+        }
+    }
+
+    /** Entries in insertion order, oldest first. */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /** Time to live of an entry in milliseconds. */
+    private final long ttl;
+
+    /** Source of the current time in milliseconds. */
+    private final LongSupplier clock;
+
+    /**
+     * Default constructor.
+     * @param ttl Time to live of an entry in milliseconds.
+     * @param maxSize Maximum number of entries; the oldest entries are
+     * evicted first.
+     */
+    public NegativeResultCache(long ttl, int maxSize) {
+        this(ttl, maxSize, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor with the ability to specify the source of the current
+     * time.
+     * @param ttl Time to live of an entry in milliseconds.
+     * @param maxSize Maximum number of entries; the oldest entries are
+     * evicted first.
+     * @param clock Source of the current time in milliseconds.
+     */
+    NegativeResultCache(long ttl, int maxSize, LongSupplier clock) {
+        this.ttl = ttl;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<String, Entry>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> e) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Looks up a cached outcome.
+     * @param omeroSessionKey OMERO session key of the request.
+     * @param imageId {@link omero.model.Image} identifier of the request.
+     * @return HTTP status code of the cached outcome or <code>null</code> if
+     * there is no fresh outcome cached.
+     */
+    public Integer get(String omeroSessionKey, long imageId) {
+        String key = key(omeroSessionKey, imageId);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < clock.getAsLong()) {
+            entries.remove(key);
+            SIZE.set(entries.size());
+            return null;
+        }
+        HITS.inc();
+        return entry.statusCode;
+    }
+
+    /**
+     * Caches an outcome if it is one which should be cached.
+     * @param omeroSessionKey OMERO session key of the request.
+     * @param imageId {@link omero.model.Image} identifier of the request.
+     * @param statusCode HTTP status code of the outcome; only 403 and 404
+     * are cached.
+     */
+    public void put(String omeroSessionKey, long imageId, int statusCode) {
+        if (statusCode != 403 && statusCode != 404) {
+            return;
+        }
+        String key = key(omeroSessionKey, imageId);
+        // Re-insert so that the entry moves to the end of the eviction order
+        entries.remove(key);
+        entries.put(key, new Entry(
+                imageId, statusCode, clock.getAsLong() + ttl));
+        SIZE.set(entries.size());
+    }
+
+    /**
+     * Removes all cached outcomes.
+     */
+    public void invalidate() {
+        log.debug("Invalidating all {} entries", entries.size());
+        entries.clear();
+        SIZE.set(0);
+    }
+
+    /**
+     * Removes the cached outcomes, for all sessions, of a set of images.
+     * @param imageIds {@link omero.model.Image} identifiers to invalidate.
+     */
+    public void invalidate(Collection<Long> imageIds) {
+        Set<Long> ids = new HashSet<Long>(imageIds);
+        Iterator<Entry> i = entries.values().iterator();
+        while (i.hasNext()) {
+            if (ids.contains(i.next().imageId)) {
+                i.remove();
+            }
+        }
+        SIZE.set(entries.size());
+    }
+
+    private String key(String omeroSessionKey, long imageId) {
+        return omeroSessionKey + ":" + imageId;
+    }
+
+}
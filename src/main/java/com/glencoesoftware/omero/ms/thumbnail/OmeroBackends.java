@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Client side load balancer across one or more OMERO servers. Each request
+ * is sent to the available backend with the fewest outstanding requests.
+ * Backends which fail repeatedly are passively ejected for a period. The
+ * latency of recent requests is tracked per event bus address so that
+ * requests may be hedged, resent to a second backend, once they exceed a
+ * latency percentile for their address.
+ * <p>
+ * This class is <b>not</b> thread safe. It is expected to be used solely from
+ * the event loop of the verticle that owns it.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class OmeroBackends {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(OmeroBackends.class);
+
+    private static final Gauge OUTSTANDING = Gauge.build()
+            .name("omero_ms_thumbnail_backend_outstanding")
+            .help("Number of requests outstanding per OMERO backend")
+            .labelNames("backend")
+            .register();
+
+    private static final Gauge EJECTED = Gauge.build()
+            .name("omero_ms_thumbnail_backend_ejected")
+            .help("Whether or not an OMERO backend is ejected")
+            .labelNames("backend")
+            .register();
+
+    private static final Counter EJECTIONS = Counter.build()
+            .name("omero_ms_thumbnail_backend_ejections_total")
+            .help("Number of times an OMERO backend has been ejected")
+            .labelNames("backend")
+            .register();
+
+    private static final Counter HEDGES = Counter.build()
+            .name("omero_ms_thumbnail_hedged_requests_total")
+            .help("Number of hedged requests sent")
+            .register();
+
+    /** Number of latency samples kept for the hedging percentile. */
+    private static final int LATENCY_SAMPLES = 1024;
+
+    /** Number of samples between recalculations of the hedging delay. */
+    private static final int RECALCULATE_EVERY = 64;
+
+    /** An OMERO server. */
+    public static class Backend {
+
+        /** Position of the backend in the configured list. */
+        public final int index;
+
+        /** OMERO server host. */
+        public final String host;
+
+        /** OMERO server port. */
+        public final int port;
+
+        /** Number of requests outstanding. */
+        int outstanding;
+
+        /** Number of consecutive failures. */
+        int failures;
+
+        /** Time in milliseconds the current ejection, if any, ends. */
+        long ejectedUntil;
+
+        Backend(int index, String host, int port) {
+            this.index = index;
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /** Recent request latencies to a single event bus address. */
+    private static class Latencies {
+
+        /** Ring of recent request latencies in milliseconds. */
+        final long[] samples = new long[LATENCY_SAMPLES];
+
+        /** Number of latency samples recorded. */
+        long count;
+
+        /** Current hedging delay in milliseconds or -1 if not yet known. */
+        long hedgeDelay = -1;
+    }
+
+    /** Configured backends. */
+    private final List<Backend> backends;
+
+    /** Consecutive failures after which a backend is ejected. */
+    private final int failureThreshold;
+
+    /** Time in milliseconds a backend is ejected for. */
+    private final long ejectionMillis;
+
+    /** Latency percentile after which requests are hedged. */
+    private final double hedgePercentile;
+
+    /** Minimum delay in milliseconds before a request is hedged. */
+    private final long hedgeMinDelay;
+
+    /** Fraction of requests which may be hedged. */
+    private final double hedgeBudget;
+
+    /** Source of the current time in milliseconds. */
+    private final LongSupplier clock;
+
+    /** Recent request latencies by event bus address. */
+    private final Map<String, Latencies> latencies =
+            new HashMap<String, Latencies>();
+
+    /** Hedging tokens; each request earns a fraction of a token. */
+    private double hedgeTokens;
+
+    /** Next index to start searching from so that ties rotate. */
+    private int next;
+
+    /**
+     * Default constructor.
+     * @param backends Backends to balance across; at least one.
+     * @param failureThreshold Consecutive failures after which a backend is
+     * ejected.
+     * @param ejectionMillis Time in milliseconds a backend is ejected for.
+     * @param hedgePercentile Latency percentile, between 0 and 1, after
+     * which requests are hedged.
+     * @param hedgeMinDelay Minimum delay in milliseconds before a request is
+     * hedged.
+     * @param hedgeBudget Fraction of requests, between 0 and 1, which may be
+     * hedged.
+     */
+    public OmeroBackends(
+            List<Backend> backends, int failureThreshold,
+            long ejectionMillis, double hedgePercentile, long hedgeMinDelay,
+            double hedgeBudget) {
+        this(backends, failureThreshold, ejectionMillis, hedgePercentile,
+                hedgeMinDelay, hedgeBudget, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor with the ability to specify the clock.
+     * @param backends Backends to balance across; at least one.
+     * @param failureThreshold Consecutive failures after which a backend is
+     * ejected.
+     * @param ejectionMillis Time in milliseconds a backend is ejected for.
+     * @param hedgePercentile Latency percentile, between 0 and 1, after
+     * which requests are hedged.
+     * @param hedgeMinDelay Minimum delay in milliseconds before a request is
+     * hedged.
+     * @param hedgeBudget Fraction of requests, between 0 and 1, which may be
+     * hedged.
+     * @param clock Source of the current time in milliseconds.
+     */
+    OmeroBackends(
+            List<Backend> backends, int failureThreshold,
+            long ejectionMillis, double hedgePercentile, long hedgeMinDelay,
+            double hedgeBudget, LongSupplier clock) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("No OMERO backends");
+        }
+        this.backends = backends;
+        this.failureThreshold = failureThreshold;
+        this.ejectionMillis = ejectionMillis;
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeMinDelay = hedgeMinDelay;
+        this.hedgeBudget = hedgeBudget;
+        this.clock = clock;
+        for (Backend backend : backends) {
+            OUTSTANDING.labels(backend.toString()).set(0);
+            EJECTED.labels(backend.toString()).set(0);
+        }
+    }
+
+    /**
+     * Parses the backends from the <code>omero</code> configuration block.
+     * Either a <code>backends</code> list of <code>host</code> and
+     * <code>port</code> pairs or a single <code>host</code> and
+     * <code>port</code> may be specified.
+     * @param omero <code>omero</code> configuration block.
+     * @return See above.
+     */
+    public static List<Backend> parse(JsonObject omero) {
+        JsonArray backendsJson = omero.getJsonArray("backends");
+        if (backendsJson == null) {
+            return Collections.singletonList(new Backend(
+                    0, omero.getString("host"), omero.getInteger("port")));
+        }
+        List<Backend> backends = new ArrayList<Backend>();
+        for (int i = 0; i < backendsJson.size(); i++) {
+            JsonObject backend = backendsJson.getJsonObject(i);
+            backends.add(new Backend(
+                    i, backend.getString("host"),
+                    backend.getInteger("port", 4064)));
+        }
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "'omero.backends' must not be empty");
+        }
+        return backends;
+    }
+
+    /**
+     * @return Number of configured backends.
+     */
+    public int size() {
+        return backends.size();
+    }
+
+    /**
+     * Selects the available backend with the fewest outstanding requests and
+     * accounts for a request to it. If every backend is ejected the one
+     * whose ejection ends first is selected.
+     * @return See above. Must be passed to
+     * {@link #release(Backend, String, boolean, long)} once the request
+     * completes.
+     */
+    public Backend acquire() {
+        Backend selected = select(null);
+        if (selected == null) {
+            selected = soonest();
+        }
+        return account(selected);
+    }
+
+    /**
+     * Spends from the hedging budget to select a second backend, other than
+     * that of the original request, and accounts for a request to it.
+     * Neither the budget is spent nor a backend selected when every other
+     * backend is ejected; there is no point in hedging to a backend that is
+     * failing or to the one already slow to respond.
+     * @param primary Backend of the original request.
+     * @return Available backend with the fewest outstanding requests other
+     * than <code>primary</code> or <code>null</code> if the hedging budget
+     * is exhausted or there is no such backend. If not <code>null</code> it
+     * must be passed to {@link #release(Backend, String, boolean, long)}
+     * once the request completes.
+     */
+    public Backend acquireHedge(Backend primary) {
+        if (hedgeTokens < 1) {
+            return null;
+        }
+        Backend selected = select(primary);
+        if (selected == null) {
+            return null;
+        }
+        hedgeTokens--;
+        HEDGES.inc();
+        return account(selected);
+    }
+
+    /**
+     * Selects the available backend with the fewest outstanding requests,
+     * returning any whose ejection has ended to service.
+     * @param exclude Backend not to select; may be <code>null</code>.
+     * @return See above or <code>null</code> if every backend other than
+     * <code>exclude</code> is ejected.
+     */
+    private Backend select(Backend exclude) {
+        long now = clock.getAsLong();
+        Backend selected = null;
+        int size = backends.size();
+        for (int i = 0; i < size; i++) {
+            Backend backend = backends.get((next + i) % size);
+            if (backend == exclude) {
+                continue;
+            }
+            if (backend.ejectedUntil > now) {
+                continue;
+            }
+            if (backend.ejectedUntil != 0) {
+                log.info("Returning OMERO backend {} to service", backend);
+                backend.ejectedUntil = 0;
+                EJECTED.labels(backend.toString()).set(0);
+            }
+            if (selected == null
+                    || backend.outstanding < selected.outstanding) {
+                selected = backend;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return Ejected backend whose ejection ends first.
+     */
+    private Backend soonest() {
+        Backend soonest = null;
+        for (Backend backend : backends) {
+            if (soonest == null
+                    || backend.ejectedUntil < soonest.ejectedUntil) {
+                soonest = backend;
+            }
+        }
+        return soonest;
+    }
+
+    /**
+     * Accounts for a request to a selected backend.
+     * @param selected Backend selected.
+     * @return <code>selected</code>.
+     */
+    private Backend account(Backend selected) {
+        next = (next + 1) % backends.size();
+        selected.outstanding++;
+        OUTSTANDING.labels(selected.toString()).set(selected.outstanding);
+        return selected;
+    }
+
+    /**
+     * Accounts for the completion of a request.
+     * @param backend Backend the request was sent to.
+     * @param address Event bus address the request was sent to.
+     * @param failed Whether or not the request failed in a way which
+     * indicates a problem with the backend.
+     * @param elapsedNanos Time taken by the request.
+     */
+    public void release(
+            Backend backend, String address, boolean failed,
+            long elapsedNanos) {
+        backend.outstanding--;
+        OUTSTANDING.labels(backend.toString()).set(backend.outstanding);
+        if (!failed) {
+            backend.failures = 0;
+            recordLatency(
+                    address, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+            return;
+        }
+        backend.failures++;
+        if (backend.failures >= failureThreshold
+                && backend.ejectedUntil == 0) {
+            log.warn("Ejecting OMERO backend {} for {} ms after {} failures",
+                    backend, ejectionMillis, backend.failures);
+            backend.ejectedUntil = clock.getAsLong() + ejectionMillis;
+            backend.failures = 0;
+            EJECTED.labels(backend.toString()).set(1);
+            EJECTIONS.labels(backend.toString()).inc();
+        }
+    }
+
+    /**
+     * @param address Event bus address of the request.
+     * @return Delay in milliseconds after which a request to
+     * <code>address</code> should be hedged or <code>-1</code> if there are
+     * too few latency samples for the address or only a single backend.
+     */
+    public long hedgeDelay(String address) {
+        Latencies forAddress = latencies.get(address);
+        if (backends.size() < 2 || forAddress == null) {
+            return -1;
+        }
+        return forAddress.hedgeDelay;
+    }
+
+    /**
+     * Credits the hedging budget for a request which may be hedged.
+     */
+    public void earnHedge() {
+        hedgeTokens = Math.min(hedgeTokens + hedgeBudget, 10);
+    }
+
+    private void recordLatency(String address, long millis) {
+        Latencies forAddress = latencies.computeIfAbsent(
+                address, k -> new Latencies());
+        long[] samples = forAddress.samples;
+        samples[(int) (forAddress.count % LATENCY_SAMPLES)] = millis;
+        forAddress.count++;
+        if (forAddress.count % RECALCULATE_EVERY != 0
+                || forAddress.count < LATENCY_SAMPLES / 4) {
+            return;
+        }
+        long[] sorted = Arrays.copyOf(
+                samples, (int) Math.min(forAddress.count, LATENCY_SAMPLES));
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(hedgePercentile * sorted.length) - 1;
+        forAddress.hedgeDelay = Math.max(
+                hedgeMinDelay,
+                sorted[Math.max(0, Math.min(rank, sorted.length - 1))]);
+    }
+
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import org.slf4j.LoggerFactory;
+
+import com.glencoesoftware.omero.ms.core.OmeroRequest;
+
+import Glacier2.CannotCreateSessionException;
+import Glacier2.PermissionDeniedException;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+import omero.ServerError;
+import omero.api.ThumbnailStorePrx;
+
+/**
+ * Pool of joined OMERO sessions, each with a thumbnail store kept prepared
+ * across requests, shared by all the worker verticles of a microservice
+ * instance. Creating and closing a stateful thumbnail store is real work for
+ * the server; a pooled store is instead re-pointed at the next
+ * {@link omero.model.Pixels} of a request for the same OMERO session and
+ * group. Each {@link Lease} is used by a single request at a time. A lease's
+ * thumbnail store is replaced when the group changes and the lease is
+ * discarded after an error or once it reaches its maximum lifetime.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class OmeroSessionPool implements Shareable {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(OmeroSessionPool.class);
+
+    private static final Counter LEASES = Counter.build()
+            .name("omero_ms_thumbnail_session_pool_leases_total")
+            .help("Number of pooled OMERO session leases by outcome")
+            .labelNames("outcome")
+            .register();
+
+    private static final Counter THUMBNAIL_STORES = Counter.build()
+            .name("omero_ms_thumbnail_session_pool_thumbnail_stores_total")
+            .help("Number of thumbnail stores requested from pooled sessions "
+                  + "by outcome")
+            .labelNames("outcome")
+            .register();
+
+    private static final Counter DISCARDS = Counter.build()
+            .name("omero_ms_thumbnail_session_pool_discards_total")
+            .help("Number of pooled OMERO sessions discarded by reason")
+            .labelNames("reason")
+            .register();
+
+    private static final Gauge IDLE = Gauge.build()
+            .name("omero_ms_thumbnail_session_pool_idle")
+            .help("Number of idle pooled OMERO sessions")
+            .register();
+
+    /** Name of the Vert.x local map the shared instance is kept in. */
+    public static final String SHARED_MAP_NAME = "omero.thumbnail_session_pool";
+
+    /**
+     * A joined OMERO session, and possibly a prepared thumbnail store, used
+     * by a single request. Closing the lease returns it to the pool it came
+     * from, if any, otherwise leaves the session.
+     */
+    public static class Lease implements Closeable {
+
+        /** Joined OMERO session. */
+        public final OmeroRequest request;
+
+        /** Pool the lease is returned to or <code>null</code>. */
+        private final OmeroSessionPool pool;
+
+        /** Key of the lease in the pool. */
+        private final String key;
+
+        /** Time in milliseconds after which the lease is discarded. */
+        private final long expires;
+
+        /** Prepared thumbnail store or <code>null</code>. */
+        private ThumbnailStorePrx thumbnailStore;
+
+        /** Group the prepared thumbnail store is for. */
+        private long groupId;
+
+        /** Whether or not an error occurred using the lease. */
+        private boolean failed;
+
+        private Lease(
+                OmeroRequest request, OmeroSessionPool pool, String key,
+                long expires) {
+            this.request = request;
+            this.pool = pool;
+            this.key = key;
+            this.expires = expires;
+        }
+
+        /**
+         * Creates a lease which is not pooled. Thumbnail stores are created
+         * on every request and the session is left when the lease is
+         * closed.
+         * @param request Joined OMERO session.
+         * @return See above.
+         */
+        public static Lease unpooled(OmeroRequest request) {
+            return new Lease(request, null, null, Long.MAX_VALUE);
+        }
+
+        /**
+         * Executes a request on the joined session. If the request raises
+         * the lease is marked as failed so that it is discarded, rather than
+         * returned to the pool, when closed.
+         * @param function Request to execute.
+         * @return Result of the request.
+         */
+        public <T> T execute(Function<omero.client, T> function) {
+            try {
+                return request.execute(function);
+            } catch (RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Marks the lease as failed, for requests which raise after
+         * {@link #execute(Function)} has returned, so that it is discarded
+         * rather than returned to the pool when closed.
+         */
+        public void markFailed() {
+            failed = true;
+        }
+
+        /**
+         * Retrieves a thumbnail store for use by the current request, which
+         * must be returned with {@link #release(ThumbnailStorePrx, boolean)}.
+         * @param client OMERO client of the joined session.
+         * @param groupId {@link omero.model.ExperimenterGroup} the
+         * thumbnails will be retrieved in the context of.
+         * @return Prepared thumbnail store for the group, if there is one,
+         * otherwise a new thumbnail store.
+         * @throws ServerError If a new thumbnail store cannot be created.
+         */
+        public ThumbnailStorePrx thumbnailStore(
+                omero.client client, long groupId) throws ServerError {
+            ThumbnailStorePrx prepared = preparedThumbnailStore(groupId);
+            if (prepared != null) {
+                return prepared;
+            }
+            return client.getSession().createThumbnailStore();
+        }
+
+        /**
+         * Retrieves the prepared thumbnail store for use by the current
+         * request, if there is one for the group, for callers which create
+         * thumbnail stores themselves. The store, prepared or not, must be
+         * returned with {@link #release(ThumbnailStorePrx, boolean)}.
+         * @param groupId {@link omero.model.ExperimenterGroup} the
+         * thumbnails will be retrieved in the context of.
+         * @return Prepared thumbnail store for the group or
+         * <code>null</code> if the caller must create one.
+         */
+        public ThumbnailStorePrx preparedThumbnailStore(long groupId) {
+            if (pool != null && thumbnailStore != null) {
+                if (this.groupId == groupId) {
+                    THUMBNAIL_STORES.labels("reused").inc();
+                    ThumbnailStorePrx prepared = thumbnailStore;
+                    thumbnailStore = null;
+                    return prepared;
+                }
+                THUMBNAIL_STORES.labels("group_changed").inc();
+                closeThumbnailStore();
+            }
+            THUMBNAIL_STORES.labels("created").inc();
+            this.groupId = groupId;
+            return null;
+        }
+
+        /**
+         * @return Whether or not the lease is pooled and may therefore keep
+         * a thumbnail store prepared across requests.
+         */
+        public boolean isPooled() {
+            return pool != null;
+        }
+
+        /**
+         * Returns a thumbnail store retrieved with
+         * {@link #thumbnailStore(omero.client, long)}.
+         * @param thumbnailStore Thumbnail store to return.
+         * @param reusable Whether or not the thumbnail store may be reused;
+         * it must not be if an error occurred or it was set to rendering
+         * settings other than the defaults.
+         */
+        public void release(
+                ThumbnailStorePrx thumbnailStore, boolean reusable) {
+            if (pool != null && reusable && !failed) {
+                this.thumbnailStore = thumbnailStore;
+                return;
+            }
+            try {
+                thumbnailStore.close();
+            } catch (Exception e) {
+                failed = true;
+                log.debug("Exception while closing thumbnail store", e);
+            }
+        }
+
+        /**
+         * Returns the lease to its pool or, if it is not pooled, leaves the
+         * session.
+         */
+        @Override
+        public void close() {
+            if (pool == null) {
+                request.close();
+            } else {
+                pool.giveBack(this);
+            }
+        }
+
+        /**
+         * Closes the thumbnail store, if any, and leaves the session.
+         */
+        private void discard() {
+            closeThumbnailStore();
+            request.close();
+        }
+
+        private void closeThumbnailStore() {
+            if (thumbnailStore == null) {
+                return;
+            }
+            try {
+                thumbnailStore.close();
+            } catch (Exception e) {
+                log.debug("Exception while closing thumbnail store", e);
+            } finally {
+                thumbnailStore = null;
+            }
+        }
+    }
+
+    /** Joins OMERO sessions for new leases. */
+    interface Joiner {
+
+        /**
+         * @param host OMERO server host.
+         * @param port OMERO server port.
+         * @param omeroSessionKey OMERO session key to join.
+         * @return Joined OMERO session.
+         * @throws PermissionDeniedException If the session cannot be joined.
+         * @throws CannotCreateSessionException If the session cannot be
+         * joined.
+         * @throws ServerError If there was any other error joining the
+         * session.
+         */
+        OmeroRequest join(String host, int port, String omeroSessionKey)
+                throws PermissionDeniedException,
+                    CannotCreateSessionException, ServerError;
+    }
+
+    /** Idle leases, most recently returned last, by pool key. */
+    private final Map<String, ArrayDeque<Lease>> idle =
+            new HashMap<String, ArrayDeque<Lease>>();
+
+    /** All idle leases, least recently returned first. */
+    private final LinkedHashSet<Lease> idleOrder = new LinkedHashSet<Lease>();
+
+    /** Maximum number of idle leases kept. */
+    private final int maxIdle;
+
+    /** Time in milliseconds a lease may be used for. */
+    private final long maxLifetime;
+
+    /** Source of the current time in milliseconds. */
+    private final LongSupplier clock;
+
+    /** Joins OMERO sessions for new leases. */
+    private final Joiner joiner;
+
+    /**
+     * Default constructor.
+     * @param maxIdle Maximum number of idle leases kept; the least recently
+     * used are discarded first.
+     * @param maxLifetime Time in milliseconds after which a lease, its
+     * session and its thumbnail store are discarded.
+     */
+    public OmeroSessionPool(int maxIdle, long maxLifetime) {
+        this(maxIdle, maxLifetime, System::currentTimeMillis,
+                OmeroRequest::new);
+    }
+
+    /**
+     * Constructor with the ability to specify the clock and how sessions
+     * are joined.
+     * @param maxIdle Maximum number of idle leases kept; the least recently
+     * used are discarded first.
+     * @param maxLifetime Time in milliseconds after which a lease, its
+     * session and its thumbnail store are discarded.
+     * @param clock Source of the current time in milliseconds.
+     * @param joiner Joins OMERO sessions for new leases.
+     */
+    OmeroSessionPool(
+            int maxIdle, long maxLifetime, LongSupplier clock,
+            Joiner joiner) {
+        this.maxIdle = maxIdle;
+        this.maxLifetime = maxLifetime;
+        this.clock = clock;
+        this.joiner = joiner;
+    }
+
+    /**
+     * Retrieves the pool shared by all verticles of a Vert.x instance,
+     * creating it if required. The verticle which creates the pool also
+     * sweeps it periodically, on its own context, so that expired idle
+     * leases are discarded once per sweep interval rather than once per
+     * verticle.
+     * @param vertx Vert.x instance.
+     * @param sessionPoolConfig <code>session-pool</code> configuration
+     * block used if the pool is created.
+     * @return See above.
+     */
+    public static OmeroSessionPool shared(
+            Vertx vertx, JsonObject sessionPoolConfig) {
+        LocalMap<String, OmeroSessionPool> pools =
+                vertx.sharedData().getLocalMap(SHARED_MAP_NAME);
+        OmeroSessionPool created = new OmeroSessionPool(
+                sessionPoolConfig.getInteger("max-idle", 64),
+                sessionPoolConfig.getLong("max-lifetime-ms", 60000L));
+        OmeroSessionPool existing = pools.putIfAbsent("default", created);
+        if (existing != null) {
+            return existing;
+        }
+        vertx.setPeriodic(
+                sessionPoolConfig.getLong("sweep-ms", 10000L),
+                t -> created.sweep());
+        return created;
+    }
+
+    /**
+     * Leases a joined OMERO session, reusing an idle one if available.
+     * @param host OMERO server host.
+     * @param port OMERO server port.
+     * @param omeroSessionKey OMERO session key to join.
+     * @return See above.
+     * @throws PermissionDeniedException If the session cannot be joined.
+     * @throws CannotCreateSessionException If the session cannot be joined.
+     * @throws ServerError If there was any other error joining the session.
+     */
+    public Lease lease(String host, int port, String omeroSessionKey)
+            throws PermissionDeniedException, CannotCreateSessionException,
+                ServerError {
+        String key = host + ":" + port + "/" + omeroSessionKey;
+        List<Lease> expired = new ArrayList<Lease>();
+        Lease lease = null;
+        synchronized (this) {
+            ArrayDeque<Lease> leases = idle.get(key);
+            long now = clock.getAsLong();
+            while (lease == null && leases != null && !leases.isEmpty()) {
+                Lease candidate = leases.pollLast();
+                idleOrder.remove(candidate);
+                if (candidate.expires < now) {
+                    expired.add(candidate);
+                } else {
+                    lease = candidate;
+                }
+            }
+            if (leases != null && leases.isEmpty()) {
+                idle.remove(key);
+            }
+            IDLE.set(idleOrder.size());
+        }
+        discard(expired, "expired");
+        if (lease != null) {
+            LEASES.labels("reused").inc();
+            return lease;
+        }
+        LEASES.labels("joined").inc();
+        return new Lease(
+                joiner.join(host, port, omeroSessionKey), this, key,
+                clock.getAsLong() + maxLifetime);
+    }
+
+    /**
+     * Discards idle leases which have reached their maximum lifetime.
+     */
+    public void sweep() {
+        List<Lease> expired = new ArrayList<Lease>();
+        synchronized (this) {
+            long now = clock.getAsLong();
+            Iterator<Lease> i = idleOrder.iterator();
+            while (i.hasNext()) {
+                Lease lease = i.next();
+                if (lease.expires < now) {
+                    i.remove();
+                    removeIdle(lease);
+                    expired.add(lease);
+                }
+            }
+            IDLE.set(idleOrder.size());
+        }
+        discard(expired, "expired");
+    }
+
+    /**
+     * Returns a lease to the pool, discarding it if it failed or has
+     * expired and discarding the least recently used idle leases if there
+     * are too many.
+     * @param lease Lease to return.
+     */
+    private void giveBack(Lease lease) {
+        if (lease.failed) {
+            discard(List.of(lease), "error");
+            return;
+        }
+        if (lease.expires < clock.getAsLong()) {
+            discard(List.of(lease), "expired");
+            return;
+        }
+        List<Lease> evicted = new ArrayList<Lease>();
+        synchronized (this) {
+            idle.computeIfAbsent(lease.key, k -> new ArrayDeque<Lease>())
+                .addLast(lease);
+            idleOrder.add(lease);
+            Iterator<Lease> i = idleOrder.iterator();
+            while (idleOrder.size() > maxIdle && i.hasNext()) {
+                Lease eldest = i.next();
+                i.remove();
+                removeIdle(eldest);
+                evicted.add(eldest);
+            }
+            IDLE.set(idleOrder.size());
+        }
+        discard(evicted, "capacity");
+    }
+
+    private void removeIdle(Lease lease) {
+        ArrayDeque<Lease> leases = idle.get(lease.key);
+        if (leases != null) {
+            leases.remove(lease);
+            if (leases.isEmpty()) {
+                idle.remove(lease.key);
+            }
+        }
+    }
+
+    /**
+     * Discards leases outside of the pool lock as leaving a session is a
+     * server round trip.
+     * @param leases Leases to discard.
+     * @param reason Reason for discarding for metrics.
+     */
+    private void discard(List<Lease> leases, String reason) {
+        for (Lease lease : leases) {
+            DISCARDS.labels(reason).inc();
+            try {
+                lease.discard();
+            } catch (Exception e) {
+                log.debug("Exception while discarding pooled session", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import static omero.rtypes.unwrap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.LoggerFactory;
+
+import omero.RType;
+import omero.ServerError;
+import omero.sys.ParametersI;
+
+import brave.ScopedSpan;
+import brave.Tracing;
+
+/**
+ * OMERO session aware handler whose event handler method conforms to the
+ * {@link OmeroRequestHandler} interface. Resolves {@link omero.model.Pixels},
+ * {@link omero.model.Image}, {@link omero.model.RenderingDef} and container
+ * identifiers to the {@link omero.model.Pixels} identifiers whose thumbnails
+ * they affect. Only objects which the user of the session can read are
+ * resolved. This class is expected to be used as a lambda handler.
+ * @author agent <agent@local>
+ *
+ */
+public class PixelsIdsRequestHandler {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(PixelsIdsRequestHandler.class);
+
+    /** {@link omero.model.Pixels} identifiers to resolve. */
+    private final List<Long> pixelsIds;
+
+    /** {@link omero.model.Image} identifiers to resolve. */
+    private final List<Long> imageIds;
+
+    /** {@link omero.model.RenderingDef} identifiers to resolve. */
+    private final List<Long> renderingDefIds;
+
+    /** {@link omero.model.Dataset} identifiers to resolve. */
+    private final List<Long> datasetIds;
+
+    /** {@link omero.model.Plate} identifiers to resolve. */
+    private final List<Long> plateIds;
+
+    /**
+     * Default constructor.
+     * @param pixelsIds {@link omero.model.Pixels} identifiers to resolve.
+     * @param imageIds {@link omero.model.Image} identifiers to resolve.
+     * @param renderingDefIds {@link omero.model.RenderingDef} identifiers to
+     * resolve.
+     * @param datasetIds {@link omero.model.Dataset} identifiers to resolve.
+     * @param plateIds {@link omero.model.Plate} identifiers to resolve.
+     */
+    public PixelsIdsRequestHandler(
+            List<Long> pixelsIds, List<Long> imageIds,
+            List<Long> renderingDefIds, List<Long> datasetIds,
+            List<Long> plateIds) {
+        this.pixelsIds = pixelsIds;
+        this.imageIds = imageIds;
+        this.renderingDefIds = renderingDefIds;
+        this.datasetIds = datasetIds;
+        this.plateIds = plateIds;
+    }
+
+    /**
+     * Resolves the {@link omero.model.Pixels} identifiers.
+     * @param client OMERO client to use for querying.
+     * @return Set of {@link omero.model.Pixels} identifiers or
+     * <code>null</code> if they could not be resolved.
+     */
+    public Set<Long> resolvePixelsIds(omero.client client) {
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("resolve_pixels_ids");
+        try {
+            Set<Long> pixelsIds = new HashSet<Long>();
+            pixelsIds.addAll(query(client,
+                "SELECT p.id FROM Pixels AS p WHERE p.id IN (:ids)",
+                this.pixelsIds));
+            pixelsIds.addAll(query(client,
+                "SELECT p.id FROM Pixels AS p WHERE p.image.id IN (:ids)",
+                imageIds));
+            pixelsIds.addAll(query(client,
+                "SELECT r.pixels.id FROM RenderingDef AS r " +
+                "WHERE r.id IN (:ids)",
+                renderingDefIds));
+            pixelsIds.addAll(query(client,
+                "SELECT p.id FROM Pixels AS p " +
+                "JOIN p.image AS i " +
+                "JOIN i.datasetLinks AS l " +
+                "WHERE l.parent.id IN (:ids)",
+                datasetIds));
+            pixelsIds.addAll(query(client,
+                "SELECT p.id FROM Pixels AS p " +
+                "JOIN p.image AS i " +
+                "JOIN i.wellSamples AS ws " +
+                "WHERE ws.well.plate.id IN (:ids)",
+                plateIds));
+            return pixelsIds;
+        } catch (Exception e) {
+            log.error("Exception while resolving Pixels", e);
+        } finally {
+            span.finish();
+        }
+        return null;
+    }
+
+    /**
+     * Runs a single column projection across all groups.
+     * @param client OMERO client to use for querying.
+     * @param query Projection query with an <code>ids</code> parameter.
+     * @param ids Identifiers to bind to the <code>ids</code> parameter.
+     * @return Set of {@link omero.model.Pixels} identifiers.
+     * @throws ServerError If there was any sort of error querying.
+     */
+    private Set<Long> query(omero.client client, String query, List<Long> ids)
+            throws ServerError {
+        Set<Long> pixelsIds = new HashSet<Long>();
+        if (ids.isEmpty()) {
+            return pixelsIds;
+        }
+        Map<String, String> ctx = new HashMap<String, String>();
+        ctx.put("omero.group", "-1");
+        ParametersI params = new ParametersI();
+        params.addIds(ids);
+        for (List<RType> row : client.getSession().getQueryService()
+                .projection(query, params, ctx)) {
+            pixelsIds.add((Long) unwrap(row.get(0)));
+        }
+        return pixelsIds;
+    }
+
+}
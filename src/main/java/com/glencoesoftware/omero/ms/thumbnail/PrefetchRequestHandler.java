@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import static omero.rtypes.unwrap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.slf4j.LoggerFactory;
+
+import omero.RType;
+import omero.ServerError;
+import omero.model.Image;
+import omero.sys.ParametersI;
+
+import brave.ScopedSpan;
+import brave.Tracing;
+
+/**
+ * OMERO session aware handler whose event handler method conforms to the
+ * {@link OmeroRequestHandler} interface. Predicts the page of images a user
+ * paging through a {@link omero.model.Dataset} or {@link omero.model.Plate}
+ * will request after a page of thumbnails, unless a page transition has
+ * already been learned, from the container most of the page belongs to,
+ * and retrieves their thumbnails into the thumbnail cache.
+ * This class is expected to be used as a lambda handler.
+ * @author agent <agent@local>
+ *
+ */
+public class PrefetchRequestHandler extends ThumbnailsRequestHandler {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(PrefetchRequestHandler.class);
+
+    /** Projection query of the Datasets of a set of images. */
+    private static final String DATASETS =
+            "SELECT l.parent.id, count(l.id) FROM DatasetImageLink AS l " +
+            "WHERE l.child.id IN (:ids) GROUP BY l.parent.id";
+
+    /** Projection query of the Plates of a set of images. */
+    private static final String PLATES =
+            "SELECT ws.well.plate.id, count(ws.id) FROM WellSample AS ws " +
+            "WHERE ws.image.id IN (:ids) GROUP BY ws.well.plate.id";
+
+    /**
+     * {@link Image} identifiers of the page learned to follow the page
+     * requested or <code>null</code> if it is to be predicted.
+     */
+    private final List<Long> nextImageIds;
+
+    /**
+     * Default constructor.
+     * @param longestSide Size to confine or upscale the longest side of each
+     * thumbnail to.
+     * @param imageIds {@link Image} identifiers of the page requested.
+     * @param nextImageIds {@link Image} identifiers of the page learned to
+     * follow the page requested or <code>null</code> to predict it from
+     * container order.
+     * @param cache Thumbnail cache to retrieve thumbnails into.
+     */
+    public PrefetchRequestHandler(
+            int longestSide, List<Long> imageIds, List<Long> nextImageIds,
+            ThumbnailCache cache) {
+        super(longestSide, imageIds, cache);
+        this.nextImageIds = nextImageIds;
+    }
+
+    /**
+     * Retrieves the thumbnails of the predicted next page into the cache.
+     * @return {@link Image} identifiers of the predicted next page, empty if
+     * there is no prediction, or <code>null</code> if the prediction or
+     * retrieval failed.
+     */
+    public List<Long> prefetch(omero.client client) {
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("prefetch_thumbnails");
+        try {
+            List<Long> next =
+                    nextImageIds != null ? nextImageIds : nextPage(client);
+            if (next.isEmpty()) {
+                log.debug("No next page predicted for {}", imageIds);
+                return next;
+            }
+            List<Image> images = getImages(client, next);
+            if (images.isEmpty()) {
+                return Collections.emptyList();
+            }
+            getThumbnails(client, images, longestSide);
+            log.debug("Prefetched next page {} with cache outcome {}",
+                    next, cacheOutcome);
+            return images.stream()
+                    .map(image -> (Long) unwrap(image.getId()))
+                    .collect(Collectors.toList());
+        } catch (ServerError e) {
+            span.error(e);
+            log.error("Exception while prefetching thumbnails", e);
+        } catch (RuntimeException e) {
+            // Ice runtime exceptions fail the request as unavailable
+            span.error(e);
+            throw e;
+        } finally {
+            span.finish();
+        }
+        return null;
+    }
+
+    /**
+     * Predicts the next page from the order of the images of the container
+     * most of the requested page belongs to.
+     * @param client OMERO client to use for querying.
+     * @return {@link Image} identifiers following the last of the requested
+     * page in container order; at most as many as were requested.
+     * @throws ServerError If there was any sort of error querying.
+     */
+    private List<Long> nextPage(omero.client client) throws ServerError {
+        List<Long> ordered;
+        Long datasetId = container(client, DATASETS);
+        if (datasetId != null) {
+            ordered = getImageIds(client, DATASET_IMAGE_IDS, datasetId);
+        } else {
+            Long plateId = container(client, PLATES);
+            if (plateId == null) {
+                return Collections.emptyList();
+            }
+            ordered = getImageIds(client, PLATE_IMAGE_IDS, plateId);
+        }
+        Set<Long> requested = new HashSet<Long>(imageIds);
+        int last = -1;
+        for (int i = 0; i < ordered.size(); i++) {
+            if (requested.contains(ordered.get(i))) {
+                last = i;
+            }
+        }
+        if (last < 0) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Long>(ordered.subList(
+                last + 1,
+                Math.min(ordered.size(), last + 1 + imageIds.size())));
+    }
+
+    /**
+     * Finds the container most of the requested page belongs to.
+     * @param client OMERO client to use for querying.
+     * @param query Projection query of container identifiers and the number
+     * of the images bound to the <code>ids</code> parameter each contains.
+     * @return Container identifier or <code>null</code> if none of the
+     * images belong to a container.
+     * @throws ServerError If there was any sort of error querying.
+     */
+    private Long container(omero.client client, String query)
+            throws ServerError {
+        Map<String, String> ctx = new HashMap<String, String>();
+        ctx.put("omero.group", "-1");
+        ParametersI params = new ParametersI();
+        params.addIds(imageIds);
+        Long containerId = null;
+        long most = 0;
+        for (List<RType> row : client.getSession().getQueryService()
+                .projection(query, params, ctx)) {
+            long count = (Long) unwrap(row.get(1));
+            if (count > most) {
+                most = count;
+                containerId = (Long) unwrap(row.get(0));
+            }
+        }
+        return containerId;
+    }
+
+}
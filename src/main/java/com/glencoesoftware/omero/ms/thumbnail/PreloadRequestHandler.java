@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import static omero.rtypes.unwrap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.slf4j.LoggerFactory;
+
+import omero.ServerError;
+import omero.model.Image;
+import omero.sys.ParametersI;
+
+import brave.ScopedSpan;
+import brave.Tracing;
+
+/**
+ * OMERO session aware handler whose event handler method conforms to the
+ * {@link OmeroRequestHandler} interface. Retrieves the thumbnails of a list
+ * of hot {@link omero.model.Pixels} into the thumbnail cache during warm-up.
+ * Thumbnails are cached for the user of the session, with their default
+ * rendering settings. This class is expected to be used as a lambda handler.
+ * @author agent <agent@local>
+ *
+ */
+public class PreloadRequestHandler extends ThumbnailsRequestHandler {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(PreloadRequestHandler.class);
+
+    /** {@link omero.model.Pixels} identifiers to preload. */
+    private final List<Long> pixelsIds;
+
+    /** Longest side sizes to preload. */
+    private final List<Integer> longestSides;
+
+    /**
+     * Default constructor.
+     * @param pixelsIds {@link omero.model.Pixels} identifiers to preload.
+     * @param longestSides Longest side sizes to preload.
+     * @param cache Thumbnail cache to retrieve thumbnails into.
+     */
+    public PreloadRequestHandler(
+            List<Long> pixelsIds, List<Integer> longestSides,
+            ThumbnailCache cache) {
+        super(0, new ArrayList<Long>(), cache);
+        this.pixelsIds = pixelsIds;
+        this.longestSides = longestSides;
+    }
+
+    /**
+     * Retrieves the thumbnails into the cache. Thumbnails which are already
+     * cached are not retrieved again.
+     * @return Number of {@link Image}s found or <code>null</code> if the
+     * retrieval failed.
+     */
+    public Integer preload(omero.client client) {
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("preload_thumbnails");
+        try {
+            List<Image> images = getImagesOfPixels(client);
+            // Thumbnail store calls are made in the context of a single group
+            Map<Long, List<Image>> groups = images.stream().collect(
+                    Collectors.groupingBy(image -> (Long) unwrap(
+                            image.getDetails().getGroup().getId())));
+            for (List<Image> group : groups.values()) {
+                for (int longestSide : longestSides) {
+                    getThumbnails(client, group, longestSide);
+                }
+            }
+            log.debug("Preloaded {} of {} Pixels", images.size(),
+                    pixelsIds.size());
+            return images.size();
+        } catch (ServerError e) {
+            span.error(e);
+            log.error("Exception while preloading thumbnails", e);
+        } finally {
+            span.finish();
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the loaded {@link Image}s of the {@link omero.model.Pixels}
+     * to preload.
+     * @param client OMERO client to use for querying.
+     * @return See above.
+     * @throws ServerError If there was any sort of error querying.
+     */
+    private List<Image> getImagesOfPixels(omero.client client)
+            throws ServerError {
+        Map<String, String> ctx = new HashMap<String, String>();
+        ctx.put("omero.group", "-1");
+        ParametersI params = new ParametersI();
+        params.addIds(pixelsIds);
+        return client.getSession().getQueryService().findAllByQuery(
+            "SELECT i FROM Image as i " +
+            "JOIN FETCH i.pixels as p WHERE p.id IN (:ids)",
+            params, ctx
+        ).stream().map(x -> (Image) x).collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Off-heap storage of thumbnail bytes for {@link ThumbnailCache}, keeping
+ * them out of the garbage collected heap. Storage is divided into fixed size
+ * slabs of direct memory, each of which is carved into equally sized chunks
+ * of a single size class when first used. Size classes grow by a factor of
+ * 1.25 so that at most a fifth of each chunk is wasted. A slab whose chunks
+ * have all been freed is returned for use by any size class. Stored values
+ * are identified by a primitive <code>long</code> handle.
+ * <p>
+ * This class is <b>not</b> thread safe. It is expected to be guarded by the
+ * {@link ThumbnailCache} that owns it.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class SlabStorage {
+
+    /** Size in bytes of the smallest size class. */
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    /** Chunks are multiples of this many bytes. */
+    private static final int CHUNK_ALIGNMENT = 64;
+
+    /** A slab of direct memory. */
+    private static class Slab {
+
+        /** Position of the slab in {@link SlabStorage#slabs}. */
+        final int index;
+
+        /** Direct memory of the slab. */
+        final ByteBuffer buffer;
+
+        /** Index of the size class carved or -1 if unassigned. */
+        int sizeClass = -1;
+
+        /** Number of chunks the slab holds in its size class. */
+        int chunks;
+
+        /** Number of chunks carved so far. */
+        int carved;
+
+        /** Offsets of freed chunks available for reuse. */
+        int[] free;
+
+        /** Number of freed chunks available for reuse. */
+        int freeCount;
+
+        /** Number of chunks in use. */
+        int live;
+
+        Slab(int index, int slabSize) {
+            this.index = index;
+            buffer = ByteBuffer.allocateDirect(slabSize);
+        }
+
+        boolean hasSpace() {
+            return freeCount > 0 || carved < chunks;
+        }
+    }
+
+    /** Size in bytes of each slab. */
+    private final int slabSize;
+
+    /** Maximum number of slabs allocated. */
+    private final int maxSlabs;
+
+    /** Chunk size in bytes of each size class, smallest first. */
+    private final int[] chunkSizes;
+
+    /** Allocated slabs; the slab index is the high half of each handle. */
+    private final List<Slab> slabs = new ArrayList<Slab>();
+
+    /** Slab most recently allocated from, per size class. */
+    private final Slab[] current;
+
+    /**
+     * Default constructor.
+     * @param slabSize Size in bytes of each slab and therefore the largest
+     * value which may be stored.
+     * @param maxBytes Maximum number of bytes of direct memory allocated;
+     * at least one slab is always permitted.
+     */
+    public SlabStorage(int slabSize, long maxBytes) {
+        if (slabSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException(
+                    "Slab size must be at least " + MIN_CHUNK_SIZE);
+        }
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.max(1, Math.min(
+                Integer.MAX_VALUE, maxBytes / slabSize));
+        List<Integer> sizes = new ArrayList<Integer>();
+        long size = MIN_CHUNK_SIZE;
+        while (size < slabSize) {
+            sizes.add((int) size);
+            size = (size * 5 / 4 + CHUNK_ALIGNMENT - 1)
+                    / CHUNK_ALIGNMENT * CHUNK_ALIGNMENT;
+        }
+        sizes.add(slabSize);
+        chunkSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+        current = new Slab[chunkSizes.length];
+    }
+
+    /**
+     * Stores a value.
+     * @param value Value to store.
+     * @return Handle of the stored value or -1 if there is no free chunk of
+     * a suitable size class or the value is larger than a slab.
+     */
+    public long put(byte[] value) {
+        int sizeClass = sizeClass(value.length);
+        if (sizeClass < 0) {
+            return -1;
+        }
+        int index = slabWithSpace(sizeClass);
+        if (index < 0) {
+            return -1;
+        }
+        Slab slab = slabs.get(index);
+        int offset = slab.freeCount > 0
+                ? slab.free[--slab.freeCount]
+                : slab.carved++ * chunkSizes[sizeClass];
+        slab.live++;
+        slab.buffer.position(offset);
+        slab.buffer.put(value);
+        return ((long) index << 32) | offset;
+    }
+
+    /**
+     * Reads a stored value.
+     * @param handle Handle of the value.
+     * @param length Length of the value in bytes.
+     * @return Copy of the value.
+     */
+    public byte[] get(long handle, int length) {
+        Slab slab = slabs.get((int) (handle >>> 32));
+        byte[] value = new byte[length];
+        slab.buffer.position((int) handle);
+        slab.buffer.get(value);
+        return value;
+    }
+
+    /**
+     * Frees the chunk of a stored value for reuse.
+     * @param handle Handle of the value.
+     */
+    public void free(long handle) {
+        Slab slab = slabs.get((int) (handle >>> 32));
+        slab.free[slab.freeCount++] = (int) handle;
+        if (--slab.live == 0) {
+            // Release the slab so that any size class may use it
+            slab.sizeClass = -1;
+            slab.freeCount = 0;
+            slab.carved = 0;
+        }
+    }
+
+    /**
+     * Frees all stored values. Allocated slabs are retained.
+     */
+    public void clear() {
+        for (Slab slab : slabs) {
+            slab.sizeClass = -1;
+            slab.freeCount = 0;
+            slab.carved = 0;
+            slab.live = 0;
+        }
+    }
+
+    /**
+     * @param sizeClass Index of a size class.
+     * @return Size in bytes of the chunks of the size class.
+     */
+    int chunkSize(int sizeClass) {
+        return chunkSizes[sizeClass];
+    }
+
+    /**
+     * @return Number of bytes of direct memory allocated.
+     */
+    public long allocatedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    /**
+     * @param handle Handle of a stored value.
+     * @return Index of the size class the value is stored in.
+     */
+    public int sizeClassOf(long handle) {
+        return slabs.get((int) (handle >>> 32)).sizeClass;
+    }
+
+    /**
+     * @param length Length of a value in bytes.
+     * @return Index of the smallest size class holding the value or -1 if
+     * the value is larger than a slab.
+     */
+    public int sizeClass(int length) {
+        for (int i = 0; i < chunkSizes.length; i++) {
+            if (chunkSizes[i] >= length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a slab with a free chunk of a size class, assigning an
+     * unassigned or newly allocated slab to the size class if required.
+     * @param sizeClass Index of the size class.
+     * @return Index of the slab or -1 if there is none.
+     */
+    private int slabWithSpace(int sizeClass) {
+        Slab slab = current[sizeClass];
+        if (slab != null && slab.sizeClass == sizeClass && slab.hasSpace()) {
+            return slab.index;
+        }
+        int unassigned = -1;
+        for (int i = 0; i < slabs.size(); i++) {
+            slab = slabs.get(i);
+            if (slab.sizeClass == sizeClass && slab.hasSpace()) {
+                current[sizeClass] = slab;
+                return i;
+            }
+            if (slab.sizeClass == -1 && unassigned < 0) {
+                unassigned = i;
+            }
+        }
+        if (unassigned < 0) {
+            if (slabs.size() >= maxSlabs) {
+                return -1;
+            }
+            slabs.add(new Slab(slabs.size(), slabSize));
+            unassigned = slabs.size() - 1;
+        }
+        slab = slabs.get(unassigned);
+        slab.sizeClass = sizeClass;
+        slab.chunks = slabSize / chunkSizes[sizeClass];
+        if (slab.free == null || slab.free.length < slab.chunks) {
+            slab.free = new int[slab.chunks];
+        }
+        current[sizeClass] = slab;
+        return unassigned;
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import IceUtilInternal.Base64;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Stand-in for {@link ThumbnailVerticle} which simulates the OMERO server
+ * rather than connecting to one, for use with {@link TrafficReplay}. Every
+ * image exists and is owned by the requesting session. Retrievals block the
+ * worker for a configured latency and produce a blank JPEG of the requested
+ * size. The thumbnail cache, if enabled, is consulted and filled exactly as
+ * {@link ThumbnailVerticle} does so that cache behaviour can be measured.
+ * <b>Never</b> deploy in production.
+ * @author agent <agent@local>
+ *
+ */
+public class StubThumbnailVerticle extends AbstractVerticle {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(StubThumbnailVerticle.class);
+
+    /** Blank JPEG thumbnails keyed by longest side. */
+    private static final Map<Integer, byte[]> THUMBNAILS =
+            new ConcurrentHashMap<Integer, byte[]>();
+
+    /** Simulated latency in milliseconds of each retrieval. */
+    private long latency;
+
+    /** Additional simulated latency in milliseconds per image retrieved. */
+    private long perImageLatency;
+
+    /** Thumbnail cache shared by all workers; optional */
+    private ThumbnailCache cache;
+
+    /** Birds-eye view partition of the thumbnail cache; optional */
+    private ThumbnailCache birdsEyeViewCache;
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.AbstractVerticle#start()
+     */
+    @Override
+    public void start() {
+        log.warn("Starting stub verticle; no OMERO server will be used");
+        JsonObject stubBackendConfig =
+                config().getJsonObject("stub-backend", new JsonObject());
+        latency = stubBackendConfig.getLong("latency-ms", 50L);
+        perImageLatency =
+                stubBackendConfig.getLong("per-image-latency-ms", 5L);
+
+        JsonObject thumbnailCacheConfig =
+                config().getJsonObject("thumbnail-cache", new JsonObject());
+        if (thumbnailCacheConfig.getBoolean("enabled", false)) {
+            cache = ThumbnailCache.shared(vertx, thumbnailCacheConfig);
+            birdsEyeViewCache = ThumbnailCache.shared(
+                    vertx, ThumbnailCache.BIRDS_EYE_VIEW_PARTITION,
+                    ThumbnailCache.birdsEyeViewConfig(config()));
+        }
+
+        vertx.eventBus().<String>localConsumer(
+                ThumbnailVerticle.RENDER_THUMBNAIL_EVENT,
+                message -> renderThumbnail(message, cache));
+        vertx.eventBus().<String>localConsumer(
+                ThumbnailVerticle.RENDER_BIRDS_EYE_VIEW_EVENT,
+                message -> renderThumbnail(message, birdsEyeViewCache));
+        vertx.eventBus().<String>localConsumer(
+                ThumbnailVerticle.GET_THUMBNAILS_EVENT,
+                this::getThumbnails);
+        vertx.eventBus().<JsonObject>localConsumer(
+                ThumbnailVerticle.WARM_UP_EVENT,
+                message -> message.reply(null));
+    }
+
+    /**
+     * Render thumbnail event handler.
+     * @param message JSON encoded {@link ThumbnailCtx}.
+     * @param cache Thumbnail cache partition to use; may be
+     * <code>null</code>.
+     * @see ThumbnailVerticle
+     */
+    private void renderThumbnail(
+            Message<String> message, ThumbnailCache cache) {
+        long started = System.nanoTime();
+        ThumbnailCtx thumbnailCtx = parse(message);
+        if (thumbnailCtx == null) {
+            return;
+        }
+        String[] outcome = new String[1];
+        byte[] thumbnail = getThumbnail(
+                cache, thumbnailCtx, thumbnailCtx.imageId, outcome);
+        if (outcome[0] == null || outcome[0].equals("miss")) {
+            sleep(latency + perImageLatency);
+        }
+        message.reply(thumbnail, replyOptions(started, outcome[0]));
+    }
+
+    /**
+     * Get thumbnails event handler.
+     * @param message JSON encoded {@link ThumbnailCtx}.
+     * @see ThumbnailVerticle
+     */
+    private void getThumbnails(Message<String> message) {
+        long started = System.nanoTime();
+        ThumbnailCtx thumbnailCtx = parse(message);
+        if (thumbnailCtx == null) {
+            return;
+        }
+        Map<Long, String> thumbnailsJson = new HashMap<Long, String>();
+        String[] outcome = new String[1];
+        int misses = 0;
+        for (Long imageId : thumbnailCtx.imageIds) {
+            byte[] thumbnail =
+                    getThumbnail(cache, thumbnailCtx, imageId, outcome);
+            if (outcome[0] == null || outcome[0].equals("miss")) {
+                misses++;
+            }
+            thumbnailsJson.put(
+                imageId, "data:image/jpeg;base64," + Base64.encode(thumbnail));
+        }
+        String cacheOutcome = null;
+        if (cache != null) {
+            cacheOutcome = misses == 0 ? "hit"
+                    : misses == thumbnailCtx.imageIds.size()
+                            ? "miss" : "partial";
+        }
+        if (misses > 0) {
+            sleep(latency + perImageLatency * misses);
+        }
+        message.reply(
+                Json.encode(thumbnailsJson),
+                replyOptions(started, cacheOutcome));
+    }
+
+    /**
+     * Looks up a thumbnail in the cache, if enabled, or produces and caches
+     * one.
+     * @param cache Thumbnail cache partition to use; may be
+     * <code>null</code>.
+     * @param thumbnailCtx Context of the request.
+     * @param imageId Image identifier; used as the Pixels identifier.
+     * @param outcome Updated with the cache outcome or <code>null</code> if
+     * the cache is disabled.
+     * @return JPEG thumbnail.
+     */
+    private byte[] getThumbnail(
+            ThumbnailCache cache, ThumbnailCtx thumbnailCtx, long imageId,
+            String[] outcome) {
+        if (cache == null) {
+            return blank(thumbnailCtx.longestSide);
+        }
+        long ticket = cache.ticket();
+        ThumbnailCache.Key key = new ThumbnailCache.Key(
+                imageId, thumbnailCtx.longestSide,
+                thumbnailCtx.renderingDefId == null
+                        ? ThumbnailCache.DEFAULT_RENDERING_DEF
+                        : thumbnailCtx.renderingDefId,
+                String.valueOf(thumbnailCtx.omeroSessionKey).hashCode());
+        byte[] thumbnail = cache.get(key);
+        outcome[0] = thumbnail == null ? "miss" : "hit";
+        if (thumbnail == null) {
+            thumbnail = blank(thumbnailCtx.longestSide);
+            cache.put(key, ticket, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    private ThumbnailCtx parse(Message<String> message) {
+        try {
+            return new ObjectMapper().readValue(
+                    message.body(), ThumbnailCtx.class);
+        } catch (Exception e) {
+            log.error("Illegal tile context: {}", message.body(), e);
+            message.fail(400, "Illegal tile context");
+            return null;
+        }
+    }
+
+    private DeliveryOptions replyOptions(long started, String cacheOutcome) {
+        DeliveryOptions options = new DeliveryOptions().addHeader(
+                ThumbnailVerticle.ELAPSED_HEADER,
+                String.valueOf(TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - started)));
+        if (cacheOutcome != null) {
+            options.addHeader(ThumbnailVerticle.CACHE_HEADER, cacheOutcome);
+        }
+        return options;
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param longestSide Longest side of the thumbnail.
+     * @return Blank 4:3 JPEG thumbnail.
+     */
+    private static byte[] blank(int longestSide) {
+        return THUMBNAILS.computeIfAbsent(longestSide, size -> {
+            BufferedImage image = new BufferedImage(
+                    size, Math.max(1, size * 3 / 4),
+                    BufferedImage.TYPE_INT_RGB);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                ImageIO.write(image, "jpeg", out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
+        });
+    }
+
+}
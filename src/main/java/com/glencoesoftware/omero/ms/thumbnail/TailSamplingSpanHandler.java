@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.LoggerFactory;
+
+import brave.Span.Kind;
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import io.prometheus.client.Counter;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+/**
+ * Finished span handler implementing tail-based retention of traces which
+ * were not sampled up front. The spans of unsampled traces are held, up to a
+ * bound, until the trace's local root finishes; that is its server span or,
+ * for traces started within this process such as background refreshes, its
+ * root span. If the request was slow or failed all of its spans are
+ * reported, otherwise they are dropped. Spans finishing after their local
+ * root follow the decision made for it, and spans whose trace has no local
+ * root, for example because it was started in another instance, are dropped
+ * once they have been held for longer than a maximum age.
+ * <p>
+ * Spans are necessarily recorded locally for tail sampling, as they are for
+ * stage metrics. Dropping a trace only discards its held spans; they are
+ * converted for reporting only if the trace is retained.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class TailSamplingSpanHandler extends FinishedSpanHandler {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(TailSamplingSpanHandler.class);
+
+    private static final Counter RETAINED = Counter.build()
+            .name("omero_ms_thumbnail_tail_sampled_traces_total")
+            .help("Number of unsampled traces retained by tail sampling")
+            .labelNames("reason")
+            .register();
+
+    private static final Counter EXPIRED = Counter.build()
+            .name("omero_ms_thumbnail_tail_sampling_expired_total")
+            .help("Number of unsampled traces dropped by tail sampling "
+                  + "without a local root span finishing")
+            .register();
+
+    /** Maximum number of spans held for a single trace. */
+    private static final int MAX_SPANS_PER_TRACE = 64;
+
+    /** A finished span held until its trace's outcome is known. */
+    private static class PendingSpan {
+
+        final TraceContext context;
+
+        final MutableSpan span;
+
+        PendingSpan(TraceContext context, MutableSpan span) {
+            this.context = context;
+            this.span = span;
+        }
+    }
+
+    /** Spans held for a trace. */
+    private static class PendingTrace {
+
+        /** {@link System#nanoTime()} the first span was held. */
+        final long created;
+
+        final List<PendingSpan> spans = new ArrayList<PendingSpan>(4);
+
+        PendingTrace(long created) {
+            this.created = created;
+        }
+    }
+
+    /** Reporter to send retained spans to. */
+    private final Reporter<Span> reporter;
+
+    /** Local root duration, in microseconds, at or above which to retain. */
+    private final long latencyThreshold;
+
+    /** Time in nanoseconds spans are held for at most. */
+    private final long maxPendingAge;
+
+    /** Spans of unsampled traces keyed by trace identifier, oldest first. */
+    private final Map<Long, PendingTrace> pending;
+
+    /**
+     * Whether or not recently decided traces were retained keyed by trace
+     * identifier, for spans which finish after their local root.
+     */
+    private final Map<Long, Boolean> decided;
+
+    /**
+     * Default constructor.
+     * @param reporter Reporter to send retained spans to.
+     * @param latencyThreshold Local root span duration, in milliseconds, at
+     * or above which a trace is retained.
+     * @param maxPendingTraces Maximum number of unsampled traces to hold
+     * spans for; the oldest are dropped first.
+     * @param maxPendingAge Time in milliseconds after which the spans of an
+     * unsampled trace whose local root has not finished are dropped.
+     */
+    public TailSamplingSpanHandler(
+            Reporter<Span> reporter, long latencyThreshold,
+            int maxPendingTraces, long maxPendingAge) {
+        this.reporter = reporter;
+        this.latencyThreshold = latencyThreshold * 1000;
+        this.maxPendingAge = maxPendingAge * 1000000;
+        this.pending = new LinkedHashMap<Long, PendingTrace>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, PendingTrace> eldest) {
+                return size() > maxPendingTraces;
+            }
+        };
+        this.decided = new LinkedHashMap<Long, Boolean>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, Boolean> eldest) {
+                return size() > maxPendingTraces;
+            }
+        };
+    }
+
+    @Override
+    public boolean alwaysSampleLocal() {
+        return true;
+    }
+
+    @Override
+    public boolean handle(TraceContext context, MutableSpan span) {
+        if (Boolean.TRUE.equals(context.sampled())) {
+            // Reported by the regular pipeline
+            return true;
+        }
+        long traceId = context.traceId();
+        boolean localRoot =
+                span.kind() == Kind.SERVER || context.parentIdAsLong() == 0L;
+        if (!localRoot) {
+            Boolean retained;
+            synchronized (pending) {
+                expire(System.nanoTime());
+                retained = decided.get(traceId);
+                if (retained == null) {
+                    hold(traceId, context, span);
+                    return true;
+                }
+            }
+            if (retained) {
+                reporter.report(convert(context, span));
+            }
+            return true;
+        }
+
+        String reason = retainReason(span);
+        PendingTrace trace;
+        synchronized (pending) {
+            trace = pending.remove(traceId);
+            decided.put(traceId, reason != null);
+        }
+        if (reason == null) {
+            return true;
+        }
+        RETAINED.labels(reason).inc();
+        log.debug("Retaining unsampled trace {}: {}",
+                context.traceIdString(), reason);
+        if (trace != null) {
+            for (PendingSpan pendingSpan : trace.spans) {
+                reporter.report(
+                        convert(pendingSpan.context, pendingSpan.span));
+            }
+        }
+        reporter.report(convert(context, span));
+        return true;
+    }
+
+    /**
+     * @return Number of traces whose spans are currently held.
+     */
+    public int pendingTraces() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Holds a span until its trace's local root finishes. Must be called
+     * with the {@link #pending} lock held.
+     * @param traceId Trace identifier.
+     * @param context Trace context of the span.
+     * @param span Finished span.
+     */
+    private void hold(long traceId, TraceContext context, MutableSpan span) {
+        PendingTrace trace = pending.get(traceId);
+        if (trace == null) {
+            trace = new PendingTrace(System.nanoTime());
+            pending.put(traceId, trace);
+        }
+        if (trace.spans.size() < MAX_SPANS_PER_TRACE) {
+            trace.spans.add(new PendingSpan(context, span));
+        }
+    }
+
+    /**
+     * Drops the spans of traces held for longer than the maximum age. Must
+     * be called with the {@link #pending} lock held.
+     * @param now Current {@link System#nanoTime()}.
+     */
+    private void expire(long now) {
+        Iterator<PendingTrace> i = pending.values().iterator();
+        while (i.hasNext()) {
+            if (now - i.next().created <= maxPendingAge) {
+                // Held in insertion order so the rest are younger
+                break;
+            }
+            i.remove();
+            EXPIRED.inc();
+        }
+    }
+
+    /**
+     * Determines whether or not a trace should be retained based on its
+     * local root span.
+     * @param span Finished local root span of the trace.
+     * @return Reason the trace should be retained or <code>null</code> if it
+     * should be dropped.
+     */
+    private String retainReason(MutableSpan span) {
+        if (span.error() != null || span.tag("error") != null) {
+            return "error";
+        }
+        String statusCode = span.tag("http.status_code");
+        if (statusCode != null && statusCode.startsWith("5")) {
+            return "error";
+        }
+        if (span.finishTimestamp() - span.startTimestamp()
+                >= latencyThreshold) {
+            return "latency";
+        }
+        return null;
+    }
+
+    /**
+     * Converts a finished span to its Zipkin model for reporting.
+     * @param context Trace context of the span.
+     * @param span Finished span.
+     * @return Zipkin model of the span.
+     */
+    private Span convert(TraceContext context, MutableSpan span) {
+        Span.Builder builder = Span.newBuilder()
+                .traceId(context.traceIdHigh(), context.traceId())
+                .parentId(context.parentIdAsLong())
+                .id(context.spanId())
+                .name(span.name())
+                .timestamp(span.startTimestamp())
+                .duration(Math.max(
+                        1L, span.finishTimestamp() - span.startTimestamp()));
+        if (span.kind() != null) {
+            builder.kind(Span.Kind.valueOf(span.kind().name()));
+        }
+        if (span.shared()) {
+            builder.shared(true);
+        }
+        Endpoint.Builder local = Endpoint.newBuilder()
+                .serviceName(span.localServiceName());
+        if (span.localIp() != null) {
+            local.parseIp(span.localIp());
+        }
+        builder.localEndpoint(local.build());
+        if (span.remoteServiceName() != null || span.remoteIp() != null) {
+            Endpoint.Builder remote = Endpoint.newBuilder()
+                    .serviceName(span.remoteServiceName())
+                    .port(span.remotePort());
+            if (span.remoteIp() != null) {
+                remote.parseIp(span.remoteIp());
+            }
+            builder.remoteEndpoint(remote.build());
+        }
+        span.forEachTag(
+                (Span.Builder b, String key, String value) ->
+                        b.putTag(key, value),
+                builder);
+        span.forEachAnnotation(
+                (Span.Builder b, long timestamp, String value) ->
+                        b.addAnnotation(timestamp, value),
+                builder);
+        Throwable error = span.error();
+        if (error != null && span.tag("error") == null) {
+            String message = error.getMessage();
+            builder.putTag("error", message != null
+                    ? message : error.getClass().getSimpleName());
+        }
+        return builder.build();
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.LoggerFactory;
+
+import omero.ServerError;
+import omero.model.Image;
+
+import brave.ScopedSpan;
+import brave.Tracing;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * OMERO session aware handler whose event handler method conforms to the
+ * {@link OmeroRequestHandler} interface. Composes the thumbnails of a set of
+ * images, or of the images of a container, into a single JPEG atlas (sprite
+ * sheet) which is placed in an {@link AtlasStore} keyed by content hash.
+ * This class is expected to be used as a lambda handler.
+ * @author agent <agent@local>
+ *
+ */
+public class ThumbnailAtlasRequestHandler extends ThumbnailsRequestHandler {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(ThumbnailAtlasRequestHandler.class);
+
+    /** {@link omero.model.Dataset} identifier; may be <code>null</code>. */
+    private final Long datasetId;
+
+    /** {@link omero.model.Plate} identifier; may be <code>null</code>. */
+    private final Long plateId;
+
+    /** Store composed atlases are placed in. */
+    private final AtlasStore atlasStore;
+
+    /** Maximum number of images in an atlas. */
+    private final int maxImages;
+
+    /** JPEG compression quality of the atlas between 0 and 1. */
+    private final float quality;
+
+    /**
+     * Default constructor.
+     * @param longestSide Size to confine or upscale the longest side of each
+     * thumbnail to.
+     * @param imageIds {@link Image} identifiers to compose an atlas of. Used
+     * if neither <code>datasetId</code> nor <code>plateId</code> is
+     * specified.
+     * @param datasetId {@link omero.model.Dataset} whose images to compose
+     * an atlas of; may be <code>null</code>.
+     * @param plateId {@link omero.model.Plate} whose images to compose an
+     * atlas of; may be <code>null</code>.
+     * @param cache Thumbnail cache to use; may be <code>null</code>.
+     * @param atlasStore Store composed atlases are placed in.
+     * @param maxImages Maximum number of images in an atlas; further images
+     * are omitted.
+     * @param quality JPEG compression quality of the atlas between 0 and 1.
+     */
+    public ThumbnailAtlasRequestHandler(
+            int longestSide, List<Long> imageIds, Long datasetId,
+            Long plateId, ThumbnailCache cache, AtlasStore atlasStore,
+            int maxImages, float quality) {
+        super(longestSide, imageIds, cache);
+        this.datasetId = datasetId;
+        this.plateId = plateId;
+        this.atlasStore = atlasStore;
+        this.maxImages = maxImages;
+        this.quality = quality;
+    }
+
+    /**
+     * Composes an atlas, if an identical one is not already stored, and
+     * retrieves its index.
+     * @return JSON index of the atlas or <code>null</code> if none of the
+     * images could be found. The index contains the content
+     * <code>hash</code>, <code>width</code> and <code>height</code> of the
+     * atlas, whether or not the image list was <code>truncated</code> and
+     * the <code>[x, y, width, height]</code> of each thumbnail keyed by
+     * {@link Image} identifier in <code>images</code>. Other failures are
+     * propagated so that they are not mistaken for missing images.
+     */
+    public JsonObject renderAtlas(omero.client client) {
+        try {
+            List<Long> ids = imageIds;
+            if (datasetId != null) {
+                ids = getImageIds(client, DATASET_IMAGE_IDS, datasetId);
+            } else if (plateId != null) {
+                ids = getImageIds(client, PLATE_IMAGE_IDS, plateId);
+            }
+            boolean truncated = ids.size() > maxImages;
+            if (truncated) {
+                ids = ids.subList(0, maxImages);
+            }
+            if (ids.isEmpty()) {
+                log.debug("No Images to compose an atlas of");
+                return null;
+            }
+            List<Image> images = getImages(client, ids);
+            if (images.size() == 0) {
+                log.debug("Cannot find any Images with Ids {}", ids);
+                return null;
+            }
+            Map<Long, byte[]> thumbnails =
+                    getThumbnails(client, images, longestSide);
+            return composeAtlas(ids, thumbnails).put("truncated", truncated);
+        } catch (ServerError | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Lays out thumbnails in a square grid in request order and, unless an
+     * atlas with identical content is already stored, composes and stores
+     * the atlas.
+     * @param ids Requested {@link Image} identifiers in order.
+     * @param thumbnails JPEG thumbnails keyed by {@link Image} identifier.
+     * @return JSON index of the atlas.
+     * @throws IOException If there was an error decoding a thumbnail or
+     * encoding the atlas.
+     */
+    private JsonObject composeAtlas(List<Long> ids, Map<Long, byte[]> thumbnails)
+            throws IOException {
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("compose_atlas");
+        try {
+            List<Long> present = new ArrayList<Long>();
+            List<int[]> sizes = new ArrayList<int[]>();
+            int tileSize = 1;
+            for (Long id : new LinkedHashSet<Long>(ids)) {
+                byte[] thumbnail = thumbnails.get(id);
+                if (thumbnail == null) {
+                    continue;
+                }
+                int[] size = readSize(thumbnail);
+                tileSize = Math.max(tileSize, Math.max(size[0], size[1]));
+                present.add(id);
+                sizes.add(size);
+            }
+            int columns = (int) Math.ceil(Math.sqrt(present.size()));
+            int rows = (present.size() + columns - 1) / Math.max(1, columns);
+            int width = Math.max(1, columns * tileSize);
+            int height = Math.max(1, rows * tileSize);
+
+            JsonObject tiles = new JsonObject();
+            MessageDigest digest = newDigest();
+            digest.update(ByteBuffer.allocate(8)
+                    .putInt(longestSide).putFloat(quality).array());
+            for (int i = 0; i < present.size(); i++) {
+                long id = present.get(i);
+                int[] size = sizes.get(i);
+                tiles.put(String.valueOf(id), new JsonArray()
+                        .add((i % columns) * tileSize)
+                        .add((i / columns) * tileSize)
+                        .add(size[0])
+                        .add(size[1]));
+                byte[] thumbnail = thumbnails.get(id);
+                digest.update(ByteBuffer.allocate(12)
+                        .putLong(id).putInt(thumbnail.length).array());
+                digest.update(thumbnail);
+            }
+            String hash = toHex(digest.digest());
+
+            if (!atlasStore.contains(hash)) {
+                BufferedImage atlas = new BufferedImage(
+                        width, height, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = atlas.createGraphics();
+                try {
+                    g.setColor(Color.WHITE);
+                    g.fillRect(0, 0, width, height);
+                    for (int i = 0; i < present.size(); i++) {
+                        BufferedImage tile = ImageIO.read(
+                                new ByteArrayInputStream(
+                                        thumbnails.get(present.get(i))));
+                        if (tile == null) {
+                            throw new IOException("Unsupported thumbnail");
+                        }
+                        g.drawImage(tile,
+                                (i % columns) * tileSize,
+                                (i / columns) * tileSize, null);
+                    }
+                } finally {
+                    g.dispose();
+                }
+                atlasStore.put(hash, writeJpeg(atlas));
+            }
+            return new JsonObject()
+                    .put("hash", hash)
+                    .put("width", width)
+                    .put("height", height)
+                    .put("images", tiles);
+        } finally {
+            span.finish();
+        }
+    }
+
+    /**
+     * Reads the dimensions of a JPEG from its header without decoding it.
+     * @param jpeg JPEG to read.
+     * @return <code>[width, height]</code>
+     * @throws IOException If the JPEG cannot be read.
+     */
+    private int[] readSize(byte[] jpeg) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(
+                new ByteArrayInputStream(jpeg))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported thumbnail");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Encodes an image as a JPEG at the configured quality.
+     * @param image Image to encode.
+     * @return JPEG byte array.
+     * @throws IOException If there was an error encoding.
+     */
+    private byte[] writeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer =
+                ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+}
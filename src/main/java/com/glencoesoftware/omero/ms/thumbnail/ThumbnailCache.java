@@ -0,0 +1,721 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * Size bounded, least recently used cache of rendered JPEG thumbnails shared
+ * by all the worker verticles of a microservice instance. Entries are keyed
+ * by {@link Key}.
+ * <p>
+ * Entries have a soft and a hard time to live. Once past the soft time to
+ * live an entry is still served but a single caller may
+ * {@link #claimRefresh(Key)} it in order to refresh it in the background.
+ * Once past the hard time to live an entry is no longer served.
+ * </p>
+ * <p>
+ * Invalidation is versioned. A {@link #ticket()} must be taken before a
+ * thumbnail is retrieved from the server and presented when it is
+ * {@link #put(Key, long, byte[])} into the cache. Fills whose ticket predates
+ * an invalidation of the same {@link omero.model.Pixels} are discarded so
+ * that requests in flight during an invalidation cannot repopulate the cache
+ * with stale thumbnails.
+ * </p>
+ * <p>
+ * Thumbnails may be kept off-heap in a {@link SlabStorage} so that a large
+ * cache does not lengthen garbage collection pauses. Entries are indexed by
+ * a {@link CacheIndex} of primitive arrays so that, off-heap, cached entries
+ * add no objects to the heap at all. Off-heap thumbnails are copied onto the
+ * heap by {@link #get(Key)}; a view of the storage cannot be handed out as
+ * its chunk may be reused as soon as the entry is evicted.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class ThumbnailCache implements Shareable {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(ThumbnailCache.class);
+
+    private static final Counter REQUESTS = Counter.build()
+            .name("omero_ms_thumbnail_cache_requests_total")
+            .help("Number of thumbnail cache lookups by outcome")
+            .labelNames("partition", "outcome")
+            .register();
+
+    private static final Counter REFRESHES = Counter.build()
+            .name("omero_ms_thumbnail_cache_refreshes_total")
+            .help("Number of background refreshes of stale cache entries")
+            .labelNames("partition")
+            .register();
+
+    private static final Counter COMPANION_FILLS = Counter.build()
+            .name("omero_ms_thumbnail_cache_companion_fills_total")
+            .help("Number of companion size thumbnails cached on a miss")
+            .labelNames("partition")
+            .register();
+
+    private static final Counter REJECTED_FILLS = Counter.build()
+            .name("omero_ms_thumbnail_cache_rejected_fills_total")
+            .help("Number of cache fills discarded due to an invalidation")
+            .labelNames("partition")
+            .register();
+
+    private static final Counter INVALIDATED = Counter.build()
+            .name("omero_ms_thumbnail_cache_invalidated_total")
+            .help("Number of cache entries removed by invalidations")
+            .labelNames("partition")
+            .register();
+
+    private static final Gauge SIZE = Gauge.build()
+            .name("omero_ms_thumbnail_cache_size")
+            .help("Number of entries in the thumbnail cache")
+            .labelNames("partition")
+            .register();
+
+    private static final Gauge SIZE_BYTES = Gauge.build()
+            .name("omero_ms_thumbnail_cache_size_bytes")
+            .help("Number of thumbnail bytes in the thumbnail cache")
+            .labelNames("partition")
+            .register();
+
+    private static final Gauge OFF_HEAP_BYTES = Gauge.build()
+            .name("omero_ms_thumbnail_cache_off_heap_bytes")
+            .help("Number of bytes of direct memory allocated to the "
+                  + "thumbnail cache")
+            .labelNames("partition")
+            .register();
+
+    private static final Counter OFF_HEAP_EVICTIONS = Counter.build()
+            .name("omero_ms_thumbnail_cache_off_heap_evictions_total")
+            .help("Number of entries evicted to free direct memory for a "
+                  + "thumbnail by reason")
+            .labelNames("partition", "reason")
+            .register();
+
+    /**
+     * Maximum number of entries of other size classes evicted by a single
+     * put in order to release a slab for reassignment.
+     */
+    private static final int MAX_EVICTIONS_PER_PUT = 64;
+
+    /** Name of the Vert.x local map the shared instance is kept in. */
+    public static final String SHARED_MAP_NAME = "omero.thumbnail_cache";
+
+    /** Name of the partition of thumbnails served by the main routes. */
+    public static final String DEFAULT_PARTITION = "default";
+
+    /** Name of the partition of birds-eye views. */
+    public static final String BIRDS_EYE_VIEW_PARTITION = "birds_eye_view";
+
+    /** Marker for thumbnails rendered with the default rendering settings. */
+    public static final long DEFAULT_RENDERING_DEF = -1L;
+
+    /** Cache key. */
+    public static final class Key {
+
+        /** {@link omero.model.Pixels} identifier. */
+        final long pixelsId;
+
+        /** Size of the longest side of the thumbnail. */
+        final int longestSide;
+
+        /**
+         * {@link omero.model.RenderingDef} identifier or
+         * {@link ThumbnailCache#DEFAULT_RENDERING_DEF}.
+         */
+        final long renderingDefId;
+
+        /**
+         * {@link omero.model.Experimenter} identifier of the requesting user
+         * as default rendering settings are per user.
+         */
+        final long userId;
+
+        /**
+         * Encoding variant of the thumbnail or <code>0</code> if it is as
+         * retrieved from the server.
+         * @see JpegTranscoder#variant()
+         */
+        final int variant;
+
+        /**
+         * Default constructor.
+         * @param pixelsId {@link omero.model.Pixels} identifier.
+         * @param longestSide Size of the longest side of the thumbnail.
+         * @param renderingDefId {@link omero.model.RenderingDef} identifier
+         * or {@link ThumbnailCache#DEFAULT_RENDERING_DEF}.
+         * @param userId {@link omero.model.Experimenter} identifier of the
+         * requesting user.
+         */
+        public Key(
+                long pixelsId, int longestSide, long renderingDefId,
+                long userId) {
+            this(pixelsId, longestSide, renderingDefId, userId, 0);
+        }
+
+        private Key(
+                long pixelsId, int longestSide, long renderingDefId,
+                long userId, int variant) {
+            this.pixelsId = pixelsId;
+            this.longestSide = longestSide;
+            this.renderingDefId = renderingDefId;
+            this.userId = userId;
+            this.variant = variant;
+        }
+
+        /**
+         * @param variant Encoding variant.
+         * @return Key of the same thumbnail in another encoding variant.
+         * @see JpegTranscoder#variant()
+         */
+        public Key withVariant(int variant) {
+            return new Key(
+                    pixelsId, longestSide, renderingDefId, userId, variant);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return pixelsId == other.pixelsId
+                    && longestSide == other.longestSide
+                    && renderingDefId == other.renderingDefId
+                    && userId == other.userId
+                    && variant == other.variant;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Long.hashCode(pixelsId);
+            result = 31 * result + longestSide;
+            result = 31 * result + Long.hashCode(renderingDefId);
+            result = 31 * result + Long.hashCode(userId);
+            result = 31 * result + variant;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "Pixels:" + pixelsId + " longest side " + longestSide
+                    + " RenderingDef:" + renderingDefId
+                    + " Experimenter:" + userId
+                    + (variant == 0 ? "" : " variant " + variant);
+        }
+    }
+
+    /** Entries in access order, least recently used first. */
+    private final CacheIndex entries = new CacheIndex();
+
+    /**
+     * Invalidation clock values keyed by {@link omero.model.Pixels}
+     * identifier, in invalidation order. Each value is the clock value of
+     * the invalidation and the time in milliseconds it took place.
+     */
+    private final LinkedHashMap<Long, long[]> invalidations =
+            new LinkedHashMap<Long, long[]>();
+
+    /** Session key to {@link omero.model.Experimenter} identifier. */
+    private final LinkedHashMap<String, Long> userIds;
+
+    /** Name of the partition of thumbnails this cache holds. */
+    private final String partition;
+
+    /** Maximum number of thumbnail bytes held. */
+    private final long maxBytes;
+
+    /** Off-heap storage of thumbnails or <code>null</code> if on-heap. */
+    private final SlabStorage storage;
+
+    /** Sizes also retrieved and cached when a thumbnail is retrieved. */
+    private final List<Integer> companionSizes;
+
+    /** Time in milliseconds after which an entry is refreshed. */
+    private final long softTtl;
+
+    /** Time in milliseconds after which an entry is no longer served. */
+    private final long hardTtl;
+
+    /**
+     * Time in milliseconds invalidations of specific
+     * {@link omero.model.Pixels} are remembered for. After this all fills
+     * which started before the invalidation are discarded.
+     */
+    private final long invalidationHorizon;
+
+    /** Invalidation clock; incremented by each invalidation. */
+    private long clock;
+
+    /** Tickets below this value predate a forgotten invalidation. */
+    private long floor;
+
+    /** Number of thumbnail bytes held. */
+    private long bytes;
+
+    /**
+     * Default constructor.
+     * @param partition Name of the partition of thumbnails held, used to
+     * label metrics.
+     * @param maxBytes Maximum number of thumbnail bytes held; the least
+     * recently used entries are evicted first.
+     * @param softTtl Time in milliseconds after which an entry is refreshed
+     * in the background.
+     * @param hardTtl Time in milliseconds after which an entry is no longer
+     * served.
+     * @param invalidationHorizon Time in milliseconds invalidations of
+     * specific {@link omero.model.Pixels} are remembered for. Should exceed
+     * the time it takes to retrieve a thumbnail from the server. Also the
+     * time after which an unfinished background refresh may be reclaimed.
+     * @param maxSessions Maximum number of OMERO session to user mappings
+     * held.
+     * @param companionSizes Longest side sizes also retrieved, using the
+     * same thumbnail store, and cached whenever a thumbnail is retrieved.
+     * @param storage Off-heap storage of thumbnails or <code>null</code> to
+     * keep them on-heap. Entries are evicted when it is full as well as
+     * when <code>maxBytes</code> is exceeded.
+     */
+    public ThumbnailCache(
+            String partition, long maxBytes, long softTtl, long hardTtl,
+            long invalidationHorizon, int maxSessions,
+            List<Integer> companionSizes, SlabStorage storage) {
+        this.partition = partition;
+        this.storage = storage;
+        this.maxBytes = maxBytes;
+        this.companionSizes = Collections.unmodifiableList(
+                new ArrayList<Integer>(companionSizes));
+        this.softTtl = Math.min(softTtl, hardTtl);
+        this.hardTtl = hardTtl;
+        this.invalidationHorizon = invalidationHorizon;
+        this.userIds = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> e) {
+                return size() > maxSessions;
+            }
+        };
+    }
+
+    /**
+     * Retrieves the thumbnail cache shared by all verticles of a Vert.x
+     * instance, creating it if required.
+     * @param vertx Vert.x instance.
+     * @param thumbnailCacheConfig <code>thumbnail-cache</code> configuration
+     * block used if the cache is created.
+     * @return See above.
+     */
+    public static ThumbnailCache shared(
+            Vertx vertx, JsonObject thumbnailCacheConfig) {
+        return shared(vertx, DEFAULT_PARTITION, thumbnailCacheConfig);
+    }
+
+    /**
+     * Retrieves a partition of the thumbnail cache shared by all verticles
+     * of a Vert.x instance, creating it if required. Partitions are sized
+     * and expire independently so that one class of thumbnails cannot evict
+     * another.
+     * @param vertx Vert.x instance.
+     * @param partition Name of the partition.
+     * @param thumbnailCacheConfig Configuration block of the partition used
+     * if it is created.
+     * @return See above.
+     */
+    public static ThumbnailCache shared(
+            Vertx vertx, String partition, JsonObject thumbnailCacheConfig) {
+        LocalMap<String, ThumbnailCache> caches =
+                vertx.sharedData().getLocalMap(SHARED_MAP_NAME);
+        long hardTtl = thumbnailCacheConfig.getLong("ttl-ms", 86400000L);
+        List<Integer> companionSizes = new ArrayList<Integer>();
+        JsonArray companionSizesJson = thumbnailCacheConfig.getJsonArray(
+                "companion-sizes", new JsonArray());
+        for (int i = 0; i < companionSizesJson.size(); i++) {
+            companionSizes.add(companionSizesJson.getInteger(i));
+        }
+        long maxBytes = thumbnailCacheConfig.getLong("max-bytes", 268435456L);
+        SlabStorage storage = null;
+        if ("off-heap".equals(
+                thumbnailCacheConfig.getString("storage", "heap"))) {
+            storage = new SlabStorage(
+                    thumbnailCacheConfig.getInteger("slab-bytes", 1048576),
+                    maxBytes);
+        }
+        ThumbnailCache created = new ThumbnailCache(
+                partition,
+                maxBytes,
+                thumbnailCacheConfig.getLong("soft-ttl-ms", hardTtl),
+                hardTtl,
+                thumbnailCacheConfig.getLong(
+                        "invalidation-horizon-ms", 60000L),
+                thumbnailCacheConfig.getInteger("max-sessions", 10000),
+                companionSizes, storage);
+        return Optional.ofNullable(caches.putIfAbsent(partition, created))
+                .orElse(created);
+    }
+
+    /**
+     * Resolves the configuration of the birds-eye view partition. Settings
+     * not given in the <code>cache</code> block of the
+     * <code>birds-eye-view</code> configuration block are inherited from the
+     * <code>thumbnail-cache</code> configuration block except for the byte
+     * budget, which defaults to 32 MiB, and the companion sizes, which
+     * default to none.
+     * @param config Verticle configuration.
+     * @return See above.
+     */
+    public static JsonObject birdsEyeViewConfig(JsonObject config) {
+        JsonObject partitionConfig = config
+                .getJsonObject("thumbnail-cache", new JsonObject()).copy();
+        partitionConfig.remove("companion-sizes");
+        partitionConfig.put("max-bytes", 33554432L);
+        return partitionConfig.mergeIn(config
+                .getJsonObject("birds-eye-view", new JsonObject())
+                .getJsonObject("cache", new JsonObject()));
+    }
+
+    /**
+     * Takes a ticket to be presented when filling the cache with a thumbnail
+     * retrieved from the server. Must be taken <b>before</b> the retrieval.
+     * @return See above.
+     */
+    public synchronized long ticket() {
+        return clock;
+    }
+
+    /**
+     * Looks up a cached thumbnail.
+     * @param key Key of the thumbnail.
+     * @return JPEG thumbnail, which may be stale, or <code>null</code> if
+     * there is no thumbnail cached within its hard time to live.
+     */
+    public synchronized byte[] get(Key key) {
+        int slot = entries.find(key);
+        if (slot == CacheIndex.NONE) {
+            REQUESTS.labels(partition, "miss").inc();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (entries.hardExpires(slot) < now) {
+            remove(slot);
+            REQUESTS.labels(partition, "expired").inc();
+            return null;
+        }
+        entries.touch(slot);
+        REQUESTS.labels(partition,
+                entries.softExpires(slot) < now ? "stale" : "hit").inc();
+        return read(slot);
+    }
+
+    /**
+     * @return Longest side sizes also retrieved and cached whenever a
+     * thumbnail is retrieved.
+     */
+    public List<Integer> getCompanionSizes() {
+        return companionSizes;
+    }
+
+    /**
+     * Checks whether a thumbnail is cached and not yet stale. Unlike
+     * {@link #get(Key)} neither the eviction order nor the request metrics
+     * are affected.
+     * @param key Key of the thumbnail.
+     * @return See above.
+     */
+    public synchronized boolean isFresh(Key key) {
+        int slot = entries.find(key);
+        return slot != CacheIndex.NONE
+                && entries.softExpires(slot) >= System.currentTimeMillis();
+    }
+
+    /**
+     * Caches a companion size thumbnail retrieved alongside another.
+     * @param key Key of the thumbnail.
+     * @param ticket Ticket taken before the thumbnails were retrieved.
+     * @param thumbnail JPEG thumbnail.
+     * @see #put(Key, long, byte[])
+     */
+    public void putCompanion(Key key, long ticket, byte[] thumbnail) {
+        if (put(key, ticket, thumbnail)) {
+            COMPANION_FILLS.labels(partition).inc();
+        }
+    }
+
+    /**
+     * Claims the background refresh of a stale entry. At most one refresh
+     * of an entry is claimed at a time; a claim lapses when the entry is
+     * refilled or after the invalidation horizon.
+     * @param key Key of the thumbnail.
+     * @return <code>true</code> if the caller should refresh the entry,
+     * otherwise <code>false</code>.
+     */
+    public synchronized boolean claimRefresh(Key key) {
+        int slot = entries.find(key);
+        long now = System.currentTimeMillis();
+        if (slot == CacheIndex.NONE || entries.softExpires(slot) >= now
+                || entries.refreshClaimed(slot) > now - invalidationHorizon) {
+            return false;
+        }
+        entries.refreshClaimed(slot, now);
+        REFRESHES.labels(partition).inc();
+        return true;
+    }
+
+    /**
+     * Caches a thumbnail retrieved from the server unless the
+     * {@link omero.model.Pixels} it is for has been invalidated since the
+     * ticket was taken.
+     * @param key Key of the thumbnail.
+     * @param ticket Ticket taken before the thumbnail was retrieved.
+     * @param thumbnail JPEG thumbnail.
+     * @return <code>true</code> if the thumbnail was cached, otherwise
+     * <code>false</code>.
+     */
+    public synchronized boolean put(Key key, long ticket, byte[] thumbnail) {
+        pruneInvalidations();
+        long[] invalidation = invalidations.get(key.pixelsId);
+        if (ticket < floor
+                || (invalidation != null && invalidation[0] > ticket)) {
+            log.debug("Discarding fill of {} started before invalidation",
+                    key);
+            REJECTED_FILLS.labels(partition).inc();
+            return false;
+        }
+        if (thumbnail.length > maxBytes) {
+            return false;
+        }
+        int existing = entries.find(key);
+        if (existing != CacheIndex.NONE) {
+            remove(existing);
+        }
+        long handle = -1;
+        if (storage != null) {
+            handle = putOffHeap(thumbnail);
+            if (handle < 0) {
+                updateSize();
+                return false;
+            }
+        }
+        long now = System.currentTimeMillis();
+        entries.add(
+                key, storage == null ? thumbnail : null, handle,
+                thumbnail.length, now + softTtl, now + hardTtl);
+        bytes += thumbnail.length;
+        while (bytes > maxBytes && entries.eldest() != CacheIndex.NONE) {
+            evict(entries.eldest());
+        }
+        updateSize();
+        return true;
+    }
+
+    /**
+     * Removes the cached thumbnails, of all sizes, rendering settings and
+     * users, of a set of {@link omero.model.Pixels} and discards any fills
+     * for them which are in flight.
+     * @param pixelsIds {@link omero.model.Pixels} identifiers to invalidate.
+     * @return Number of entries removed.
+     */
+    public synchronized int invalidate(Collection<Long> pixelsIds) {
+        long[] ids = pixelsIds.stream()
+                .mapToLong(Long::longValue).sorted().distinct().toArray();
+        if (ids.length == 0) {
+            return 0;
+        }
+        clock++;
+        long now = System.currentTimeMillis();
+        for (long pixelsId : ids) {
+            // Re-insert so that the record moves to the end of the prune order
+            invalidations.remove(pixelsId);
+            invalidations.put(pixelsId, new long[] { clock, now });
+        }
+        pruneInvalidations();
+        int removed = 0;
+        for (int slot = entries.eldest(); slot != CacheIndex.NONE; ) {
+            int next = entries.newer(slot);
+            if (Arrays.binarySearch(ids, entries.pixelsId(slot)) >= 0) {
+                evict(slot);
+                removed++;
+            }
+            slot = next;
+        }
+        log.debug("Invalidated {} entries of {} Pixels", removed, ids.length);
+        INVALIDATED.labels(partition).inc(removed);
+        updateSize();
+        return removed;
+    }
+
+    /**
+     * Removes all cached thumbnails and discards all fills which are in
+     * flight.
+     * @return Number of entries removed.
+     */
+    public synchronized int invalidate() {
+        int removed = entries.size();
+        clock++;
+        floor = clock;
+        invalidations.clear();
+        entries.clear();
+        if (storage != null) {
+            storage.clear();
+        }
+        bytes = 0;
+        log.debug("Invalidated all {} entries", removed);
+        INVALIDATED.labels(partition).inc(removed);
+        updateSize();
+        return removed;
+    }
+
+    /**
+     * Looks up the {@link omero.model.Experimenter} an OMERO session belongs
+     * to.
+     * @param omeroSessionKey OMERO session key.
+     * @return {@link omero.model.Experimenter} identifier or
+     * <code>null</code> if the session is not known.
+     */
+    public synchronized Long getUserId(String omeroSessionKey) {
+        return userIds.get(omeroSessionKey);
+    }
+
+    /**
+     * Records the {@link omero.model.Experimenter} an OMERO session belongs
+     * to.
+     * @param omeroSessionKey OMERO session key.
+     * @param userId {@link omero.model.Experimenter} identifier.
+     */
+    public synchronized void putUserId(String omeroSessionKey, long userId) {
+        userIds.put(omeroSessionKey, userId);
+    }
+
+    /**
+     * Forgets invalidations older than the invalidation horizon, raising the
+     * ticket floor so that fills which started before them are still
+     * discarded.
+     */
+    private void pruneInvalidations() {
+        long horizon = System.currentTimeMillis() - invalidationHorizon;
+        Iterator<long[]> i = invalidations.values().iterator();
+        while (i.hasNext()) {
+            long[] invalidation = i.next();
+            if (invalidation[1] >= horizon) {
+                break;
+            }
+            floor = Math.max(floor, invalidation[0]);
+            i.remove();
+        }
+    }
+
+    private void remove(int slot) {
+        evict(slot);
+        updateSize();
+    }
+
+    /**
+     * Stores a thumbnail off-heap, evicting to free a chunk of its size class
+     * if required. The least recently used entry of the same size class is
+     * evicted first as freeing it is sufficient. Failing that, with no entry
+     * of the size class cached, least recently used entries of any size class
+     * are evicted, at most {@link #MAX_EVICTIONS_PER_PUT}, until a slab is
+     * released for reassignment.
+     * @param thumbnail JPEG thumbnail.
+     * @return Handle of the stored thumbnail or -1 if it could not be stored.
+     */
+    private long putOffHeap(byte[] thumbnail) {
+        long handle = storage.put(thumbnail);
+        if (handle >= 0) {
+            return handle;
+        }
+        int sizeClass = storage.sizeClass(thumbnail.length);
+        if (sizeClass < 0) {
+            return -1;
+        }
+        for (int slot = entries.eldest(); slot != CacheIndex.NONE;
+                slot = entries.newer(slot)) {
+            if (storage.sizeClassOf(entries.handle(slot)) == sizeClass) {
+                evict(slot);
+                OFF_HEAP_EVICTIONS.labels(partition, "size_class").inc();
+                return storage.put(thumbnail);
+            }
+        }
+        for (int evicted = 0; evicted < MAX_EVICTIONS_PER_PUT
+                && entries.eldest() != CacheIndex.NONE; evicted++) {
+            evict(entries.eldest());
+            OFF_HEAP_EVICTIONS.labels(partition, "reassign").inc();
+            handle = storage.put(thumbnail);
+            if (handle >= 0) {
+                return handle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param slot Slot of the entry to read.
+     * @return JPEG thumbnail of the entry; copied onto the heap if it is
+     * stored off-heap.
+     */
+    private byte[] read(int slot) {
+        byte[] thumbnail = entries.thumbnail(slot);
+        return thumbnail != null ? thumbnail
+                : storage.get(entries.handle(slot), entries.length(slot));
+    }
+
+    /**
+     * Removes an entry, freeing its off-heap storage.
+     * @param slot Slot of the entry.
+     */
+    private void evict(int slot) {
+        bytes -= entries.length(slot);
+        long handle = entries.handle(slot);
+        if (handle >= 0) {
+            storage.free(handle);
+        }
+        entries.remove(slot);
+    }
+
+    private void updateSize() {
+        SIZE.labels(partition).set(entries.size());
+        SIZE_BYTES.labels(partition).set(bytes);
+        if (storage != null) {
+            OFF_HEAP_BYTES.labels(partition).set(storage.allocatedBytes());
+        }
+    }
+
+}
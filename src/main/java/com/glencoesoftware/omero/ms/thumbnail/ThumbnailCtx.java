@@ -1,5 +1,6 @@
 package com.glencoesoftware.omero.ms.thumbnail;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -28,6 +29,18 @@ public class ThumbnailCtx extends OmeroRequestCtx {
     /** Rendering Definition ID */
     public Long renderingDefId;
 
+    /** Dataset ID */
+    public Long datasetId;
+
+    /** Plate ID */
+    public Long plateId;
+
+    /** JPEG quality, between 1 and 100, to re-encode thumbnails at */
+    public Integer quality;
+
+    /** Image IDs of the page learned to follow, for prefetches */
+    public List<Long> nextImageIds;
+
     /**
      * Constructor for jackson to decode the object from string
      */
@@ -57,5 +70,38 @@ public class ThumbnailCtx extends OmeroRequestCtx {
         this.renderingDefId = Optional.ofNullable(params.get("rdefId"))
         .map(Long::parseLong).orElse(null);
 
+        this.datasetId = Optional.ofNullable(params.get("datasetId"))
+                .map(Long::parseLong)
+                .orElse(null);
+
+        this.plateId = Optional.ofNullable(params.get("plateId"))
+                .map(Long::parseLong)
+                .orElse(null);
+
+        this.quality = Optional.ofNullable(params.get("quality"))
+                .map(Integer::parseInt)
+                .orElse(null);
+        if (quality != null && (quality < 1 || quality > 100)) {
+            throw new IllegalArgumentException(
+                    "'quality' must be between 1 and 100");
+        }
+
+    }
+
+    /**
+     * Copy constructor for a subset of the images of an existing context.
+     * @param other Context to copy.
+     * @param imageIds Image IDs of the new context.
+     */
+    ThumbnailCtx(ThumbnailCtx other, List<Long> imageIds) {
+        this.omeroSessionKey = other.omeroSessionKey;
+        this.traceContext = other.traceContext;
+        this.longestSide = other.longestSide;
+        this.imageId = other.imageId;
+        this.renderingDefId = other.renderingDefId;
+        this.datasetId = other.datasetId;
+        this.plateId = other.plateId;
+        this.quality = other.quality;
+        this.imageIds = new ArrayList<Long>(imageIds);
     }
 }
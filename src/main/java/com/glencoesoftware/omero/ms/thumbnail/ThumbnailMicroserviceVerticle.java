@@ -18,9 +18,16 @@
 
 package com.glencoesoftware.omero.ms.thumbnail;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
@@ -38,11 +45,14 @@ import com.glencoesoftware.omero.ms.core.PrometheusSpanHandler;
 import brave.ScopedSpan;
 import brave.Tracing;
 import brave.http.HttpTracing;
+import brave.sampler.RateLimitingSampler;
 import brave.sampler.Sampler;
 import io.vertx.config.ConfigStoreOptions;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.MultiMap;
 import io.vertx.core.Promise;
@@ -51,6 +61,7 @@ import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
@@ -85,6 +96,18 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
     private static final org.slf4j.Logger log =
         LoggerFactory.getLogger(ThumbnailMicroserviceVerticle.class);
 
+    public static final String INVALIDATE_NEGATIVE_CACHE_EVENT =
+            "omero.invalidate_negative_cache";
+
+    /** Routing context key of the time a request was first dispatched */
+    private static final String DISPATCHED_KEY = "omero.ms.dispatched";
+
+    /** Routing context key of the time spent by the worker(s) */
+    private static final String WORKER_MILLIS_KEY = "omero.ms.worker_millis";
+
+    /** Routing context key of the cache outcome of a request */
+    private static final String CACHE_KEY = "omero.ms.cache";
+
     /** OMERO.web session store */
     private OmeroWebSessionStore sessionStore;
 
@@ -97,6 +120,9 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
     /** DeliveryOptions (including event bus send timeout) */
     private DeliveryOptions deliveryOptions;
 
+    /** Time the verticle was started, for startup instrumentation */
+    private long startTime;
+
     /** Default number of workers to be assigned to the worker verticle */
     private int DEFAULT_WORKER_POOL_SIZE;
 
@@ -109,6 +135,114 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
 
     private Tracing tracing;
 
+    /** Per-user fair queue in front of the worker verticles; optional */
+    private FairRequestScheduler scheduler;
+
+    /**
+     * Per-user fair queue in front of the worker verticles for birds-eye
+     * views; always enabled so that they never queue in front of thumbnails
+     */
+    private FairRequestScheduler birdsEyeViewScheduler;
+
+    /** Longest side of birds-eye views if none is requested */
+    private int birdsEyeViewLongestSide;
+
+    /**
+     * Maximum number of images per <code>get_thumbnails</code> worker request;
+     * larger requests are split into chunks processed concurrently
+     */
+    private int chunkSize;
+
+    /** Whether or not to return the thumbnails of successful chunks only */
+    private boolean partialResults;
+
+    /** Cache of missing and forbidden image outcomes; optional */
+    private NegativeResultCache negativeCache;
+
+    /** Predictive prefetch of the next page of thumbnails; optional */
+    private ThumbnailPrefetcher prefetcher;
+
+    /** Hot key profiler shared with the worker verticles; optional */
+    private HotKeyProfiler profiler;
+
+    /** Number of worker verticle instances */
+    private int workerPoolSize;
+
+    /** Number of requests dispatched to the worker verticles */
+    private int inFlight;
+
+    /** Whether or not the workers are deployed and warmed up */
+    private boolean ready;
+
+    /** Structured access log; optional */
+    private AccessLog accessLog;
+
+    /** Traffic capture for later replay; optional */
+    private TrafficCapture trafficCapture;
+
+    /**
+     * Routes whose thumbnails are re-encoded by default or <code>null</code>
+     * if re-encoding is disabled
+     */
+    private Set<String> transcodeRoutes;
+
+    /** Default JPEG quality thumbnails are re-encoded at */
+    private int transcodeQuality;
+
+    /** Whether or not the <code>quality</code> query parameter is honoured */
+    private boolean transcodeQualityParam;
+
+    /** Consistent hash routing across clustered instances; optional */
+    private AffinityRouter affinityRouter;
+
+    /**
+     * Time in milliseconds, beyond the event bus send timeout, requests
+     * forwarded to their owning instance are waited for
+     */
+    private long forwardTimeoutMargin;
+
+    /** Thumbnail atlas store shared with the worker verticles; optional */
+    private AtlasStore atlasStore;
+
+    /** Maximum number of images in a thumbnail atlas */
+    private int atlasMaxImages;
+
+    /** OMERO servers requests are balanced across */
+    private OmeroBackends backends;
+
+    /** Whether or not slow render_thumbnail requests are hedged */
+    private boolean hedging;
+
+    /**
+     * <code>Cache-Control</code> header of render_thumbnail responses or
+     * <code>null</code> if the thumbnail cache is disabled
+     */
+    private String thumbnailCacheControl;
+
+    /**
+     * <code>Cache-Control</code> header of render_birds_eye_view responses
+     * or <code>null</code> if the thumbnail cache is disabled
+     */
+    private String birdsEyeViewCacheControl;
+
+    /**
+     * @param thumbnailCacheConfig Configuration block of a thumbnail cache
+     * partition.
+     * @return <code>Cache-Control</code> header of responses served from the
+     * partition; thumbnails may be cached by the browser for as long as they
+     * are fresh in the partition and served stale for as long as the
+     * partition would.
+     */
+    private String cacheControl(JsonObject thumbnailCacheConfig) {
+        long hardTtl = thumbnailCacheConfig.getLong("ttl-ms", 86400000L);
+        long softTtl = Math.min(hardTtl, thumbnailCacheConfig.getLong(
+                "soft-ttl-ms", hardTtl));
+        return String.format(
+                "private, max-age=%d, stale-while-revalidate=%d",
+                TimeUnit.MILLISECONDS.toSeconds(softTtl),
+                TimeUnit.MILLISECONDS.toSeconds(hardTtl - softTtl));
+    }
+
     /**
      * If the result of the eventbus message is a failure, handle it and
      * return a response to the client.
@@ -116,8 +250,8 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
      * @param response HTTP response
      * @return whether or not the <code>result</code> failed
      */
-    private <T> Boolean handleResultFailed(
-            AsyncResult<Message<T>> result, HttpServerResponse response) {
+    private Boolean handleResultFailed(
+            AsyncResult<?> result, HttpServerResponse response) {
         Boolean resultFailed = result.failed();
         if (resultFailed) {
             Throwable t = result.cause();
@@ -137,6 +271,33 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
         return resultFailed;
     }
 
+    /**
+     * Creates the head sampler for HTTP tracing.
+     * @param httpTracingConfig <code>http-tracing</code> configuration block.
+     * @return See above.
+     */
+    private Sampler sampler(JsonObject httpTracingConfig) {
+        String type = httpTracingConfig.getString("sampler", "always");
+        switch (type) {
+            case "always":
+                return Sampler.ALWAYS_SAMPLE;
+            case "probability":
+                float probability = httpTracingConfig.getFloat(
+                        "sample-probability", 0.01f);
+                log.info("Sampling traces with probability {}", probability);
+                return Sampler.create(probability);
+            case "rate-limited":
+                int tracesPerSecond = httpTracingConfig.getInteger(
+                        "traces-per-second", 10);
+                log.info("Sampling up to {} traces per second",
+                        tracesPerSecond);
+                return RateLimitingSampler.create(tracesPerSecond);
+            default:
+                throw new IllegalArgumentException(
+                    "Invalid value for 'http-tracing.sampler' in config");
+        }
+    }
+
     /**
      * Entry point method which starts the server event loop and initializes
      * our current OMERO.web session store.
@@ -144,6 +305,7 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
     @Override
     public void start(Promise<Void> promise) {
         log.info("Starting verticle");
+        startTime = System.currentTimeMillis();
 
         DEFAULT_WORKER_POOL_SIZE =
                 Runtime.getRuntime().availableProcessors() * 2;
@@ -175,11 +337,6 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
      */
     public void deploy(JsonObject config, Promise<Void> promise) {
 
-        context = new ClassPathXmlApplicationContext(
-                "classpath:ome/config.xml",
-                "classpath:ome/services/datalayer.xml",
-                "classpath*:beanRefContext.xml");
-
         JsonObject omero = config.getJsonObject("omero");
         if (omero == null) {
             throw new IllegalArgumentException(
@@ -201,13 +358,32 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
                     log.info("Tracing enabled without zipkin URL - writing traces to logs");
                     spanReporter = new LogSpanReporter();
                 }
+                // Stage metrics are derived from spans so must see every
+                // span regardless of sampling
                 PrometheusSpanHandler prometheusSpanHandler = new PrometheusSpanHandler();
-                tracing = Tracing.newBuilder()
-                        .sampler(Sampler.ALWAYS_SAMPLE)
+                Tracing.Builder tracingBuilder = Tracing.newBuilder()
+                        .sampler(sampler(httpTracingConfig))
                         .localServiceName("omero-ms-image-region")
-                        .addFinishedSpanHandler(prometheusSpanHandler)
-                        .spanReporter(spanReporter)
-                        .build();
+                        .addFinishedSpanHandler(
+                                new AlwaysSampleLocalSpanHandler(
+                                        prometheusSpanHandler))
+                        .spanReporter(spanReporter);
+                JsonObject tailSamplingConfig = httpTracingConfig
+                        .getJsonObject("tail-sampling", new JsonObject());
+                if (tailSamplingConfig.getBoolean("enabled", false)) {
+                    long latencyThreshold = tailSamplingConfig.getLong(
+                            "latency-threshold-ms", 1000L);
+                    log.info("Tail sampling enabled: {} ms",
+                            latencyThreshold);
+                    tracingBuilder.addFinishedSpanHandler(
+                            new TailSamplingSpanHandler(
+                                    spanReporter, latencyThreshold,
+                                    tailSamplingConfig.getInteger(
+                                            "max-pending-traces", 1000),
+                                    tailSamplingConfig.getLong(
+                                            "max-pending-ms", 10000L)));
+                }
+                tracing = tracingBuilder.build();
             } catch (Exception e) {
                 log.error("Tracing enabled but configured incorrectly");
                 throw e;
@@ -244,22 +420,173 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
             log.info("JMX Metrics NOT Enabled");
         }
 
-        // Deploy our dependency verticles
-        verticleFactory = (OmeroVerticleFactory)
-                context.getBean("omero-ms-verticlefactory");
-        vertx.registerVerticleFactory(verticleFactory);
-
-        int workerPoolSize = Optional.ofNullable(
+        workerPoolSize = Optional.ofNullable(
                 config.getInteger("worker_pool_size")
                 ).orElse(DEFAULT_WORKER_POOL_SIZE);
 
-        vertx.deployVerticle("omero:omero-ms-thumbnail-verticle",
-                new DeploymentOptions()
-                        .setThreadingModel(ThreadingModel.WORKER)
-                        .setInstances(workerPoolSize)
-                        .setWorkerPoolName("thumbnail-pool")
-                        .setWorkerPoolSize(workerPoolSize)
-                        .setConfig(config));
+        // Deploy our dependency verticles
+        DeploymentOptions workerOptions = new DeploymentOptions()
+                .setThreadingModel(ThreadingModel.WORKER)
+                .setInstances(workerPoolSize)
+                .setWorkerPoolName("thumbnail-pool")
+                .setWorkerPoolSize(workerPoolSize)
+                .setConfig(config);
+        Future<String> deployed;
+        String startupMode = "full";
+        if (config.getJsonObject("stub-backend", new JsonObject())
+                .getBoolean("enabled", false)) {
+            log.warn("Stub OMERO backend enabled; for traffic replay only");
+            startupMode = "stub";
+            deployed = vertx.deployVerticle(
+                    StubThumbnailVerticle::new, workerOptions);
+        } else if (config.getBoolean("fast-start", false)) {
+            // The worker verticles have no dependencies on the OMERO server
+            // datalayer so they can be constructed directly
+            log.info("Fast start enabled; skipping OMERO server context");
+            startupMode = "fast-start";
+            deployed = vertx.deployVerticle(
+                    ThumbnailVerticle::new, workerOptions);
+        } else {
+            context = new ClassPathXmlApplicationContext(
+                    "classpath:ome/config.xml",
+                    "classpath:ome/services/datalayer.xml",
+                    "classpath*:beanRefContext.xml");
+            verticleFactory = (OmeroVerticleFactory)
+                    context.getBean("omero-ms-verticlefactory");
+            vertx.registerVerticleFactory(verticleFactory);
+            deployed = vertx.deployVerticle(
+                    "omero:omero-ms-thumbnail-verticle", workerOptions);
+        }
+        JsonObject warmUpConfig =
+                config.getJsonObject("warm-up", new JsonObject());
+        String mode = startupMode;
+        deployed.onSuccess(deploymentId -> {
+            logStartup(mode);
+            warmUp(warmUpConfig);
+        });
+        deployed.onFailure(t -> log.error("Failed to deploy workers", t));
+
+        JsonObject loadBalancingConfig =
+                config.getJsonObject("load-balancing", new JsonObject());
+        JsonObject hedgingConfig = loadBalancingConfig.getJsonObject(
+                "hedging", new JsonObject());
+        hedging = hedgingConfig.getBoolean("enabled", false);
+        backends = new OmeroBackends(
+                OmeroBackends.parse(omero),
+                loadBalancingConfig.getInteger("failure-threshold", 5),
+                loadBalancingConfig.getLong("ejection-ms", 30000L),
+                hedgingConfig.getDouble("percentile", 0.95),
+                hedgingConfig.getLong("min-delay-ms", 10L),
+                hedgingConfig.getDouble("budget", 0.05));
+        log.info("Balancing across {} OMERO backend(s); hedging {}",
+                backends.size(), hedging ? "enabled" : "disabled");
+
+        JsonObject fairQueueConfig =
+                config.getJsonObject("fair-queue", new JsonObject());
+        if (fairQueueConfig.getBoolean("enabled", false)) {
+            // With Ice asynchronous method invocation workers are not held
+            // while thumbnail store calls are outstanding so each may have
+            // several requests in flight
+            JsonObject iceAmiConfig =
+                    config.getJsonObject("ice-ami", new JsonObject());
+            int maxInFlight = workerPoolSize;
+            if (iceAmiConfig.getBoolean("enabled", false)) {
+                maxInFlight *= iceAmiConfig.getInteger(
+                        "max-in-flight-per-worker", 4);
+            }
+            scheduler = new FairRequestScheduler(
+                    fairQueueConfig.getInteger("max-in-flight", maxInFlight),
+                    fairQueueConfig.getInteger("max-in-flight-per-user", 2),
+                    fairQueueConfig.getInteger("max-queued-per-user", 100),
+                    fairQueueConfig.getInteger("quantum", 8));
+            log.info("Fair queuing enabled");
+        } else {
+            log.info("Fair queuing disabled");
+        }
+
+        JsonObject birdsEyeViewConfig =
+                config.getJsonObject("birds-eye-view", new JsonObject());
+        birdsEyeViewLongestSide =
+                birdsEyeViewConfig.getInteger("default-longest-side", 96);
+        birdsEyeViewScheduler = new FairRequestScheduler(
+                "birds_eye_view",
+                birdsEyeViewConfig.getInteger(
+                        "max-in-flight", Math.max(1, workerPoolSize / 4)),
+                birdsEyeViewConfig.getInteger("max-in-flight-per-user", 1),
+                birdsEyeViewConfig.getInteger("max-queued-per-user", 10),
+                1);
+
+        JsonObject getThumbnailsConfig =
+                config.getJsonObject("get-thumbnails", new JsonObject());
+        chunkSize = getThumbnailsConfig.getInteger("chunk-size", 0);
+        partialResults =
+                getThumbnailsConfig.getBoolean("partial-results", false);
+
+        JsonObject negativeCacheConfig =
+                config.getJsonObject("negative-cache", new JsonObject());
+        if (negativeCacheConfig.getBoolean("enabled", false)) {
+            negativeCache = new NegativeResultCache(
+                    negativeCacheConfig.getLong("ttl-ms", 10000L),
+                    negativeCacheConfig.getInteger("max-size", 10000));
+            vertx.eventBus().<JsonObject>consumer(
+                    INVALIDATE_NEGATIVE_CACHE_EVENT,
+                    this::invalidateNegativeCache);
+            log.info("Negative result cache enabled");
+        }
+
+        JsonObject accessLogConfig =
+                config.getJsonObject("access-log", new JsonObject());
+        if (accessLogConfig.getBoolean("enabled", false)) {
+            accessLog = new AccessLog(
+                    accessLogConfig.getInteger("buffer-size", 8192));
+            log.info("Access log enabled");
+        }
+
+        JsonObject jpegTranscodeConfig =
+                config.getJsonObject("jpeg-transcode", new JsonObject());
+        if (jpegTranscodeConfig.getBoolean("enabled", false)) {
+            transcodeRoutes = new HashSet<String>();
+            jpegTranscodeConfig.getJsonArray("routes", new JsonArray())
+                .forEach(route -> transcodeRoutes.add((String) route));
+            transcodeQuality = jpegTranscodeConfig.getInteger("quality", 75);
+            transcodeQualityParam =
+                    jpegTranscodeConfig.getBoolean("quality-param", true);
+            log.info("JPEG re-encoding enabled for {}", transcodeRoutes);
+        }
+
+        JsonObject trafficCaptureConfig =
+                config.getJsonObject("traffic-capture", new JsonObject());
+        if (trafficCaptureConfig.getBoolean("enabled", false)) {
+            try {
+                trafficCapture = new TrafficCapture(
+                        trafficCaptureConfig.getString("directory", "logs"),
+                        trafficCaptureConfig.getInteger(
+                                "buffer-size", 65536),
+                        trafficCaptureConfig.getBoolean(
+                                "anonymize-ids", true));
+            } catch (IOException e) {
+                log.error("Unable to start traffic capture", e);
+            }
+        }
+
+        JsonObject affinityConfig =
+                config.getJsonObject("affinity", new JsonObject());
+        if (affinityConfig.getBoolean("enabled", false)) {
+            if (vertx.isClustered()) {
+                affinityRouter = new AffinityRouter(
+                        vertx,
+                        affinityConfig.getInteger("virtual-nodes", 128),
+                        affinityConfig.getLong("heartbeat-ms", 1000L),
+                        affinityConfig.getLong("member-timeout-ms", 5000L),
+                        this::renderForwarded,
+                        this::invalidateForwarded);
+                forwardTimeoutMargin = affinityConfig.getLong(
+                        "forward-timeout-margin-ms", 1000L);
+                affinityRouter.start();
+            } else {
+                log.warn("Affinity routing requires clustering; disabled");
+            }
+        }
 
         HttpServer server = vertx.createHttpServer();
         Router router = Router.router(vertx);
@@ -267,6 +594,12 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
         router.get("/metrics")
         .order(-2)
         .handler(new MetricsHandler());
+        router.get("/health/readiness")
+            .order(-2)
+            .handler(this::readiness);
+        router.get("/health/liveness")
+            .order(-2)
+            .handler(this::liveness);
 
         List<String> tags = new ArrayList<String>();
         tags.add("omero.session_key");
@@ -320,16 +653,16 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
             .handler(this::renderThumbnail);
         router.get(
                 "/webclient/render_birds_eye_view/:imageId/:longestSide*")
-            .handler(this::renderThumbnail);
+            .handler(this::renderBirdsEyeView);
         router.get(
                 "/webclient/render_birds_eye_view/:imageId*")
-            .handler(this::renderThumbnail);
+            .handler(this::renderBirdsEyeView);
         router.get(
                 "/webgateway/render_birds_eye_view/:imageId/:longestSide*")
-            .handler(this::renderThumbnail);
+            .handler(this::renderBirdsEyeView);
         router.get(
                 "/webgateway/render_birds_eye_view/:imageId*")
-            .handler(this::renderThumbnail);
+            .handler(this::renderBirdsEyeView);
         router.get(
                 "/webgateway/get_thumbnails/:longestSide*")
             .handler(this::getThumbnails);
@@ -343,10 +676,71 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
                 "/webclient/get_thumbnails*")
             .handler(this::getThumbnails);
 
+        // Thumbnail atlas handlers
+        JsonObject thumbnailAtlasConfig =
+                config.getJsonObject("thumbnail-atlas", new JsonObject());
+        if (thumbnailAtlasConfig.getBoolean("enabled", false)) {
+            atlasStore = AtlasStore.shared(vertx, thumbnailAtlasConfig);
+            atlasMaxImages =
+                    thumbnailAtlasConfig.getInteger("max-images", 500);
+            router.get(
+                    "/webgateway/get_thumbnail_atlas/:longestSide*")
+                .handler(this::getThumbnailAtlas);
+            router.get(
+                    "/webgateway/get_thumbnail_atlas*")
+                .handler(this::getThumbnailAtlas);
+            router.get(
+                    "/webgateway/thumbnail_atlas/:hash")
+                .handler(this::serveThumbnailAtlas);
+            log.info("Thumbnail atlas enabled");
+        }
+
+        // Thumbnail cache invalidation handler
+        JsonObject thumbnailCacheConfig =
+                config.getJsonObject("thumbnail-cache", new JsonObject());
+        if (thumbnailCacheConfig.getBoolean("enabled", false)) {
+            router.post("/thumbnail_cache/invalidate")
+                .handler(this::invalidateThumbnailCache);
+            thumbnailCacheControl = cacheControl(thumbnailCacheConfig);
+            birdsEyeViewCacheControl = cacheControl(
+                    ThumbnailCache.birdsEyeViewConfig(config));
+            log.info("Thumbnail cache enabled");
+        }
+
+        // Hot key profile handler
+        JsonObject hotKeysConfig =
+                config.getJsonObject("hot-keys", new JsonObject());
+        if (hotKeysConfig.getBoolean("enabled", false)) {
+            profiler = HotKeyProfiler.shared(vertx, hotKeysConfig);
+            vertx.setPeriodic(
+                    hotKeysConfig.getLong("half-life-ms", 300000L),
+                    t -> profiler.decay());
+            router.get("/hot_keys")
+                .handler(this::hotKeys);
+            log.info("Hot key profiler enabled");
+        }
+
+        JsonObject prefetchConfig =
+                config.getJsonObject("prefetch", new JsonObject());
+        if (prefetchConfig.getBoolean("enabled", false)) {
+            if (thumbnailCacheConfig.getBoolean("enabled", false)) {
+                prefetcher = new ThumbnailPrefetcher(
+                        prefetchConfig.getInteger("min-page-size", 10),
+                        prefetchConfig.getInteger("max-in-flight", 1),
+                        prefetchConfig.getDouble("idle-threshold", 0.5),
+                        prefetchConfig.getLong("prediction-ttl-ms", 300000L),
+                        prefetchConfig.getInteger("max-predictions", 10000));
+                log.info("Next page prefetch enabled");
+            } else {
+                log.warn("Prefetch requires the thumbnail cache; disabled");
+            }
+        }
+
         int port = config.getInteger("port");
         log.info("Starting HTTP server *:{}", port);
         server.requestHandler(router).listen(port, result -> {
             if (result.succeeded()) {
+                log.info("Listening on *:{}", port);
                 promise.complete();
             } else {
                 promise.fail(result.cause());
@@ -354,6 +748,23 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
         });
     }
 
+    /**
+     * Logs the time taken to start, including the deployment of the worker
+     * verticles and any OMERO server context they require, and the heap used
+     * once started.
+     * @param mode Startup mode; <code>full</code>, <code>fast-start</code> or
+     * <code>stub</code>.
+     */
+    private void logStartup(String mode) {
+        Runtime runtime = Runtime.getRuntime();
+        log.info(
+            "Started ({}) in {} ms (JVM uptime {} ms); heap used {} MiB",
+            mode,
+            System.currentTimeMillis() - startTime,
+            ManagementFactory.getRuntimeMXBean().getUptime(),
+            (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024));
+    }
+
     /**
      * Exit point method which when the verticle stops, cleans up our current
      * OMERO.web session store.
@@ -361,6 +772,15 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
     @Override
     public void stop() throws Exception {
         sessionStore.close();
+        if (accessLog != null) {
+            accessLog.close();
+        }
+        if (trafficCapture != null) {
+            trafficCapture.close();
+        }
+        if (affinityRouter != null) {
+            affinityRouter.stop();
+        }
         tracing.close();
         if (spanReporter != null) {
             spanReporter.close();
@@ -389,6 +809,685 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
             .end(resData.encodePrettily());
     }
 
+    /**
+     * Warms up the worker verticles, establishing OMERO server connectivity
+     * and pre-creating pooled sessions from each and preloading hot
+     * thumbnails, before marking the microservice as ready. Retries until
+     * OMERO server connectivity is established.
+     * @param warmUpConfig <code>warm-up</code> configuration block.
+     */
+    private void warmUp(JsonObject warmUpConfig) {
+        if (!warmUpConfig.getBoolean("enabled", true)) {
+            log.info("Warm-up disabled; ready");
+            ready = true;
+            return;
+        }
+        long started = System.currentTimeMillis();
+        List<Future<Object>> warmUps = new ArrayList<Future<Object>>();
+        // Event bus delivery is round-robin so this reaches each worker;
+        // only one of them preloads hot thumbnails into the shared cache
+        for (int i = 0; i < workerPoolSize; i++) {
+            warmUps.add(vertx.eventBus().<Object>request(
+                    ThumbnailVerticle.WARM_UP_EVENT,
+                    new JsonObject().put("preload", i == 0),
+                    deliveryOptions)
+                .map(Message::body));
+        }
+        Future.all(warmUps).onComplete(result -> {
+            if (result.succeeded()) {
+                log.info("Warm-up completed in {} ms; ready",
+                        System.currentTimeMillis() - started);
+                ready = true;
+                return;
+            }
+            long retryInterval =
+                    warmUpConfig.getLong("retry-interval-ms", 5000L);
+            log.warn("Warm-up failed, retrying in {} ms: {}",
+                    retryInterval, result.cause().getMessage());
+            vertx.setTimer(retryInterval, timerId -> warmUp(warmUpConfig));
+        });
+    }
+
+    /**
+     * Readiness probe handler. Responds with HTTP 200 once the worker
+     * verticles have been deployed and warmed up, otherwise HTTP 503.
+     * @param event Current routing context.
+     */
+    private void readiness(RoutingContext event) {
+        event.response()
+            .setStatusCode(ready ? 200 : 503)
+            .putHeader("Content-Type", "application/json")
+            .end(new JsonObject()
+                    .put("status", ready ? "UP" : "DOWN")
+                    .encode());
+    }
+
+    /**
+     * Liveness probe handler. Responds with HTTP 200 and a JSON dictionary
+     * describing the request backlog and worker saturation.
+     * @param event Current routing context.
+     */
+    private void liveness(RoutingContext event) {
+        int queued = (scheduler == null ? 0 : scheduler.queued())
+                + birdsEyeViewScheduler.queued();
+        event.response()
+            .putHeader("Content-Type", "application/json")
+            .end(new JsonObject()
+                    .put("status", "UP")
+                    .put("ready", ready)
+                    .put("workerPoolSize", workerPoolSize)
+                    .put("inFlight", inFlight)
+                    .put("queued", queued)
+                    .put("workerSaturation",
+                            (double) inFlight / workerPoolSize)
+                    .encode());
+    }
+
+    /**
+     * Hot key profile handler. Responds with the JSON profile of the
+     * {@link HotKeyProfiler}, limited to the number of entries of each
+     * sketch in the <code>limit</code> query parameter, 20 by default.
+     * @param event Current routing context.
+     */
+    private void hotKeys(RoutingContext event) {
+        final HttpServerResponse response = event.response();
+        int limit;
+        try {
+            limit = Optional.ofNullable(event.request().getParam("limit"))
+                    .map(Integer::parseInt).orElse(20);
+        } catch (NumberFormatException e) {
+            response.setStatusCode(400).end(e.getMessage());
+            return;
+        }
+        response
+            .putHeader("Content-Type", "application/json")
+            .end(profiler.toJson(limit).encode());
+    }
+
+    /**
+     * Negative result cache invalidation event handler.
+     * @param message JSON encoded event data. If <code>imageIds</code>
+     * (List<Long>) is present only the outcomes of those images are
+     * invalidated, otherwise all outcomes are.
+     */
+    private void invalidateNegativeCache(Message<JsonObject> message) {
+        JsonObject body = Optional.ofNullable(message.body())
+                .orElse(new JsonObject());
+        JsonArray imageIdsJson = body.getJsonArray("imageIds");
+        if (imageIdsJson == null) {
+            negativeCache.invalidate();
+        } else {
+            invalidateNegativeCache(imageIdsJson);
+        }
+        message.reply(null);
+    }
+
+    /**
+     * Removes the negative result cache outcomes of a set of images.
+     * @param imageIdsJson {@link Image} identifiers to invalidate.
+     */
+    private void invalidateNegativeCache(JsonArray imageIdsJson) {
+        List<Long> imageIds = new ArrayList<Long>();
+        for (int i = 0; i < imageIdsJson.size(); i++) {
+            imageIds.add(imageIdsJson.getLong(i));
+        }
+        negativeCache.invalidate(imageIds);
+    }
+
+    /**
+     * Thumbnail cache invalidation handler. Responds with a JSON dictionary
+     * containing the number of {@link omero.model.Pixels} invalidated and
+     * cache entries removed on success. The thumbnails to invalidate are
+     * specified by the <code>imageId</code>, <code>pixelsId</code>,
+     * <code>rdefId</code>, <code>datasetId</code> and <code>plateId</code>
+     * query parameters, each of which may be repeated. All are resolved
+     * using the OMERO session of the request so that only thumbnails of
+     * objects the user can read are invalidated.
+     * @param event Current routing context.
+     */
+    private void invalidateThumbnailCache(RoutingContext event) {
+        final HttpServerResponse response = event.response();
+        MultiMap params = event.request().params();
+        JsonObject data = new JsonObject()
+                .put("omeroSessionKey", event.get("omero.session_key"));
+        try {
+            data.put("imageIds", ids(params, "imageId"));
+            data.put("pixelsIds", ids(params, "pixelsId"));
+            data.put("renderingDefIds", ids(params, "rdefId"));
+            data.put("datasetIds", ids(params, "datasetId"));
+            data.put("plateIds", ids(params, "plateId"));
+        } catch (NumberFormatException e) {
+            response.setStatusCode(400).end(e.getMessage());
+            return;
+        }
+        JsonArray imageIds = data.getJsonArray("imageIds");
+        if (negativeCache != null && !imageIds.isEmpty()) {
+            invalidateNegativeCache(imageIds);
+        }
+        if (affinityRouter != null) {
+            affinityRouter.publishInvalidation(data);
+        }
+        this.<JsonObject>request(
+                ThumbnailVerticle.INVALIDATE_THUMBNAIL_CACHE_EVENT,
+                data, false).onComplete(result -> {
+            try {
+                if (handleResultFailed(result, response)) {
+                    return;
+                }
+                response.headers().set("Content-Type", "application/json");
+                response.write(result.result().body().encode());
+            } finally {
+                if (!response.closed()) {
+                    response.end();
+                }
+            }
+        });
+    }
+
+    /**
+     * Parses a repeated identifier query parameter.
+     * @param params Query parameters.
+     * @param name Name of the parameter.
+     * @return JSON array of identifiers; empty if the parameter is absent.
+     * @throws NumberFormatException If an identifier is not a number.
+     */
+    private JsonArray ids(MultiMap params, String name) {
+        JsonArray ids = new JsonArray();
+        for (String id : params.getAll(name)) {
+            ids.add(Long.parseLong(id));
+        }
+        return ids;
+    }
+
+    /**
+     * Records how a worker handled a request, as reported in its reply, for
+     * the access log. When a request is split across several workers the
+     * longest time is recorded.
+     * @param event Current routing context.
+     * @param reply Reply from the worker.
+     */
+    private void recordWorkerReply(RoutingContext event, Message<?> reply) {
+        String cache = reply.headers().get(ThumbnailVerticle.CACHE_HEADER);
+        if (cache != null) {
+            String previous = event.get(CACHE_KEY);
+            event.put(CACHE_KEY,
+                    previous == null || previous.equals(cache)
+                        ? cache : "partial");
+        }
+        String elapsed = reply.headers().get(ThumbnailVerticle.ELAPSED_HEADER);
+        if (elapsed == null) {
+            return;
+        }
+        long workerMillis = Long.parseLong(elapsed);
+        Long previous = event.get(WORKER_MILLIS_KEY);
+        if (previous == null || previous < workerMillis) {
+            event.put(WORKER_MILLIS_KEY, workerMillis);
+        }
+    }
+
+    /**
+     * Writes an access log record for a completed request, if the access log
+     * is enabled, and captures it, if traffic capture is enabled.
+     * @param event Current routing context.
+     * @param route Name of the route which handled the request.
+     * @param thumbnailCtx Context of the request; may be <code>null</code> if
+     * the request was invalid.
+     * @param started {@link System#nanoTime()} when handling started.
+     */
+    private void logAccess(
+            RoutingContext event, String route, ThumbnailCtx thumbnailCtx,
+            long started) {
+        if (trafficCapture != null && thumbnailCtx != null) {
+            captureTraffic(event, route, thumbnailCtx, started);
+        }
+        if (accessLog == null) {
+            return;
+        }
+        HttpServerResponse response = event.response();
+        Long dispatched = event.get(DISPATCHED_KEY);
+        Long workerMillis = event.get(WORKER_MILLIS_KEY);
+        String cache = event.get(CACHE_KEY);
+        int imageCount = 0;
+        int longestSide = 0;
+        if (thumbnailCtx != null) {
+            imageCount = thumbnailCtx.imageId != null
+                    ? 1 : thumbnailCtx.imageIds.size();
+            longestSide = thumbnailCtx.longestSide;
+        }
+        long now = System.nanoTime();
+        accessLog.log(
+                route, response.getStatusCode(), imageCount, longestSide,
+                cache == null ? AccessLog.UNKNOWN : cache,
+                dispatched == null
+                        ? 0 : TimeUnit.NANOSECONDS.toMillis(
+                                dispatched - started),
+                workerMillis == null ? -1 : workerMillis,
+                TimeUnit.NANOSECONDS.toMillis(now - started),
+                response.bytesWritten());
+    }
+
+    /**
+     * @param event Current routing context of a thumbnail rendering request.
+     * @return <code>render_birds_eye_view</code> or
+     * <code>render_thumbnail</code> depending on the request path.
+     */
+    private String renderRoute(RoutingContext event) {
+        return event.request().path().contains("render_birds_eye_view")
+                ? "render_birds_eye_view" : "render_thumbnail";
+    }
+
+    /**
+     * Decides the JPEG quality, if any, thumbnails are re-encoded at. An
+     * explicit <code>quality</code> query parameter takes precedence over
+     * the default of the route if permitted.
+     * @param route Name of the route handling the request.
+     * @param thumbnailCtx Context of the request; updated.
+     */
+    private void applyTranscoding(String route, ThumbnailCtx thumbnailCtx) {
+        if (transcodeRoutes == null) {
+            thumbnailCtx.quality = null;
+            return;
+        }
+        if (!transcodeQualityParam) {
+            thumbnailCtx.quality = null;
+        }
+        if (thumbnailCtx.quality == null && transcodeRoutes.contains(route)) {
+            thumbnailCtx.quality = transcodeQuality;
+        }
+    }
+
+    /**
+     * Captures a completed request for later replay. Only the thumbnail
+     * rendering routes are captured.
+     * @param event Current routing context.
+     * @param route Name of the route which handled the request.
+     * @param thumbnailCtx Context of the request.
+     * @param started {@link System#nanoTime()} when handling started.
+     */
+    private void captureTraffic(
+            RoutingContext event, String route, ThumbnailCtx thumbnailCtx,
+            long started) {
+        TrafficTrace.Route captured;
+        if ("get_thumbnails".equals(route)) {
+            captured = TrafficTrace.Route.GET_THUMBNAILS;
+        } else if ("render_thumbnail".equals(route)) {
+            captured = TrafficTrace.Route.RENDER_THUMBNAIL;
+        } else if ("render_birds_eye_view".equals(route)) {
+            captured = TrafficTrace.Route.RENDER_BIRDS_EYE_VIEW;
+        } else {
+            return;
+        }
+        trafficCapture.capture(
+                captured, started, event.response().getStatusCode(),
+                thumbnailCtx, event.get(CACHE_KEY));
+    }
+
+    /**
+     * Sends a request to the worker verticles for the OMERO backend with the
+     * fewest outstanding requests. If hedging is enabled and requested, and
+     * the request has not completed within the current hedging delay, it is
+     * resent for a second backend and the first successful reply is used.
+     * @param address Event bus address to send to.
+     * @param body Message body.
+     * @param hedge Whether or not the request may be hedged; it must be
+     * idempotent.
+     * @return Future completed with the reply.
+     */
+    private <T> Future<Message<T>> request(
+            String address, Object body, boolean hedge) {
+        Promise<Message<T>> promise = Promise.promise();
+        int[] pending = new int[] { 0 };
+        OmeroBackends.Backend primary = backends.acquire();
+        send(address, body, primary, promise, pending);
+        if (!hedging || !hedge) {
+            return promise.future();
+        }
+        backends.earnHedge();
+        long delay = backends.hedgeDelay(address);
+        if (delay > 0) {
+            long timerId = vertx.setTimer(delay, t -> {
+                if (promise.future().isComplete()) {
+                    return;
+                }
+                OmeroBackends.Backend secondary =
+                        backends.acquireHedge(primary);
+                if (secondary != null) {
+                    log.debug("Hedging request to {} after {} ms",
+                            address, delay);
+                    send(address, body, secondary, promise, pending);
+                }
+            });
+            promise.future().onComplete(result -> vertx.cancelTimer(timerId));
+        }
+        return promise.future();
+    }
+
+    /**
+     * Sends a thumbnail rendering request to the instance owning the
+     * thumbnail if affinity routing is enabled, otherwise to the worker
+     * verticles of this instance. If the owner has left the cluster the
+     * request is handled by this instance instead.
+     * @param address Event bus address of the worker handler.
+     * @param thumbnailCtx Context of the request.
+     * @return Future completed with the reply.
+     */
+    private Future<Message<byte[]>> requestOwner(
+            String address, ThumbnailCtx thumbnailCtx) {
+        String body = Json.encode(thumbnailCtx);
+        String owner = affinityRouter == null ? null : affinityRouter.owner(
+                thumbnailCtx.imageId, thumbnailCtx.longestSide);
+        if (owner == null) {
+            return request(address, body, true);
+        }
+        DeliveryOptions options = new DeliveryOptions(deliveryOptions)
+                .setSendTimeout(
+                        deliveryOptions.getSendTimeout() + forwardTimeoutMargin)
+                .addHeader(AffinityRouter.ADDRESS_HEADER, address);
+        return vertx.eventBus().<byte[]>request(
+                AffinityRouter.address(owner), body, options).recover(t -> {
+            if (t instanceof ReplyException && ((ReplyException) t)
+                    .failureType() == ReplyFailure.NO_HANDLERS) {
+                affinityRouter.fallback(owner);
+                return request(address, body, true);
+            }
+            return Future.failedFuture(t);
+        });
+    }
+
+    /**
+     * Forwarded thumbnail rendering event handler. Handles a request
+     * forwarded by another instance to this one as owner of the thumbnail
+     * using the worker verticles of this instance, once scheduled by the
+     * fair queue of this instance for the route. The reply, including
+     * headers, or failure of the workers is relayed.
+     * @param message JSON encoded {@link ThumbnailCtx} with the worker
+     * address in the {@link AffinityRouter#ADDRESS_HEADER} header.
+     */
+    private void renderForwarded(Message<String> message) {
+        String address = message.headers().get(AffinityRouter.ADDRESS_HEADER);
+        if (!ThumbnailVerticle.RENDER_THUMBNAIL_EVENT.equals(address)
+                && !ThumbnailVerticle.RENDER_BIRDS_EYE_VIEW_EVENT.equals(
+                        address)) {
+            message.fail(400, "Unsupported address: " + address);
+            return;
+        }
+        ThumbnailCtx thumbnailCtx;
+        try {
+            thumbnailCtx = Json.decodeValue(message.body(), ThumbnailCtx.class);
+        } catch (Exception e) {
+            String v = "Illegal tile context";
+            log.error(v + ": {}", message.body(), e);
+            message.fail(400, v);
+            return;
+        }
+        // Forwarded requests wait their turn alongside those received by
+        // this instance directly, keyed by the session of the original
+        boolean birdsEyeView =
+                ThumbnailVerticle.RENDER_BIRDS_EYE_VIEW_EVENT.equals(address);
+        queue(Optional.ofNullable(thumbnailCtx.omeroSessionKey).orElse(""),
+                birdsEyeView ? birdsEyeViewScheduler : scheduler, 1,
+                () -> false)
+            .map(this::track)
+            .compose(done -> this.<byte[]>request(
+                    address, message.body(), true)
+                .onComplete(result -> done.run()))
+            .onComplete(result -> {
+                if (result.succeeded()) {
+                    Message<byte[]> reply = result.result();
+                    // Stale thumbnails are refreshed by the owner whose
+                    // cache holds them rather than by the forwarding instance
+                    if (reply.headers().contains(
+                            ThumbnailVerticle.REFRESH_HEADER)) {
+                        refreshStale(reply, thumbnailCtx, address);
+                        reply.headers().remove(
+                                ThumbnailVerticle.REFRESH_HEADER);
+                    }
+                    message.reply(
+                            reply.body(),
+                            new DeliveryOptions().setHeaders(reply.headers()));
+                } else if (result.cause() instanceof ReplyException) {
+                    ReplyException e = (ReplyException) result.cause();
+                    message.fail(e.failureCode(), e.getMessage());
+                } else {
+                    message.fail(500, result.cause().getMessage());
+                }
+            });
+    }
+
+    /**
+     * Handles a thumbnail cache invalidation published by another instance
+     * by invalidating the caches of this instance. Failures are logged.
+     * @param data Invalidation event data.
+     */
+    private void invalidateForwarded(JsonObject data) {
+        JsonArray imageIds = data.getJsonArray("imageIds", new JsonArray());
+        if (negativeCache != null && !imageIds.isEmpty()) {
+            invalidateNegativeCache(imageIds);
+        }
+        this.<JsonObject>request(
+                ThumbnailVerticle.INVALIDATE_THUMBNAIL_CACHE_EVENT,
+                data, false).onComplete(result -> {
+            if (result.failed()) {
+                log.warn("Unable to invalidate thumbnail cache",
+                        result.cause());
+            }
+        });
+    }
+
+    /**
+     * Sends a single request to the worker verticles for an OMERO backend
+     * acquired from the load balancer, releasing it once complete.
+     * @param address Event bus address to send to.
+     * @param body Message body.
+     * @param backend Backend acquired for the request.
+     * @param promise Completed with the first successful reply, or the
+     * failure of the last outstanding request.
+     * @param pending Number of outstanding requests for
+     * <code>promise</code>.
+     */
+    private <T> void send(
+            String address, Object body, OmeroBackends.Backend backend,
+            Promise<Message<T>> promise, int[] pending) {
+        DeliveryOptions options = new DeliveryOptions(deliveryOptions)
+                .addHeader(ThumbnailVerticle.BACKEND_HEADER,
+                        String.valueOf(backend.index));
+        long sent = System.nanoTime();
+        pending[0]++;
+        vertx.eventBus().<T>request(address, body, options, result -> {
+            pending[0]--;
+            backends.release(
+                    backend, address, isBackendFailure(result),
+                    System.nanoTime() - sent);
+            if (result.succeeded()) {
+                promise.tryComplete(result.result());
+            } else if (pending[0] == 0) {
+                promise.tryFail(result.cause());
+            }
+        });
+    }
+
+    /**
+     * @param result Result of a request to the worker verticles.
+     * @return Whether or not the result indicates that the OMERO backend
+     * used is unavailable or unresponsive.
+     */
+    private boolean isBackendFailure(AsyncResult<?> result) {
+        if (result.succeeded() || !(result.cause() instanceof ReplyException)) {
+            return false;
+        }
+        ReplyException e = (ReplyException) result.cause();
+        return e.failureType() == ReplyFailure.TIMEOUT
+                || e.failureCode() == 503;
+    }
+
+    /**
+     * Requests the background refresh, as a single batch, of the stale
+     * cached thumbnails listed by a worker reply. The batch waits in the fair
+     * queue of the original request's user and is sent via the load
+     * balancer like any other request so that refreshes neither bypass
+     * per-user fairness nor the accounting of outstanding backend requests.
+     * Failures are logged.
+     * @param reply Reply from the worker verticles.
+     * @param thumbnailCtx Context of the original request.
+     * @param address Event bus address the original request was sent to.
+     */
+    private void refreshStale(
+            Message<?> reply, ThumbnailCtx thumbnailCtx, String address) {
+        String refresh = reply.headers().get(ThumbnailVerticle.REFRESH_HEADER);
+        if (refresh == null) {
+            return;
+        }
+        List<Long> imageIds = new ArrayList<Long>();
+        for (String imageId : refresh.split(",")) {
+            imageIds.add(Long.parseLong(imageId));
+        }
+        ThumbnailCtx refreshCtx = new ThumbnailCtx(thumbnailCtx, imageIds);
+        refreshCtx.imageId = null;
+        refreshCtx.datasetId = null;
+        refreshCtx.plateId = null;
+        refreshCtx.traceContext = null;
+        boolean birdsEyeView =
+                ThumbnailVerticle.RENDER_BIRDS_EYE_VIEW_EVENT.equals(address);
+        if (!birdsEyeView
+                && !ThumbnailVerticle.RENDER_THUMBNAIL_EVENT.equals(address)) {
+            // Thumbnail sets are served with the default rendering settings
+            refreshCtx.renderingDefId = null;
+        }
+        String refreshAddress = birdsEyeView
+                ? ThumbnailVerticle.REFRESH_BIRDS_EYE_VIEW_EVENT
+                : ThumbnailVerticle.REFRESH_THUMBNAIL_EVENT;
+        queue(Optional.ofNullable(thumbnailCtx.omeroSessionKey).orElse(""),
+                birdsEyeView ? birdsEyeViewScheduler : scheduler,
+                imageIds.size(), () -> false)
+            .map(this::track)
+            .compose(done -> this.<Object>request(
+                    refreshAddress, Json.encode(refreshCtx), false)
+                .onComplete(result -> done.run()))
+            .onFailure(t -> log.debug(
+                    "Unable to refresh stale thumbnails of ImageIds:{}: {}",
+                    imageIds, t.getMessage()));
+    }
+
+    /**
+     * Waits for the request's turn to be dispatched to the worker verticles
+     * via the per-user fair queue, if it is enabled.
+     * @param event Current routing context.
+     * @param cost Relative cost of the request.
+     * @return Future completed with a callback which <b>must</b> be run once
+     * the dispatched request completes or failed with HTTP 429 if the user
+     * already has too many requests queued.
+     */
+    private Future<Runnable> dispatch(RoutingContext event, int cost) {
+        return dispatch(event, scheduler, cost);
+    }
+
+    /**
+     * Waits for the request's turn to be dispatched to the worker verticles
+     * via a per-user fair queue.
+     * @param event Current routing context.
+     * @param scheduler Fair queue to wait in; may be <code>null</code> in
+     * which case the request is dispatched immediately.
+     * @param cost Relative cost of the request.
+     * @return See {@link #dispatch(RoutingContext, int)}.
+     */
+    private Future<Runnable> dispatch(
+            RoutingContext event, FairRequestScheduler scheduler, int cost) {
+        return queue(event, scheduler, cost).map(done -> {
+            if (event.get(DISPATCHED_KEY) == null) {
+                event.put(DISPATCHED_KEY, System.nanoTime());
+            }
+            return track(done);
+        });
+    }
+
+    /**
+     * Accounts for a request dispatched to the worker verticles as in
+     * flight.
+     * @param done Callback releasing the request's fair queue slot.
+     * @return Callback which <b>must</b> be run once the dispatched request
+     * completes; running it more than once has no further effect.
+     */
+    private Runnable track(Runnable done) {
+        inFlight++;
+        boolean[] completed = new boolean[] { false };
+        return () -> {
+            if (!completed[0]) {
+                completed[0] = true;
+                inFlight--;
+                done.run();
+            }
+        };
+    }
+
+    /**
+     * Queues the request in a per-user fair queue, if it is enabled.
+     * @param event Current routing context.
+     * @param scheduler Fair queue to wait in; may be <code>null</code>.
+     * @param cost Relative cost of the request.
+     * @return See {@link #dispatch(RoutingContext, int)}.
+     */
+    private Future<Runnable> queue(
+            RoutingContext event, FairRequestScheduler scheduler, int cost) {
+        final HttpServerResponse response = event.response();
+        String user = Optional.ofNullable(
+                event.<String>get("omero.session_key")).orElse("");
+        return queue(user, scheduler, cost, response::closed);
+    }
+
+    /**
+     * Queues a request in a per-user fair queue, if it is enabled.
+     * @param user OMERO session key the request is made with.
+     * @param scheduler Fair queue to wait in; may be <code>null</code>.
+     * @param cost Relative cost of the request.
+     * @param abandoned Whether or not the request is no longer wanted once
+     * its turn comes, in which case it fails with HTTP 503.
+     * @return See {@link #dispatch(RoutingContext, int)}.
+     */
+    private Future<Runnable> queue(
+            String user, FairRequestScheduler scheduler, int cost,
+            BooleanSupplier abandoned) {
+        if (scheduler == null) {
+            return Future.succeededFuture(() -> {});
+        }
+        Promise<Runnable> promise = Promise.promise();
+        boolean accepted = scheduler.submit(user, cost, done -> {
+            if (abandoned.getAsBoolean()) {
+                done.run();
+                promise.fail(new ReplyException(
+                        ReplyFailure.ERROR, 503,
+                        "Connection closed while request was queued"));
+                return;
+            }
+            promise.complete(done);
+        });
+        if (!accepted) {
+            promise.fail(new ReplyException(
+                    ReplyFailure.RECIPIENT_FAILURE, 429,
+                    "Too many requests queued"));
+        }
+        return promise.future();
+    }
+
+    /**
+     * Waits for a low priority background slot in a fair queue.
+     * @param scheduler Fair queue to wait in; may be <code>null</code>.
+     * @return Future completed with the callback which <b>must</b> be run
+     * once the work is done or failed with a 429 reply failure if the
+     * background queue is full.
+     */
+    private Future<Runnable> queueBackground(FairRequestScheduler scheduler) {
+        if (scheduler == null) {
+            return Future.succeededFuture(() -> {});
+        }
+        Promise<Runnable> promise = Promise.promise();
+        if (!scheduler.submitBackground(promise::complete)) {
+            promise.fail(new ReplyException(
+                    ReplyFailure.RECIPIENT_FAILURE, 429,
+                    "Too many background requests queued"));
+        }
+        return promise.future();
+    }
+
     /**
      * Render thumbnail event handler. Responds with a <code>image/jpeg</code>
      * body on success based on the <code>longestSide</code> and
@@ -397,7 +1496,43 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
      * @param event Current routing context.
      */
     private void renderThumbnail(RoutingContext event) {
-        ScopedSpan span = Tracing.currentTracer().startScopedSpan("ms_render_thumbnail");
+        renderThumbnail(
+                event, ThumbnailVerticle.RENDER_THUMBNAIL_EVENT, scheduler,
+                null, thumbnailCacheControl);
+    }
+
+    /**
+     * Render birds-eye view event handler. As
+     * {@link #renderThumbnail(RoutingContext)} but with its own default
+     * longest side, fair queue and thumbnail cache partition so that
+     * birds-eye views neither delay nor evict ordinary thumbnails.
+     * @param event Current routing context.
+     */
+    private void renderBirdsEyeView(RoutingContext event) {
+        renderThumbnail(
+                event, ThumbnailVerticle.RENDER_BIRDS_EYE_VIEW_EVENT,
+                birdsEyeViewScheduler, birdsEyeViewLongestSide,
+                birdsEyeViewCacheControl);
+    }
+
+    /**
+     * Renders a thumbnail via the worker verticles.
+     * @param event Current routing context.
+     * @param address Event bus address of the worker handler.
+     * @param scheduler Fair queue to wait in; may be <code>null</code>.
+     * @param defaultLongestSide Longest side if none is requested or
+     * <code>null</code> to use the {@link ThumbnailCtx} default.
+     * @param cacheControl <code>Cache-Control</code> header of successful
+     * responses; may be <code>null</code>.
+     */
+    private void renderThumbnail(
+            RoutingContext event, String address,
+            FairRequestScheduler scheduler, Integer defaultLongestSide,
+            String cacheControl) {
+        long started = System.nanoTime();
+        String route = renderRoute(event);
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("ms_" + route);
         final HttpServerRequest request = event.request();
         final HttpServerResponse response = event.response();
         MultiMap params = request.params();
@@ -409,30 +1544,73 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
             if (!response.closed()) {
                 response.setStatusCode(400).end(e.getMessage());
             }
+            logAccess(event, route, null, started);
             return;
         }
+        if (defaultLongestSide != null && params.get("longestSide") == null) {
+            thumbnailCtx.longestSide = defaultLongestSide;
+        }
+        applyTranscoding(route, thumbnailCtx);
 
-        thumbnailCtx.injectCurrentTraceContext();
-        vertx.eventBus().<byte[]>request(
-                ThumbnailVerticle.RENDER_THUMBNAIL_EVENT,
-                Json.encode(thumbnailCtx), deliveryOptions, result -> {
-            try {
-                if (handleResultFailed(result, response)) {
-                    return;
+        if (negativeCache != null && thumbnailCtx.imageId != null) {
+            Integer statusCode = negativeCache.get(
+                    thumbnailCtx.omeroSessionKey, thumbnailCtx.imageId);
+            if (statusCode != null) {
+                if (!response.closed()) {
+                    response.setStatusCode(statusCode).end();
                 }
-                byte[] thumbnail = result.result().body();
-                response.headers().set("Content-Type", "image/jpeg");
-                response.headers().set(
-                        "Content-Length",
-                        String.valueOf(thumbnail.length));
-                response.write(Buffer.buffer(thumbnail));
-            } finally {
+                span.finish();
+                event.put(CACHE_KEY, "negative");
+                logAccess(event, route, thumbnailCtx, started);
+                return;
+            }
+        }
+
+        thumbnailCtx.injectCurrentTraceContext();
+        dispatch(event, scheduler, 1).onComplete(dispatched -> {
+            if (handleResultFailed(dispatched, response)) {
                 if (!response.closed()) {
                     response.end();
                 }
                 span.finish();
-                log.debug("Response ended");
+                logAccess(event, route, thumbnailCtx, started);
+                return;
             }
+            Runnable done = dispatched.result();
+            this.<byte[]>requestOwner(address, thumbnailCtx)
+                    .onComplete(result -> {
+                try {
+                    if (handleResultFailed(result, response)) {
+                        if (negativeCache != null
+                                && thumbnailCtx.imageId != null) {
+                            negativeCache.put(
+                                    thumbnailCtx.omeroSessionKey,
+                                    thumbnailCtx.imageId,
+                                    response.getStatusCode());
+                        }
+                        return;
+                    }
+                    recordWorkerReply(event, result.result());
+                    byte[] thumbnail = result.result().body();
+                    response.headers().set("Content-Type", "image/jpeg");
+                    response.headers().set(
+                            "Content-Length",
+                            String.valueOf(thumbnail.length));
+                    if (cacheControl != null) {
+                        response.headers().set("Cache-Control", cacheControl);
+                    }
+                    response.write(Buffer.buffer(thumbnail));
+                    refreshStale(result.result(), thumbnailCtx, address);
+                } finally {
+                    if (!response.closed()) {
+                        response.end();
+                    }
+                    span.finish();
+                    done.run();
+                    logAccess(event, route, thumbnailCtx, started);
+                    log.debug("Response ended");
+                }
+            });
         });
     }
 
@@ -445,6 +1623,7 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
      * @param event Current routing context.
      */
     private void getThumbnails(RoutingContext event) {
+        long started = System.nanoTime();
         ScopedSpan span = Tracing.currentTracer().startScopedSpan("ms_get_thumbnails");
         final HttpServerRequest request = event.request();
         final HttpServerResponse response = event.response();
@@ -458,18 +1637,43 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
             if (!response.closed()) {
                 response.setStatusCode(400).end(e.getMessage());
             }
+            logAccess(event, "get_thumbnails", null, started);
             return;
         }
+        applyTranscoding("get_thumbnails", thumbnailCtx);
         thumbnailCtx.injectCurrentTraceContext();
 
-        vertx.eventBus().<String>request(
-                ThumbnailVerticle.GET_THUMBNAILS_EVENT,
-                Json.encode(thumbnailCtx), deliveryOptions, result -> {
+        List<Long> imageIds = thumbnailCtx.imageIds;
+        if (prefetcher != null) {
+            prefetcher.observe(
+                    thumbnailCtx.omeroSessionKey, thumbnailCtx.longestSide,
+                    imageIds);
+        }
+        Future<String> thumbnails;
+        if (chunkSize > 0 && imageIds.size() > chunkSize) {
+            // Chunk dictionaries are spliced so each image must appear once
+            imageIds = new ArrayList<Long>(new LinkedHashSet<Long>(imageIds));
+            List<Future<String>> chunks = new ArrayList<Future<String>>();
+            for (int i = 0; i < imageIds.size(); i += chunkSize) {
+                List<Long> chunk = imageIds.subList(
+                        i, Math.min(i + chunkSize, imageIds.size()));
+                chunks.add(requestThumbnails(
+                        event, new ThumbnailCtx(thumbnailCtx, chunk)));
+            }
+            log.debug("Split {} images into {} chunks",
+                    imageIds.size(), chunks.size());
+            thumbnails = mergeThumbnails(chunks, response);
+        } else {
+            thumbnails = requestThumbnails(event, thumbnailCtx);
+        }
+
+        thumbnails.onComplete(result -> {
             try {
                 if (handleResultFailed(result, response)) {
                     return;
                 }
-                String json = result.result().body();
+                String json = result.result();
+                prefetch(thumbnailCtx);
                 String contentType = "application/json";
                 if (callback != null) {
                     json = String.format("%s(%s);", callback, json);
@@ -484,9 +1688,240 @@ public class ThumbnailMicroserviceVerticle extends AbstractVerticle {
                     response.end();
                 }
                 span.finish();
+                logAccess(event, "get_thumbnails", thumbnailCtx, started);
                 log.debug("Response ended");
             }
         });
     }
 
+    /**
+     * Get thumbnail atlas event handler. Responds with the JSON index of a
+     * JPEG atlas (sprite sheet) of the thumbnails of the images specified by
+     * repeated <code>id</code> query parameters or of the images of the
+     * container specified by the <code>datasetId</code> or
+     * <code>plateId</code> query parameter. The index contains the atlas
+     * <code>url</code>, its <code>width</code> and <code>height</code> and
+     * the <code>[x, y, width, height]</code> of each thumbnail keyed by
+     * {@link Image} identifier in <code>images</code>.
+     * @param event Current routing context.
+     */
+    private void getThumbnailAtlas(RoutingContext event) {
+        long started = System.nanoTime();
+        ScopedSpan span = Tracing.currentTracer().startScopedSpan("ms_get_thumbnail_atlas");
+        final HttpServerRequest request = event.request();
+        final HttpServerResponse response = event.response();
+        MultiMap params = request.params();
+        final ThumbnailCtx thumbnailCtx;
+        try {
+            thumbnailCtx = new ThumbnailCtx(params,
+                    event.get("omero.session_key"));
+        } catch (IllegalArgumentException e) {
+            if (!response.closed()) {
+                response.setStatusCode(400).end(e.getMessage());
+            }
+            logAccess(event, "get_thumbnail_atlas", null, started);
+            return;
+        }
+        thumbnailCtx.injectCurrentTraceContext();
+
+        int cost = thumbnailCtx.datasetId == null
+                && thumbnailCtx.plateId == null
+                    ? Math.min(thumbnailCtx.imageIds.size(), atlasMaxImages)
+                    : atlasMaxImages;
+        dispatch(event, cost).compose(done ->
+            this.<String>request(
+                    ThumbnailVerticle.GET_THUMBNAIL_ATLAS_EVENT,
+                    Json.encode(thumbnailCtx), false)
+                .onComplete(result -> done.run())
+        ).onComplete(result -> {
+            try {
+                if (handleResultFailed(result, response)) {
+                    return;
+                }
+                recordWorkerReply(event, result.result());
+                refreshStale(result.result(), thumbnailCtx,
+                        ThumbnailVerticle.GET_THUMBNAIL_ATLAS_EVENT);
+                JsonObject index = new JsonObject(result.result().body());
+                String hash = index.getString("hash");
+                String etag = "\"" + hash + "\"";
+                response.headers().set("ETag", etag);
+                response.headers().set("Cache-Control", "private, no-cache");
+                if (etag.equals(request.getHeader("If-None-Match"))) {
+                    response.setStatusCode(304);
+                    return;
+                }
+                index.put("url", "/webgateway/thumbnail_atlas/" + hash);
+                String json = index.encode();
+                response.headers().set("Content-Type", "application/json");
+                response.headers().set(
+                        "Content-Length", String.valueOf(json.length()));
+                response.write(json);
+            } finally {
+                if (!response.closed()) {
+                    response.end();
+                }
+                span.finish();
+                logAccess(event, "get_thumbnail_atlas", thumbnailCtx, started);
+                log.debug("Response ended");
+            }
+        });
+    }
+
+    /**
+     * Thumbnail atlas handler. Responds with the <code>image/jpeg</code>
+     * atlas with the content hash encoded in the URL, which may be cached
+     * indefinitely, or HTTP 404 if it is no longer held in which case the
+     * client is expected to request the atlas index again.
+     * @param event Current routing context.
+     */
+    private void serveThumbnailAtlas(RoutingContext event) {
+        final HttpServerResponse response = event.response();
+        String hash = event.request().getParam("hash");
+        String etag = "\"" + hash + "\"";
+        if (etag.equals(event.request().getHeader("If-None-Match"))) {
+            response.setStatusCode(304).end();
+            return;
+        }
+        byte[] atlas = atlasStore.get(hash);
+        if (atlas == null) {
+            response.setStatusCode(404).end();
+            return;
+        }
+        response.headers().set("Content-Type", "image/jpeg");
+        response.headers().set("ETag", etag);
+        response.headers().set(
+                "Cache-Control", "private, max-age=31536000, immutable");
+        response.headers().set(
+                "Content-Length", String.valueOf(atlas.length));
+        response.end(Buffer.buffer(atlas));
+    }
+
+    /**
+     * Requests a JSON dictionary of thumbnails from the worker verticles.
+     * @param event Current routing context.
+     * @param thumbnailCtx Context of the images to retrieve thumbnails for.
+     * @return Future completed with the JSON encoded dictionary.
+     */
+    private Future<String> requestThumbnails(
+            RoutingContext event, ThumbnailCtx thumbnailCtx) {
+        return dispatch(event, thumbnailCtx.imageIds.size())
+                .compose(done -> {
+            Promise<String> promise = Promise.promise();
+            this.<String>request(
+                    ThumbnailVerticle.GET_THUMBNAILS_EVENT,
+                    Json.encode(thumbnailCtx), false).onComplete(result -> {
+                try {
+                    if (result.failed()) {
+                        promise.fail(result.cause());
+                    } else {
+                        recordWorkerReply(event, result.result());
+                        refreshStale(result.result(), thumbnailCtx,
+                                ThumbnailVerticle.GET_THUMBNAILS_EVENT);
+                        promise.complete(result.result().body());
+                    }
+                } finally {
+                    done.run();
+                }
+            });
+            return promise.future();
+        });
+    }
+
+    /**
+     * Prefetches, using idle worker capacity, the thumbnails of the page
+     * predicted to follow a <code>get_thumbnails</code> request into the
+     * thumbnail cache, if prefetch is enabled. The page learned to follow,
+     * if any, is prefetched, otherwise the workers predict it. Prefetches
+     * are low priority background tasks of the fair queue.
+     * @param thumbnailCtx Context of the page requested.
+     */
+    private void prefetch(ThumbnailCtx thumbnailCtx) {
+        if (prefetcher == null || !prefetcher.tryStart(
+                thumbnailCtx.imageIds.size(), inFlight, workerPoolSize)) {
+            return;
+        }
+        String omeroSessionKey = thumbnailCtx.omeroSessionKey;
+        int longestSide = thumbnailCtx.longestSide;
+        ThumbnailCtx prefetchCtx =
+                new ThumbnailCtx(thumbnailCtx, thumbnailCtx.imageIds);
+        prefetchCtx.nextImageIds = prefetcher.predict(thumbnailCtx.imageIds);
+        queueBackground(scheduler)
+            .map(this::track)
+            .compose(done -> this.<String>request(
+                    ThumbnailVerticle.PREFETCH_THUMBNAILS_EVENT,
+                    Json.encode(prefetchCtx), false)
+                .onComplete(result -> done.run()))
+            .onComplete(result -> {
+                List<Long> predicted = null;
+                if (result.succeeded()) {
+                    JsonArray imageIds =
+                            new JsonArray(result.result().body());
+                    predicted = new ArrayList<Long>();
+                    for (int i = 0; i < imageIds.size(); i++) {
+                        predicted.add(imageIds.getLong(i));
+                    }
+                } else {
+                    log.debug("Prefetch failed: {}",
+                            result.cause().getMessage());
+                }
+                prefetcher.finish(omeroSessionKey, longestSide, predicted);
+            });
+    }
+
+    /**
+     * Merges the JSON dictionaries of thumbnails returned for each chunk of a
+     * large <code>get_thumbnails</code> request. Chunks which contained no
+     * accessible images (HTTP 404) are skipped as they would have been had
+     * the request not been chunked. Other failures fail the request unless
+     * partial results are enabled, in which case the thumbnails of the
+     * successful chunks are returned. The dictionaries, which may be several
+     * megabytes each, are spliced together as strings rather than parsed so
+     * as not to block the event loop; chunks must not share images.
+     * @param chunks Futures of each chunk's JSON dictionary.
+     * @param response HTTP response, flagged if the result is partial.
+     * @return Future completed with the merged JSON encoded dictionary.
+     */
+    private Future<String> mergeThumbnails(
+            List<Future<String>> chunks, HttpServerResponse response) {
+        CompositeFuture all = Future.join(chunks);
+        return all.transform(ar -> {
+            StringBuilder merged = new StringBuilder("{");
+            Throwable notFound = null;
+            Throwable failure = null;
+            int succeeded = 0;
+            for (int i = 0; i < all.size(); i++) {
+                if (all.succeeded(i)) {
+                    String json = all.<String>resultAt(i).trim();
+                    // Strip the braces of each non-empty chunk dictionary
+                    if (json.length() > 2) {
+                        if (merged.length() > 1) {
+                            merged.append(',');
+                        }
+                        merged.append(json, 1, json.length() - 1);
+                    }
+                    succeeded++;
+                    continue;
+                }
+                Throwable t = all.cause(i);
+                if (t instanceof ReplyException
+                        && ((ReplyException) t).failureCode() == 404) {
+                    notFound = t;
+                } else if (failure == null) {
+                    failure = t;
+                }
+            }
+            if (failure != null) {
+                if (!partialResults || succeeded == 0) {
+                    return Future.failedFuture(failure);
+                }
+                log.warn("Returning partial thumbnails: {}",
+                        failure.getMessage());
+                response.headers().set("X-Thumbnails-Partial", "true");
+            } else if (succeeded == 0) {
+                return Future.failedFuture(notFound);
+            }
+            return Future.succeededFuture(merged.append('}').toString());
+        });
+    }
+
 }
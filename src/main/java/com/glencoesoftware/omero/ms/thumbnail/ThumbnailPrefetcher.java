@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Admission and accounting of predictive prefetches of the page of
+ * thumbnails following a <code>get_thumbnails</code> request. Prefetches
+ * only use idle capacity: at most a fixed number are outstanding and none
+ * are started while the worker verticles are busier than a threshold.
+ * Predicted thumbnails are remembered per OMERO session so that the hit
+ * rate of the predictions can be reported.
+ * <p>
+ * Page transitions are learned from the requests of each OMERO session: the
+ * page a session requests after another is remembered, keyed by the last
+ * image of the earlier page, and predicted for any session requesting that
+ * page thereafter. Pages without a learned transition are predicted from
+ * container order by the worker verticles.
+ * </p>
+ * <p>
+ * This class is <b>not</b> thread safe. It is expected to be used solely from
+ * the event loop of the verticle that owns it.
+ * </p>
+ * @author agent <agent@local>
+ *
+ */
+public class ThumbnailPrefetcher {
+
+    private static final Counter PREFETCHES = Counter.build()
+            .name("omero_ms_thumbnail_prefetches_total")
+            .help("Number of next page prefetches by outcome")
+            .labelNames("outcome")
+            .register();
+
+    private static final Counter PREDICTIONS = Counter.build()
+            .name("omero_ms_thumbnail_prefetch_predictions_total")
+            .help("Number of prefetched thumbnails by outcome; the hit rate "
+                  + "is hit / predicted")
+            .labelNames("outcome")
+            .register();
+
+    private static final Counter TRANSITIONS = Counter.build()
+            .name("omero_ms_thumbnail_prefetch_transitions_total")
+            .help("Number of page transitions learned and of learned "
+                  + "transitions used as predictions")
+            .labelNames("outcome")
+            .register();
+
+    private static final Gauge IN_FLIGHT = Gauge.build()
+            .name("omero_ms_thumbnail_prefetches_in_flight")
+            .help("Number of next page prefetches outstanding")
+            .register();
+
+    /** Smallest <code>get_thumbnails</code> request considered a page. */
+    private final int minPageSize;
+
+    /** Maximum number of prefetches outstanding. */
+    private final int maxInFlight;
+
+    /**
+     * Fraction of the worker verticles which may be busy for a prefetch to
+     * be started.
+     */
+    private final double idleThreshold;
+
+    /** Time in milliseconds a prediction is remembered for. */
+    private final long predictionTtl;
+
+    /**
+     * Time in milliseconds each prediction expires keyed by OMERO session,
+     * longest side and {@link omero.model.Image} identifier, oldest first.
+     */
+    private final LinkedHashMap<String, Long> predictions;
+
+    /**
+     * {@link omero.model.Image} identifier of the last image of the
+     * previous page requested keyed by OMERO session, least recently
+     * requested first.
+     */
+    private final LinkedHashMap<String, Long> lastImageIds;
+
+    /**
+     * {@link omero.model.Image} identifiers of the page requested after a
+     * page keyed by the last image of that page, least recently used first.
+     */
+    private final LinkedHashMap<Long, List<Long>> transitions;
+
+    /** Number of prefetches outstanding. */
+    private int inFlight;
+
+    /**
+     * Default constructor.
+     * @param minPageSize Smallest <code>get_thumbnails</code> request whose
+     * next page is prefetched.
+     * @param maxInFlight Maximum number of prefetches outstanding.
+     * @param idleThreshold Fraction of the worker verticles which may be
+     * busy for a prefetch to be started.
+     * @param predictionTtl Time in milliseconds a prediction is remembered
+     * for; predictions not requested within it are counted as unused.
+     * @param maxPredictions Maximum number of predictions remembered; the
+     * oldest are counted as unused and forgotten first. Also the maximum
+     * number of sessions and of page transitions remembered.
+     */
+    public ThumbnailPrefetcher(
+            int minPageSize, int maxInFlight, double idleThreshold,
+            long predictionTtl, int maxPredictions) {
+        this.minPageSize = minPageSize;
+        this.maxInFlight = maxInFlight;
+        this.idleThreshold = idleThreshold;
+        this.predictionTtl = predictionTtl;
+        this.predictions = new LinkedHashMap<String, Long>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> e) {
+                if (size() > maxPredictions) {
+                    PREDICTIONS.labels("unused").inc();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.lastImageIds = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> e) {
+                return size() > maxPredictions;
+            }
+        };
+        this.transitions =
+                new LinkedHashMap<Long, List<Long>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, List<Long>> e) {
+                return size() > maxPredictions;
+            }
+        };
+    }
+
+    /**
+     * Records a <code>get_thumbnails</code> request, counting the
+     * thumbnails it requests which were predicted and learning the
+     * transition from the previous page requested by the same session.
+     * @param omeroSessionKey OMERO session key of the request.
+     * @param longestSide Longest side of the requested thumbnails.
+     * @param imageIds Requested {@link omero.model.Image} identifiers, in
+     * request order.
+     */
+    public void observe(
+            String omeroSessionKey, int longestSide, List<Long> imageIds) {
+        expire();
+        for (Long imageId : imageIds) {
+            if (predictions.remove(
+                    key(omeroSessionKey, longestSide, imageId)) != null) {
+                PREDICTIONS.labels("hit").inc();
+            }
+        }
+        if (imageIds.size() < minPageSize) {
+            return;
+        }
+        Long previous = lastImageIds.put(
+                omeroSessionKey, imageIds.get(imageIds.size() - 1));
+        // A page overlapping the previous one is a repeat, not a transition
+        if (previous != null && !imageIds.contains(previous)) {
+            transitions.put(previous, new ArrayList<Long>(imageIds));
+            TRANSITIONS.labels("learned").inc();
+        }
+    }
+
+    /**
+     * Looks up the page learned to follow a page.
+     * @param imageIds {@link omero.model.Image} identifiers of the page
+     * requested, in request order.
+     * @return {@link omero.model.Image} identifiers of the page requested
+     * after it most recently or <code>null</code> if no transition has been
+     * learned.
+     */
+    public List<Long> predict(List<Long> imageIds) {
+        if (imageIds.isEmpty()) {
+            return null;
+        }
+        List<Long> next = transitions.get(imageIds.get(imageIds.size() - 1));
+        if (next != null) {
+            TRANSITIONS.labels("predicted").inc();
+        }
+        return next;
+    }
+
+    /**
+     * Starts a prefetch of the page following a <code>get_thumbnails</code>
+     * request if there is idle capacity; {@link #finish(String, int,
+     * Collection)} <b>must</b> be called once it completes.
+     * @param pageSize Number of images requested.
+     * @param busy Number of requests dispatched to the worker verticles.
+     * @param workers Number of worker verticles.
+     * @return Whether or not the prefetch may be started.
+     */
+    public boolean tryStart(int pageSize, int busy, int workers) {
+        if (pageSize < minPageSize) {
+            PREFETCHES.labels("skipped_small").inc();
+            return false;
+        }
+        if (inFlight >= maxInFlight || busy > idleThreshold * workers) {
+            PREFETCHES.labels("skipped_busy").inc();
+            return false;
+        }
+        inFlight++;
+        IN_FLIGHT.set(inFlight);
+        PREFETCHES.labels("started").inc();
+        return true;
+    }
+
+    /**
+     * Completes a prefetch started with {@link #tryStart(int, int, int)}.
+     * @param omeroSessionKey OMERO session key of the request.
+     * @param longestSide Longest side of the prefetched thumbnails.
+     * @param imageIds {@link omero.model.Image} identifiers whose thumbnails
+     * were prefetched or <code>null</code> if the prefetch failed.
+     */
+    public void finish(
+            String omeroSessionKey, int longestSide,
+            Collection<Long> imageIds) {
+        inFlight--;
+        IN_FLIGHT.set(inFlight);
+        if (imageIds == null) {
+            PREFETCHES.labels("failed").inc();
+            return;
+        }
+        PREFETCHES.labels(imageIds.isEmpty() ? "no_prediction" : "completed")
+            .inc();
+        long expires = System.currentTimeMillis() + predictionTtl;
+        for (Long imageId : imageIds) {
+            String key = key(omeroSessionKey, longestSide, imageId);
+            // Re-insert so that the prediction moves to the end of the
+            // expiry order
+            if (predictions.remove(key) == null) {
+                PREDICTIONS.labels("predicted").inc();
+            }
+            predictions.put(key, expires);
+        }
+    }
+
+    /**
+     * Forgets predictions which have expired, counting them as unused.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Long> i = predictions.values().iterator();
+        while (i.hasNext() && i.next() < now) {
+            i.remove();
+            PREDICTIONS.labels("unused").inc();
+        }
+    }
+
+    private String key(String omeroSessionKey, int longestSide, long imageId) {
+        return omeroSessionKey + ":" + longestSide + ":" + imageId;
+    }
+
+}
@@ -55,6 +55,31 @@ public class ThumbnailRequestHandler extends ThumbnailsRequestHandler {
      */
     protected Optional<Long> renderingDefId;
 
+    /**
+     * Whether or not the companion sizes are retrieved by
+     * {@link #fillCompanions()} rather than before the thumbnail is returned.
+     */
+    private boolean deferCompanions;
+
+    /**
+     * Thumbnail store, prepared for the thumbnail last retrieved from the
+     * server, whose companion sizes are yet to be retrieved; may be
+     * <code>null</code>.
+     */
+    private ThumbnailStorePrx companionStore;
+
+    /** Calling context of {@link #companionStore}. */
+    private Map<String, String> companionCtx;
+
+    /** Key of the thumbnail {@link #companionStore} is prepared for. */
+    private ThumbnailCache.Key companionKey;
+
+    /** Ticket taken before the thumbnail was retrieved. */
+    private long companionTicket;
+
+    /** Whether or not {@link #companionStore} may be reused. */
+    private boolean companionReusable;
+
     /**
      * Default constructor with the ability to specify a rendering definition
      * to use when requesting the thumbnail.
@@ -67,7 +92,24 @@ public class ThumbnailRequestHandler extends ThumbnailsRequestHandler {
      */
     public ThumbnailRequestHandler(
             int longestSide, long imageId, Optional<Long> renderingDefId) {
-        super(longestSide, Arrays.asList(imageId));
+        this(longestSide, imageId, renderingDefId, null);
+    }
+
+    /**
+     * Constructor with the ability to specify a rendering definition to use
+     * when requesting the thumbnail and a thumbnail cache.
+     * @param longestSide Size to confine or upscale the longest side of the
+     * thumbnail to. The other side will then proportionately, based on aspect
+     * ratio, be scaled accordingly.
+     * @param imageId {@link Image} identifier to request a thumbnail for.
+     * @param renderingDefId {@link RenderingDef} identifier of the rendering
+     * settings to use.
+     * @param cache Thumbnail cache to use; may be <code>null</code>.
+     */
+    public ThumbnailRequestHandler(
+            int longestSide, long imageId, Optional<Long> renderingDefId,
+            ThumbnailCache cache) {
+        super(longestSide, Arrays.asList(imageId), cache);
         this.renderingDefId = renderingDefId;
     }
 
@@ -83,8 +125,45 @@ public class ThumbnailRequestHandler extends ThumbnailsRequestHandler {
     }
 
     /**
-     * Retrieves a JPEG thumbnail from the server.
-     * @return JPEG thumbnail byte array.
+     * Sets whether or not the companion sizes of a thumbnail retrieved from
+     * the server are retrieved by {@link #fillCompanions()}, once the
+     * thumbnail has been replied with, rather than before it is returned.
+     * @param deferCompanions Whether or not to defer companion retrieval.
+     */
+    public void setDeferCompanions(boolean deferCompanions) {
+        this.deferCompanions = deferCompanions;
+    }
+
+    /**
+     * Retrieves and caches the companion sizes of the thumbnail last
+     * retrieved from the server, if their retrieval was deferred, and
+     * returns its thumbnail store. Must be called before the OMERO session
+     * is left.
+     * @throws ServerError If there was an error closing the thumbnail store.
+     * @see #setDeferCompanions(boolean)
+     */
+    public void fillCompanions() throws ServerError {
+        ThumbnailStorePrx thumbnailStore = companionStore;
+        if (thumbnailStore == null) {
+            return;
+        }
+        companionStore = null;
+        try {
+            getCompanionThumbnails(
+                    thumbnailStore, companionCtx, companionKey,
+                    companionTicket);
+        } finally {
+            closeThumbnailStore(thumbnailStore, companionReusable);
+        }
+    }
+
+    /**
+     * Retrieves a JPEG thumbnail from the server. Ice runtime exceptions,
+     * which indicate that the server is unavailable, are propagated as are,
+     * wrapped, server errors so that they are not mistaken for a missing
+     * image.
+     * @return JPEG thumbnail byte array or <code>null</code> if the image
+     * cannot be found.
      */
     public byte[] renderThumbnail(omero.client client) {
         try {
@@ -94,10 +173,10 @@ public class ThumbnailRequestHandler extends ThumbnailsRequestHandler {
                         client, images.get(0), longestSide, renderingDefId);
             }
             log.debug("Cannot find any Image:{}", imageIds.get(0));
-        } catch (Exception e) {
-            log.error("Exception while retrieving thumbnails", e);
+            return null;
+        } catch (ServerError e) {
+            throw new RuntimeException(e);
         }
-        return null;
     }
 
     /**
@@ -118,17 +197,40 @@ public class ThumbnailRequestHandler extends ThumbnailsRequestHandler {
             Optional<Long> renderingDefId)
                     throws ServerError{
         ScopedSpan span1 = Tracing.currentTracer().startScopedSpan("get_thumbnail");
+        long pixelsId = (Long) unwrap(image.getPrimaryPixels().getId());
+        if (profiler != null) {
+            profiler.recordRequest(pixelsId);
+        }
+        ThumbnailCache.Key key = null;
+        long ticket = 0;
+        if (cache != null) {
+            ticket = cache.ticket();
+            key = new ThumbnailCache.Key(
+                    pixelsId, longestSide,
+                    renderingDefId.orElse(
+                            ThumbnailCache.DEFAULT_RENDERING_DEF),
+                    getUserId(client));
+        }
+        if (cache != null && !refresh) {
+            byte[] thumbnail =
+                    lookup(key, (Long) unwrap(image.getId()), ticket);
+            cacheOutcome = thumbnail == null ? "miss" : "hit";
+            if (thumbnail != null) {
+                span1.finish();
+                return thumbnail;
+            }
+        }
+        long groupId = (Long) unwrap(image.getDetails().getGroup().getId());
         ThumbnailStorePrx thumbnailStore =
-                client.getSession().createThumbnailStore();
+                createThumbnailStore(client, groupId);
+        // Stores set to other than the default rendering settings are not
+        // left prepared for the next request
+        boolean reusable = false;
+        boolean deferred = false;
         try {
             Map<String, String> ctx = new HashMap<String, String>();
-            long pixelsId = (Long) unwrap(image.getPrimaryPixels().getId());
             // Assume all the groups are the same
-            ctx.put(
-                "omero.group",
-                String.valueOf(unwrap(
-                        image.getDetails().getGroup().getId()))
-            );
+            ctx.put("omero.group", String.valueOf(groupId));
 
             boolean hasRenderingSettings =
                     setPixelsId(ctx, thumbnailStore, pixelsId);
@@ -152,6 +254,9 @@ public class ThumbnailRequestHandler extends ThumbnailsRequestHandler {
                                 image.getDetails().getOwner().getId()))
                     );
                 }
+                if (profiler != null) {
+                    profiler.recordResetDefaults(pixelsId);
+                }
                 ScopedSpan span3 =
                         Tracing.currentTracer().startScopedSpan("reset_defaults");
                 try {
@@ -163,18 +268,84 @@ public class ThumbnailRequestHandler extends ThumbnailsRequestHandler {
             }
             ScopedSpan span4 =
                     Tracing.currentTracer().startScopedSpan("get_thumbnail_by_longest_side");
+            byte[] thumbnail;
+            long started = System.nanoTime();
             try {
-                return thumbnailStore.getThumbnailByLongestSide(
+                thumbnail = thumbnailStore.getThumbnailByLongestSide(
                         rint(longestSide), ctx);
             } finally {
                 span4.finish();
+                if (profiler != null) {
+                    profiler.recordRender(
+                            pixelsId, System.nanoTime() - started);
+                }
+            }
+            if (key != null && thumbnail != null) {
+                cache.put(key, ticket, thumbnail);
+                if (!deferCompanions) {
+                    getCompanionThumbnails(thumbnailStore, ctx, key, ticket);
+                }
+            }
+            byte[] transcoded = thumbnail == null
+                    ? null : transcode(key, ticket, thumbnail);
+            reusable = !renderingDefId.isPresent();
+            if (deferCompanions && key != null && thumbnail != null
+                    && !cache.getCompanionSizes().isEmpty()) {
+                // Left prepared until the thumbnail has been replied with
+                companionStore = thumbnailStore;
+                companionCtx = ctx;
+                companionKey = key;
+                companionTicket = ticket;
+                companionReusable = reusable;
+                deferred = true;
             }
+            return transcoded;
         } finally {
-            thumbnailStore.close();
+            if (!deferred) {
+                closeThumbnailStore(thumbnailStore, reusable);
+            }
             span1.finish();
         }
     }
 
+    /**
+     * Retrieves, using an already prepared thumbnail store, and caches the
+     * configured companion sizes of a thumbnail which are not already
+     * freshly cached. Failures are logged and otherwise ignored.
+     * @param thumbnailStore Thumbnail store set to the {@link Pixels} and
+     * rendering settings of the thumbnail.
+     * @param ctx Calling context.
+     * @param key Key of the thumbnail retrieved.
+     * @param ticket Ticket taken before the thumbnail was retrieved.
+     */
+    private void getCompanionThumbnails(
+            ThumbnailStorePrx thumbnailStore, Map<String, String> ctx,
+            ThumbnailCache.Key key, long ticket) {
+        for (int size : cache.getCompanionSizes()) {
+            ThumbnailCache.Key companionKey = new ThumbnailCache.Key(
+                    key.pixelsId, size, key.renderingDefId, key.userId);
+            if (size == key.longestSide || cache.isFresh(companionKey)) {
+                continue;
+            }
+            ScopedSpan span = Tracing.currentTracer().startScopedSpan(
+                    "get_companion_thumbnail");
+            span.tag("longest_side", String.valueOf(size));
+            try {
+                byte[] thumbnail = thumbnailStore.getThumbnailByLongestSide(
+                        rint(size), ctx);
+                if (thumbnail != null) {
+                    cache.putCompanion(companionKey, ticket, thumbnail);
+                }
+            } catch (Exception e) {
+                span.error(e);
+                log.warn("Exception while retrieving companion thumbnail " +
+                        "of size {} for {}", size, key, e);
+            } finally {
+                span.finish();
+            }
+        }
+    }
+
     /**
      * Sets the {@link Pixels} identifier on a thumbnail store in an
      * instrumented fashion.
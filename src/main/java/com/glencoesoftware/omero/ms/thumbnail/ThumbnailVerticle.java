@@ -20,10 +20,14 @@ package com.glencoesoftware.omero.ms.thumbnail;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.slf4j.LoggerFactory;
 
@@ -35,12 +39,18 @@ import Glacier2.CannotCreateSessionException;
 import Glacier2.PermissionDeniedException;
 import IceUtilInternal.Base64;
 import brave.ScopedSpan;
+import brave.Span;
+import brave.Tracer;
+import brave.Tracer.SpanInScope;
 import brave.Tracing;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import omero.ServerError;
 import omero.model.Image;
 
 /**
@@ -59,19 +69,86 @@ public class ThumbnailVerticle extends OmeroMsAbstractVerticle {
     public static final String RENDER_THUMBNAIL_EVENT =
             "omero.render_thumbnail";
 
+    public static final String RENDER_BIRDS_EYE_VIEW_EVENT =
+            "omero.render_birds_eye_view";
+
     public static final String GET_THUMBNAILS_EVENT =
             "omero.get_thumbnails";
 
-    /** OMERO server host */
-    private String host;
+    public static final String WARM_UP_EVENT =
+            "omero.thumbnail_warm_up";
+
+    public static final String GET_THUMBNAIL_ATLAS_EVENT =
+            "omero.get_thumbnail_atlas";
+
+    public static final String INVALIDATE_THUMBNAIL_CACHE_EVENT =
+            "omero.invalidate_thumbnail_cache";
+
+    public static final String REFRESH_THUMBNAIL_EVENT =
+            "omero.refresh_thumbnail";
+
+    public static final String REFRESH_BIRDS_EYE_VIEW_EVENT =
+            "omero.refresh_birds_eye_view";
+
+    public static final String PREFETCH_THUMBNAILS_EVENT =
+            "omero.prefetch_thumbnails";
+
+    /** Delivery header carrying the index of the OMERO backend to use */
+    public static final String BACKEND_HEADER = "omero.ms.backend";
+
+    /** Reply header carrying the time in milliseconds spent by the worker */
+    public static final String ELAPSED_HEADER = "omero.ms.elapsed";
 
-    /** OMERO server port */
-    private int port;
+    /** Reply header carrying the thumbnail cache outcome */
+    public static final String CACHE_HEADER = "omero.ms.cache";
+
+    /**
+     * Reply header carrying the comma separated {@link Image} identifiers
+     * whose stale cached thumbnails were served and claimed for refresh
+     */
+    public static final String REFRESH_HEADER = "omero.ms.refresh";
+
+    /** OMERO servers */
+    private List<OmeroBackends.Backend> backends;
+
+    /**
+     * Whether or not to use Ice asynchronous method invocation for
+     * thumbnail store calls
+     */
+    private boolean iceAmi;
+
+    /** Thumbnail cache shared by all workers; optional */
+    private ThumbnailCache cache;
+
+    /** Birds-eye view partition of the thumbnail cache; optional */
+    private ThumbnailCache birdsEyeViewCache;
+
+    /** Thumbnail atlas store shared with the HTTP verticle; optional */
+    private AtlasStore atlasStore;
+
+    /** Maximum number of images in a thumbnail atlas */
+    private int atlasMaxImages;
+
+    /** JPEG compression quality of thumbnail atlases */
+    private float atlasQuality;
+
+    /** Whether or not thumbnails may be re-encoded */
+    private boolean transcode;
+
+    /** Whether or not re-encoded thumbnails are progressive JPEGs */
+    private boolean transcodeProgressive;
+
+    /** Whether or not metadata is omitted from re-encoded thumbnails */
+    private boolean transcodeStripMetadata;
+
+    /** Pool of joined OMERO sessions shared by all workers; optional */
+    private OmeroSessionPool sessionPool;
+
+    /** Hot key profiler shared with the HTTP verticle; optional */
+    private HotKeyProfiler profiler;
 
     /**
      * Default constructor.
-     * @param host OMERO server host.
-     * @param port OMERO server port.
      */
     public ThumbnailVerticle() {
     }
@@ -88,13 +165,492 @@ public class ThumbnailVerticle extends OmeroMsAbstractVerticle {
             throw new IllegalArgumentException(
                 "'omero' block missing from configuration");
         }
-        host = omero.getString("host");
-        port = omero.getInteger("port");
+        backends = OmeroBackends.parse(omero);
+        iceAmi = config().getJsonObject("ice-ami", new JsonObject())
+                .getBoolean("enabled", false);
 
-        vertx.eventBus().<String>consumer(
-                RENDER_THUMBNAIL_EVENT, this::renderThumbnail);
-        vertx.eventBus().<String>consumer(
+        // Workers only consume from their own instance; when clustered
+        // requests are routed between instances by AffinityRouter
+        vertx.eventBus().<String>localConsumer(
+                RENDER_THUMBNAIL_EVENT,
+                message -> renderThumbnail(message, cache));
+        vertx.eventBus().<String>localConsumer(
+                RENDER_BIRDS_EYE_VIEW_EVENT,
+                message -> renderThumbnail(message, birdsEyeViewCache));
+        vertx.eventBus().<String>localConsumer(
                 GET_THUMBNAILS_EVENT, this::getThumbnails);
+        vertx.eventBus().<JsonObject>localConsumer(
+                WARM_UP_EVENT, this::warmUp);
+
+        JsonObject thumbnailCacheConfig =
+                config().getJsonObject("thumbnail-cache", new JsonObject());
+        if (thumbnailCacheConfig.getBoolean("enabled", false)) {
+            cache = ThumbnailCache.shared(vertx, thumbnailCacheConfig);
+            birdsEyeViewCache = ThumbnailCache.shared(
+                    vertx, ThumbnailCache.BIRDS_EYE_VIEW_PARTITION,
+                    ThumbnailCache.birdsEyeViewConfig(config()));
+            vertx.eventBus().<JsonObject>localConsumer(
+                    INVALIDATE_THUMBNAIL_CACHE_EVENT, this::invalidateCache);
+            vertx.eventBus().<String>localConsumer(
+                    REFRESH_THUMBNAIL_EVENT,
+                    message -> refreshThumbnails(message, cache));
+            vertx.eventBus().<String>localConsumer(
+                    REFRESH_BIRDS_EYE_VIEW_EVENT,
+                    message -> refreshThumbnails(message, birdsEyeViewCache));
+            vertx.eventBus().<String>localConsumer(
+                    PREFETCH_THUMBNAILS_EVENT, this::prefetchThumbnails);
+        }
+
+        JsonObject jpegTranscodeConfig =
+                config().getJsonObject("jpeg-transcode", new JsonObject());
+        transcode = jpegTranscodeConfig.getBoolean("enabled", false);
+        transcodeProgressive =
+                jpegTranscodeConfig.getBoolean("progressive", true);
+        transcodeStripMetadata =
+                jpegTranscodeConfig.getBoolean("strip-metadata", true);
+
+        JsonObject sessionPoolConfig =
+                config().getJsonObject("session-pool", new JsonObject());
+        if (sessionPoolConfig.getBoolean("enabled", false)) {
+            sessionPool = OmeroSessionPool.shared(vertx, sessionPoolConfig);
+        }
+
+        JsonObject hotKeysConfig =
+                config().getJsonObject("hot-keys", new JsonObject());
+        if (hotKeysConfig.getBoolean("enabled", false)) {
+            profiler = HotKeyProfiler.shared(vertx, hotKeysConfig);
+        }
+
+        JsonObject thumbnailAtlasConfig =
+                config().getJsonObject("thumbnail-atlas", new JsonObject());
+        if (thumbnailAtlasConfig.getBoolean("enabled", false)) {
+            atlasStore = AtlasStore.shared(vertx, thumbnailAtlasConfig);
+            atlasMaxImages =
+                    thumbnailAtlasConfig.getInteger("max-images", 500);
+            atlasQuality =
+                    thumbnailAtlasConfig.getFloat("quality", 0.85f);
+            vertx.eventBus().<String>localConsumer(
+                    GET_THUMBNAIL_ATLAS_EVENT, this::getThumbnailAtlas);
+        }
+    }
+
+    /**
+     * Warm-up event handler. Establishes connectivity to the OMERO servers,
+     * loading and initializing the Ice runtime in the process, and responds
+     * with an empty body if at least one is reachable or a failure. If a
+     * warm-up OMERO session is configured it is then joined on each backend,
+     * pre-creating a pooled session if the session pool is enabled, and the
+     * configured hot {@link omero.model.Pixels} are preloaded into the
+     * thumbnail cache if requested. Failures of either are logged and do not
+     * fail the warm-up.
+     * @param message Event data; if <code>preload</code> (Boolean) is
+     * <code>true</code> the hot {@link omero.model.Pixels} are preloaded.
+     */
+    private void warmUp(Message<JsonObject> message) {
+        boolean reachable = false;
+        for (OmeroBackends.Backend backend : backends) {
+            omero.client client = null;
+            try {
+                client = new omero.client(backend.host, backend.port);
+                client.getCommunicator().getDefaultRouter().ice_ping();
+                reachable = true;
+            } catch (Exception e) {
+                log.warn("OMERO server unreachable: {}", backend, e);
+            } finally {
+                if (client != null) {
+                    client.__del__();
+                }
+            }
+        }
+        if (!reachable) {
+            message.fail(503, "OMERO server unreachable");
+            return;
+        }
+        JsonObject warmUpConfig =
+                config().getJsonObject("warm-up", new JsonObject());
+        String omeroSessionKey = warmUpConfig.getString("omero-session-key");
+        if (omeroSessionKey != null) {
+            boolean preload = Optional.ofNullable(message.body())
+                    .map(body -> body.getBoolean("preload", false))
+                    .orElse(false);
+            for (OmeroBackends.Backend backend : backends) {
+                // Backends share a database so one preload suffices
+                if (warmUpSession(backend, omeroSessionKey,
+                        preload ? warmUpConfig : null)) {
+                    preload = false;
+                }
+            }
+        }
+        message.reply(null);
+    }
+
+    /**
+     * Joins the warm-up OMERO session on a backend, returning it to the
+     * session pool if enabled, and optionally preloads hot
+     * {@link omero.model.Pixels} using it.
+     * @param backend Backend to join the session on.
+     * @param omeroSessionKey Warm-up OMERO session key.
+     * @param warmUpConfig <code>warm-up</code> configuration block if hot
+     * {@link omero.model.Pixels} are to be preloaded, otherwise
+     * <code>null</code>.
+     * @return Whether or not the session was joined.
+     */
+    private boolean warmUpSession(
+            OmeroBackends.Backend backend, String omeroSessionKey,
+            JsonObject warmUpConfig) {
+        JsonObject preloadConfig = warmUpConfig == null ? new JsonObject()
+                : warmUpConfig.getJsonObject("preload", new JsonObject());
+        List<Long> pixelsIds = ids(preloadConfig, "pixels-ids");
+        if (sessionPool == null && pixelsIds.isEmpty()) {
+            return false;
+        }
+        try (OmeroSessionPool.Lease lease = sessionPool == null
+                ? OmeroSessionPool.Lease.unpooled(new OmeroRequest(
+                        backend.host, backend.port, omeroSessionKey))
+                : sessionPool.lease(
+                        backend.host, backend.port, omeroSessionKey)) {
+            if (pixelsIds.isEmpty()) {
+                return true;
+            }
+            if (cache == null) {
+                log.warn("Preload requires the thumbnail cache; skipped");
+                return true;
+            }
+            List<Integer> longestSides = new ArrayList<Integer>();
+            JsonArray longestSidesJson = preloadConfig.getJsonArray(
+                    "longest-sides", new JsonArray().add(96));
+            for (int i = 0; i < longestSidesJson.size(); i++) {
+                longestSides.add(longestSidesJson.getInteger(i));
+            }
+            long started = System.currentTimeMillis();
+            PreloadRequestHandler handler = new PreloadRequestHandler(
+                    pixelsIds, longestSides, cache);
+            handler.setLease(lease);
+            Integer preloaded = lease.execute(handler::preload);
+            if (preloaded != null) {
+                log.info("Preloaded thumbnails of {} Images in {} ms",
+                        preloaded, System.currentTimeMillis() - started);
+            }
+            return true;
+        } catch (Exception e) {
+            log.warn("Warm-up OMERO session failed on {}", backend, e);
+            return false;
+        }
+    }
+
+    /**
+     * Joins an OMERO session on the backend selected by the sender of a
+     * message, or the first backend if none was selected.
+     * @param message Message being handled.
+     * @param omeroSessionKey OMERO session key to join.
+     * @return See above.
+     * @throws PermissionDeniedException If the session cannot be joined.
+     * @throws CannotCreateSessionException If the session cannot be joined.
+     * @throws ServerError If there was any other error joining the session.
+     */
+    private OmeroRequest omeroRequest(
+            Message<?> message, String omeroSessionKey)
+                    throws PermissionDeniedException,
+                        CannotCreateSessionException, ServerError {
+        OmeroBackends.Backend backend = backend(message);
+        return new OmeroRequest(backend.host, backend.port, omeroSessionKey);
+    }
+
+    /**
+     * Leases a joined OMERO session, from the session pool if enabled, on the
+     * backend selected by the sender of a message, or the first backend if
+     * none was selected.
+     * @param message Message being handled.
+     * @param omeroSessionKey OMERO session key to join.
+     * @return See above.
+     * @throws PermissionDeniedException If the session cannot be joined.
+     * @throws CannotCreateSessionException If the session cannot be joined.
+     * @throws ServerError If there was any other error joining the session.
+     */
+    private OmeroSessionPool.Lease lease(
+            Message<?> message, String omeroSessionKey)
+                    throws PermissionDeniedException,
+                        CannotCreateSessionException, ServerError {
+        if (sessionPool == null) {
+            return OmeroSessionPool.Lease.unpooled(
+                    omeroRequest(message, omeroSessionKey));
+        }
+        OmeroBackends.Backend backend = backend(message);
+        return sessionPool.lease(backend.host, backend.port, omeroSessionKey);
+    }
+
+    /**
+     * @param message Message being handled.
+     * @return Backend selected by the sender of the message, or the first
+     * backend if none was selected.
+     */
+    private OmeroBackends.Backend backend(Message<?> message) {
+        String index = message.headers().get(BACKEND_HEADER);
+        return backends.get(index == null ? 0 : Integer.parseInt(index));
+    }
+
+    /**
+     * Maps an unexpected exception to a failure code. Ice runtime exceptions
+     * indicate that the OMERO server is unavailable rather than an error
+     * handling the request.
+     * @param e Exception to map.
+     * @return See above.
+     */
+    private int failureCode(Throwable e) {
+        return e instanceof Ice.LocalException ? 503 : 500;
+    }
+
+    /**
+     * Thumbnail cache invalidation event handler. Invalidates all cache
+     * partitions. Responds with a JSON dictionary containing the number of
+     * {@link omero.model.Pixels} invalidated (<code>pixels</code>) and cache
+     * entries removed (<code>invalidated</code>) on success or a failure.
+     * @param message JSON encoded event data. If <code>all</code> (Boolean)
+     * is <code>true</code> all entries are invalidated. Otherwise the
+     * thumbnails of <code>pixelsIds</code>, <code>imageIds</code>,
+     * <code>renderingDefIds</code>, <code>datasetIds</code> and
+     * <code>plateIds</code> (List<Long>) are, limited to those the user of
+     * the session of <code>omeroSessionKey</code> (String), which is then
+     * required, can read.
+     */
+    private void invalidateCache(Message<JsonObject> message) {
+        JsonObject body = Optional.ofNullable(message.body())
+                .orElse(new JsonObject());
+        if (body.getBoolean("all", false)) {
+            message.reply(new JsonObject()
+                    .put("invalidated", cache.invalidate()
+                            + birdsEyeViewCache.invalidate()));
+            return;
+        }
+        Set<Long> pixelsIds = new HashSet<Long>();
+        List<Long> requestedPixelsIds = ids(body, "pixelsIds");
+        List<Long> imageIds = ids(body, "imageIds");
+        List<Long> renderingDefIds = ids(body, "renderingDefIds");
+        List<Long> datasetIds = ids(body, "datasetIds");
+        List<Long> plateIds = ids(body, "plateIds");
+        if (!requestedPixelsIds.isEmpty() || !imageIds.isEmpty()
+                || !renderingDefIds.isEmpty() || !datasetIds.isEmpty()
+                || !plateIds.isEmpty()) {
+            String omeroSessionKey = body.getString("omeroSessionKey");
+            if (omeroSessionKey == null) {
+                message.fail(400, "OMERO session key required");
+                return;
+            }
+            try (OmeroRequest request =
+                    omeroRequest(message, omeroSessionKey)) {
+                Set<Long> resolved = request.execute(
+                        new PixelsIdsRequestHandler(
+                                requestedPixelsIds, imageIds,
+                                renderingDefIds, datasetIds,
+                                plateIds)::resolvePixelsIds);
+                if (resolved == null) {
+                    message.fail(500, "Exception while resolving Pixels");
+                    return;
+                }
+                pixelsIds.addAll(resolved);
+            } catch (PermissionDeniedException
+                     | CannotCreateSessionException e) {
+                String v = "Permission denied";
+                log.debug(v);
+                message.fail(403, v);
+                return;
+            } catch (Exception e) {
+                String v = "Exception while resolving Pixels";
+                log.error(v, e);
+                message.fail(failureCode(e), v);
+                return;
+            }
+        }
+        int removed = cache.invalidate(pixelsIds)
+                + birdsEyeViewCache.invalidate(pixelsIds);
+        message.reply(new JsonObject()
+                .put("pixels", pixelsIds.size())
+                .put("invalidated", removed));
+    }
+
+    /**
+     * Retrieves an optional list of identifiers from event data.
+     * @param body JSON encoded event data.
+     * @param name Name of the list.
+     * @return See above; empty if the list is not present.
+     */
+    private List<Long> ids(JsonObject body, String name) {
+        List<Long> ids = new ArrayList<Long>();
+        JsonArray idsJson = body.getJsonArray(name, new JsonArray());
+        for (int i = 0; i < idsJson.size(); i++) {
+            ids.add(idsJson.getLong(i));
+        }
+        return ids;
+    }
+
+    /**
+     * @param thumbnailCtx Context of the request.
+     * @return Transcoder to re-encode the requested thumbnails with or
+     * <code>null</code> if they are to be returned as retrieved from the
+     * server.
+     */
+    private JpegTranscoder transcoder(ThumbnailCtx thumbnailCtx) {
+        if (!transcode || thumbnailCtx.quality == null) {
+            return null;
+        }
+        return new JpegTranscoder(
+                thumbnailCtx.quality, transcodeProgressive,
+                transcodeStripMetadata);
+    }
+
+    /**
+     * Builds the delivery options of a successful reply, including headers
+     * describing how the request was handled.
+     * @param started {@link System#nanoTime()} when handling started.
+     * @param handler Handler which handled the request.
+     * @return See above.
+     */
+    private DeliveryOptions replyOptions(
+            long started, ThumbnailsRequestHandler handler) {
+        DeliveryOptions options = new DeliveryOptions().addHeader(
+                ELAPSED_HEADER,
+                String.valueOf(TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - started)));
+        if (handler.getCacheOutcome() != null) {
+            options.addHeader(CACHE_HEADER, handler.getCacheOutcome());
+        }
+        List<Long> refreshImageIds = handler.getRefreshImageIds();
+        if (!refreshImageIds.isEmpty()) {
+            options.addHeader(REFRESH_HEADER, refreshImageIds.stream()
+                    .map(String::valueOf)
+                    .collect(Collectors.joining(",")));
+        }
+        return options;
+    }
+
+    /**
+     * Refresh thumbnails event handler. Retrieves the thumbnails of a batch
+     * of images from the server bypassing, but filling, the thumbnail cache.
+     * Thumbnails with the default rendering settings are retrieved with a
+     * single thumbnail store call. Responds with an empty body on success or
+     * a failure.
+     * @param message JSON encoded event data. Required keys are
+     * <code>omeroSessionKey</code> (String), <code>longestSide</code>
+     * (Integer), and <code>imageIds</code> (List<Long>). If
+     * <code>renderingDefId</code> (Long) is set each thumbnail is retrieved
+     * with those rendering settings in turn.
+     * @param cache Thumbnail cache partition to fill.
+     */
+    private void refreshThumbnails(
+            Message<String> message, ThumbnailCache cache) {
+        ObjectMapper mapper = new ObjectMapper();
+        ThumbnailCtx thumbnailCtx;
+        try {
+            thumbnailCtx = mapper.readValue(message.body(), ThumbnailCtx.class);
+        } catch (Exception e) {
+            String v = "Illegal tile context";
+            log.error(v + ": {}", message.body(), e);
+            message.fail(400, v);
+            return;
+        }
+        ScopedSpan span = Tracing.currentTracer()
+                .startScopedSpan("refresh_thumbnails");
+        List<Long> imageIds = thumbnailCtx.imageIds;
+        log.debug(
+            "Refresh thumbnails request ImageIds:{} longest side {} " +
+            "RenderingDef:{}", imageIds, thumbnailCtx.longestSide,
+            thumbnailCtx.renderingDefId);
+
+        try (OmeroSessionPool.Lease lease =
+                lease(message, thumbnailCtx.omeroSessionKey)) {
+            if (thumbnailCtx.renderingDefId == null) {
+                ThumbnailsRequestHandler handler =
+                        new ThumbnailsRequestHandler(
+                                thumbnailCtx.longestSide, imageIds, cache);
+                handler.setRefresh(true);
+                handler.setTranscoder(transcoder(thumbnailCtx));
+                handler.setLease(lease);
+                lease.execute(handler::renderThumbnails);
+            } else {
+                for (Long imageId : imageIds) {
+                    ThumbnailRequestHandler handler =
+                            new ThumbnailRequestHandler(
+                                    thumbnailCtx.longestSide, imageId,
+                                    Optional.of(thumbnailCtx.renderingDefId),
+                                    cache);
+                    handler.setRefresh(true);
+                    handler.setTranscoder(transcoder(thumbnailCtx));
+                    handler.setLease(lease);
+                    lease.execute(handler::renderThumbnail);
+                }
+            }
+            message.reply(null);
+        } catch (PermissionDeniedException
+                 | CannotCreateSessionException e) {
+            // Session may have expired since the stale thumbnails were served
+            String v = "Permission denied";
+            log.debug(v);
+            message.fail(403, v);
+        } catch (Exception e) {
+            String v = "Exception while refreshing thumbnails";
+            log.debug(v + " of ImageIds:{}", imageIds, e);
+            message.fail(failureCode(e), v);
+        } finally {
+            span.finish();
+        }
+    }
+
+    /**
+     * Prefetch thumbnails event handler. Retrieves the thumbnails of the page
+     * predicted to follow a page of thumbnails into the cache and responds
+     * with a JSON array of the {@link Image} identifiers of the predicted
+     * page, which is empty if there is no prediction, or a failure.
+     * @param message JSON encoded event data of the page requested. Required
+     * keys are <code>omeroSessionKey</code> (String), <code>longestSide</code>
+     * (Integer), and <code>imageIds</code> (List).
+     */
+    private void prefetchThumbnails(Message<String> message) {
+        ObjectMapper mapper = new ObjectMapper();
+        ThumbnailCtx thumbnailCtx;
+        try {
+            thumbnailCtx = mapper.readValue(message.body(), ThumbnailCtx.class);
+        } catch (Exception e) {
+            String v = "Illegal tile context";
+            log.error(v + ": {}", message.body(), e);
+            message.fail(400, v);
+            return;
+        }
+        ScopedSpan span = Tracing.currentTracer()
+                .startScopedSpan("prefetch_thumbnails");
+        JsonArray imageIdsJson = new JsonArray(thumbnailCtx.imageIds);
+        List<Long> imageIds = new ArrayList<Long>();
+        for (int i = 0; i < imageIdsJson.size(); i++) {
+            imageIds.add(imageIdsJson.getLong(i));
+        }
+        log.debug(
+            "Prefetch thumbnails request ImageIds:{} longest side {}",
+            imageIds, thumbnailCtx.longestSide);
+
+        try (OmeroSessionPool.Lease lease =
+                lease(message, thumbnailCtx.omeroSessionKey)) {
+            PrefetchRequestHandler handler = new PrefetchRequestHandler(
+                    thumbnailCtx.longestSide, imageIds,
+                    thumbnailCtx.nextImageIds, cache);
+            handler.setTranscoder(transcoder(thumbnailCtx));
+            handler.setLease(lease);
+            List<Long> predicted = lease.execute(handler::prefetch);
+            if (predicted == null) {
+                message.fail(500, "Exception while prefetching thumbnails");
+            } else {
+                message.reply(new JsonArray(predicted).encode());
+            }
+        } catch (PermissionDeniedException
+                 | CannotCreateSessionException e) {
+            String v = "Permission denied";
+            log.debug(v);
+            message.fail(403, v);
+        } catch (Exception e) {
+            String v = "Exception while prefetching thumbnails";
+            log.error(v, e);
+            message.fail(failureCode(e), v);
+        } finally {
+            span.finish();
+        }
     }
 
     /**
@@ -103,11 +659,14 @@ public class ThumbnailVerticle extends OmeroMsAbstractVerticle {
      * @param message JSON encoded event data. Required keys are
      * <code>omeroSessionKey</code> (String), <code>longestSide</code>
      * (Integer), and <code>imageId</code> (Long).
+     * @param cache Thumbnail cache partition to use; may be
+     * <code>null</code>.
      */
-    private void renderThumbnail(Message<String> message) {
+    private void renderThumbnail(
+            Message<String> message, ThumbnailCache cache) {
+        long started = System.nanoTime();
         ObjectMapper mapper = new ObjectMapper();
         ThumbnailCtx thumbnailCtx;
-        log.info(message.body());
         try {
             thumbnailCtx = mapper.readValue(message.body(), ThumbnailCtx.class);
         } catch (Exception e) {
@@ -116,6 +675,10 @@ public class ThumbnailVerticle extends OmeroMsAbstractVerticle {
             message.fail(400, v);
             return;
         }
+        if (iceAmi) {
+            renderThumbnailAsync(message, thumbnailCtx, started, cache);
+            return;
+        }
 
         ScopedSpan span = Tracing.currentTracer().startScopedSpanWithParent(
                 "render_thumbnail",
@@ -128,14 +691,21 @@ public class ThumbnailVerticle extends OmeroMsAbstractVerticle {
             "Render thumbnail request Image:{} longest side {} RenderingDef:{}",
             imageId, longestSide, renderingDefId.orElse(null));
 
-        try (OmeroRequest request = new OmeroRequest(
-                 host, port, omeroSessionKey)) {
-            byte[] thumbnail = request.execute(new ThumbnailRequestHandler(
-                    longestSide, imageId, renderingDefId)::renderThumbnail);
+        try (OmeroSessionPool.Lease lease =
+                lease(message, omeroSessionKey)) {
+            ThumbnailRequestHandler handler = new ThumbnailRequestHandler(
+                    longestSide, imageId, renderingDefId, cache);
+            handler.setTranscoder(transcoder(thumbnailCtx));
+            handler.setLease(lease);
+            handler.setProfiler(profiler);
+            handler.setDeferCompanions(true);
+            byte[] thumbnail =
+                    lease.execute(handler::renderThumbnail);
             if (thumbnail == null) {
                 message.fail(404, "Cannot find Image:" + imageId);
             } else {
-                message.reply(thumbnail);
+                message.reply(thumbnail, replyOptions(started, handler));
+                fillCompanions(handler);
             }
         } catch (PermissionDeniedException
                  | CannotCreateSessionException e) {
@@ -145,12 +715,104 @@ public class ThumbnailVerticle extends OmeroMsAbstractVerticle {
         } catch (Exception e) {
             String v = "Exception while retrieving thumbnail";
             log.error(v, e);
-            message.fail(500, v);
+            message.fail(failureCode(e), v);
         } finally {
             span.finish();
         }
     }
 
+    /**
+     * Retrieves the companion sizes of a thumbnail which has been replied
+     * with. Failures are logged and otherwise ignored.
+     * @param handler Handler which retrieved the thumbnail.
+     */
+    private void fillCompanions(ThumbnailRequestHandler handler) {
+        try {
+            handler.fillCompanions();
+        } catch (Exception e) {
+            log.warn("Exception while retrieving companion thumbnails", e);
+        }
+    }
+
+    /**
+     * Render thumbnail event handler continuation which makes thumbnail store
+     * calls using Ice asynchronous method invocation. The worker thread is
+     * released once the OMERO session is joined and the image is found; the
+     * OMERO session is returned to the session pool, if enabled, or left once
+     * the reply has been sent and any companion sizes retrieved.
+     * @param message Event being handled.
+     * @param thumbnailCtx Decoded event data.
+     * @param started {@link System#nanoTime()} when handling started.
+     * @param cache Thumbnail cache partition to use; may be
+     * <code>null</code>.
+     * @see AsyncThumbnailRequestHandler
+     */
+    private void renderThumbnailAsync(
+            Message<String> message, ThumbnailCtx thumbnailCtx,
+            long started, ThumbnailCache cache) {
+        Tracer tracer = Tracing.currentTracer();
+        Span span = tracer.nextSpan(
+                extractor().extract(thumbnailCtx.traceContext))
+                    .name("render_thumbnail")
+                    .start();
+        long imageId = thumbnailCtx.imageId;
+        log.debug(
+            "Render thumbnail request Image:{} longest side {} RenderingDef:{}",
+            imageId, thumbnailCtx.longestSide, thumbnailCtx.renderingDefId);
+
+        try (SpanInScope ws = tracer.withSpanInScope(span)) {
+            OmeroSessionPool.Lease lease =
+                    lease(message, thumbnailCtx.omeroSessionKey);
+            AsyncThumbnailRequestHandler handler =
+                    new AsyncThumbnailRequestHandler(
+                            thumbnailCtx.longestSide, imageId,
+                            Optional.ofNullable(thumbnailCtx.renderingDefId),
+                            cache, context);
+            handler.setTranscoder(transcoder(thumbnailCtx));
+            handler.setLease(lease);
+            handler.setProfiler(profiler);
+            Future<byte[]> thumbnail;
+            try {
+                thumbnail =
+                        lease.execute(handler::renderThumbnailAsync);
+            } catch (Exception e) {
+                lease.close();
+                throw e;
+            }
+            thumbnail.onComplete(result -> {
+                try {
+                    if (result.failed()) {
+                        lease.markFailed();
+                        String v = "Exception while retrieving thumbnail";
+                        log.error(v, result.cause());
+                        message.fail(failureCode(result.cause()), v);
+                    } else if (result.result() == null) {
+                        message.fail(404, "Cannot find Image:" + imageId);
+                    } else {
+                        message.reply(
+                                result.result(),
+                                replyOptions(started, handler));
+                    }
+                } finally {
+                    span.finish();
+                }
+            });
+            // Companion sizes are retrieved after the reply
+            handler.released().onComplete(result -> lease.close());
+        } catch (PermissionDeniedException
+                 | CannotCreateSessionException e) {
+            String v = "Permission denied";
+            log.debug(v);
+            message.fail(403, v);
+            span.finish();
+        } catch (Exception e) {
+            String v = "Exception while retrieving thumbnail";
+            log.error(v, e);
+            message.fail(failureCode(e), v);
+            span.finish();
+        }
+    }
+
     /**
      * Get thumbnails event handler. Responds with a JSON dictionary of Base64
      * encoded <code>image/jpeg</code> thumbnails keyed by {@link Image}
@@ -162,6 +824,7 @@ public class ThumbnailVerticle extends OmeroMsAbstractVerticle {
      * (Integer), and <code>imageIds</code> (List<Long>).
      */
     private void getThumbnails(Message<String> message) {
+        long started = System.nanoTime();
         ObjectMapper mapper = new ObjectMapper();
         ThumbnailCtx thumbnailCtx;
         try {
@@ -186,11 +849,15 @@ public class ThumbnailVerticle extends OmeroMsAbstractVerticle {
             "Render thumbnail request ImageIds:{} longest side {}",
             imageIds, longestSide);
 
-        try (OmeroRequest request = new OmeroRequest(
-                host, port, omeroSessionKey)) {
-            Map<Long, byte[]> thumbnails = request.execute(
-                    new ThumbnailsRequestHandler(
-                            longestSide, imageIds)::renderThumbnails);
+        try (OmeroSessionPool.Lease lease =
+                lease(message, omeroSessionKey)) {
+            ThumbnailsRequestHandler handler = new ThumbnailsRequestHandler(
+                    longestSide, imageIds, cache);
+            handler.setTranscoder(transcoder(thumbnailCtx));
+            handler.setLease(lease);
+            handler.setProfiler(profiler);
+            Map<Long, byte[]> thumbnails =
+                    lease.execute(handler::renderThumbnails);
 
             if (thumbnails == null) {
                 message.fail(404, "Cannot find one or more Images");
@@ -202,7 +869,9 @@ public class ThumbnailVerticle extends OmeroMsAbstractVerticle {
                         "data:image/jpeg;base64," + Base64.encode(v.getValue())
                     );
                 }
-                message.reply(Json.encode(thumbnailsJson));
+                message.reply(
+                        Json.encode(thumbnailsJson),
+                        replyOptions(started, handler));
             }
         } catch (PermissionDeniedException
                  | CannotCreateSessionException e) {
@@ -212,7 +881,67 @@ public class ThumbnailVerticle extends OmeroMsAbstractVerticle {
         } catch (Exception e) {
             String v = "Exception while retrieving thumbnail";
             log.error(v, e);
-            message.fail(500, v);
+            message.fail(failureCode(e), v);
+        } finally {
+            span.finish();
+        }
+    }
+
+    /**
+     * Get thumbnail atlas event handler. Composes the thumbnails of a set of
+     * images, or of the images of a container, into a single JPEG atlas
+     * placed in the shared {@link AtlasStore} and responds with its JSON
+     * index on success or a failure.
+     * @param message JSON encoded event data. Required keys are
+     * <code>omeroSessionKey</code> (String), <code>longestSide</code>
+     * (Integer) and one of <code>imageIds</code> (List<Long>),
+     * <code>datasetId</code> (Long) or <code>plateId</code> (Long).
+     * @see ThumbnailAtlasRequestHandler#renderAtlas(omero.client)
+     */
+    private void getThumbnailAtlas(Message<String> message) {
+        long started = System.nanoTime();
+        ObjectMapper mapper = new ObjectMapper();
+        ThumbnailCtx thumbnailCtx;
+        try {
+            thumbnailCtx = mapper.readValue(message.body(), ThumbnailCtx.class);
+        } catch (Exception e) {
+            String v = "Illegal tile context";
+            log.error(v + ": {}", message.body(), e);
+            message.fail(400, v);
+            return;
+        }
+        ScopedSpan span = Tracing.currentTracer().startScopedSpanWithParent(
+                "get_thumbnail_atlas",
+                extractor().extract(thumbnailCtx.traceContext).context());
+        log.debug(
+            "Thumbnail atlas request ImageIds:{} Dataset:{} Plate:{} " +
+            "longest side {}", thumbnailCtx.imageIds, thumbnailCtx.datasetId,
+            thumbnailCtx.plateId, thumbnailCtx.longestSide);
+
+        try (OmeroSessionPool.Lease lease =
+                lease(message, thumbnailCtx.omeroSessionKey)) {
+            ThumbnailAtlasRequestHandler handler =
+                    new ThumbnailAtlasRequestHandler(
+                            thumbnailCtx.longestSide, thumbnailCtx.imageIds,
+                            thumbnailCtx.datasetId, thumbnailCtx.plateId,
+                            cache, atlasStore, atlasMaxImages, atlasQuality);
+            handler.setLease(lease);
+            handler.setProfiler(profiler);
+            JsonObject index = lease.execute(handler::renderAtlas);
+            if (index == null) {
+                message.fail(404, "Cannot find one or more Images");
+            } else {
+                message.reply(index.encode(), replyOptions(started, handler));
+            }
+        } catch (PermissionDeniedException
+                 | CannotCreateSessionException e) {
+            String v = "Permission denied";
+            log.debug(v);
+            message.fail(403, v);
+        } catch (Exception e) {
+            String v = "Exception while composing thumbnail atlas";
+            log.error(v, e);
+            message.fail(failureCode(e), v);
         } finally {
             span.finish();
         }
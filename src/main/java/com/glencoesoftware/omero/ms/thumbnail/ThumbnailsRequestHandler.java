@@ -23,6 +23,7 @@ import static omero.rtypes.unwrap;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -30,6 +31,7 @@ import java.util.stream.Collectors;
 
 import org.slf4j.LoggerFactory;
 
+import omero.RType;
 import omero.ServerError;
 import omero.api.ThumbnailStorePrx;
 import omero.model.IObject;
@@ -51,12 +53,65 @@ public class ThumbnailsRequestHandler {
     private static final org.slf4j.Logger log =
             LoggerFactory.getLogger(ThumbnailsRequestHandler.class);
 
+    /**
+     * Projection query of the {@link Image} identifiers of a
+     * {@link omero.model.Dataset} in order.
+     */
+    protected static final String DATASET_IMAGE_IDS =
+            "SELECT l.child.id FROM DatasetImageLink AS l " +
+            "WHERE l.parent.id = :id ORDER BY l.child.id";
+
+    /**
+     * Projection query of the {@link Image} identifiers of a
+     * {@link omero.model.Plate} in well order.
+     */
+    protected static final String PLATE_IMAGE_IDS =
+            "SELECT ws.image.id FROM WellSample AS ws " +
+            "WHERE ws.well.plate.id = :id " +
+            "ORDER BY ws.well.row, ws.well.column, ws.id";
+
     /** Longest side of the thumbnail. */
     protected final int longestSide;
 
     /** Image identifiers to request thumbnails for. */
     protected final List<Long> imageIds;
 
+    /** Thumbnail cache to use; may be <code>null</code>. */
+    protected final ThumbnailCache cache;
+
+    /**
+     * Outcome of the thumbnail cache lookup(s) or <code>null</code> if the
+     * cache was not consulted.
+     */
+    protected String cacheOutcome;
+
+    /**
+     * {@link Image} identifiers whose cached thumbnails were stale and whose
+     * background refresh this handler claimed.
+     */
+    protected final List<Long> refreshImageIds = new ArrayList<Long>();
+
+    /**
+     * Whether or not this handler is refreshing stale cache entries, in
+     * which case the cache is filled but not consulted.
+     */
+    protected boolean refresh;
+
+    /**
+     * Transcoder thumbnails are re-encoded with or <code>null</code> if they
+     * are returned as retrieved from the server.
+     */
+    protected JpegTranscoder transcoder;
+
+    /**
+     * Lease of the pooled session thumbnail stores are retrieved from or
+     * <code>null</code> if they are created and closed for each request.
+     */
+    protected OmeroSessionPool.Lease lease;
+
+    /** Hot key profiler requests are recorded in; may be <code>null</code>. */
+    protected HotKeyProfiler profiler;
+
     /**
      * Default constructor.
      * @param longestSide Size to confine or upscale the longest side of the
@@ -65,26 +120,95 @@ public class ThumbnailsRequestHandler {
      * @param imageIds {@link Image} identifiers to request thumbnails for.
      */
     public ThumbnailsRequestHandler(int longestSide, List<Long> imageIds) {
+        this(longestSide, imageIds, null);
+    }
+
+    /**
+     * Constructor with the ability to specify a thumbnail cache.
+     * @param longestSide Size to confine or upscale the longest side of the
+     * thumbnail to. The other side will then proportionately, based on aspect
+     * ratio, be scaled accordingly.
+     * @param imageIds {@link Image} identifiers to request thumbnails for.
+     * @param cache Thumbnail cache to use; may be <code>null</code>.
+     */
+    public ThumbnailsRequestHandler(
+            int longestSide, List<Long> imageIds, ThumbnailCache cache) {
         this.longestSide = longestSide;
         this.imageIds = imageIds;
+        this.cache = cache;
     }
 
     /**
-     * Retrieves a map of JPEG thumbnails from the server.
-     * @return Map of {@link Image} identifier to JPEG thumbnail byte array.
+     * @return Outcome of the thumbnail cache lookup(s), one of
+     * <code>hit</code>, <code>miss</code> or <code>partial</code>, or
+     * <code>null</code> if the cache was not consulted.
+     */
+    public String getCacheOutcome() {
+        return cacheOutcome;
+    }
+
+    /**
+     * @return {@link Image} identifiers whose cached thumbnails were served
+     * stale and should be refreshed in the background by the caller.
+     */
+    public List<Long> getRefreshImageIds() {
+        return refreshImageIds;
+    }
+
+    /**
+     * @param refresh Whether or not this handler is refreshing stale cache
+     * entries, in which case the cache is filled but not consulted.
+     */
+    public void setRefresh(boolean refresh) {
+        this.refresh = refresh;
+    }
+
+    /**
+     * @param transcoder Transcoder to re-encode thumbnails with or
+     * <code>null</code> to return them as retrieved from the server. The
+     * re-encoded thumbnails are cached alongside the originals.
+     */
+    public void setTranscoder(JpegTranscoder transcoder) {
+        this.transcoder = transcoder;
+    }
+
+    /**
+     * @param lease Lease of the pooled session the client belongs to, whose
+     * prepared thumbnail store is used instead of creating one, or
+     * <code>null</code> to create and close a thumbnail store per request.
+     */
+    public void setLease(OmeroSessionPool.Lease lease) {
+        this.lease = lease;
+    }
+
+    /**
+     * @param profiler Hot key profiler to record the requested
+     * {@link omero.model.Pixels}, thumbnail retrieval times and rendering
+     * settings resets in or <code>null</code> to not record them.
+     */
+    public void setProfiler(HotKeyProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Retrieves a map of JPEG thumbnails from the server. Ice runtime
+     * exceptions, which indicate that the server is unavailable, are
+     * propagated as are, wrapped, server errors so that they are not
+     * mistaken for missing images.
+     * @return Map of {@link Image} identifier to JPEG thumbnail byte array
+     * or <code>null</code> if none of the images can be found.
      */
     public Map<Long, byte[]> renderThumbnails(omero.client client) {
         try {
             List<Image> images = getImages(client, imageIds);
             if (images.size() != 0) {
                 return getThumbnails(client, images, longestSide);
-            } else {
-                log.debug("Cannot find any Images with Ids {}", imageIds);
             }
-        } catch (Exception e) {
-            log.error("Exception while retrieving thumbnails", e);
+            log.debug("Cannot find any Images with Ids {}", imageIds);
+            return null;
+        } catch (ServerError e) {
+            throw new RuntimeException(e);
         }
-        return null;
     }
 
     /**
@@ -113,6 +237,34 @@ public class ThumbnailsRequestHandler {
         }
     }
 
+    /**
+     * Retrieves the ordered {@link Image} identifiers of a container.
+     * @param client OMERO client to use for querying.
+     * @param query Projection query with an <code>id</code> parameter.
+     * @param id Container identifier.
+     * @return See above.
+     * @throws ServerError If there was any sort of error querying.
+     */
+    protected List<Long> getImageIds(omero.client client, String query, long id)
+            throws ServerError {
+        Map<String, String> ctx = new HashMap<String, String>();
+        ctx.put("omero.group", "-1");
+        ParametersI params = new ParametersI();
+        params.addId(id);
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("get_image_ids");
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            for (List<RType> row : client.getSession().getQueryService()
+                    .projection(query, params, ctx)) {
+                ids.add((Long) unwrap(row.get(0)));
+            }
+            return ids;
+        } finally {
+            span.finish();
+        }
+    }
+
     /**
      * Retrieves a map of JPEG thumbnails from the server.
      * @param client OMERO client to use for thumbnail retrieval.
@@ -129,26 +281,55 @@ public class ThumbnailsRequestHandler {
                     throws ServerError{
         ScopedSpan span1 =
                 Tracing.currentTracer().startScopedSpan("get_thumbnails");
-        ThumbnailStorePrx thumbnailStore =
-                client.getSession().createThumbnailStore();
         try {
             Map<String, String> ctx = new HashMap<String, String>();
             Map<Long, Long> pixelsIdImageIds = new HashMap<Long, Long>();
+            long groupId = -1;
             for (IObject o : images) {
                 Image image = (Image) o;
-                pixelsIdImageIds.put(
-                    (Long) unwrap(image.getPrimaryPixels().getId()),
-                    (Long) unwrap(image.getId())
-                );
+                long pixelsId = (Long) unwrap(image.getPrimaryPixels().getId());
+                pixelsIdImageIds.put(pixelsId, (Long) unwrap(image.getId()));
+                if (profiler != null) {
+                    profiler.recordRequest(pixelsId);
+                }
                 // Assume all the groups are the same
-                ctx.put(
-                    "omero.group",
-                    String.valueOf(unwrap(
-                            image.getDetails().getGroup().getId()))
-                );
+                groupId = (Long) unwrap(image.getDetails().getGroup().getId());
+                ctx.put("omero.group", String.valueOf(groupId));
+            }
+            Map<Long, byte[]> imageIdThumbnails =
+                    new HashMap<Long, byte[]>();
+            long ticket = 0;
+            long userId = 0;
+            if (cache != null) {
+                ticket = cache.ticket();
+                userId = getUserId(client);
+            }
+            if (cache != null && !refresh) {
+                Iterator<Entry<Long, Long>> i =
+                        pixelsIdImageIds.entrySet().iterator();
+                while (i.hasNext()) {
+                    Entry<Long, Long> v = i.next();
+                    byte[] thumbnail = lookup(new ThumbnailCache.Key(
+                            v.getKey(), longestSide,
+                            ThumbnailCache.DEFAULT_RENDERING_DEF, userId),
+                            v.getValue(), ticket);
+                    if (thumbnail != null) {
+                        imageIdThumbnails.put(v.getValue(), thumbnail);
+                        i.remove();
+                    }
+                }
+                if (pixelsIdImageIds.isEmpty()) {
+                    cacheOutcome = "hit";
+                    return imageIdThumbnails;
+                }
+                cacheOutcome =
+                        imageIdThumbnails.isEmpty() ? "miss" : "partial";
             }
+            ThumbnailStorePrx thumbnailStore =
+                    createThumbnailStore(client, groupId);
             ScopedSpan span2 =
                     Tracing.currentTracer().startScopedSpan("get_thumbnail_by_longest_side");
+            boolean reusable = false;
             try {
                 Map<Long, byte[]> pixelsIdThumbnails =
                         thumbnailStore.getThumbnailByLongestSideSet(
@@ -156,22 +337,134 @@ public class ThumbnailsRequestHandler {
                             new ArrayList<Long>(pixelsIdImageIds.keySet()),
                             ctx
                         );
-                Map<Long, byte[]> imageIdThumbnails =
-                        new HashMap<Long, byte[]>();
                 for (Entry<Long, byte[]> v : pixelsIdThumbnails.entrySet()) {
+                    ThumbnailCache.Key key = new ThumbnailCache.Key(
+                            v.getKey(), longestSide,
+                            ThumbnailCache.DEFAULT_RENDERING_DEF, userId);
+                    byte[] thumbnail = v.getValue();
+                    if (thumbnail != null) {
+                        if (cache != null) {
+                            cache.put(key, ticket, thumbnail);
+                        }
+                        thumbnail = transcode(key, ticket, thumbnail);
+                    }
                     imageIdThumbnails.put(
-                        pixelsIdImageIds.get(v.getKey()),
-                        v.getValue()
-                    );
+                        pixelsIdImageIds.get(v.getKey()), thumbnail);
                 }
+                reusable = true;
                 return imageIdThumbnails;
             } finally {
                 span2.finish();
+                closeThumbnailStore(thumbnailStore, reusable);
             }
         } finally {
-            thumbnailStore.close();
             span1.finish();
         }
     }
 
+    /**
+     * Retrieves a thumbnail store, from the pooled session lease if there is
+     * one, which must be returned with
+     * {@link #closeThumbnailStore(ThumbnailStorePrx, boolean)}.
+     * @param client OMERO client to use for thumbnail retrieval.
+     * @param groupId {@link omero.model.ExperimenterGroup} identifier the
+     * thumbnails will be retrieved in the context of.
+     * @return See above.
+     * @throws ServerError If a thumbnail store cannot be created.
+     */
+    protected ThumbnailStorePrx createThumbnailStore(
+            omero.client client, long groupId) throws ServerError {
+        if (lease == null) {
+            return client.getSession().createThumbnailStore();
+        }
+        return lease.thumbnailStore(client, groupId);
+    }
+
+    /**
+     * Returns a thumbnail store retrieved with
+     * {@link #createThumbnailStore(omero.client, long)}, closing it unless it
+     * can be reused by the next request on the pooled session.
+     * @param thumbnailStore Thumbnail store to return.
+     * @param reusable Whether or not the thumbnail store may be reused.
+     * @throws ServerError If there was an error closing the thumbnail store.
+     */
+    protected void closeThumbnailStore(
+            ThumbnailStorePrx thumbnailStore, boolean reusable)
+                    throws ServerError {
+        if (lease == null) {
+            thumbnailStore.close();
+        } else {
+            lease.release(thumbnailStore, reusable);
+        }
+    }
+
+    /**
+     * Looks up a thumbnail in the cache, claiming its background refresh if
+     * it is stale. If a transcoder is in use the re-encoded thumbnail is
+     * preferred; failing that the original is re-encoded and cached.
+     * @param key Key of the thumbnail as retrieved from the server.
+     * @param imageId {@link Image} identifier the thumbnail is of.
+     * @param ticket Ticket taken before the lookup.
+     * @return JPEG thumbnail or <code>null</code> if it is not cached.
+     */
+    protected byte[] lookup(ThumbnailCache.Key key, long imageId, long ticket) {
+        if (transcoder != null) {
+            byte[] thumbnail =
+                    lookupEntry(key.withVariant(transcoder.variant()), imageId);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+        byte[] thumbnail = lookupEntry(key, imageId);
+        return thumbnail == null ? null : transcode(key, ticket, thumbnail);
+    }
+
+    private byte[] lookupEntry(ThumbnailCache.Key key, long imageId) {
+        byte[] thumbnail = cache.get(key);
+        if (thumbnail != null && cache.claimRefresh(key)) {
+            refreshImageIds.add(imageId);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Re-encodes a thumbnail retrieved from the server, if a transcoder is in
+     * use, and caches the result.
+     * @param key Key of the thumbnail as retrieved from the server.
+     * @param ticket Ticket taken before the thumbnail was retrieved.
+     * @param thumbnail JPEG thumbnail as retrieved from the server.
+     * @return Re-encoded thumbnail or <code>thumbnail</code> if no
+     * transcoder is in use.
+     */
+    protected byte[] transcode(
+            ThumbnailCache.Key key, long ticket, byte[] thumbnail) {
+        if (transcoder == null) {
+            return thumbnail;
+        }
+        byte[] transcoded = transcoder.transcode(thumbnail);
+        if (cache != null) {
+            cache.put(key.withVariant(transcoder.variant()), ticket, transcoded);
+        }
+        return transcoded;
+    }
+
+    /**
+     * Retrieves the {@link omero.model.Experimenter} identifier of the
+     * session of a client, memoized in the thumbnail cache.
+     * @param client OMERO client to use.
+     * @return See above.
+     * @throws ServerError If there was any sort of error retrieving the
+     * event context.
+     */
+    protected long getUserId(omero.client client) throws ServerError {
+        String omeroSessionKey = client.getSessionId();
+        Long userId = cache.getUserId(omeroSessionKey);
+        if (userId == null) {
+            userId = client.getSession().getAdminService()
+                    .getEventContext().userId;
+            cache.putUserId(omeroSessionKey, userId);
+        }
+        return userId;
+    }
+
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Captures thumbnail request traffic to a {@link TrafficTrace} file so that
+ * it can later be replayed with {@link TrafficReplay}. Requests are queued by
+ * the request handling threads and anonymized and written by a background
+ * thread. OMERO sessions are replaced by a keyed hash and, optionally, so are
+ * image and rendering settings identifiers; the key is random and never
+ * written so traces cannot be correlated with the originals. Equality, and
+ * therefore reuse patterns, are preserved. When the queue is full requests
+ * are dropped rather than blocking the caller.
+ * @author agent <agent@local>
+ *
+ */
+public class TrafficCapture implements Closeable {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(TrafficCapture.class);
+
+    private static final Counter CAPTURED = Counter.build()
+            .name("omero_ms_thumbnail_traffic_captured_total")
+            .help("Number of requests written to the traffic capture")
+            .register();
+
+    private static final Counter DROPPED = Counter.build()
+            .name("omero_ms_thumbnail_traffic_capture_dropped_total")
+            .help("Number of requests dropped from the traffic capture due " +
+                  "to backpressure")
+            .register();
+
+    /** Largest identifier produced by anonymization; fits a JSON number. */
+    private static final long MAX_ANONYMIZED_ID = (1L << 53) - 1;
+
+    /** Request awaiting anonymization and writing. */
+    private static class Pending {
+
+        TrafficTrace.Route route;
+
+        long startNanos;
+
+        int statusCode;
+
+        String omeroSessionKey;
+
+        int longestSide;
+
+        Long renderingDefId;
+
+        List<Long> imageIds;
+
+        long totalNanos;
+
+        TrafficTrace.Cache cache;
+    }
+
+    /** Requests awaiting writing. */
+    private final BlockingQueue<Pending> queue;
+
+    /** Whether or not image and rendering settings identifiers are hashed. */
+    private final boolean anonymizeIds;
+
+    /** Random key of the anonymizing hash. */
+    private final byte[] key = new byte[32];
+
+    /** {@link System#nanoTime()} when the capture started. */
+    private final long startNanos = System.nanoTime();
+
+    /** Trace file being written. */
+    private final File file;
+
+    /** Background thread writing the trace. */
+    private final Thread writer;
+
+    /** Digest of the anonymizing hash; used solely by the writer thread. */
+    private final MessageDigest digest;
+
+    /** Whether or not the capture has been closed. */
+    private volatile boolean closed;
+
+    /**
+     * Default constructor. Creates a new trace file named after the capture
+     * start time.
+     * @param directory Directory to create the trace in.
+     * @param bufferSize Number of requests which may be queued.
+     * @param anonymizeIds Whether or not to hash image and rendering
+     * settings identifiers.
+     * @throws IOException If the trace file cannot be created.
+     */
+    public TrafficCapture(
+            String directory, int bufferSize, boolean anonymizeIds)
+                    throws IOException {
+        this.queue = new ArrayBlockingQueue<Pending>(bufferSize);
+        this.anonymizeIds = anonymizeIds;
+        new SecureRandom().nextBytes(key);
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        File parent = new File(directory);
+        parent.mkdirs();
+        file = new File(parent,
+                "traffic-" + System.currentTimeMillis() + ".trace");
+        TrafficTrace.Writer out = new TrafficTrace.Writer(
+                new BufferedOutputStream(new FileOutputStream(file), 65536),
+                System.currentTimeMillis());
+        writer = new Thread(() -> drain(out), "thumbnail-traffic-capture");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Capturing traffic to {}", file);
+    }
+
+    /**
+     * Records a completed request. Never blocks; if the queue is full the
+     * request is dropped.
+     * @param route Route which handled the request.
+     * @param startNanos {@link System#nanoTime()} when the request started.
+     * @param statusCode HTTP status code of the response.
+     * @param thumbnailCtx Context of the request.
+     * @param cache Cache outcome; may be <code>null</code>.
+     */
+    public void capture(
+            TrafficTrace.Route route, long startNanos, int statusCode,
+            ThumbnailCtx thumbnailCtx, String cache) {
+        Pending pending = new Pending();
+        pending.route = route;
+        pending.startNanos = startNanos;
+        pending.totalNanos = System.nanoTime() - startNanos;
+        pending.statusCode = statusCode;
+        pending.omeroSessionKey = thumbnailCtx.omeroSessionKey;
+        pending.longestSide = thumbnailCtx.longestSide;
+        pending.renderingDefId = thumbnailCtx.renderingDefId;
+        pending.imageIds = thumbnailCtx.imageId != null
+                ? List.of(thumbnailCtx.imageId) : thumbnailCtx.imageIds;
+        pending.cache = TrafficTrace.Cache.of(cache);
+        if (!queue.offer(pending)) {
+            DROPPED.inc();
+        }
+    }
+
+    /**
+     * Writer thread loop; anonymizes each queued request and writes it to
+     * the trace, flushing whenever the queue is drained.
+     * @param out Trace to write to.
+     */
+    private void drain(TrafficTrace.Writer out) {
+        try (TrafficTrace.Writer trace = out) {
+            TrafficTrace.Request request = new TrafficTrace.Request();
+            while (!closed || !queue.isEmpty()) {
+                Pending pending = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (pending == null) {
+                    trace.flush();
+                    continue;
+                }
+                request.route = pending.route;
+                request.startMicros = TimeUnit.NANOSECONDS.toMicros(
+                        pending.startNanos - startNanos);
+                request.statusCode = pending.statusCode;
+                request.session = (int) hash(String.valueOf(
+                        pending.omeroSessionKey));
+                request.longestSide = pending.longestSide;
+                request.renderingDefId = pending.renderingDefId == null
+                        ? null : anonymize(pending.renderingDefId);
+                request.imageIds = new long[pending.imageIds.size()];
+                for (int i = 0; i < request.imageIds.length; i++) {
+                    request.imageIds[i] = anonymize(pending.imageIds.get(i));
+                }
+                request.totalMicros =
+                        TimeUnit.NANOSECONDS.toMicros(pending.totalNanos);
+                request.cache = pending.cache;
+                trace.write(request);
+                CAPTURED.inc();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Exception while writing traffic capture {}", file, e);
+        }
+    }
+
+    /**
+     * @param id Identifier to anonymize.
+     * @return Positive identifier, unique with high probability, or
+     * <code>id</code> if identifiers are not being anonymized.
+     */
+    private long anonymize(long id) {
+        if (!anonymizeIds) {
+            return id;
+        }
+        return (hash(Long.toString(id)) & MAX_ANONYMIZED_ID) | 1L;
+    }
+
+    /**
+     * @param value Value to hash.
+     * @return Keyed hash of <code>value</code>.
+     */
+    private long hash(String value) {
+        digest.reset();
+        digest.update(key);
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * Stops the writer thread once the queued requests have been written.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
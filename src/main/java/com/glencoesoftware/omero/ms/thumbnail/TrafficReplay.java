@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+
+/**
+ * Replays a {@link TrafficTrace} captured by {@link TrafficCapture} against
+ * a running thumbnail microservice, preserving the request mix, identifier
+ * reuse and relative timing, optionally sped up. Intended for performance
+ * regression testing, typically against an instance configured with the
+ * stub OMERO backend ({@link StubThumbnailVerticle}). Reports throughput,
+ * latency percentiles per route compared to those captured and the
+ * thumbnail cache outcomes scraped from the service's metrics.
+ * <p>
+ * Usage: <code>TrafficReplay [--url URL] [--speed N] [--connections N]
+ * [--limit N] [--cookie-name NAME] --session KEY [--session KEY ...]
+ * TRACE</code>
+ * </p>
+ * Captured sessions are mapped, in order of first appearance, onto the
+ * given OMERO.web session keys round robin.
+ * @author agent <agent@local>
+ *
+ */
+public class TrafficReplay {
+
+    /** Thumbnail cache request metric scraped before and after replay. */
+    private static final Pattern CACHE_METRIC = Pattern.compile(
+            "^omero_ms_thumbnail_cache_requests_total"
+            + "\\{partition=\"[a-z_]+\",outcome=\"([a-z]+)\",?\\}"
+            + " ([0-9.eE+-]+)$",
+            Pattern.MULTILINE);
+
+    /**
+     * JVM memory and garbage collection metrics scraped before and after
+     * replay, so that cache storage engines can be compared.
+     */
+    private static final Pattern JVM_METRIC = Pattern.compile(
+            "^(jvm_gc_collection_seconds_(?:sum|count))\\{gc=\"[^\"]*\",?\\}"
+            + " ([0-9.eE+-]+)$"
+            + "|^(jvm_memory_bytes_used)\\{area=\"heap\",?\\}"
+            + " ([0-9.eE+-]+)$"
+            + "|^(jvm_buffer_pool_used_bytes)\\{pool=\"direct\",?\\}"
+            + " ([0-9.eE+-]+)$",
+            Pattern.MULTILINE);
+
+    /** Growable array of latencies in microseconds. */
+    private static class Latencies {
+
+        long[] values = new long[1024];
+
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /** Outcome of the requests of a route. */
+    private static class RouteStats {
+
+        final Latencies captured = new Latencies();
+
+        final Latencies replayed = new Latencies();
+
+        final Map<Integer, Integer> statusCodes =
+                new TreeMap<Integer, Integer>();
+
+        final Map<TrafficTrace.Cache, Integer> capturedCache =
+                new EnumMap<TrafficTrace.Cache, Integer>(
+                        TrafficTrace.Cache.class);
+
+        int errors;
+    }
+
+    private final String url;
+
+    private final double speed;
+
+    private final int connections;
+
+    private final long limit;
+
+    private final String cookieName;
+
+    private final List<String> sessions;
+
+    private final String trace;
+
+    /** Statistics by route; accessed solely from {@link #context}. */
+    private final Map<TrafficTrace.Route, RouteStats> stats =
+            new EnumMap<TrafficTrace.Route, RouteStats>(
+                    TrafficTrace.Route.class);
+
+    /** OMERO.web session keys by captured session. */
+    private final Map<Integer, String> sessionMap =
+            new HashMap<Integer, String>();
+
+    private Vertx vertx;
+
+    /** Context all requests are sent and completed on. */
+    private Context context;
+
+    private HttpClient client;
+
+    /** Number of requests sent but not yet completed. */
+    private int outstanding;
+
+    /** Whether or not every request has been sent. */
+    private boolean sent;
+
+    /** Completed once every request has been sent and completed. */
+    private final CompletableFuture<Void> done =
+            new CompletableFuture<Void>();
+
+    TrafficReplay(
+            String url, double speed, int connections, long limit,
+            String cookieName, List<String> sessions, String trace) {
+        this.url = url.replaceAll("/+$", "");
+        this.speed = speed;
+        this.connections = connections;
+        this.limit = limit;
+        this.cookieName = cookieName;
+        this.sessions = sessions;
+        this.trace = trace;
+        for (TrafficTrace.Route route : TrafficTrace.Route.values()) {
+            stats.put(route, new RouteStats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:8080";
+        double speed = 1;
+        int connections = 64;
+        long limit = Long.MAX_VALUE;
+        String cookieName = "sessionid";
+        List<String> sessions = new ArrayList<String>();
+        String trace = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url":
+                    url = args[++i];
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(args[++i]);
+                    break;
+                case "--connections":
+                    connections = Integer.parseInt(args[++i]);
+                    break;
+                case "--limit":
+                    limit = Long.parseLong(args[++i]);
+                    break;
+                case "--cookie-name":
+                    cookieName = args[++i];
+                    break;
+                case "--session":
+                    sessions.add(args[++i]);
+                    break;
+                default:
+                    trace = args[i];
+            }
+        }
+        if (trace == null || sessions.isEmpty() || speed <= 0) {
+            System.err.println(
+                    "Usage: TrafficReplay [--url URL] [--speed N] " +
+                    "[--connections N] [--limit N] [--cookie-name NAME] " +
+                    "--session KEY [--session KEY ...] TRACE");
+            System.exit(2);
+        }
+        new TrafficReplay(
+                url, speed, connections, limit, cookieName, sessions, trace)
+            .run(System.out);
+        System.exit(0);
+    }
+
+    /**
+     * Replays the trace and reports the outcome.
+     * @param out Stream to write the report to.
+     * @throws Exception If the trace cannot be read or the service cannot
+     * be reached.
+     */
+    void run(PrintStream out) throws Exception {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+        client = vertx.createHttpClient(
+                new HttpClientOptions().setMaxPoolSize(connections));
+        try {
+            Map<String, Double> before = scrapeMetrics();
+            long started = System.nanoTime();
+            long count = 0;
+            try (TrafficTrace.Reader reader = TrafficTrace.Reader.open(trace)) {
+                TrafficTrace.Request request;
+                Long firstMicros = null;
+                while (count < limit && (request = reader.next()) != null) {
+                    if (firstMicros == null) {
+                        firstMicros = request.startMicros;
+                    }
+                    long due = started + (long) (TimeUnit.MICROSECONDS
+                            .toNanos(request.startMicros - firstMicros)
+                            / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    TrafficTrace.Request toSend = request;
+                    context.runOnContext(v -> send(toSend));
+                    count++;
+                }
+            }
+            context.runOnContext(v -> {
+                sent = true;
+                if (outstanding == 0) {
+                    done.complete(null);
+                }
+            });
+            done.get();
+            long elapsed = System.nanoTime() - started;
+            Map<String, Double> after = scrapeMetrics();
+            long replayed = count;
+            CompletableFuture<Void> reported = new CompletableFuture<Void>();
+            context.runOnContext(v -> {
+                report(out, replayed, elapsed, before, after);
+                reported.complete(null);
+            });
+            reported.get();
+        } finally {
+            client.close();
+            vertx.close();
+        }
+    }
+
+    /**
+     * Sends a captured request; must be called on {@link #context}.
+     * @param request Request to send.
+     */
+    private void send(TrafficTrace.Request request) {
+        RouteStats routeStats = stats.get(request.route);
+        routeStats.captured.add(request.totalMicros);
+        routeStats.capturedCache.merge(request.cache, 1, Integer::sum);
+        String session = sessionMap.computeIfAbsent(
+                request.session,
+                k -> sessions.get(sessionMap.size() % sessions.size()));
+        outstanding++;
+        long started = System.nanoTime();
+        client.request(new RequestOptions()
+                .setMethod(HttpMethod.GET)
+                .setAbsoluteURI(url + path(request))
+                .addHeader("Cookie", cookieName + "=" + session))
+            .compose(req -> req.send())
+            .compose(response ->
+                    response.body().map(body -> response.statusCode()))
+            .onComplete(result -> {
+                if (result.succeeded()) {
+                    routeStats.statusCodes.merge(
+                            result.result(), 1, Integer::sum);
+                    routeStats.replayed.add(TimeUnit.NANOSECONDS.toMicros(
+                            System.nanoTime() - started));
+                } else {
+                    routeStats.errors++;
+                }
+                outstanding--;
+                if (sent && outstanding == 0) {
+                    done.complete(null);
+                }
+            });
+    }
+
+    /**
+     * @param request Captured request.
+     * @return Path and query of the equivalent HTTP request.
+     */
+    static String path(TrafficTrace.Request request) {
+        StringBuilder path = new StringBuilder();
+        switch (request.route) {
+            case GET_THUMBNAILS:
+                path.append("/webgateway/get_thumbnails");
+                if (request.longestSide > 0) {
+                    path.append('/').append(request.longestSide);
+                }
+                for (int i = 0; i < request.imageIds.length; i++) {
+                    path.append(i == 0 ? '?' : '&')
+                        .append("id=").append(request.imageIds[i]);
+                }
+                return path.toString();
+            case RENDER_BIRDS_EYE_VIEW:
+                path.append("/webgateway/render_birds_eye_view/");
+                break;
+            default:
+                path.append("/webgateway/render_thumbnail/");
+        }
+        path.append(request.imageIds.length > 0 ? request.imageIds[0] : 0);
+        if (request.longestSide > 0) {
+            path.append('/').append(request.longestSide);
+        }
+        if (request.renderingDefId != null) {
+            path.append("?rdefId=").append(request.renderingDefId);
+        }
+        return path.toString();
+    }
+
+    /**
+     * Scrapes the thumbnail cache request counters and JVM memory and
+     * garbage collection metrics from the service.
+     * @return Cache counter values keyed by outcome prefixed with
+     * <code>cache_</code>, no cache counters being present if the cache is
+     * disabled, and JVM metric values, summed across collectors, keyed by
+     * name.
+     * @throws Exception If the metrics cannot be retrieved.
+     */
+    private Map<String, Double> scrapeMetrics() throws Exception {
+        Future<String> metrics = client.request(new RequestOptions()
+                .setMethod(HttpMethod.GET)
+                .setAbsoluteURI(url + "/metrics"))
+            .compose(req -> req.send())
+            .compose(response -> response.body())
+            .map(body -> body.toString());
+        String text = metrics.toCompletionStage().toCompletableFuture().get();
+        Map<String, Double> values = new TreeMap<String, Double>();
+        Matcher m = CACHE_METRIC.matcher(text);
+        while (m.find()) {
+            values.merge("cache_" + m.group(1),
+                    Double.parseDouble(m.group(2)), Double::sum);
+        }
+        m = JVM_METRIC.matcher(text);
+        while (m.find()) {
+            for (int group = 1; group < m.groupCount(); group += 2) {
+                if (m.group(group) != null) {
+                    values.merge(m.group(group),
+                            Double.parseDouble(m.group(group + 1)),
+                            Double::sum);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Writes the replay report.
+     */
+    private void report(
+            PrintStream out, long count, long elapsedNanos,
+            Map<String, Double> before, Map<String, Double> after) {
+        double seconds = elapsedNanos / 1e9;
+        out.printf("Replayed %d requests from %s at %.2fx in %.1f s " +
+                "(%.1f requests/s, %d sessions)%n",
+                count, trace, speed, seconds, count / seconds,
+                sessionMap.size());
+        out.printf("%-22s %8s %7s %27s %27s%n", "route", "requests",
+                "errors", "captured p50/p90/p99 ms", "replayed p50/p90/p99 ms");
+        for (Map.Entry<TrafficTrace.Route, RouteStats> entry
+                : stats.entrySet()) {
+            RouteStats routeStats = entry.getValue();
+            if (routeStats.captured.size == 0) {
+                continue;
+            }
+            out.printf("%-22s %8d %7d %27s %27s%n",
+                    entry.getKey().name, routeStats.captured.size,
+                    routeStats.errors,
+                    percentiles(routeStats.captured),
+                    percentiles(routeStats.replayed));
+            out.printf("  status codes %s; captured cache outcomes %s%n",
+                    routeStats.statusCodes, routeStats.capturedCache);
+        }
+        if (after.containsKey("jvm_gc_collection_seconds_count")) {
+            out.printf("Replay target GC %d collections, %.3f s paused; " +
+                    "heap used %d MiB, direct buffers %d MiB%n",
+                    (long) delta(before, after,
+                            "jvm_gc_collection_seconds_count"),
+                    delta(before, after, "jvm_gc_collection_seconds_sum"),
+                    (long) (after.getOrDefault("jvm_memory_bytes_used", 0d)
+                            / (1024 * 1024)),
+                    (long) (after.getOrDefault(
+                            "jvm_buffer_pool_used_bytes", 0d)
+                            / (1024 * 1024)));
+        }
+        if (after.keySet().stream().noneMatch(k -> k.startsWith("cache_"))) {
+            out.println("Thumbnail cache disabled on the replay target");
+            return;
+        }
+        StringBuilder cache = new StringBuilder("Replayed cache outcomes");
+        double total = 0;
+        double hits = 0;
+        for (String key : after.keySet()) {
+            if (!key.startsWith("cache_")) {
+                continue;
+            }
+            String outcome = key.substring("cache_".length());
+            double delta = delta(before, after, key);
+            total += delta;
+            if (outcome.equals("hit") || outcome.equals("stale")) {
+                hits += delta;
+            }
+            cache.append(' ').append(outcome).append('=')
+                .append((long) delta);
+        }
+        out.printf("%s; hit ratio %.3f%n", cache, total > 0 ? hits / total : 0);
+    }
+
+    /**
+     * @param before Metrics scraped before replay.
+     * @param after Metrics scraped after replay.
+     * @param key Metric to compare.
+     * @return Change in the metric during replay.
+     */
+    private static double delta(
+            Map<String, Double> before, Map<String, Double> after,
+            String key) {
+        return after.getOrDefault(key, 0d) - before.getOrDefault(key, 0d);
+    }
+
+    /**
+     * @param latencies Latencies in microseconds.
+     * @return Formatted 50th, 90th and 99th percentile in milliseconds.
+     */
+    private static String percentiles(Latencies latencies) {
+        if (latencies.size == 0) {
+            return "-";
+        }
+        long[] sorted = latencies.sorted();
+        StringBuilder sb = new StringBuilder();
+        for (double p : new double[] { 0.5, 0.9, 0.99 }) {
+            int rank = Math.max(0, (int) Math.ceil(p * sorted.length) - 1);
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(String.format("%.1f", sorted[rank] / 1000.0));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compact binary format of captured thumbnail request traffic, written by
+ * {@link TrafficCapture} and read by {@link TrafficReplay}. A trace is the
+ * {@link #MAGIC} header followed by the capture start time in milliseconds
+ * since the epoch and then one record per request:
+ * <ul>
+ * <li>start time in microseconds relative to the previous record, zig-zag
+ * variable length encoded as records are written in completion order</li>
+ * <li>{@link Route} ordinal (1 byte)</li>
+ * <li>HTTP status code (variable length)</li>
+ * <li>anonymized session (4 bytes)</li>
+ * <li>longest side (variable length)</li>
+ * <li>rendering settings identifier plus one or zero if none (variable
+ * length)</li>
+ * <li>number of images followed by each image identifier (variable
+ * length)</li>
+ * <li>total time taken in microseconds (variable length)</li>
+ * <li>{@link Cache} outcome ordinal (1 byte)</li>
+ * </ul>
+ * @author agent <agent@local>
+ *
+ */
+public class TrafficTrace {
+
+    /** Identifies a trace file and the version of its format. */
+    public static final byte[] MAGIC =
+            new byte[] { 'O', 'M', 'S', 'T', 'R', 'C', '0', '1' };
+
+    /** Captured routes. */
+    public enum Route {
+        RENDER_THUMBNAIL("render_thumbnail"),
+        RENDER_BIRDS_EYE_VIEW("render_birds_eye_view"),
+        GET_THUMBNAILS("get_thumbnails");
+
+        /** Name of the route as used by the access log and metrics. */
+        public final String name;
+
+        Route(String name) {
+            this.name = name;
+        }
+    }
+
+    /** Thumbnail cache outcomes as reported by the workers. */
+    public enum Cache {
+        UNKNOWN, HIT, MISS, PARTIAL, NEGATIVE;
+
+        /**
+         * @param outcome Cache outcome as reported by the workers; may be
+         * <code>null</code>.
+         * @return See above.
+         */
+        public static Cache of(String outcome) {
+            if (outcome == null) {
+                return UNKNOWN;
+            }
+            switch (outcome) {
+                case "hit":
+                    return HIT;
+                case "miss":
+                    return MISS;
+                case "partial":
+                    return PARTIAL;
+                case "negative":
+                    return NEGATIVE;
+                default:
+                    return UNKNOWN;
+            }
+        }
+    }
+
+    /** A captured request. */
+    public static class Request {
+
+        /** Route which handled the request. */
+        public Route route;
+
+        /** Start time in microseconds since the capture started. */
+        public long startMicros;
+
+        /** HTTP status code of the response. */
+        public int statusCode;
+
+        /** Anonymized OMERO session. */
+        public int session;
+
+        /** Requested size of the longest side of the thumbnails. */
+        public int longestSide;
+
+        /** Rendering settings identifier or <code>null</code>. */
+        public Long renderingDefId;
+
+        /** Requested image identifiers. */
+        public long[] imageIds;
+
+        /** Total time taken to respond in microseconds. */
+        public long totalMicros;
+
+        /** Thumbnail cache outcome. */
+        public Cache cache;
+
+        @Override
+        public String toString() {
+            return route.name + " " + Arrays.toString(imageIds)
+                    + " longest_side=" + longestSide;
+        }
+    }
+
+    /**
+     * Writes records to a trace.
+     */
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream out;
+
+        /** Start time of the previously written record. */
+        private long previousStartMicros;
+
+        /**
+         * Default constructor. Writes the trace header.
+         * @param out Stream to write the trace to.
+         * @param startMillis Capture start time in milliseconds since the
+         * epoch.
+         * @throws IOException If there was an error writing.
+         */
+        public Writer(OutputStream out, long startMillis) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.write(MAGIC);
+            this.out.writeLong(startMillis);
+        }
+
+        /**
+         * Writes a record.
+         * @param request Request to write.
+         * @throws IOException If there was an error writing.
+         */
+        public void write(Request request) throws IOException {
+            long delta = request.startMicros - previousStartMicros;
+            previousStartMicros = request.startMicros;
+            writeVarLong((delta << 1) ^ (delta >> 63));
+            out.writeByte(request.route.ordinal());
+            writeVarLong(request.statusCode);
+            out.writeInt(request.session);
+            writeVarLong(request.longestSide);
+            writeVarLong(request.renderingDefId == null
+                    ? 0 : request.renderingDefId + 1);
+            writeVarLong(request.imageIds.length);
+            for (long imageId : request.imageIds) {
+                writeVarLong(imageId);
+            }
+            writeVarLong(request.totalMicros);
+            out.writeByte(request.cache.ordinal());
+        }
+
+        /**
+         * Flushes buffered records.
+         * @throws IOException If there was an error writing.
+         */
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private void writeVarLong(long v) throws IOException {
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+    }
+
+    /**
+     * Reads records from a trace.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+
+        /** Capture start time in milliseconds since the epoch. */
+        public final long startMillis;
+
+        /** Start time of the previously read record. */
+        private long previousStartMicros;
+
+        /**
+         * Default constructor. Reads and validates the trace header.
+         * @param in Stream to read the trace from.
+         * @throws IOException If there was an error reading or the stream
+         * is not a trace.
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a traffic trace");
+            }
+            startMillis = this.in.readLong();
+        }
+
+        /**
+         * Opens a trace file.
+         * @param path Path to the trace.
+         * @return See above.
+         * @throws IOException If there was an error reading or the file is
+         * not a trace.
+         */
+        public static Reader open(String path) throws IOException {
+            return new Reader(new BufferedInputStream(
+                    new FileInputStream(path), 65536));
+        }
+
+        /**
+         * Reads the next record.
+         * @return See above or <code>null</code> if there are no more
+         * records. A trailing record truncated by an unclean shutdown of
+         * the capture is ignored.
+         * @throws IOException If there was an error reading.
+         */
+        public Request next() throws IOException {
+            try {
+                Request request = new Request();
+                long zigzag = readVarLong();
+                request.startMicros = previousStartMicros
+                        + ((zigzag >>> 1) ^ -(zigzag & 1));
+                request.route = Route.values()[in.readUnsignedByte()];
+                request.statusCode = (int) readVarLong();
+                request.session = in.readInt();
+                request.longestSide = (int) readVarLong();
+                long renderingDefId = readVarLong();
+                request.renderingDefId =
+                        renderingDefId == 0 ? null : renderingDefId - 1;
+                request.imageIds = new long[(int) readVarLong()];
+                for (int i = 0; i < request.imageIds.length; i++) {
+                    request.imageIds[i] = readVarLong();
+                }
+                request.totalMicros = readVarLong();
+                request.cache = Cache.values()[in.readUnsignedByte()];
+                previousStartMicros = request.startMicros;
+                return request;
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed variable length integer");
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class AccessLogTest {
+
+    /** Lines written by the access log under test, in order. */
+    private List<String> lines;
+
+    @BeforeMethod
+    public void setUp() {
+        lines = new ArrayList<String>();
+    }
+
+    private void log(AccessLog accessLog, long id) {
+        accessLog.log("render_thumbnail", 200, 1, 96, "hit", 0, 1, 2, id);
+    }
+
+    /**
+     * @param line Formatted access log line.
+     * @return Value of the <code>bytes</code> field, which the tests use to
+     * identify each record.
+     */
+    private long id(String line) {
+        return Long.parseLong(line.substring(line.indexOf("bytes=") + 6));
+    }
+
+    @Test
+    public void testCapacityRoundedUp() {
+        AccessLog accessLog = new AccessLog(100, () -> true, lines::add);
+        Assert.assertEquals(accessLog.capacity(), 128);
+        accessLog.close();
+    }
+
+    @Test
+    public void testFormat() {
+        AccessLog accessLog = new AccessLog(8, () -> true, lines::add);
+        accessLog.log("get_thumbnails", 404, 3, 64, AccessLog.UNKNOWN,
+                5, -1, 7, 0);
+        accessLog.close();
+        Assert.assertEquals(lines.size(), 1);
+        Assert.assertEquals(lines.get(0),
+                "route=get_thumbnails status=404 images=3 longest_side=64 "
+                + "cache=- queue_ms=5 worker_ms=- total_ms=7 bytes=0");
+    }
+
+    @Test
+    public void testDrainedOnClose() {
+        AccessLog accessLog = new AccessLog(1024, () -> true, lines::add);
+        for (int i = 0; i < 1000; i++) {
+            log(accessLog, i);
+        }
+        accessLog.close();
+        Assert.assertEquals(lines.size(), 1000);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(id(lines.get(i)), i);
+        }
+        Assert.assertEquals(accessLog.dropped(), 0);
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        int producers = 8;
+        int perProducer = 5000;
+        // Below capacity so that nothing may be dropped
+        AccessLog accessLog = new AccessLog(
+                producers * perProducer, () -> true, lines::add);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            long base = (long) p * perProducer;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    log(accessLog, base + i);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        accessLog.close();
+        Assert.assertEquals(accessLog.dropped(), 0);
+        Assert.assertEquals(lines.size(), producers * perProducer);
+        Set<Long> ids = new HashSet<Long>();
+        for (String line : lines) {
+            Assert.assertTrue(ids.add(id(line)), "Duplicate " + line);
+        }
+        for (long id = 0; id < producers * perProducer; id++) {
+            Assert.assertTrue(ids.contains(id), "Lost record " + id);
+        }
+    }
+
+    @Test
+    public void testDroppedWhenFull() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        AccessLog accessLog = new AccessLog(8, () -> true, line -> {
+            lines.add(line);
+            writing.countDown();
+            try {
+                // Hold the writer so that the buffer fills up
+                resume.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        log(accessLog, 0);
+        Assert.assertTrue(writing.await(5, TimeUnit.SECONDS));
+        // The first record's slot was released before it was written
+        for (int i = 1; i <= 12; i++) {
+            log(accessLog, i);
+        }
+        Assert.assertEquals(accessLog.dropped(), 4);
+        resume.countDown();
+        accessLog.close();
+        Assert.assertEquals(lines.size(), 9);
+        for (int i = 0; i <= 8; i++) {
+            Assert.assertEquals(id(lines.get(i)), i);
+        }
+    }
+
+    @Test
+    public void testDisabledRecordsDiscarded() {
+        AccessLog accessLog = new AccessLog(8, () -> false, lines::add);
+        for (int i = 0; i < 100; i++) {
+            log(accessLog, i);
+        }
+        accessLog.close();
+        Assert.assertTrue(lines.isEmpty());
+    }
+
+}
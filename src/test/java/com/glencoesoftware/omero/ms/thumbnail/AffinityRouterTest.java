@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class AffinityRouterTest {
+
+    /** Number of thumbnails routed by each test. */
+    private static final int IMAGES = 10000;
+
+    /** Name the owner of a thumbnail owned by this instance is recorded as. */
+    private static final String SELF = "self";
+
+    private AffinityRouter router;
+
+    @BeforeMethod
+    public void setUp() {
+        router = new AffinityRouter(null, 64, 1000, 5000, null, null);
+    }
+
+    private String owner(long imageId) {
+        String owner = router.owner(imageId, 96);
+        return owner == null ? SELF : owner;
+    }
+
+    private Map<Long, String> owners() {
+        Map<Long, String> owners = new HashMap<Long, String>();
+        for (long imageId = 1; imageId <= IMAGES; imageId++) {
+            owners.put(imageId, owner(imageId));
+        }
+        return owners;
+    }
+
+    @Test
+    public void testSingleMemberOwnsAll() {
+        router.join("a");
+        for (String owner : owners().values()) {
+            Assert.assertEquals(owner, "a");
+        }
+    }
+
+    @Test
+    public void testOwnershipIsStable() {
+        router.join("a");
+        router.join("b");
+        for (long imageId = 1; imageId <= 100; imageId++) {
+            Assert.assertEquals(owner(imageId), owner(imageId));
+            Assert.assertNotEquals(owner(imageId), SELF);
+        }
+    }
+
+    @Test
+    public void testDistribution() {
+        router.join("a");
+        router.join("b");
+        router.join("c");
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String owner : owners().values()) {
+            counts.merge(owner, 1, Integer::sum);
+        }
+        Assert.assertEquals(counts.size(), 3);
+        for (int count : counts.values()) {
+            // Within half of an even share with 64 points per member
+            Assert.assertTrue(count > IMAGES / 6, counts.toString());
+            Assert.assertTrue(count < IMAGES / 2, counts.toString());
+        }
+    }
+
+    @Test
+    public void testJoinOnlyMovesThumbnailsToNewMember() {
+        router.join("a");
+        router.join("b");
+        Map<Long, String> before = owners();
+        router.join("c");
+        Map<Long, String> after = owners();
+        int moved = 0;
+        for (long imageId = 1; imageId <= IMAGES; imageId++) {
+            if (!before.get(imageId).equals(after.get(imageId))) {
+                Assert.assertEquals(after.get(imageId), "c");
+                moved++;
+            }
+        }
+        Assert.assertTrue(moved > 0);
+        Assert.assertTrue(moved < IMAGES / 2, String.valueOf(moved));
+    }
+
+    @Test
+    public void testLeaveRestoresOwnership() {
+        router.join("a");
+        router.join("b");
+        Map<Long, String> before = owners();
+        router.join("c");
+        router.leave("c");
+        Assert.assertEquals(owners(), before);
+    }
+
+    @Test
+    public void testFallbackRemovesMember() {
+        router.join("a");
+        router.join("b");
+        router.fallback("b");
+        for (String owner : owners().values()) {
+            Assert.assertEquals(owner, "a");
+        }
+    }
+
+}
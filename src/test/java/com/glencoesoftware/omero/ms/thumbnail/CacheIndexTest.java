@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.glencoesoftware.omero.ms.thumbnail.ThumbnailCache.Key;
+
+public class CacheIndexTest {
+
+    private Key key(long pixelsId) {
+        return new Key(pixelsId, 96, ThumbnailCache.DEFAULT_RENDERING_DEF, 1L);
+    }
+
+    private int add(CacheIndex index, Key key, int length) {
+        return index.add(key, null, length, length, 1, 2);
+    }
+
+    private List<Long> order(CacheIndex index) {
+        List<Long> order = new ArrayList<Long>();
+        for (int slot = index.eldest(); slot != CacheIndex.NONE;
+                slot = index.newer(slot)) {
+            order.add(index.pixelsId(slot));
+        }
+        return order;
+    }
+
+    @Test
+    public void testKeyFieldsDistinguished() {
+        CacheIndex index = new CacheIndex();
+        Key key = key(1L);
+        List<Key> others = new ArrayList<Key>();
+        others.add(new Key(2L, 96, ThumbnailCache.DEFAULT_RENDERING_DEF, 1L));
+        others.add(new Key(1L, 64, ThumbnailCache.DEFAULT_RENDERING_DEF, 1L));
+        others.add(new Key(1L, 96, 5L, 1L));
+        others.add(new Key(1L, 96, ThumbnailCache.DEFAULT_RENDERING_DEF, 2L));
+        others.add(key.withVariant(75));
+        int slot = add(index, key, 10);
+        Assert.assertEquals(index.find(key(1L)), slot);
+        for (Key other : others) {
+            Assert.assertEquals(index.find(other), CacheIndex.NONE);
+        }
+        for (Key other : others) {
+            add(index, other, 20);
+        }
+        Assert.assertEquals(index.find(key), slot);
+        Assert.assertEquals(index.length(slot), 10);
+        for (Key other : others) {
+            Assert.assertEquals(index.length(index.find(other)), 20);
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedOrder() {
+        CacheIndex index = new CacheIndex();
+        for (long i = 1; i <= 4; i++) {
+            add(index, key(i), 1);
+        }
+        Assert.assertEquals(order(index), list(1, 2, 3, 4));
+        index.touch(index.find(key(2L)));
+        Assert.assertEquals(order(index), list(1, 3, 4, 2));
+        index.touch(index.find(key(1L)));
+        index.touch(index.find(key(1L)));
+        Assert.assertEquals(order(index), list(3, 4, 2, 1));
+        index.remove(index.find(key(4L)));
+        Assert.assertEquals(order(index), list(3, 2, 1));
+        index.remove(index.find(key(3L)));
+        index.remove(index.find(key(1L)));
+        Assert.assertEquals(order(index), list(2));
+        index.remove(index.find(key(2L)));
+        Assert.assertEquals(index.eldest(), CacheIndex.NONE);
+        Assert.assertEquals(index.size(), 0);
+    }
+
+    @Test
+    public void testSlotsReused() {
+        CacheIndex index = new CacheIndex();
+        int slot = add(index, key(1L), 1);
+        index.refreshClaimed(slot, 100);
+        index.remove(slot);
+        Assert.assertEquals(add(index, key(2L), 1), slot);
+        Assert.assertEquals(index.refreshClaimed(slot), 0);
+        Assert.assertEquals(index.pixelsId(slot), 2L);
+    }
+
+    @Test
+    public void testRandomOperationsMatchMap() {
+        CacheIndex index = new CacheIndex();
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        Random random = new Random(7);
+        // Few distinct keys so that probe sequences collide and removals
+        // shift entries back, across several resizes
+        for (int i = 0; i < 200000; i++) {
+            long pixelsId = random.nextInt(2000);
+            Key key = key(pixelsId);
+            int slot = index.find(key);
+            Assert.assertEquals(slot != CacheIndex.NONE,
+                    expected.containsKey(pixelsId));
+            if (slot != CacheIndex.NONE) {
+                Assert.assertEquals(index.length(slot),
+                        (int) expected.get(pixelsId));
+                if (random.nextBoolean()) {
+                    index.remove(slot);
+                    expected.remove(pixelsId);
+                } else {
+                    index.touch(slot);
+                }
+            } else {
+                int length = random.nextInt(1000);
+                add(index, key, length);
+                expected.put(pixelsId, length);
+            }
+            Assert.assertEquals(index.size(), expected.size());
+        }
+        Assert.assertEquals(order(index).size(), expected.size());
+        index.clear();
+        Assert.assertEquals(index.size(), 0);
+        Assert.assertEquals(index.find(key(1L)), CacheIndex.NONE);
+        Assert.assertEquals(index.eldest(), CacheIndex.NONE);
+    }
+
+    private List<Long> list(long... pixelsIds) {
+        List<Long> list = new ArrayList<Long>();
+        for (long pixelsId : pixelsIds) {
+            list.add(pixelsId);
+        }
+        return list;
+    }
+
+}
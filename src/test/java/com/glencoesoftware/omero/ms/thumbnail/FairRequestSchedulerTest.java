@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FairRequestSchedulerTest {
+
+    /** Names of the tasks dispatched, in dispatch order. */
+    private List<String> dispatched;
+
+    /** Completion callbacks of the tasks in flight, in dispatch order. */
+    private ArrayDeque<Runnable> inFlight;
+
+    @BeforeMethod
+    public void setUp() {
+        dispatched = new ArrayList<String>();
+        inFlight = new ArrayDeque<Runnable>();
+    }
+
+    private boolean submit(
+            FairRequestScheduler scheduler, String user, int cost,
+            String name) {
+        return scheduler.submit(user, cost, done -> {
+            dispatched.add(name);
+            inFlight.addLast(done);
+        });
+    }
+
+    private boolean submitBackground(
+            FairRequestScheduler scheduler, String name) {
+        return scheduler.submitBackground(done -> {
+            dispatched.add(name);
+            inFlight.addLast(done);
+        });
+    }
+
+    private void completeAll() {
+        while (!inFlight.isEmpty()) {
+            inFlight.pollFirst().run();
+        }
+    }
+
+    @Test
+    public void testRoundRobinAcrossUsers() {
+        FairRequestScheduler scheduler = new FairRequestScheduler(1, 1, 10, 1);
+        submit(scheduler, "a", 1, "a1");
+        submit(scheduler, "a", 1, "a2");
+        submit(scheduler, "a", 1, "a3");
+        submit(scheduler, "b", 1, "b1");
+        submit(scheduler, "b", 1, "b2");
+        completeAll();
+        Assert.assertEquals(
+                dispatched, Arrays.asList("a1", "a2", "b1", "a3", "b2"));
+        Assert.assertEquals(scheduler.inFlight(), 0);
+        Assert.assertEquals(scheduler.queued(), 0);
+    }
+
+    @Test
+    public void testDeficitWeightsByCost() {
+        FairRequestScheduler scheduler = new FairRequestScheduler(1, 1, 10, 4);
+        // Occupy the only slot so that both users queue up behind it
+        submit(scheduler, "c", 1, "c1");
+        submit(scheduler, "a", 8, "a1");
+        submit(scheduler, "a", 8, "a2");
+        submit(scheduler, "b", 1, "b1");
+        submit(scheduler, "b", 1, "b2");
+        submit(scheduler, "b", 1, "b3");
+        submit(scheduler, "b", 1, "b4");
+        completeAll();
+        // "a" needs two quanta for each of its expensive tasks
+        Assert.assertEquals(
+                dispatched,
+                Arrays.asList("c1", "b1", "a1", "b2", "b3", "a2", "b4"));
+    }
+
+    @Test
+    public void testGlobalInFlightCap() {
+        FairRequestScheduler scheduler = new FairRequestScheduler(2, 2, 10, 1);
+        for (int i = 0; i < 5; i++) {
+            submit(scheduler, "user" + i, 1, "t" + i);
+        }
+        Assert.assertEquals(scheduler.inFlight(), 2);
+        Assert.assertEquals(scheduler.queued(), 3);
+        inFlight.pollFirst().run();
+        Assert.assertEquals(scheduler.inFlight(), 2);
+        Assert.assertEquals(scheduler.queued(), 2);
+        completeAll();
+        Assert.assertEquals(dispatched.size(), 5);
+    }
+
+    @Test
+    public void testPerUserInFlightCap() {
+        FairRequestScheduler scheduler =
+                new FairRequestScheduler(10, 2, 10, 10);
+        for (int i = 0; i < 4; i++) {
+            submit(scheduler, "a", 1, "a" + i);
+        }
+        Assert.assertEquals(scheduler.inFlight(), 2);
+        Assert.assertEquals(scheduler.queued(), 2);
+        // Other users are not held up by the capped user
+        submit(scheduler, "b", 1, "b0");
+        Assert.assertEquals(scheduler.inFlight(), 3);
+        Assert.assertEquals(dispatched, Arrays.asList("a0", "a1", "b0"));
+    }
+
+    @Test
+    public void testQueueFullRejected() {
+        FairRequestScheduler scheduler = new FairRequestScheduler(1, 1, 2, 1);
+        Assert.assertTrue(submit(scheduler, "a", 1, "a0"));
+        Assert.assertTrue(submit(scheduler, "a", 1, "a1"));
+        Assert.assertTrue(submit(scheduler, "a", 1, "a2"));
+        Assert.assertFalse(submit(scheduler, "a", 1, "a3"));
+        Assert.assertTrue(submit(scheduler, "b", 1, "b0"));
+        completeAll();
+        Assert.assertFalse(dispatched.contains("a3"));
+    }
+
+    @Test
+    public void testCompletionIsIdempotent() {
+        FairRequestScheduler scheduler = new FairRequestScheduler(1, 1, 10, 1);
+        submit(scheduler, "a", 1, "a0");
+        submit(scheduler, "a", 1, "a1");
+        Runnable done = inFlight.pollFirst();
+        done.run();
+        done.run();
+        Assert.assertEquals(scheduler.inFlight(), 1);
+    }
+
+    @Test
+    public void testDispatchFailureReleasesSlot() {
+        FairRequestScheduler scheduler = new FairRequestScheduler(1, 1, 10, 1);
+        scheduler.submit("a", 1, done -> {
+            throw new RuntimeException("dispatch failed");
+        });
+        Assert.assertEquals(scheduler.inFlight(), 0);
+        submit(scheduler, "a", 1, "a1");
+        Assert.assertEquals(dispatched, Arrays.asList("a1"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidLimits() {
+        new FairRequestScheduler(0, 1, 1, 1);
+    }
+
+    @Test
+    public void testBackgroundDispatchedWhenIdle() {
+        FairRequestScheduler scheduler = new FairRequestScheduler(2, 2, 10, 1);
+        Assert.assertTrue(submitBackground(scheduler, "p1"));
+        Assert.assertEquals(dispatched, Arrays.asList("p1"));
+        Assert.assertEquals(scheduler.inFlight(), 1);
+        Assert.assertEquals(scheduler.queuedBackground(), 0);
+        completeAll();
+        Assert.assertEquals(scheduler.inFlight(), 0);
+    }
+
+    @Test
+    public void testBackgroundWaitsForUsers() {
+        FairRequestScheduler scheduler = new FairRequestScheduler(1, 1, 10, 1);
+        submit(scheduler, "a", 1, "a1");
+        submit(scheduler, "a", 1, "a2");
+        submitBackground(scheduler, "p1");
+        submitBackground(scheduler, "p2");
+        submit(scheduler, "b", 1, "b1");
+        Assert.assertEquals(scheduler.queuedBackground(), 2);
+        completeAll();
+        // Users submitting after background tasks still go first
+        Assert.assertEquals(
+                dispatched, Arrays.asList("a1", "a2", "b1", "p1", "p2"));
+        Assert.assertEquals(scheduler.queued(), 0);
+        Assert.assertEquals(scheduler.queuedBackground(), 0);
+    }
+
+    @Test
+    public void testBackgroundHoldsSlotUntilComplete() {
+        FairRequestScheduler scheduler = new FairRequestScheduler(1, 1, 10, 1);
+        submitBackground(scheduler, "p1");
+        submit(scheduler, "a", 1, "a1");
+        Assert.assertEquals(dispatched, Arrays.asList("p1"));
+        Assert.assertEquals(scheduler.queued(), 1);
+        inFlight.pollFirst().run();
+        Assert.assertEquals(dispatched, Arrays.asList("p1", "a1"));
+    }
+
+    @Test
+    public void testBackgroundQueueFullRejected() {
+        FairRequestScheduler scheduler = new FairRequestScheduler(1, 1, 2, 1);
+        submit(scheduler, "a", 1, "a1");
+        Assert.assertTrue(submitBackground(scheduler, "p1"));
+        Assert.assertTrue(submitBackground(scheduler, "p2"));
+        Assert.assertFalse(submitBackground(scheduler, "p3"));
+        // The user queue is unaffected
+        Assert.assertTrue(submit(scheduler, "a", 1, "a2"));
+    }
+
+}
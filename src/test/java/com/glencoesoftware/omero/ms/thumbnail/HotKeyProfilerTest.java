@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class HotKeyProfilerTest {
+
+    @Test
+    public void testTopRequests() {
+        HotKeyProfiler profiler = new HotKeyProfiler(16, 10);
+        for (long pixelsId = 1; pixelsId <= 5; pixelsId++) {
+            for (int i = 0; i < pixelsId * 10; i++) {
+                profiler.recordRequest(pixelsId);
+            }
+        }
+        JsonArray top = profiler.toJson(3).getJsonArray("requests");
+        Assert.assertEquals(top.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            JsonObject entry = top.getJsonObject(i);
+            Assert.assertEquals(entry.getLong("id").longValue(), 5L - i);
+            Assert.assertEquals(entry.getDouble("weight"), (5 - i) * 10.0);
+            Assert.assertEquals(entry.getDouble("error"), 0.0);
+        }
+    }
+
+    @Test
+    public void testHeavyHittersSurviveEviction() {
+        // Far more distinct identifiers than counters
+        HotKeyProfiler profiler = new HotKeyProfiler(8, 10);
+        for (long i = 0; i < 10000; i++) {
+            profiler.recordRequest(1000 + i);
+            if (i % 3 == 0) {
+                profiler.recordRequest(1L);
+            }
+            if (i % 4 == 0) {
+                profiler.recordRequest(2L);
+            }
+        }
+        // Both exceed the total weight divided by the capacity
+        assertTracked(profiler.toJson(8).getJsonArray("requests"), 1L, 3334);
+        assertTracked(profiler.toJson(8).getJsonArray("requests"), 2L, 2500);
+    }
+
+    private void assertTracked(JsonArray top, long id, double count) {
+        for (int i = 0; i < top.size(); i++) {
+            JsonObject entry = top.getJsonObject(i);
+            if (entry.getLong("id") == id) {
+                // Weights are overestimates by at most their error
+                Assert.assertTrue(entry.getDouble("weight") >= count);
+                Assert.assertTrue(entry.getDouble("weight")
+                        - entry.getDouble("error") <= count);
+                return;
+            }
+        }
+        Assert.fail("Pixels:" + id + " not tracked in " + top);
+    }
+
+    @Test
+    public void testRenderTimeAndResetDefaults() {
+        HotKeyProfiler profiler = new HotKeyProfiler(16, 10);
+        profiler.recordRender(1L, 500000000L);
+        profiler.recordRender(2L, 2000000000L);
+        profiler.recordRender(1L, 250000000L);
+        profiler.recordResetDefaults(7L);
+        JsonObject json = profiler.toJson(10);
+        JsonArray renderTime = json.getJsonArray("renderTime");
+        Assert.assertEquals(
+                renderTime.getJsonObject(0).getLong("id").longValue(), 2L);
+        JsonObject slow = renderTime.getJsonObject(1);
+        Assert.assertEquals(slow.getLong("id").longValue(), 1L);
+        Assert.assertEquals(slow.getDouble("weight"), 0.75, 1e-9);
+        Assert.assertEquals(slow.getDouble("max"), 0.5, 1e-9);
+        JsonArray resetDefaults = json.getJsonArray("resetDefaults");
+        Assert.assertEquals(resetDefaults.size(), 1);
+        Assert.assertEquals(
+                resetDefaults.getJsonObject(0).getLong("id").longValue(),
+                7L);
+    }
+
+    @Test
+    public void testDecay() {
+        HotKeyProfiler profiler = new HotKeyProfiler(16, 10);
+        for (int i = 0; i < 8; i++) {
+            profiler.recordRequest(1L);
+        }
+        profiler.decay();
+        profiler.decay();
+        JsonObject entry =
+                profiler.toJson(1).getJsonArray("requests").getJsonObject(0);
+        Assert.assertEquals(entry.getDouble("weight"), 2.0);
+    }
+
+    @Test
+    public void testCollectExportsTopEntries() {
+        HotKeyProfiler profiler = new HotKeyProfiler(16, 2);
+        for (long pixelsId = 1; pixelsId <= 4; pixelsId++) {
+            for (int i = 0; i < pixelsId; i++) {
+                profiler.recordRequest(pixelsId);
+            }
+        }
+        List<MetricFamilySamples> families = profiler.collect();
+        Assert.assertEquals(families.size(), 3);
+        MetricFamilySamples requests = families.get(0);
+        Assert.assertEquals(
+                requests.name, "omero_ms_thumbnail_hot_pixels_requests");
+        Assert.assertEquals(requests.samples.size(), 2);
+        Assert.assertEquals(
+                requests.samples.get(0).labelValues.get(0), "4");
+        Assert.assertEquals(requests.samples.get(0).value, 4.0);
+        Assert.assertEquals(families.get(1).samples.size(), 0);
+    }
+
+    @Test
+    public void testCollectExportsResetDefaultsByPixels() {
+        HotKeyProfiler profiler = new HotKeyProfiler(16, 2);
+        profiler.recordResetDefaults(5L);
+        MetricFamilySamples resetDefaults = profiler.collect().get(2);
+        Assert.assertEquals(resetDefaults.name,
+                "omero_ms_thumbnail_hot_pixels_reset_defaults");
+        Assert.assertEquals(resetDefaults.samples.size(), 1);
+        Assert.assertEquals(
+                resetDefaults.samples.get(0).labelNames.get(0), "pixels_id");
+        Assert.assertEquals(
+                resetDefaults.samples.get(0).labelValues.get(0), "5");
+    }
+
+}
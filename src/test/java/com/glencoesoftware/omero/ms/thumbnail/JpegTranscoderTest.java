@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brave.Tracing;
+
+public class JpegTranscoderTest {
+
+    /** Start of frame marker of baseline DCT JPEGs. */
+    private static final int SOF0 = 0xC0;
+
+    /** Start of frame marker of progressive DCT JPEGs. */
+    private static final int SOF2 = 0xC2;
+
+    private Tracing tracing;
+
+    @BeforeMethod
+    public void setUp() {
+        tracing = Tracing.newBuilder().build();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        tracing.close();
+    }
+
+    /**
+     * @return Noisy gradient which compresses poorly enough for the quality
+     * setting to make a difference to the encoded size.
+     */
+    private BufferedImage image() {
+        Random random = new Random(42);
+        BufferedImage image =
+                new BufferedImage(96, 96, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int noise = random.nextInt(32);
+                image.setRGB(x, y, ((x * 2 + noise) << 16)
+                        | ((y * 2 + noise) << 8) | (x + y + noise));
+            }
+        }
+        return image;
+    }
+
+    private byte[] jpeg(float quality) throws IOException {
+        ImageWriter writer =
+                ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image(), null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Walks the marker segments of a JPEG up to its first frame header.
+     * @param jpeg JPEG to examine.
+     * @return Start of frame marker, less its <code>0xFF</code> prefix.
+     */
+    private int frameMarker(byte[] jpeg) {
+        int offset = 2;  // SOI
+        while (offset + 4 <= jpeg.length) {
+            Assert.assertEquals(jpeg[offset] & 0xFF, 0xFF);
+            int marker = jpeg[offset + 1] & 0xFF;
+            if (marker >= SOF0 && marker <= SOF2) {
+                return marker;
+            }
+            int length = ((jpeg[offset + 2] & 0xFF) << 8)
+                    | (jpeg[offset + 3] & 0xFF);
+            offset += 2 + length;
+        }
+        throw new AssertionError("No start of frame marker");
+    }
+
+    private void assertDecodes(byte[] jpeg) throws IOException {
+        BufferedImage decoded =
+                ImageIO.read(new ByteArrayInputStream(jpeg));
+        Assert.assertNotNull(decoded);
+        Assert.assertEquals(decoded.getWidth(), 96);
+        Assert.assertEquals(decoded.getHeight(), 96);
+    }
+
+    @Test
+    public void testQualityHonoured() throws IOException {
+        byte[] original = jpeg(1.0f);
+        byte[] high = new JpegTranscoder(80, false, true).transcode(original);
+        byte[] low = new JpegTranscoder(30, false, true).transcode(original);
+        Assert.assertTrue(high.length < original.length);
+        Assert.assertTrue(low.length < high.length);
+        assertDecodes(high);
+        assertDecodes(low);
+        // Re-encoding is deterministic for the same settings
+        Assert.assertEquals(
+                new JpegTranscoder(30, false, true).transcode(original), low);
+    }
+
+    @Test
+    public void testProgressiveHonoured() throws IOException {
+        byte[] original = jpeg(1.0f);
+        Assert.assertEquals(frameMarker(original), SOF0);
+        byte[] baseline =
+                new JpegTranscoder(75, false, true).transcode(original);
+        byte[] progressive =
+                new JpegTranscoder(75, true, true).transcode(original);
+        Assert.assertEquals(frameMarker(baseline), SOF0);
+        Assert.assertEquals(frameMarker(progressive), SOF2);
+        assertDecodes(progressive);
+    }
+
+    @Test
+    public void testLargerResultPassedThrough() throws IOException {
+        byte[] original = jpeg(0.05f);
+        byte[] transcoded =
+                new JpegTranscoder(100, false, true).transcode(original);
+        Assert.assertSame(transcoded, original);
+    }
+
+    @Test
+    public void testNonJpegPassedThrough() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image(), "png", png);
+        byte[] original = png.toByteArray();
+        JpegTranscoder transcoder = new JpegTranscoder(30, true, true);
+        Assert.assertSame(transcoder.transcode(original), original);
+        byte[] garbage = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        Assert.assertSame(transcoder.transcode(garbage), garbage);
+    }
+
+    @Test
+    public void testVariantIdentifiesSettings() {
+        int[] variants = new int[] {
+            new JpegTranscoder(75, false, false).variant(),
+            new JpegTranscoder(75, true, false).variant(),
+            new JpegTranscoder(75, false, true).variant(),
+            new JpegTranscoder(75, true, true).variant(),
+            new JpegTranscoder(76, false, false).variant()
+        };
+        for (int i = 0; i < variants.length; i++) {
+            Assert.assertNotEquals(variants[i], 0);
+            for (int j = i + 1; j < variants.length; j++) {
+                Assert.assertNotEquals(variants[i], variants[j]);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testQualityOutOfRange() {
+        new JpegTranscoder(0, false, false);
+    }
+
+}
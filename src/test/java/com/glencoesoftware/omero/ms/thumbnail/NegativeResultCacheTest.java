@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class NegativeResultCacheTest {
+
+    /** Current time in milliseconds as seen by the caches under test. */
+    private long now;
+
+    @BeforeMethod
+    public void setUp() {
+        now = 1000000L;
+    }
+
+    private NegativeResultCache cache(long ttl, int maxSize) {
+        return new NegativeResultCache(ttl, maxSize, () -> now);
+    }
+
+    @Test
+    public void testCachesMissingAndForbidden() {
+        NegativeResultCache cache = cache(60000, 10);
+        cache.put("session", 1L, 404);
+        cache.put("session", 2L, 403);
+        Assert.assertEquals(cache.get("session", 1L), Integer.valueOf(404));
+        Assert.assertEquals(cache.get("session", 2L), Integer.valueOf(403));
+        Assert.assertNull(cache.get("other", 1L));
+    }
+
+    @Test
+    public void testOtherOutcomesNotCached() {
+        NegativeResultCache cache = cache(60000, 10);
+        cache.put("session", 1L, 500);
+        cache.put("session", 2L, 503);
+        cache.put("session", 3L, 200);
+        Assert.assertNull(cache.get("session", 1L));
+        Assert.assertNull(cache.get("session", 2L));
+        Assert.assertNull(cache.get("session", 3L));
+    }
+
+    @Test
+    public void testExpiry() {
+        NegativeResultCache cache = cache(50, 10);
+        cache.put("session", 1L, 404);
+        Assert.assertEquals(cache.get("session", 1L), Integer.valueOf(404));
+        now += 50;
+        Assert.assertEquals(cache.get("session", 1L), Integer.valueOf(404));
+        now += 1;
+        Assert.assertNull(cache.get("session", 1L));
+    }
+
+    @Test
+    public void testPutRefreshesExpiry() {
+        NegativeResultCache cache = cache(300, 10);
+        cache.put("session", 1L, 404);
+        now += 200;
+        cache.put("session", 1L, 403);
+        now += 150;
+        Assert.assertEquals(cache.get("session", 1L), Integer.valueOf(403));
+    }
+
+    @Test
+    public void testOldestEvicted() {
+        NegativeResultCache cache = cache(60000, 2);
+        cache.put("session", 1L, 404);
+        cache.put("session", 2L, 404);
+        cache.put("session", 3L, 404);
+        Assert.assertNull(cache.get("session", 1L));
+        Assert.assertNotNull(cache.get("session", 2L));
+        Assert.assertNotNull(cache.get("session", 3L));
+    }
+
+    @Test
+    public void testInvalidate() {
+        NegativeResultCache cache = cache(60000, 10);
+        cache.put("a", 1L, 404);
+        cache.put("b", 1L, 404);
+        cache.put("a", 2L, 404);
+        cache.invalidate(Arrays.asList(1L));
+        Assert.assertNull(cache.get("a", 1L));
+        Assert.assertNull(cache.get("b", 1L));
+        Assert.assertNotNull(cache.get("a", 2L));
+        cache.invalidate();
+        Assert.assertNull(cache.get("a", 2L));
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.glencoesoftware.omero.ms.thumbnail.OmeroBackends.Backend;
+
+public class OmeroBackendsTest {
+
+    private static final String ADDRESS = "omero.render_thumbnail";
+
+    /** Current time in milliseconds as seen by the backends under test. */
+    private long now;
+
+    private List<Backend> list;
+
+    @BeforeMethod
+    public void setUp() {
+        now = 1000000;
+        list = new ArrayList<Backend>();
+        for (int i = 0; i < 3; i++) {
+            list.add(new Backend(i, "omero" + i, 4064));
+        }
+    }
+
+    /**
+     * @param hedgeBudget Fraction of requests which may be hedged.
+     * @return Backends ejected for 10 seconds after 3 consecutive failures
+     * and hedging at the 90th percentile.
+     */
+    private OmeroBackends backends(double hedgeBudget) {
+        return new OmeroBackends(
+                list, 3, 10000, 0.9, 5, hedgeBudget, () -> now);
+    }
+
+    /**
+     * Accounts for a request to a specific backend as if selected.
+     * @param backend Backend to send the request to.
+     * @return <code>backend</code>.
+     */
+    private Backend hold(Backend backend) {
+        backend.outstanding++;
+        return backend;
+    }
+
+    private void fail(OmeroBackends backends, Backend backend, int times) {
+        for (int i = 0; i < times; i++) {
+            backends.release(hold(backend), ADDRESS,
+                    true, 0);
+        }
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+        OmeroBackends backends = backends(0);
+        Backend a = backends.acquire();
+        Backend b = backends.acquire();
+        Backend c = backends.acquire();
+        // One request outstanding to each
+        Assert.assertNotSame(a, b);
+        Assert.assertNotSame(b, c);
+        Assert.assertNotSame(a, c);
+        backends.release(b, ADDRESS, false, 0);
+        Assert.assertSame(backends.acquire(), b);
+        backends.release(a, ADDRESS, false, 0);
+        backends.release(c, ADDRESS, false, 0);
+        Backend d = backends.acquire();
+        Assert.assertNotSame(d, b);
+        Backend e = backends.acquire();
+        Assert.assertNotSame(e, b);
+        Assert.assertNotSame(e, d);
+    }
+
+    @Test
+    public void testTiesRotate() {
+        OmeroBackends backends = backends(0);
+        List<Backend> selected = new ArrayList<Backend>();
+        for (int i = 0; i < 3; i++) {
+            Backend backend = backends.acquire();
+            backends.release(backend, ADDRESS, false, 0);
+            selected.add(backend);
+        }
+        Assert.assertEquals(selected, list);
+    }
+
+    @Test
+    public void testEjectedAfterFailureThreshold() {
+        OmeroBackends backends = backends(0);
+        Backend failing = list.get(0);
+        // Failures below the threshold or interrupted by a success do not
+        // eject the backend
+        fail(backends, failing, 2);
+        backends.release(hold(failing), ADDRESS,
+                false, 0);
+        fail(backends, failing, 2);
+        Assert.assertEquals(failing.ejectedUntil, 0);
+        fail(backends, failing, 1);
+        Assert.assertEquals(failing.ejectedUntil, now + 10000);
+        for (int i = 0; i < 10; i++) {
+            Backend backend = backends.acquire();
+            Assert.assertNotSame(backend, failing);
+            backends.release(backend, ADDRESS, false, 0);
+        }
+    }
+
+    @Test
+    public void testReturnedToService() {
+        OmeroBackends backends = backends(0);
+        Backend failing = list.get(0);
+        fail(backends, failing, 3);
+        now += 9999;
+        for (int i = 0; i < 3; i++) {
+            Backend backend = backends.acquire();
+            Assert.assertNotSame(backend, failing);
+            backends.release(backend, ADDRESS, false, 0);
+        }
+        now += 1;
+        // Others are busy so the returned backend has the fewest outstanding
+        hold(list.get(1));
+        hold(list.get(2));
+        Assert.assertSame(backends.acquire(), failing);
+        Assert.assertEquals(failing.ejectedUntil, 0);
+    }
+
+    @Test
+    public void testAllEjectedSoonestSelected() {
+        OmeroBackends backends = backends(0);
+        fail(backends, list.get(1), 3);
+        now += 100;
+        fail(backends, list.get(0), 3);
+        now += 100;
+        fail(backends, list.get(2), 3);
+        Assert.assertSame(backends.acquire(), list.get(1));
+    }
+
+    @Test
+    public void testHedgeExcludesPrimary() {
+        OmeroBackends backends = backends(1);
+        Backend primary = backends.acquire();
+        backends.earnHedge();
+        Backend secondary = backends.acquireHedge(primary);
+        Assert.assertNotNull(secondary);
+        Assert.assertNotSame(secondary, primary);
+    }
+
+    @Test
+    public void testHedgeSkippedWhenOthersEjected() {
+        OmeroBackends backends = backends(1);
+        Backend primary = list.get(0);
+        fail(backends, list.get(1), 3);
+        fail(backends, list.get(2), 3);
+        hold(primary);
+        backends.earnHedge();
+        // Neither the excluded primary nor an ejected backend is selected
+        Assert.assertNull(backends.acquireHedge(primary));
+        // and the token is kept for when a backend is available
+        now += 10000;
+        Assert.assertNotNull(backends.acquireHedge(primary));
+    }
+
+    @Test
+    public void testHedgeBudgetExhausted() {
+        OmeroBackends backends = backends(0.25);
+        Backend primary = backends.acquire();
+        for (int i = 0; i < 3; i++) {
+            backends.earnHedge();
+            Assert.assertNull(backends.acquireHedge(primary));
+        }
+        backends.earnHedge();
+        // 4 requests at 25% earn a single hedge
+        Assert.assertNotNull(backends.acquireHedge(primary));
+        Assert.assertNull(backends.acquireHedge(primary));
+    }
+
+    @Test
+    public void testHedgeBudgetCapped() {
+        OmeroBackends backends = backends(1);
+        Backend primary = backends.acquire();
+        for (int i = 0; i < 100; i++) {
+            backends.earnHedge();
+        }
+        int hedges = 0;
+        while (backends.acquireHedge(primary) != null) {
+            hedges++;
+        }
+        Assert.assertEquals(hedges, 10);
+    }
+
+    @Test
+    public void testHedgeDelayPerAddress() {
+        OmeroBackends backends = backends(0);
+        Assert.assertEquals(backends.hedgeDelay(ADDRESS), -1);
+        for (int i = 1; i <= 256; i++) {
+            Backend backend = backends.acquire();
+            backends.release(backend, ADDRESS, false,
+                    TimeUnit.MILLISECONDS.toNanos(i));
+            backend = backends.acquire();
+            backends.release(backend, "omero.get_thumbnails", false,
+                    TimeUnit.MILLISECONDS.toNanos(i * 100));
+        }
+        // 90th percentile of 1..256 ms and 100..25600 ms respectively
+        Assert.assertEquals(backends.hedgeDelay(ADDRESS), 231);
+        Assert.assertEquals(
+                backends.hedgeDelay("omero.get_thumbnails"), 23100);
+        Assert.assertEquals(backends.hedgeDelay("omero.unknown"), -1);
+    }
+
+    @Test
+    public void testNoHedgeDelayWithSingleBackend() {
+        list.subList(1, list.size()).clear();
+        OmeroBackends backends = backends(0);
+        for (int i = 1; i <= 256; i++) {
+            Backend backend = backends.acquire();
+            backends.release(backend, ADDRESS, false,
+                    TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        Assert.assertEquals(backends.hedgeDelay(ADDRESS), -1);
+    }
+
+}
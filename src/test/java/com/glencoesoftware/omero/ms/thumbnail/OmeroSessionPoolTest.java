@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.glencoesoftware.omero.ms.core.OmeroRequest;
+import com.glencoesoftware.omero.ms.thumbnail.OmeroSessionPool.Lease;
+
+import omero.api.ThumbnailStorePrx;
+
+public class OmeroSessionPoolTest {
+
+    private static final String HOST = "localhost";
+
+    private static final int PORT = 4064;
+
+    /** Current time in milliseconds as seen by the pool under test. */
+    private long now;
+
+    /** Sessions joined by the pool under test, in order. */
+    private List<OmeroRequest> joined;
+
+    @BeforeMethod
+    public void setUp() {
+        now = 1000000;
+        joined = new ArrayList<OmeroRequest>();
+    }
+
+    /**
+     * @param maxIdle Maximum number of idle leases kept.
+     * @return Pool whose leases live for 60 seconds and whose sessions are
+     * mocks recorded in {@link #joined}.
+     */
+    private OmeroSessionPool pool(int maxIdle) {
+        return new OmeroSessionPool(maxIdle, 60000, () -> now,
+                (host, port, omeroSessionKey) -> {
+                    OmeroRequest request = Mockito.mock(OmeroRequest.class);
+                    joined.add(request);
+                    return request;
+                });
+    }
+
+    private Lease lease(OmeroSessionPool pool, String omeroSessionKey)
+            throws Exception {
+        return pool.lease(HOST, PORT, omeroSessionKey);
+    }
+
+    @Test
+    public void testLeaseReused() throws Exception {
+        OmeroSessionPool pool = pool(4);
+        Lease lease = lease(pool, "a");
+        Assert.assertTrue(lease.isPooled());
+        lease.close();
+        Assert.assertSame(lease(pool, "a"), lease);
+        Assert.assertEquals(joined.size(), 1);
+        // Sessions are not shared between session keys
+        Assert.assertNotSame(lease(pool, "b"), lease);
+        Assert.assertEquals(joined.size(), 2);
+        Mockito.verify(lease.request, Mockito.never()).close();
+    }
+
+    @Test
+    public void testFailedExecuteDiscarded() throws Exception {
+        OmeroSessionPool pool = pool(4);
+        Lease lease = lease(pool, "a");
+        Mockito.when(lease.request.execute(Mockito.any()))
+                .thenThrow(new RuntimeException("Connection lost"));
+        try {
+            lease.execute(client -> null);
+            Assert.fail("Exception not raised");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        lease.close();
+        Mockito.verify(lease.request).close();
+        Assert.assertNotSame(lease(pool, "a"), lease);
+        Assert.assertEquals(joined.size(), 2);
+    }
+
+    @Test
+    public void testMarkedFailedDiscarded() throws Exception {
+        OmeroSessionPool pool = pool(4);
+        Lease lease = lease(pool, "a");
+        ThumbnailStorePrx thumbnailStore =
+                Mockito.mock(ThumbnailStorePrx.class);
+        Assert.assertNull(lease.preparedThumbnailStore(1L));
+        lease.markFailed();
+        // Neither the store nor the session of a failed lease is kept
+        lease.release(thumbnailStore, true);
+        Mockito.verify(thumbnailStore).close();
+        lease.close();
+        Mockito.verify(lease.request).close();
+        Assert.assertNotSame(lease(pool, "a"), lease);
+    }
+
+    @Test
+    public void testThumbnailStoreReusedWithinGroup() throws Exception {
+        OmeroSessionPool pool = pool(4);
+        Lease lease = lease(pool, "a");
+        ThumbnailStorePrx thumbnailStore =
+                Mockito.mock(ThumbnailStorePrx.class);
+        Assert.assertNull(lease.preparedThumbnailStore(1L));
+        lease.release(thumbnailStore, true);
+        lease.close();
+        lease = lease(pool, "a");
+        Assert.assertSame(lease.preparedThumbnailStore(1L), thumbnailStore);
+        Mockito.verify(thumbnailStore, Mockito.never()).close();
+    }
+
+    @Test
+    public void testThumbnailStoreNotReusedAcrossGroups() throws Exception {
+        OmeroSessionPool pool = pool(4);
+        Lease lease = lease(pool, "a");
+        ThumbnailStorePrx group1 = Mockito.mock(ThumbnailStorePrx.class);
+        Assert.assertNull(lease.preparedThumbnailStore(1L));
+        lease.release(group1, true);
+        lease.close();
+        lease = lease(pool, "a");
+        // The store prepared for the first group is closed, not handed out
+        Assert.assertNull(lease.preparedThumbnailStore(2L));
+        Mockito.verify(group1).close();
+        ThumbnailStorePrx group2 = Mockito.mock(ThumbnailStorePrx.class);
+        lease.release(group2, true);
+        Assert.assertNull(lease.preparedThumbnailStore(1L));
+        Mockito.verify(group2).close();
+    }
+
+    @Test
+    public void testThumbnailStoreNotReusable() throws Exception {
+        OmeroSessionPool pool = pool(4);
+        Lease lease = lease(pool, "a");
+        ThumbnailStorePrx thumbnailStore =
+                Mockito.mock(ThumbnailStorePrx.class);
+        Assert.assertNull(lease.preparedThumbnailStore(1L));
+        lease.release(thumbnailStore, false);
+        Mockito.verify(thumbnailStore).close();
+        Assert.assertNull(lease.preparedThumbnailStore(1L));
+    }
+
+    @Test
+    public void testMaxIdleEvictsLeastRecentlyReturned() throws Exception {
+        OmeroSessionPool pool = pool(2);
+        Lease a = lease(pool, "a");
+        Lease b = lease(pool, "b");
+        Lease c = lease(pool, "c");
+        b.close();
+        a.close();
+        c.close();
+        // b was returned first so is evicted first
+        Mockito.verify(b.request).close();
+        Mockito.verify(a.request, Mockito.never()).close();
+        Mockito.verify(c.request, Mockito.never()).close();
+        Assert.assertSame(lease(pool, "a"), a);
+        Assert.assertSame(lease(pool, "c"), c);
+        Assert.assertNotSame(lease(pool, "b"), b);
+        Assert.assertEquals(joined.size(), 4);
+    }
+
+    @Test
+    public void testReuseRefreshesEvictionOrder() throws Exception {
+        OmeroSessionPool pool = pool(2);
+        Lease a = lease(pool, "a");
+        Lease b = lease(pool, "b");
+        a.close();
+        b.close();
+        lease(pool, "a").close();
+        lease(pool, "c").close();
+        Mockito.verify(b.request).close();
+        Mockito.verify(a.request, Mockito.never()).close();
+    }
+
+    @Test
+    public void testExpiredDiscardedOnLease() throws Exception {
+        OmeroSessionPool pool = pool(4);
+        Lease lease = lease(pool, "a");
+        lease.close();
+        now += 60000;
+        Assert.assertSame(lease(pool, "a"), lease);
+        lease.close();
+        now += 1;
+        Lease replacement = lease(pool, "a");
+        Assert.assertNotSame(replacement, lease);
+        Mockito.verify(lease.request).close();
+        Assert.assertEquals(joined.size(), 2);
+    }
+
+    @Test
+    public void testExpiredDiscardedOnReturn() throws Exception {
+        OmeroSessionPool pool = pool(4);
+        Lease lease = lease(pool, "a");
+        now += 60001;
+        lease.close();
+        Mockito.verify(lease.request).close();
+        Assert.assertNotSame(lease(pool, "a"), lease);
+    }
+
+    @Test
+    public void testExpiredDiscardedOnSweep() throws Exception {
+        OmeroSessionPool pool = pool(4);
+        Lease a = lease(pool, "a");
+        a.close();
+        now += 30000;
+        Lease b = lease(pool, "b");
+        b.close();
+        pool.sweep();
+        Mockito.verify(a.request, Mockito.never()).close();
+        now += 30001;
+        pool.sweep();
+        // Only the lease past its lifetime is discarded
+        Mockito.verify(a.request).close();
+        Mockito.verify(b.request, Mockito.never()).close();
+        Assert.assertNotSame(lease(pool, "a"), a);
+        Assert.assertSame(lease(pool, "b"), b);
+    }
+
+    @Test
+    public void testUnpooledLeaveSessionOnClose() {
+        OmeroRequest request = Mockito.mock(OmeroRequest.class);
+        Lease lease = Lease.unpooled(request);
+        Assert.assertFalse(lease.isPooled());
+        Assert.assertNull(lease.preparedThumbnailStore(1L));
+        lease.close();
+        Mockito.verify(request).close();
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SlabStorageTest {
+
+    private byte[] value(int length, int seed) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) (seed + i);
+        }
+        return value;
+    }
+
+    @Test
+    public void testSizeClasses() {
+        SlabStorage storage = new SlabStorage(65536, 65536);
+        Assert.assertEquals(storage.sizeClass(1), 0);
+        Assert.assertEquals(storage.sizeClass(1024), 0);
+        Assert.assertEquals(storage.sizeClass(1025), 1);
+        Assert.assertEquals(storage.chunkSize(0), 1024);
+        int sizeClass = 1;
+        while (storage.chunkSize(sizeClass) < 65536) {
+            int size = storage.chunkSize(sizeClass);
+            int previous = storage.chunkSize(sizeClass - 1);
+            Assert.assertEquals(size % 64, 0);
+            Assert.assertTrue(size > previous);
+            Assert.assertTrue(size <= previous * 5 / 4 + 64);
+            Assert.assertEquals(storage.sizeClass(size), sizeClass);
+            Assert.assertEquals(storage.sizeClass(previous + 1), sizeClass);
+            sizeClass++;
+        }
+        Assert.assertEquals(storage.sizeClass(65536), sizeClass);
+        Assert.assertEquals(storage.sizeClass(65537), -1);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        SlabStorage storage = new SlabStorage(8192, 65536);
+        byte[] small = value(100, 1);
+        byte[] large = value(5000, 2);
+        long smallHandle = storage.put(small);
+        long largeHandle = storage.put(large);
+        Assert.assertTrue(smallHandle >= 0);
+        Assert.assertTrue(largeHandle >= 0);
+        Assert.assertTrue(Arrays.equals(
+                storage.get(smallHandle, small.length), small));
+        Assert.assertTrue(Arrays.equals(
+                storage.get(largeHandle, large.length), large));
+        // Each size class is carved from its own slab
+        Assert.assertNotEquals(
+                storage.sizeClassOf(smallHandle),
+                storage.sizeClassOf(largeHandle));
+        Assert.assertEquals(storage.allocatedBytes(), 16384);
+        Assert.assertEquals(storage.put(new byte[8193]), -1);
+    }
+
+    @Test
+    public void testFull() {
+        SlabStorage storage = new SlabStorage(2048, 2048);
+        Assert.assertTrue(storage.put(value(1000, 1)) >= 0);
+        Assert.assertTrue(storage.put(value(1000, 2)) >= 0);
+        Assert.assertEquals(storage.put(value(1000, 3)), -1);
+        // The only slab is assigned to the smallest size class
+        Assert.assertEquals(storage.put(value(1500, 4)), -1);
+        Assert.assertEquals(storage.allocatedBytes(), 2048);
+    }
+
+    @Test
+    public void testFreedChunkReused() {
+        SlabStorage storage = new SlabStorage(2048, 2048);
+        long first = storage.put(value(1000, 1));
+        long second = storage.put(value(1000, 2));
+        storage.free(first);
+        byte[] third = value(1000, 3);
+        Assert.assertEquals(storage.put(third), first);
+        Assert.assertTrue(Arrays.equals(storage.get(first, 1000), third));
+        Assert.assertTrue(Arrays.equals(
+                storage.get(second, 1000), value(1000, 2)));
+    }
+
+    @Test
+    public void testEmptySlabReassigned() {
+        SlabStorage storage = new SlabStorage(2048, 2048);
+        long first = storage.put(value(1000, 1));
+        long second = storage.put(value(1000, 2));
+        storage.free(first);
+        Assert.assertEquals(storage.put(value(1500, 3)), -1);
+        storage.free(second);
+        byte[] large = value(1500, 4);
+        long handle = storage.put(large);
+        Assert.assertTrue(handle >= 0);
+        Assert.assertEquals(
+                storage.sizeClassOf(handle), storage.sizeClass(1500));
+        Assert.assertTrue(Arrays.equals(storage.get(handle, 1500), large));
+    }
+
+    @Test
+    public void testClear() {
+        SlabStorage storage = new SlabStorage(2048, 2048);
+        storage.put(value(1000, 1));
+        storage.put(value(1000, 2));
+        storage.clear();
+        Assert.assertEquals(storage.allocatedBytes(), 2048);
+        Assert.assertTrue(storage.put(value(1500, 3)) >= 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testSlabTooSmall() {
+        new SlabStorage(512, 65536);
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brave.Span.Kind;
+import brave.Tracer;
+import brave.Tracing;
+import brave.handler.FinishedSpanHandler;
+import brave.sampler.Sampler;
+import zipkin2.Span;
+
+public class TailSamplingSpanHandlerTest {
+
+    /** Spans reported by the handler under test. */
+    private List<Span> reported;
+
+    /** Spans of head sampled traces reported by the regular pipeline. */
+    private List<Span> headSampled;
+
+    private Tracing tracing;
+
+    @BeforeMethod
+    public void setUp() {
+        reported = new ArrayList<Span>();
+        headSampled = new ArrayList<Span>();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (tracing != null) {
+            tracing.close();
+            tracing = null;
+        }
+    }
+
+    private Tracer tracer(FinishedSpanHandler... handlers) {
+        return tracer(Sampler.NEVER_SAMPLE, handlers);
+    }
+
+    private Tracer tracer(Sampler sampler, FinishedSpanHandler... handlers) {
+        Tracing.Builder builder = Tracing.newBuilder()
+                .localServiceName("omero-ms-thumbnail")
+                .sampler(sampler)
+                .spanReporter(headSampled::add);
+        for (FinishedSpanHandler handler : handlers) {
+            builder.addFinishedSpanHandler(handler);
+        }
+        tracing = builder.build();
+        return tracing.tracer();
+    }
+
+    private TailSamplingSpanHandler handler(long latencyThreshold) {
+        return new TailSamplingSpanHandler(
+                reported::add, latencyThreshold, 100, 10000);
+    }
+
+    /**
+     * Runs a request shaped trace: a server span with a worker span and
+     * the worker's children.
+     */
+    private void request(Tracer tracer, String statusCode) {
+        request(tracer, statusCode, 1000L);
+    }
+
+    /**
+     * Runs a request shaped trace with a given duration.
+     * @param duration Duration of the server span in microseconds.
+     */
+    private void request(Tracer tracer, String statusCode, long duration) {
+        long start = System.currentTimeMillis() * 1000;
+        brave.Span server = tracer.newTrace()
+                .kind(Kind.SERVER).name("get").start(start);
+        brave.Span worker = tracer.newChild(server.context())
+                .name("render_thumbnail").start(start + 1);
+        for (int i = 0; i < 3; i++) {
+            tracer.newChild(worker.context()).name("stage")
+                .start(start + 2).finish(start + 3);
+        }
+        worker.finish(start + duration - 1);
+        server.tag("http.status_code", statusCode);
+        server.finish(start + duration);
+    }
+
+    /**
+     * @param spans Reported spans.
+     * @return Server spans among them.
+     */
+    private List<Span> serverSpans(List<Span> spans) {
+        List<Span> servers = new ArrayList<Span>();
+        for (Span span : spans) {
+            if (span.kind() == Span.Kind.SERVER) {
+                servers.add(span);
+            }
+        }
+        return servers;
+    }
+
+    @Test
+    public void testFastTraceDropped() {
+        TailSamplingSpanHandler handler = handler(60000);
+        request(tracer(handler), "200");
+        Assert.assertTrue(reported.isEmpty());
+        Assert.assertEquals(handler.pendingTraces(), 0);
+    }
+
+    @Test
+    public void testFailedTraceRetained() {
+        TailSamplingSpanHandler handler = handler(60000);
+        request(tracer(handler), "503");
+        Assert.assertEquals(reported.size(), 5);
+        Assert.assertEquals(reported.get(4).kind(), Span.Kind.SERVER);
+        Assert.assertEquals(handler.pendingTraces(), 0);
+    }
+
+    @Test
+    public void testSlowTraceRetained() {
+        TailSamplingSpanHandler handler = handler(0);
+        request(tracer(handler), "200");
+        Assert.assertEquals(reported.size(), 5);
+    }
+
+    @Test
+    public void testLateSpanFollowsDecision() {
+        TailSamplingSpanHandler handler = handler(60000);
+        Tracer tracer = tracer(handler);
+        brave.Span server = tracer.newTrace()
+                .kind(Kind.SERVER).name("get").start();
+        brave.Span worker = tracer.newChild(server.context())
+                .name("render_thumbnail").start();
+        server.tag("http.status_code", "503");
+        server.finish();
+        Assert.assertEquals(reported.size(), 1);
+        worker.finish();
+        Assert.assertEquals(reported.size(), 2);
+        Assert.assertEquals(handler.pendingTraces(), 0);
+
+        server = tracer.newTrace().kind(Kind.SERVER).name("get").start();
+        worker = tracer.newChild(server.context())
+                .name("render_thumbnail").start();
+        server.tag("http.status_code", "200");
+        server.finish();
+        worker.finish();
+        Assert.assertEquals(reported.size(), 2);
+        Assert.assertEquals(handler.pendingTraces(), 0);
+    }
+
+    @Test
+    public void testTraceWithoutServerSpanDecidedAtRoot() {
+        TailSamplingSpanHandler handler = handler(60000);
+        Tracer tracer = tracer(handler);
+        brave.Span root = tracer.newTrace().name("refresh_thumbnail").start();
+        tracer.newChild(root.context()).name("stage").start().finish();
+        Assert.assertEquals(handler.pendingTraces(), 1);
+        root.finish();
+        Assert.assertTrue(reported.isEmpty());
+        Assert.assertEquals(handler.pendingTraces(), 0);
+    }
+
+    @Test
+    public void testPendingTraceExpires() throws Exception {
+        TailSamplingSpanHandler handler = new TailSamplingSpanHandler(
+                reported::add, 60000, 100, 0);
+        Tracer tracer = tracer(handler);
+        brave.Span first = tracer.newTrace().name("forwarded").start();
+        tracer.newChild(first.context()).name("stage").start().finish();
+        Assert.assertEquals(handler.pendingTraces(), 1);
+        Thread.sleep(2);
+        brave.Span second = tracer.newTrace().name("forwarded").start();
+        tracer.newChild(second.context()).name("stage").start().finish();
+        Assert.assertEquals(handler.pendingTraces(), 1);
+    }
+
+    @Test
+    public void testPendingTracesBounded() {
+        TailSamplingSpanHandler handler = new TailSamplingSpanHandler(
+                reported::add, 60000, 10, 10000);
+        Tracer tracer = tracer(handler);
+        for (int i = 0; i < 20; i++) {
+            brave.Span root = tracer.newTrace().name("forwarded").start();
+            tracer.newChild(root.context()).name("stage").start().finish();
+        }
+        Assert.assertEquals(handler.pendingTraces(), 10);
+    }
+
+    @Test
+    public void testRetentionWithHeadSampling() {
+        TailSamplingSpanHandler handler = new TailSamplingSpanHandler(
+                reported::add, 1000, 100, 10000);
+        Tracer tracer = tracer(Sampler.create(0.25f), handler);
+        int requests = 2000;
+        for (int i = 0; i < requests; i++) {
+            if (i % 10 == 0) {
+                request(tracer, "503");
+            } else if (i % 10 == 1) {
+                // Two seconds against a one second latency threshold
+                request(tracer, "200", 2000000L);
+            } else {
+                request(tracer, "200");
+            }
+        }
+        List<Span> sampled = serverSpans(headSampled);
+        List<Span> retained = serverSpans(reported);
+        // Fast, successful requests are kept only at the head sampling rate
+        int fastSampled = 0;
+        int slowOrFailed = retained.size();
+        for (Span span : sampled) {
+            if ("503".equals(span.tags().get("http.status_code"))
+                    || span.durationAsLong() >= 1000000L) {
+                slowOrFailed++;
+            } else {
+                fastSampled++;
+            }
+        }
+        Assert.assertEquals(sampled.size(), requests / 4);
+        Assert.assertTrue(fastSampled > 0);
+        Assert.assertTrue(fastSampled < requests * 8 / 10 / 2);
+        // Every slow or failed request is kept exactly once, either head
+        // sampled or retained with all of its spans
+        Assert.assertEquals(slowOrFailed, requests * 2 / 10);
+        Assert.assertEquals(reported.size(), retained.size() * 5);
+        for (Span span : retained) {
+            Assert.assertTrue(
+                    "503".equals(span.tags().get("http.status_code"))
+                    || span.durationAsLong() >= 1000000L);
+        }
+        Assert.assertEquals(handler.pendingTraces(), 0);
+    }
+
+}
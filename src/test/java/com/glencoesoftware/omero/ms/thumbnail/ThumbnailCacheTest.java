@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.glencoesoftware.omero.ms.thumbnail.ThumbnailCache.Key;
+
+public class ThumbnailCacheTest {
+
+    private static final long HOUR = 3600000L;
+
+    private ThumbnailCache cache(
+            long softTtl, long hardTtl, long invalidationHorizon) {
+        return new ThumbnailCache(
+                "test", 1024, softTtl, hardTtl, invalidationHorizon, 10,
+                Collections.<Integer>emptyList(), null);
+    }
+
+    private Key key(long pixelsId) {
+        return new Key(pixelsId, 96, ThumbnailCache.DEFAULT_RENDERING_DEF, 1L);
+    }
+
+    private byte[] thumbnail(int length) {
+        return new byte[length];
+    }
+
+    @Test
+    public void testPutAndGet() {
+        ThumbnailCache cache = cache(HOUR, HOUR, HOUR);
+        byte[] thumbnail = new byte[] { 1, 2, 3 };
+        Assert.assertNull(cache.get(key(1L)));
+        Assert.assertTrue(cache.put(key(1L), cache.ticket(), thumbnail));
+        Assert.assertEquals(cache.get(key(1L)), thumbnail);
+        Assert.assertTrue(cache.isFresh(key(1L)));
+        Assert.assertNull(cache.get(key(2L)));
+    }
+
+    @Test
+    public void testFillBeforeInvalidationDiscarded() {
+        ThumbnailCache cache = cache(HOUR, HOUR, HOUR);
+        long ticket = cache.ticket();
+        cache.invalidate(Arrays.asList(1L));
+        Assert.assertFalse(cache.put(key(1L), ticket, thumbnail(10)));
+        Assert.assertNull(cache.get(key(1L)));
+        // Other Pixels are unaffected while the invalidation is remembered
+        Assert.assertTrue(cache.put(key(2L), ticket, thumbnail(10)));
+        // Fills started after the invalidation are cached
+        Assert.assertTrue(cache.put(key(1L), cache.ticket(), thumbnail(10)));
+    }
+
+    @Test
+    public void testInvalidateRemovesEntries() {
+        ThumbnailCache cache = cache(HOUR, HOUR, HOUR);
+        long ticket = cache.ticket();
+        cache.put(key(1L), ticket, thumbnail(10));
+        cache.put(key(1L).withVariant(1), ticket, thumbnail(10));
+        cache.put(key(2L), ticket, thumbnail(10));
+        Assert.assertEquals(cache.invalidate(Arrays.asList(1L, 3L)), 2);
+        Assert.assertNull(cache.get(key(1L)));
+        Assert.assertNotNull(cache.get(key(2L)));
+        Assert.assertEquals(cache.invalidate(Collections.<Long>emptyList()), 0);
+    }
+
+    @Test
+    public void testForgottenInvalidationRaisesFloor() throws Exception {
+        ThumbnailCache cache = cache(HOUR, HOUR, 0);
+        long ticket = cache.ticket();
+        cache.invalidate(Arrays.asList(1L));
+        Thread.sleep(5);
+        // Once the invalidation is forgotten every older fill is discarded
+        Assert.assertFalse(cache.put(key(1L), ticket, thumbnail(10)));
+        Assert.assertFalse(cache.put(key(2L), ticket, thumbnail(10)));
+        Assert.assertTrue(cache.put(key(2L), cache.ticket(), thumbnail(10)));
+    }
+
+    @Test
+    public void testInvalidateAllRaisesFloor() {
+        ThumbnailCache cache = cache(HOUR, HOUR, HOUR);
+        long ticket = cache.ticket();
+        cache.put(key(1L), ticket, thumbnail(10));
+        cache.put(key(2L), ticket, thumbnail(10));
+        Assert.assertEquals(cache.invalidate(), 2);
+        Assert.assertNull(cache.get(key(1L)));
+        Assert.assertFalse(cache.put(key(3L), ticket, thumbnail(10)));
+        Assert.assertTrue(cache.put(key(3L), cache.ticket(), thumbnail(10)));
+    }
+
+    @Test
+    public void testStaleEntryServedAndRefreshClaimedOnce()
+            throws Exception {
+        ThumbnailCache cache = cache(1000, HOUR, HOUR);
+        cache.put(key(1L), cache.ticket(), thumbnail(10));
+        Thread.sleep(1100);
+        Assert.assertNotNull(cache.get(key(1L)));
+        Assert.assertFalse(cache.isFresh(key(1L)));
+        Assert.assertTrue(cache.claimRefresh(key(1L)));
+        Assert.assertFalse(cache.claimRefresh(key(1L)));
+        // Refilling the entry makes it fresh again
+        cache.put(key(1L), cache.ticket(), thumbnail(10));
+        Assert.assertTrue(cache.isFresh(key(1L)));
+        Assert.assertFalse(cache.claimRefresh(key(1L)));
+    }
+
+    @Test
+    public void testFreshEntryNotRefreshed() {
+        ThumbnailCache cache = cache(HOUR, HOUR, HOUR);
+        cache.put(key(1L), cache.ticket(), thumbnail(10));
+        Assert.assertFalse(cache.claimRefresh(key(1L)));
+        Assert.assertFalse(cache.claimRefresh(key(2L)));
+    }
+
+    @Test
+    public void testExpiredEntryNotServed() throws Exception {
+        ThumbnailCache cache = cache(1, 1, HOUR);
+        cache.put(key(1L), cache.ticket(), thumbnail(10));
+        Thread.sleep(5);
+        Assert.assertNull(cache.get(key(1L)));
+        Assert.assertFalse(cache.claimRefresh(key(1L)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        ThumbnailCache cache = cache(HOUR, HOUR, HOUR);
+        long ticket = cache.ticket();
+        cache.put(key(1L), ticket, thumbnail(400));
+        cache.put(key(2L), ticket, thumbnail(400));
+        Assert.assertNotNull(cache.get(key(1L)));
+        cache.put(key(3L), ticket, thumbnail(400));
+        Assert.assertNotNull(cache.get(key(1L)));
+        Assert.assertNull(cache.get(key(2L)));
+        Assert.assertNotNull(cache.get(key(3L)));
+        Assert.assertFalse(cache.put(key(4L), ticket, thumbnail(2048)));
+    }
+
+    @Test
+    public void testIsFreshDoesNotAffectEviction() {
+        ThumbnailCache cache = cache(HOUR, HOUR, HOUR);
+        long ticket = cache.ticket();
+        cache.put(key(1L), ticket, thumbnail(400));
+        cache.put(key(2L), ticket, thumbnail(400));
+        Assert.assertTrue(cache.isFresh(key(1L)));
+        Assert.assertFalse(cache.claimRefresh(key(1L)));
+        cache.put(key(3L), ticket, thumbnail(400));
+        Assert.assertNull(cache.get(key(1L)));
+        Assert.assertNotNull(cache.get(key(2L)));
+    }
+
+    private ThumbnailCache offHeapCache(long maxBytes) {
+        return new ThumbnailCache(
+                "test", 1048576, HOUR, HOUR, HOUR, 10,
+                Collections.<Integer>emptyList(),
+                new SlabStorage(2048, maxBytes));
+    }
+
+    @Test
+    public void testOffHeapEvictsWithinSizeClass() {
+        ThumbnailCache cache = offHeapCache(4096);
+        long ticket = cache.ticket();
+        // One slab of 1600 byte chunks and one of 1024 byte chunks
+        Assert.assertTrue(cache.put(key(3L), ticket, thumbnail(1500)));
+        Assert.assertTrue(cache.put(key(1L), ticket, thumbnail(1000)));
+        Assert.assertTrue(cache.put(key(2L), ticket, thumbnail(1000)));
+        Assert.assertNotNull(cache.get(key(1L)));
+        Assert.assertTrue(cache.put(key(4L), ticket, thumbnail(1000)));
+        // The least recently used entry overall is of another size class
+        Assert.assertNotNull(cache.get(key(3L)));
+        Assert.assertNull(cache.get(key(2L)));
+        Assert.assertNotNull(cache.get(key(1L)));
+        Assert.assertNotNull(cache.get(key(4L)));
+    }
+
+    @Test
+    public void testOffHeapReassignsSlab() {
+        ThumbnailCache cache = offHeapCache(2048);
+        long ticket = cache.ticket();
+        Assert.assertTrue(cache.put(key(1L), ticket, thumbnail(1000)));
+        Assert.assertTrue(cache.put(key(2L), ticket, thumbnail(1000)));
+        Assert.assertTrue(cache.put(key(3L), ticket, thumbnail(1500)));
+        Assert.assertNull(cache.get(key(1L)));
+        Assert.assertNull(cache.get(key(2L)));
+        Assert.assertEquals(cache.get(key(3L)).length, 1500);
+    }
+
+}
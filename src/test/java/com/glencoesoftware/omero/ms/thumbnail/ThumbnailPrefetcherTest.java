@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ThumbnailPrefetcherTest {
+
+    private ThumbnailPrefetcher prefetcher(int maxTransitions) {
+        return new ThumbnailPrefetcher(3, 1, 0.5, 300000, maxTransitions);
+    }
+
+    /**
+     * @param first First {@link omero.model.Image} identifier.
+     * @param size Number of images.
+     * @return Page of consecutive {@link omero.model.Image} identifiers.
+     */
+    private List<Long> page(long first, int size) {
+        List<Long> page = new ArrayList<Long>();
+        for (long i = 0; i < size; i++) {
+            page.add(first + i);
+        }
+        return page;
+    }
+
+    @Test
+    public void testNoPredictionUntilLearned() {
+        ThumbnailPrefetcher prefetcher = prefetcher(100);
+        Assert.assertNull(prefetcher.predict(page(1000, 50)));
+        prefetcher.observe("a", 96, page(1000, 50));
+        Assert.assertNull(prefetcher.predict(page(1000, 50)));
+    }
+
+    @Test
+    public void testTransitionLearnedAcrossSessions() {
+        ThumbnailPrefetcher prefetcher = prefetcher(100);
+        prefetcher.observe("a", 96, page(1000, 50));
+        prefetcher.observe("a", 96, page(1050, 50));
+        prefetcher.observe("a", 96, page(1100, 50));
+        // Another session paging through the same container
+        Assert.assertEquals(prefetcher.predict(page(1000, 50)),
+                page(1050, 50));
+        Assert.assertEquals(prefetcher.predict(page(1050, 50)),
+                page(1100, 50));
+        Assert.assertNull(prefetcher.predict(page(1100, 50)));
+    }
+
+    @Test
+    public void testTransitionsKeyedByLastImage() {
+        ThumbnailPrefetcher prefetcher = prefetcher(100);
+        prefetcher.observe("a", 96, page(1000, 50));
+        prefetcher.observe("a", 96, page(2000, 50));
+        // A differently sized page ending on the same image
+        Assert.assertEquals(prefetcher.predict(page(1040, 10)),
+                page(2000, 50));
+        Assert.assertNull(prefetcher.predict(page(1000, 49)));
+    }
+
+    @Test
+    public void testSessionsLearnIndependently() {
+        ThumbnailPrefetcher prefetcher = prefetcher(100);
+        prefetcher.observe("a", 96, page(1000, 50));
+        prefetcher.observe("b", 96, page(5000, 50));
+        prefetcher.observe("a", 96, page(1050, 50));
+        Assert.assertEquals(prefetcher.predict(page(1000, 50)),
+                page(1050, 50));
+        Assert.assertNull(prefetcher.predict(page(5000, 50)));
+    }
+
+    @Test
+    public void testMostRecentTransitionPredicted() {
+        ThumbnailPrefetcher prefetcher = prefetcher(100);
+        prefetcher.observe("a", 96, page(1000, 50));
+        prefetcher.observe("a", 96, page(1050, 50));
+        prefetcher.observe("b", 96, page(1000, 50));
+        prefetcher.observe("b", 96, page(3000, 50));
+        Assert.assertEquals(prefetcher.predict(page(1000, 50)),
+                page(3000, 50));
+    }
+
+    @Test
+    public void testRepeatsAndSmallPagesNotLearned() {
+        ThumbnailPrefetcher prefetcher = prefetcher(100);
+        prefetcher.observe("a", 96, page(1000, 50));
+        // Overlapping the previous page, for example a reload
+        prefetcher.observe("a", 96, page(1010, 50));
+        Assert.assertNull(prefetcher.predict(page(1000, 50)));
+        // Below the minimum page size
+        prefetcher.observe("a", 96, page(2000, 2));
+        Assert.assertNull(prefetcher.predict(page(1010, 50)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTransitionsForgotten() {
+        ThumbnailPrefetcher prefetcher = prefetcher(2);
+        prefetcher.observe("a", 96, page(1000, 10));
+        prefetcher.observe("a", 96, page(1010, 10));
+        prefetcher.observe("a", 96, page(1020, 10));
+        Assert.assertNotNull(prefetcher.predict(page(1000, 10)));
+        prefetcher.observe("a", 96, page(1030, 10));
+        Assert.assertNotNull(prefetcher.predict(page(1000, 10)));
+        Assert.assertNull(prefetcher.predict(page(1010, 10)));
+        Assert.assertNotNull(prefetcher.predict(page(1020, 10)));
+    }
+
+    @Test
+    public void testAdmission() {
+        ThumbnailPrefetcher prefetcher = prefetcher(100);
+        Assert.assertFalse(prefetcher.tryStart(2, 0, 4));
+        Assert.assertFalse(prefetcher.tryStart(10, 3, 4));
+        Assert.assertTrue(prefetcher.tryStart(10, 2, 4));
+        // At most one in flight
+        Assert.assertFalse(prefetcher.tryStart(10, 0, 4));
+        prefetcher.finish("a", 96, page(1010, 10));
+        Assert.assertTrue(prefetcher.tryStart(10, 0, 4));
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2026 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.thumbnail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TrafficTraceTest {
+
+    private TrafficTrace.Request request(
+            TrafficTrace.Route route, long startMicros, Long renderingDefId,
+            TrafficTrace.Cache cache, long... imageIds) {
+        TrafficTrace.Request request = new TrafficTrace.Request();
+        request.route = route;
+        request.startMicros = startMicros;
+        request.statusCode = 200;
+        request.session = 0xCAFEBABE;
+        request.longestSide = 96;
+        request.renderingDefId = renderingDefId;
+        request.imageIds = imageIds;
+        request.totalMicros = 12345L;
+        request.cache = cache;
+        return request;
+    }
+
+    private byte[] write(TrafficTrace.Request... requests)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TrafficTrace.Writer writer =
+                new TrafficTrace.Writer(out, 1500000000000L)) {
+            for (TrafficTrace.Request request : requests) {
+                writer.write(request);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void assertRequestEquals(
+            TrafficTrace.Request actual, TrafficTrace.Request expected) {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(actual.route, expected.route);
+        Assert.assertEquals(actual.startMicros, expected.startMicros);
+        Assert.assertEquals(actual.statusCode, expected.statusCode);
+        Assert.assertEquals(actual.session, expected.session);
+        Assert.assertEquals(actual.longestSide, expected.longestSide);
+        Assert.assertEquals(actual.renderingDefId, expected.renderingDefId);
+        Assert.assertTrue(Arrays.equals(actual.imageIds, expected.imageIds));
+        Assert.assertEquals(actual.totalMicros, expected.totalMicros);
+        Assert.assertEquals(actual.cache, expected.cache);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        TrafficTrace.Request[] requests = new TrafficTrace.Request[] {
+            request(TrafficTrace.Route.RENDER_THUMBNAIL, 1000L, null,
+                    TrafficTrace.Cache.HIT, 1L),
+            // Records are written in completion order so start times may
+            // go backwards
+            request(TrafficTrace.Route.RENDER_BIRDS_EYE_VIEW, 500L, 0L,
+                    TrafficTrace.Cache.MISS, Long.MAX_VALUE),
+            request(TrafficTrace.Route.GET_THUMBNAILS, 1L << 40, 42L,
+                    TrafficTrace.Cache.PARTIAL, 1L, 2L, 300000L),
+            request(TrafficTrace.Route.GET_THUMBNAILS, 1L << 40, null,
+                    TrafficTrace.Cache.UNKNOWN)
+        };
+        byte[] trace = write(requests);
+        try (TrafficTrace.Reader reader = new TrafficTrace.Reader(
+                new ByteArrayInputStream(trace))) {
+            Assert.assertEquals(reader.startMillis, 1500000000000L);
+            for (TrafficTrace.Request expected : requests) {
+                assertRequestEquals(reader.next(), expected);
+            }
+            Assert.assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testTruncatedRecordIgnored() throws IOException {
+        TrafficTrace.Request first = request(
+                TrafficTrace.Route.RENDER_THUMBNAIL, 1000L, null,
+                TrafficTrace.Cache.HIT, 1L);
+        byte[] trace = write(first, request(
+                TrafficTrace.Route.GET_THUMBNAILS, 2000L, null,
+                TrafficTrace.Cache.MISS, 1L, 2L, 3L));
+        try (TrafficTrace.Reader reader = new TrafficTrace.Reader(
+                new ByteArrayInputStream(
+                        Arrays.copyOf(trace, trace.length - 3)))) {
+            assertRequestEquals(reader.next(), first);
+            Assert.assertNull(reader.next());
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testNotATrace() throws IOException {
+        new TrafficTrace.Reader(new ByteArrayInputStream(
+                "not a traffic trace".getBytes()));
+    }
+
+    @Test
+    public void testCacheOutcome() {
+        Assert.assertEquals(
+                TrafficTrace.Cache.of("hit"), TrafficTrace.Cache.HIT);
+        Assert.assertEquals(
+                TrafficTrace.Cache.of("negative"),
+                TrafficTrace.Cache.NEGATIVE);
+        Assert.assertEquals(
+                TrafficTrace.Cache.of(null), TrafficTrace.Cache.UNKNOWN);
+        Assert.assertEquals(
+                TrafficTrace.Cache.of("bogus"), TrafficTrace.Cache.UNKNOWN);
+    }
+
+}